@@ -37,11 +37,28 @@ public class Configuration {
     private boolean checkConsistency = false;
     /** Use R*-style split in R-tree? */
     private boolean useRStarSplit = false;
+    /**
+     * Access B-tree page entries directly from the page data? False to load
+     * the entries into a TreeMap (compatibility mode).
+     */
+    private boolean inPageBTreeEntries = true;
     /**
      * Fill ratio to use when bulk-loading pages; from 0 to 1 (1 means that
      * pages will be full).
      */
     private double bulkLoadFillRatio = 0.9;
+    /**
+     * Max amount of entries to sort in memory when bulk-loading.
+     * Larger inputs are sorted in runs of this size that are stored to
+     * temporary files and merged. Zero means that the input must already be
+     * sorted.
+     */
+    private int bulkLoadSortRunSize = 100000;
+    /**
+     * Amount of threads used to sort the sort runs when bulk-loading. Zero
+     * means one thread per available processor.
+     */
+    private int bulkLoadSortThreads = 0;
     /**
      * Items to skip when running operations from a key file. Null means no
      * skip.
@@ -205,6 +222,14 @@ public class Configuration {
         this.useRStarSplit = useRStarSplit;
     }
 
+    public boolean isInPageBTreeEntries() {
+        return inPageBTreeEntries;
+    }
+
+    public void setInPageBTreeEntries(boolean inPageBTreeEntries) {
+        this.inPageBTreeEntries = inPageBTreeEntries;
+    }
+
     public double getBulkLoadFillRatio() {
         return bulkLoadFillRatio;
     }
@@ -213,6 +238,22 @@ public class Configuration {
         this.bulkLoadFillRatio = bulkLoadFillRatio;
     }
 
+    public int getBulkLoadSortRunSize() {
+        return bulkLoadSortRunSize;
+    }
+
+    public void setBulkLoadSortRunSize(int bulkLoadSortRunSize) {
+        this.bulkLoadSortRunSize = bulkLoadSortRunSize;
+    }
+
+    public int getBulkLoadSortThreads() {
+        return bulkLoadSortThreads;
+    }
+
+    public void setBulkLoadSortThreads(int bulkLoadSortThreads) {
+        this.bulkLoadSortThreads = bulkLoadSortThreads;
+    }
+
     public Long getOperationsSkip() {
         return operationsSkip;
     }
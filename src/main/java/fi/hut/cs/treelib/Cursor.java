@@ -0,0 +1,26 @@
+package fi.hut.cs.treelib;
+
+import fi.tuska.util.Pair;
+
+/**
+ * A cursor streams the entries of a key range in key order. The cursor keeps
+ * the pages it is positioned on fixed to the page buffer, so it must always
+ * be closed after use. The tree must not be modified while a cursor is open.
+ *
+ * @author thaapasa
+ */
+public interface Cursor<K extends Key<K>, V> {
+
+    /**
+     * @return the next entry, or null if there are no more entries in the
+     * range
+     */
+    Pair<K, V> next();
+
+    /**
+     * Releases the pages fixed by the cursor. After closing, next() returns
+     * null.
+     */
+    void close();
+
+}
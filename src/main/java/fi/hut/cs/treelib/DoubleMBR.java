@@ -0,0 +1,269 @@
+package fi.hut.cs.treelib;
+
+import fi.hut.cs.treelib.common.FloatKey;
+import fi.hut.cs.treelib.common.IntegerKey;
+
+/**
+ * Primitive view of an MBR. The bounds are stored in a flat double array,
+ * in paired order (Xmin, Xmax, Ymin, Ymax, ...), so that the area,
+ * enlargement and overlap calculations used by the R-tree and J-tree
+ * algorithms can be done without creating key objects or intermediate MBRs.
+ *
+ * <p>
+ * The view is exact for float and integer keys, as both are represented
+ * exactly as doubles. Other keys are approximated with
+ * {@link Key#toFloat()}; these views can only be used for the area-based
+ * heuristics, not for comparisons.
+ *
+ * <p>
+ * Instances are immutable. The static methods operate on bound arrays in
+ * the same layout, and can be used to accumulate MBRs without allocating.
+ *
+ * @author thaapasa
+ */
+public final class DoubleMBR {
+
+    private final double[] bounds;
+    private final int dimensions;
+    private final boolean exact;
+
+    private DoubleMBR(double[] bounds, boolean exact) {
+        this.bounds = bounds;
+        this.dimensions = bounds.length / 2;
+        this.exact = exact;
+    }
+
+    /**
+     * @return the primitive view of the given (non-prototype) MBR
+     */
+    protected static <K extends Key<K>> DoubleMBR create(MBR<K> mbr) {
+        int dimensions = mbr.getDimensions();
+        double[] bounds = new double[dimensions * 2];
+        boolean exact = true;
+        for (int i = 0; i < dimensions; i++) {
+            K low = mbr.getLow(i);
+            K high = mbr.getHigh(i);
+            exact &= isExact(low) && isExact(high);
+            bounds[i * 2] = toDouble(low);
+            bounds[i * 2 + 1] = toDouble(high);
+        }
+        return new DoubleMBR(bounds, exact);
+    }
+
+    private static boolean isExact(Key<?> key) {
+        return key instanceof FloatKey || key instanceof IntegerKey;
+    }
+
+    private static double toDouble(Key<?> key) {
+        if (key instanceof IntegerKey)
+            return ((IntegerKey) key).intValue();
+        return key.toFloat();
+    }
+
+    /**
+     * @return true if the view represents the MBR exactly, so that it can
+     * be used for comparisons
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public double getLow(int dim) {
+        return bounds[dim * 2];
+    }
+
+    public double getHigh(int dim) {
+        return bounds[dim * 2 + 1];
+    }
+
+    /**
+     * @return a copy of the bounds, for use as an accumulator
+     */
+    public double[] copyBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Copies the bounds of this MBR to the given array.
+     */
+    public void copyBounds(double[] target) {
+        System.arraycopy(bounds, 0, target, 0, bounds.length);
+    }
+
+    /**
+     * @return the squared minimum distance (MINDIST) from the given point to
+     * this MBR
+     * @see #minDistance(double[], double[])
+     */
+    public double getMinDistance(double[] point) {
+        return minDistance(bounds, point);
+    }
+
+    /**
+     * @see MBR#overlaps(MBR)
+     */
+    public boolean overlaps(DoubleMBR other) {
+        return overlaps(bounds, other.bounds);
+    }
+
+    /**
+     * @see MBR#contains(MBR)
+     */
+    public boolean contains(DoubleMBR other) {
+        return contains(bounds, other.bounds);
+    }
+
+    /**
+     * @see MBR#getArea()
+     */
+    public double getArea() {
+        return area(bounds);
+    }
+
+    /**
+     * @see MBR#getPerimeter()
+     */
+    public double getPerimeter() {
+        return perimeter(bounds);
+    }
+
+    /**
+     * @see MBR#countEnlargement(MBR)
+     */
+    public double getEnlargement(DoubleMBR other) {
+        return enlargement(bounds, other.bounds);
+    }
+
+    /**
+     * @see MBR#countOverlapArea(MBR)
+     */
+    public double getOverlapArea(DoubleMBR other) {
+        return overlapArea(bounds, other.bounds);
+    }
+
+    public static boolean overlaps(double[] a, double[] b) {
+        for (int i = 0; i < a.length; i += 2) {
+            if (a[i] > b[i + 1] || a[i + 1] < b[i])
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean contains(double[] a, double[] b) {
+        for (int i = 0; i < a.length; i += 2) {
+            if (a[i] > b[i] || a[i + 1] < b[i + 1])
+                return false;
+        }
+        return true;
+    }
+
+    public static double area(double[] a) {
+        double area = 1;
+        for (int i = 0; i < a.length; i += 2) {
+            area *= a[i + 1] - a[i];
+        }
+        return area;
+    }
+
+    /**
+     * @return the perimeter, as defined in {@link MBR#getPerimeter()}
+     */
+    public static double perimeter(double[] a) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i += 2) {
+            sum += a[i + 1] - a[i];
+        }
+        return sum * (1 << (a.length / 2 - 1));
+    }
+
+    /**
+     * @return the enlargement of the area of a required to contain b; or the
+     * difference of the areas (as a negative number) if a already contains
+     * b
+     */
+    public static double enlargement(double[] a, double[] b) {
+        double area = area(a);
+        if (contains(a, b))
+            return area(b) - area;
+        double extended = 1;
+        for (int i = 0; i < a.length; i += 2) {
+            extended *= Math.max(a[i + 1], b[i + 1]) - Math.min(a[i], b[i]);
+        }
+        return extended - area;
+    }
+
+    /**
+     * @return the area of the intersection of a and b; or zero, if they do
+     * not overlap
+     */
+    public static double overlapArea(double[] a, double[] b) {
+        double area = 1;
+        for (int i = 0; i < a.length; i += 2) {
+            double dist = Math.min(a[i + 1], b[i + 1]) - Math.max(a[i], b[i]);
+            if (dist <= 0)
+                return 0;
+            area *= dist;
+        }
+        return area;
+    }
+
+    /**
+     * Calculates the minimum distance (MINDIST) from a point to the MBR a.
+     * The distance is the squared Euclidean distance, which orders the MBRs
+     * the same way as the actual distance does.
+     *
+     * @param point the point coordinates, one per dimension
+     * @return the squared distance; or zero, if a contains the point
+     */
+    public static double minDistance(double[] a, double[] point) {
+        double dist = 0;
+        for (int i = 0; i < a.length; i += 2) {
+            double p = point[i / 2];
+            double d = p < a[i] ? a[i] - p : (p > a[i + 1] ? p - a[i + 1] : 0);
+            dist += d * d;
+        }
+        return dist;
+    }
+
+    /**
+     * @return the primitive coordinates of the given (non-prototype) point
+     */
+    public static <K extends Key<K>> double[] getPoint(Coordinate<K> point) {
+        double[] coords = new double[point.getDimensions()];
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = toDouble(point.get(i));
+        }
+        return coords;
+    }
+
+    /**
+     * Extends the bounds in target to contain the bounds of the given MBR.
+     */
+    public static void extend(double[] target, DoubleMBR mbr) {
+        double[] b = mbr.bounds;
+        for (int i = 0; i < target.length; i += 2) {
+            if (b[i] < target[i])
+                target[i] = b[i];
+            if (b[i + 1] > target[i + 1])
+                target[i + 1] = b[i + 1];
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{");
+        for (int i = 0; i < dimensions; i++) {
+            if (i != 0)
+                buf.append(",");
+            buf.append("(").append(getLow(i)).append(":").append(getHigh(i)).append(")");
+        }
+        buf.append("}");
+        return buf.toString();
+    }
+
+}
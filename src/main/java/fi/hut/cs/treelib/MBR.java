@@ -35,6 +35,9 @@ public class MBR<K extends Key<K>> extends KeyRange<Coordinate<K>> implements Ke
      */
     private final boolean pairedOrder;
 
+    /** Primitive view of the bounds, created when first needed */
+    private DoubleMBR doubleMBR;
+
     /**
      * Creates a prototype of this MBR.
      * 
@@ -146,6 +149,11 @@ public class MBR<K extends Key<K>> extends KeyRange<Coordinate<K>> implements Ke
             throw new IllegalArgumentException("Different MBR dimensions: " + dimensions
                 + " and " + other.dimensions);
 
+        DoubleMBR d = getDoubleMBR();
+        DoubleMBR o = other.getDoubleMBR();
+        if (d.isExact() && o.isExact())
+            return d.overlaps(o);
+
         for (int i = 0; i < dimensions; i++) {
             // if (this.low[i] > other.high[i] || this.high[i] < other.low[i])
             if (getLow(i).compareTo(other.getHigh(i)) > 0
@@ -166,6 +174,11 @@ public class MBR<K extends Key<K>> extends KeyRange<Coordinate<K>> implements Ke
         if (isPrototype || other.isPrototype)
             throw new UnsupportedOperationException("Prototypes cannot be compared");
 
+        DoubleMBR d = getDoubleMBR();
+        DoubleMBR o = other.getDoubleMBR();
+        if (d.isExact() && o.isExact())
+            return d.contains(o);
+
         for (int i = 0; i < dimensions; i++) {
             // if low <= other.low && high >= other.high, then may contain ->
             // if low > other.low || high < other.high, then does not contain
@@ -176,6 +189,22 @@ public class MBR<K extends Key<K>> extends KeyRange<Coordinate<K>> implements Ke
         return true;
     }
 
+    /**
+     * @return the primitive view of this MBR, used for calculating areas and
+     * enlargements without allocating key objects
+     */
+    public DoubleMBR getDoubleMBR() {
+        if (isPrototype)
+            throw new UnsupportedOperationException("Prototypes do not have bounds");
+        DoubleMBR d = doubleMBR;
+        if (d == null) {
+            // DoubleMBR is immutable, so a racing initialization is harmless
+            d = DoubleMBR.create(this);
+            doubleMBR = d;
+        }
+        return d;
+    }
+
     public MBR<K> extend(MBR<K> other) {
         if (isPrototype || other.isPrototype)
             throw new UnsupportedOperationException("Prototypes cannot be extended");
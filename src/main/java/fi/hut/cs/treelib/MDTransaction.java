@@ -24,6 +24,8 @@ public interface MDTransaction<K extends Key<K>, V extends PageValue<?>> extends
 
     boolean getOverlapping(MBR<K> key, Callback<Pair<MBR<K>, V>> callback);
 
+    boolean getNearest(Coordinate<K> point, int k, Callback<Pair<MBR<K>, V>> callback);
+
     /**
      * Exact-match query for the given key (MBR).
      * 
@@ -42,4 +44,16 @@ public interface MDTransaction<K extends Key<K>, V extends PageValue<?>> extends
      */
     List<Pair<MBR<K>, V>> getOverlapping(MBR<K> key);
 
+    /**
+     * k-nearest-neighbor query for the given point.
+     * 
+     * Distance is the minimum distance (MINDIST) from the point to the MBR
+     * of the object.
+     * 
+     * @param point the query point
+     * @param k the maximum amount of objects to return
+     * @return the k objects nearest to the point, the nearest first.
+     */
+    List<Pair<MBR<K>, V>> getNearest(Coordinate<K> point, int k);
+
 }
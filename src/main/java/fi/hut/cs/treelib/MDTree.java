@@ -28,6 +28,17 @@ public interface MDTree<K extends Key<K>, V extends PageValue<?>, P extends Page
      */
     boolean getOverlapping(MBR<K> key, Callback<Pair<MBR<K>, V>> callback, Owner owner);
 
+    /**
+     * k-nearest-neighbor query for the given point. The entries are
+     * reported in the order of increasing minimum distance (MINDIST) from
+     * the point.
+     * 
+     * @param point the query point
+     * @param k the maximum amount of entries to report
+     */
+    boolean getNearest(Coordinate<K> point, int k, Callback<Pair<MBR<K>, V>> callback,
+        Owner owner);
+
     MBR<K> getExtents();
 
 }
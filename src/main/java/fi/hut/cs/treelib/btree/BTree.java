@@ -1,12 +1,16 @@
 package fi.hut.cs.treelib.btree;
 
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 import fi.hut.cs.treelib.Component;
+import fi.hut.cs.treelib.Configuration;
+import fi.hut.cs.treelib.Cursor;
 import fi.hut.cs.treelib.DatabaseConfiguration;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.KeyRange;
@@ -21,11 +25,16 @@ import fi.hut.cs.treelib.VisualizableTree;
 import fi.hut.cs.treelib.common.AbstractTree;
 import fi.hut.cs.treelib.common.PagePath;
 import fi.hut.cs.treelib.common.TreeShortcuts;
+import fi.hut.cs.treelib.internal.KeyRangeImpl;
 import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageFactory;
+import fi.hut.cs.treelib.util.ExternalSorter;
 import fi.tuska.util.Callback;
+import fi.tuska.util.Converter;
+import fi.tuska.util.Filter;
 import fi.tuska.util.Holder;
 import fi.tuska.util.Pair;
+import fi.tuska.util.iterator.FilteringIterator;
 
 public class BTree<K extends Key<K>, V extends PageValue<?>> extends
     AbstractTree<K, V, BTreePage<K, V>> implements Tree<K, V, BTreePage<K, V>>,
@@ -35,9 +44,10 @@ public class BTree<K extends Key<K>, V extends PageValue<?>> extends
 
     /**
      * The current root page. This page is always kept fixed to the page
-     * buffer for efficiency.
+     * buffer for efficiency. Volatile, because lookups and B-link inserts read
+     * the root without latches.
      */
-    private BTreePage<K, V> root;
+    private volatile BTreePage<K, V> root;
 
     private final BTreeOperations<K, V> operations;
 
@@ -47,6 +57,27 @@ public class BTree<K extends Key<K>, V extends PageValue<?>> extends
 
     private byte[] extraData;
 
+    /** Bulk-loading: the page before the current page at the same level. */
+    private PageID bulkLoadPrevPageID;
+
+    /**
+     * True to write-latch the pages while they are modified, so that the
+     * optimistic lookups can be run concurrently with a writer.
+     */
+    private boolean latchUpdates = false;
+
+    /**
+     * True to run the updates as in a B-link tree, so that several writers
+     * can update the tree concurrently.
+     */
+    private volatile boolean bLinkMode = false;
+
+    /**
+     * Amount of pages in the tree, maintained when pages are created and
+     * deleted; -1 if the pages are not counted.
+     */
+    private final AtomicLong pageCount = new AtomicLong(-1);
+
     public BTree(String identifier, String name, PageID infoPageID,
         DatabaseConfiguration<K, V> dbConfig) {
         super(identifier, name, infoPageID, dbConfig);
@@ -74,6 +105,51 @@ public class BTree<K extends Key<K>, V extends PageValue<?>> extends
         operations.setOverwriteEntries(state);
     }
 
+    /**
+     * Sets whether the pages are write-latched while they are modified. The
+     * lookups (get and contains) validate the pages they read against the
+     * page latches, so when the updates are latched, the lookups can run
+     * concurrently with a writer. The writers must still be serialized
+     * externally.
+     * 
+     * <p>
+     * The lookups fix the pages without latching them, so pages are never
+     * deleted while the updates are latched: underflown pages are not
+     * merged, and the root is not collapsed.
+     */
+    public void setLatchUpdates(boolean state) {
+        this.latchUpdates = state;
+    }
+
+    public boolean isLatchUpdates() {
+        return latchUpdates;
+    }
+
+    /**
+     * Sets the B-link mode (Lehman and Yao). In the B-link mode, inserts and
+     * deletes can run concurrently from several threads. The writers latch
+     * one page at a time when descending the tree, and a page that is split
+     * is linked to its new sibling before the separator is posted to the
+     * parent page, so that the operations that arrive at a page whose key
+     * range has shrunk can follow the next page links. The pages are never
+     * merged, so underflown pages are left in the tree.
+     * 
+     * <p>
+     * The B-link mode requires a latch manager that latches the pages, and
+     * it implies that the updates are latched. Only the updates and the
+     * lookups (get and contains) can be run concurrently; the other
+     * operations must not be run while the tree is being updated.
+     */
+    public void setBLinkMode(boolean state) {
+        this.bLinkMode = state;
+        if (state)
+            this.latchUpdates = true;
+    }
+
+    public boolean isBLinkMode() {
+        return bLinkMode;
+    }
+
     @Override
     protected void loadTree() {
         // Check that info page is reserved
@@ -94,6 +170,44 @@ public class BTree<K extends Key<K>, V extends PageValue<?>> extends
         pageBuffer.unfix(infoPage, internalOwner);
     }
 
+    @Override
+    public BTreePage<K, V> createPage(Owner owner) {
+        BTreePage<K, V> page = super.createPage(owner);
+        if (pageCount.get() >= 0)
+            pageCount.incrementAndGet();
+        return page;
+    }
+
+    /**
+     * Deletes a page of this tree. Requires that the page has exactly one
+     * fix.
+     */
+    public void deletePage(PageID pageID, Owner owner) {
+        pageBuffer.delete(pageID, owner);
+        if (pageCount.get() >= 0)
+            pageCount.decrementAndGet();
+    }
+
+    /**
+     * Starts counting the pages of this tree. The tree is traversed once to
+     * count the existing pages; after that, the count is maintained when
+     * pages are created and deleted. Must be called before the tree is used
+     * concurrently.
+     */
+    public void enablePageCount() {
+        if (pageCount.get() >= 0)
+            return;
+        pageCount.set(root != null ? TreeShortcuts.countPages(this, false) : 0);
+    }
+
+    /**
+     * @return the amount of pages in the tree, without traversing or latching
+     * the tree; or -1, if page counting has not been enabled
+     */
+    public long getPageCount() {
+        return pageCount.get();
+    }
+
     @Override
     public BTreeOperations<K, V> getOperations() {
         return operations;
@@ -147,12 +261,37 @@ public class BTree<K extends Key<K>, V extends PageValue<?>> extends
         if (root != page)
             throw new IllegalArgumentException("Trying to delete incorrect root page!");
         if (root != null) {
-            pageBuffer.delete(root.getPageID(), owner);
+            deletePage(root.getPageID(), owner);
             root = null;
             updateInfoPage(owner);
         }
     }
 
+    /**
+     * ACTION: Inserts a value into the B-tree.
+     */
+    @Override
+    public boolean insert(K key, V value, PagePath<K, V, BTreePage<K, V>> savedPath,
+        Transaction<K, V> tx) {
+        if (!bLinkMode)
+            return super.insert(key, value, savedPath, tx);
+
+        if (log.isDebugEnabled())
+            log.debug("B-Tree action: B-link insert " + key);
+        // The root is created only once and the key range rarely grows, so
+        // the tree is locked only when either of them must change
+        if (root == null || !isInKeyRange(key)) {
+            synchronized (this) {
+                if (root == null) {
+                    // createLeafRoot() leaves the root fixed
+                    pageBuffer.unfix(createLeafRoot(tx), tx);
+                }
+                extendKeyRange(key);
+            }
+        }
+        return operations.insertBLink(key, value, tx);
+    }
+
     /**
      * ACTION: Deletes a value from the B-tree.
      */
@@ -162,6 +301,8 @@ public class BTree<K extends Key<K>, V extends PageValue<?>> extends
             log.debug("Trying to delete, root is null");
             return false;
         }
+        if (bLinkMode)
+            return operations.deleteBLink(key, tx) != null;
         assert savedPath != null;
         // Entire path is needed now because we may have to do SMOs
         savedPath = operations.validatePathToLeafPage(root.getPageID(), key, savedPath, tx);
@@ -173,21 +314,25 @@ public class BTree<K extends Key<K>, V extends PageValue<?>> extends
      * ACTION: Gets a value from the B-tree.
      */
     @Override
-    @SuppressWarnings("unchecked")
-    public V get(K key, Transaction<K, V> tx) {
-        log.debug("B-Tree action: get " + key);
-        if (root == null) {
-            return null;
-        }
-        PagePath<K, V, BTreePage<K, V>> path = new PagePath<K, V, BTreePage<K, V>>(false);
-        // Traversal is enough, no need to store entire path
-        operations.findPathToLeafPage(root.getPageID(), key, path, DEFAULT_TRANSACTION_ID, tx);
-        BTreePage<K, V> leaf = path.getCurrent();
-        assert leaf != null : "Could not find a leaf node for key " + key;
-        assert leaf.isLeafPage();
-        V result = (V) leaf.getEntry(key);
-        pageBuffer.unfix(path, tx);
-        return result;
+    public V get(final K key, Transaction<K, V> tx) {
+        if (log.isDebugEnabled())
+            log.debug("B-Tree action: get " + key);
+        // Optimistic lookup, see BTreeOperations.readLeaf()
+        return operations.readLeaf(key, new Converter<BTreePage<K, V>, V>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public V convert(BTreePage<K, V> leaf) {
+                return (V) leaf.getEntry(key);
+            }
+        }, tx);
+    }
+
+    /**
+     * Opens a cursor that streams the entries of the given range in key
+     * order. The cursor must be closed after use.
+     */
+    public Cursor<K, V> openCursor(KeyRange<K> range, Transaction<K, V> tx) {
+        return new BTreeCursor<K, V>(this, range, tx);
     }
 
     @Override
@@ -281,18 +426,103 @@ public class BTree<K extends Key<K>, V extends PageValue<?>> extends
      * ACTION: Checks if the B-tree contains a key.
      */
     @Override
-    public boolean contains(K key, Transaction<K, V> tx) {
-        log.debug("B-Tree action: contains " + key);
-        if (root == null) {
-            return false;
+    public boolean contains(final K key, Transaction<K, V> tx) {
+        if (log.isDebugEnabled())
+            log.debug("B-Tree action: contains " + key);
+        Boolean result = operations.readLeaf(key, new Converter<BTreePage<K, V>, Boolean>() {
+            @Override
+            public Boolean convert(BTreePage<K, V> leaf) {
+                return leaf.contains(key);
+            }
+        }, tx);
+        return result != null && result;
+    }
+
+    /**
+     * Bulk-loads the given entries into an empty tree. The leaf pages are
+     * filled in key order up to the configured bulk-load fill ratio, and the
+     * index levels are built bottom-up from the leaf page separators. The
+     * pages at each level are linked with next page links.
+     * 
+     * <p>
+     * Unsorted input is sorted first; inputs that do not fit in a single
+     * sort run are sorted externally (see
+     * Configuration.getBulkLoadSortRunSize()). Only the first entry of each
+     * key is loaded.
+     */
+    public void bulkLoad(Iterable<Pair<K, V>> entries, Transaction<K, V> tx) {
+        if (root != null) {
+            if (!root.isLeafPage() || root.getEntryCount() > 0)
+                throw new IllegalStateException("Bulk-loading is only allowed on an empty tree");
+            // Drop the empty root leaf
+            deleteRoot(root, tx);
         }
-        PagePath<K, V, BTreePage<K, V>> path = new PagePath<K, V, BTreePage<K, V>>(false);
-        // Traversal is enough, no need to hold entire path
-        operations.findPathToLeafPage(root.getPageID(), key, path, DEFAULT_TRANSACTION_ID, tx);
-        BTreePage<K, V> leaf = path.getCurrent();
-        boolean result = leaf.contains(key);
-        pageBuffer.unfix(path, tx);
-        return result;
+        int runSize = Configuration.instance().getBulkLoadSortRunSize();
+        if (runSize > 0) {
+            ExternalSorter<K, V> sorter = new ExternalSorter<K, V>(dbConfig.getKeyPrototype(),
+                dbConfig.getValuePrototype(), runSize);
+            sorter.setThreads(Configuration.instance().getBulkLoadSortThreads());
+            entries = sorter.sort(entries);
+        }
+        // Skip the duplicate keys
+        final Holder<K> lastKey = new Holder<K>();
+        Iterable<Pair<K, V>> unique = new FilteringIterator<Pair<K, V>>(entries.iterator(),
+            new Filter<Pair<K, V>>() {
+                @Override
+                public boolean isValid(Pair<K, V> entry) {
+                    K key = entry.getFirst();
+                    K last = lastKey.getValue();
+                    if (last != null && last.compareTo(key) == 0)
+                        return false;
+                    lastKey.setValue(key);
+                    return true;
+                }
+            });
+
+        BTreePage<K, V> newRoot = bulkLoad(unique, (Comparator<Pair<K, V>>) null);
+        if (newRoot == null)
+            return;
+        attachRoot(newRoot, tx);
+        pageBuffer.unfix(newRoot, internalOwner);
+        log.info(String.format("Bulk-loaded %s", this));
+    }
+
+    /**
+     * Bulk-loading: divides the key space between the filled page and the
+     * new page at the first key of the new page, and links the pages. The
+     * last page of a level is topped up to the minimum entry count from the
+     * page before it.
+     */
+    @Override
+    protected void checkPageLimits(BTreePage<K, V> prevPage, BTreePage<K, V> newPage, K key,
+        boolean lastPageAtThisLevel) {
+        if (newPage != null) {
+            assert key != null;
+            setBulkLoadSeparator(prevPage, newPage, key);
+            prevPage.setNextPage(newPage.getPageID());
+            bulkLoadPrevPageID = prevPage.getPageID();
+            return;
+        }
+        assert lastPageAtThisLevel;
+        PageID lowerID = bulkLoadPrevPageID;
+        bulkLoadPrevPageID = null;
+        if (prevPage == null || lowerID == null)
+            return;
+
+        BTreePage<K, V> lower = pageBuffer.fixPage(lowerID, pageFactory, false, internalOwner);
+        int minEntries = prevPage.getMinEntries();
+        K separator = null;
+        while (prevPage.getEntryCount() < minEntries && lower.getEntryCount() > minEntries) {
+            separator = lower.moveLast(prevPage);
+        }
+        if (separator != null)
+            setBulkLoadSeparator(lower, prevPage, separator);
+        pageBuffer.unfix(lower, internalOwner);
+    }
+
+    private void setBulkLoadSeparator(BTreePage<K, V> lower, BTreePage<K, V> higher, K key) {
+        lower.setKeyRange(new KeyRangeImpl<K>(lower.getKeyRange().getMin(), key));
+        higher.setKeyRange(new KeyRangeImpl<K>(key, higher.getKeyRange().getMax()));
     }
 
     /**
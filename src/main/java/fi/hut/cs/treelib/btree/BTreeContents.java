@@ -0,0 +1,68 @@
+package fi.hut.cs.treelib.btree;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.KeyRange;
+import fi.hut.cs.treelib.PageValue;
+
+/**
+ * The entries of a B-tree page, ordered by the key ranges of the entries.
+ * The entries are identified by the min keys of their key ranges.
+ * 
+ * <p>
+ * InPageContents accesses the entries directly from the page data, so that
+ * loading a page does not require deserializing all the entries.
+ * TreeMapContents is the compatibility mode that keeps the entries in a
+ * TreeMap, and stores them to the page data only when the page is saved.
+ * 
+ * @author thaapasa
+ */
+interface BTreeContents<K extends Key<K>> extends
+    Iterable<Map.Entry<KeyRange<K>, PageValue<?>>> {
+
+    int size();
+
+    boolean isEmpty();
+
+    PageValue<?> get(KeyRange<K> range);
+
+    boolean containsKey(KeyRange<K> range);
+
+    /**
+     * @return the previous value stored with the given range; or null
+     */
+    PageValue<?> put(KeyRange<K> range, PageValue<?> value);
+
+    /**
+     * @return the removed value; or null, if there was no entry with the
+     * given range
+     */
+    PageValue<?> remove(KeyRange<K> range);
+
+    Map.Entry<KeyRange<K>, PageValue<?>> firstEntry();
+
+    Map.Entry<KeyRange<K>, PageValue<?>> lastEntry();
+
+    Map.Entry<KeyRange<K>, PageValue<?>> higherEntry(KeyRange<K> range);
+
+    Map.Entry<KeyRange<K>, PageValue<?>> lowerEntry(KeyRange<K> range);
+
+    Map.Entry<KeyRange<K>, PageValue<?>> floorEntry(KeyRange<K> range);
+
+    /**
+     * @return the entry whose key range contains the given key; or null, if
+     * there is no such entry
+     */
+    Map.Entry<KeyRange<K>, PageValue<?>> findEntry(K key);
+
+    void clear();
+
+    /**
+     * @return an iterator over the entries, starting from the first entry
+     * whose min key is not below the given key
+     */
+    Iterator<Map.Entry<KeyRange<K>, PageValue<?>>> iterator(K from);
+
+}
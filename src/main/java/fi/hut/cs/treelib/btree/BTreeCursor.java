@@ -0,0 +1,108 @@
+package fi.hut.cs.treelib.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.hut.cs.treelib.Cursor;
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.KeyRange;
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.PageValue;
+import fi.hut.cs.treelib.Transaction;
+import fi.hut.cs.treelib.common.PagePath;
+import fi.hut.cs.treelib.storage.PageBuffer;
+import fi.tuska.util.Callback;
+import fi.tuska.util.Pair;
+
+/**
+ * Cursor over a key range of a B-tree. The cursor descends to the first leaf
+ * page of the range once, and then follows the leaf page links. The entries
+ * of the current leaf page are copied when the cursor enters the page, and
+ * only the current leaf page is kept fixed.
+ *
+ * @author thaapasa
+ */
+class BTreeCursor<K extends Key<K>, V extends PageValue<?>> implements Cursor<K, V> {
+
+    private final BTree<K, V> tree;
+    private final PageBuffer buffer;
+    private final KeyRange<K> range;
+    private final Transaction<K, V> tx;
+
+    private BTreePage<K, V> leaf = null;
+    private boolean started = false;
+    private boolean finished = false;
+
+    private final List<Pair<K, V>> entries = new ArrayList<Pair<K, V>>();
+    private int position = 0;
+
+    private final Callback<Pair<K, V>> collector = new Callback<Pair<K, V>>() {
+        @Override
+        public boolean callback(Pair<K, V> entry) {
+            entries.add(entry);
+            return true;
+        }
+    };
+
+    protected BTreeCursor(BTree<K, V> tree, KeyRange<K> range, Transaction<K, V> tx) {
+        this.tree = tree;
+        this.buffer = tree.getPageBuffer();
+        this.range = range;
+        this.tx = tx;
+    }
+
+    @Override
+    public Pair<K, V> next() {
+        while (position >= entries.size()) {
+            if (!moveToNextPage())
+                return null;
+        }
+        return entries.get(position++);
+    }
+
+    private boolean moveToNextPage() {
+        if (finished)
+            return false;
+        if (!started) {
+            started = true;
+            PageID rootID = tree.getRootPageID();
+            if (rootID == null) {
+                finished = true;
+                return false;
+            }
+            // Only the leaf page is kept in the path
+            PagePath<K, V, BTreePage<K, V>> path = new PagePath<K, V, BTreePage<K, V>>(false);
+            tree.getOperations().findPathToLeafPage(rootID, range.getMin(), path,
+                tx.getReadVersion(), tx);
+            leaf = path.getCurrent();
+        } else {
+            K max = leaf.getKeyRange().getMax();
+            if (max.compareTo(range.getMax()) >= 0 || !leaf.getNextPage().isValid()) {
+                close();
+                return false;
+            }
+            BTreePage<K, V> next = buffer.fixPage(leaf.getNextPage(), tree.getPageFactory(),
+                false, tx);
+            buffer.unfix(leaf, tx);
+            leaf = next;
+        }
+        assert leaf.isLeafPage();
+        entries.clear();
+        position = 0;
+        leaf.getAll(range, collector);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (leaf != null) {
+            buffer.unfix(leaf, tx);
+            leaf = null;
+        }
+        entries.clear();
+        position = 0;
+        started = true;
+        finished = true;
+    }
+
+}
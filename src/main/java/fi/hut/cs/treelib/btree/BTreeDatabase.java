@@ -2,6 +2,7 @@ package fi.hut.cs.treelib.btree;
 
 import java.util.Set;
 
+import fi.hut.cs.treelib.BulkLoadable;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.MVDatabase;
 import fi.hut.cs.treelib.PageID;
@@ -10,12 +11,14 @@ import fi.hut.cs.treelib.Transaction;
 import fi.hut.cs.treelib.common.AbstractDatabase;
 import fi.hut.cs.treelib.common.SMOPolicy;
 import fi.hut.cs.treelib.common.TransactionImpl;
+import fi.hut.cs.treelib.concurrency.LatchManager;
 import fi.hut.cs.treelib.concurrency.NoopLatchManager;
 import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageStorage;
+import fi.tuska.util.Pair;
 
 public class BTreeDatabase<K extends Key<K>, V extends PageValue<?>> extends
-    AbstractDatabase<K, V, BTreePage<K, V>> {
+    AbstractDatabase<K, V, BTreePage<K, V>> implements BulkLoadable<K, V> {
 
     private static final PageID INFO_PAGE_ID = new PageID(1);
 
@@ -27,6 +30,20 @@ public class BTreeDatabase<K extends Key<K>, V extends PageValue<?>> extends
         initStructures();
     }
 
+    /**
+     * Creates a B-tree database that write-latches the pages while they are
+     * modified. With a latch manager that supports optimistic reads (such as
+     * StripedLatchManager), the lookups can then run concurrently with the
+     * updates. The updates must still be serialized externally.
+     */
+    public BTreeDatabase(int bufferSize, SMOPolicy smoPolicy, LatchManager latchManager,
+        K keyPrototype, V valuePrototype, PageStorage pageStorage) {
+        super(bufferSize, pageStorage, smoPolicy, latchManager, keyPrototype, valuePrototype);
+
+        initStructures();
+        getDatabaseTree().setLatchUpdates(true);
+    }
+
     @Override
     protected void initStructures() {
         // Get the page buffer
@@ -51,6 +68,15 @@ public class BTreeDatabase<K extends Key<K>, V extends PageValue<?>> extends
         return 0;
     }
 
+    /**
+     * Builds the tree bottom-up from the given entries. Only allowed on an
+     * empty database.
+     */
+    @Override
+    public void bulkLoad(Iterable<Pair<K, V>> keys, Transaction<K, V> tx) {
+        getDatabaseTree().bulkLoad(keys, tx);
+    }
+
     @Override
     public Transaction<K, V> beginReadTransaction(int version) {
         return new TransactionImpl<K, V, BTreePage<K, V>>(this, version, true);
@@ -1,6 +1,8 @@
 package fi.hut.cs.treelib.btree;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -18,6 +20,8 @@ import fi.hut.cs.treelib.internal.TreeOperations;
 import fi.hut.cs.treelib.stats.Statistics.GlobalOperation;
 import fi.hut.cs.treelib.stats.Statistics.Operation;
 import fi.tuska.util.Callback;
+import fi.tuska.util.Converter;
+import fi.tuska.util.Holder;
 import fi.tuska.util.Pair;
 
 public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
@@ -26,6 +30,9 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
 
     private static final Logger log = Logger.getLogger(BTreeOperations.class);
 
+    /** Optimistic lookups are attempted this many times before latching. */
+    private static final int OPTIMISTIC_ATTEMPTS = 3;
+
     private BTree<K, V> tree;
 
     protected BTreeOperations(BTree<K, V> tree) {
@@ -38,6 +45,397 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
         return tree;
     }
 
+    @Override
+    protected void latchForUpdate(BTreePage<K, V> page, Transaction<K, V> tx) {
+        if (tree.isLatchUpdates())
+            buffer.writeLatch(page.getPageID(), tx);
+    }
+
+    @Override
+    protected void unlatchAfterUpdate(BTreePage<K, V> page, Transaction<K, V> tx) {
+        if (tree.isLatchUpdates())
+            buffer.unlatch(page, tx);
+    }
+
+    /**
+     * Finds the leaf page that contains the key, and reads a result from it.
+     * The pages are first read optimistically, without latching them: the
+     * read stamp of each page is validated after the page has been read, and
+     * the lookup is restarted from the root if the page was write-latched in
+     * between. After a few failed attempts, the pages are read-latched
+     * instead (latch-coupling). A page whose key range has moved below the
+     * key because of a split is passed by following the next page link.
+     * 
+     * @param reader reads the result from the leaf page; may be called
+     * several times, and must not modify the page
+     * @return the result; or null if the tree is empty
+     */
+    public <T> T readLeaf(K key, Converter<BTreePage<K, V>, T> reader, Owner owner) {
+        Holder<T> result = new Holder<T>();
+        for (int i = 0; i < OPTIMISTIC_ATTEMPTS; i++) {
+            PageID rootID = tree.getRootPageID();
+            if (rootID == null)
+                return null;
+            if (readLeafOptimistic(rootID, key, reader, result, owner))
+                return result.getValue();
+            if (log.isDebugEnabled())
+                log.debug("Optimistic lookup of " + key + " failed, retrying");
+        }
+        while (true) {
+            PageID rootID = tree.getRootPageID();
+            if (rootID == null)
+                return null;
+            if (readLeafLatched(rootID, key, reader, result, owner))
+                return result.getValue();
+        }
+    }
+
+    /**
+     * @return the next page link, if the key is above the key range of the
+     * page (the page has been split); or null
+     */
+    private PageID getRightLink(BTreePage<K, V> page, K key) {
+        if (page.getKeyRange().getMax().compareTo(key) > 0)
+            return null;
+        PageID nextID = page.getNextPage();
+        return nextID.isValid() ? nextID : null;
+    }
+
+    /**
+     * @return true if the result was read; false if the lookup must be
+     * restarted
+     */
+    private <T> boolean readLeafOptimistic(PageID rootID, K key,
+        Converter<BTreePage<K, V>, T> reader, Holder<T> result, Owner owner) {
+        PageID pageID = rootID;
+        long stamp = buffer.readStamp(pageID);
+        if (stamp == 0)
+            return false;
+        BTreePage<K, V> page = null;
+        try {
+            page = buffer.fixPage(pageID, factory, false, owner);
+            while (true) {
+                PageID nextID;
+                if (!page.getKeyRange().contains(key)) {
+                    // A split page, a stale root, or a page that is being
+                    // modified
+                    nextID = getRightLink(page, key);
+                } else if (page.isLeafPage()) {
+                    T value = reader.convert(page);
+                    if (!buffer.validate(pageID, stamp))
+                        return false;
+                    result.setValue(value);
+                    return true;
+                } else {
+                    nextID = page.findChildPointer(key);
+                }
+                if (nextID == null)
+                    return false;
+                long nextStamp = buffer.readStamp(nextID);
+                // The link must still be valid after the stamp of the next
+                // page has been taken
+                if (nextStamp == 0 || !buffer.validate(pageID, stamp))
+                    return false;
+                BTreePage<K, V> next = buffer.fixPage(nextID, factory, false, owner);
+                buffer.unfix(page, owner);
+                page = next;
+                pageID = nextID;
+                stamp = nextStamp;
+            }
+        } catch (RuntimeException e) {
+            // Reading a page that is being modified may fail
+            if (buffer.validate(pageID, stamp))
+                throw e;
+            return false;
+        } finally {
+            if (page != null)
+                buffer.unfix(page, owner);
+        }
+    }
+
+    /**
+     * In the B-link mode, only one page is latched at a time, because the
+     * writers latch the pages bottom-up.
+     * 
+     * @return true if the result was read; false if the lookup must be
+     * restarted
+     */
+    private <T> boolean readLeafLatched(PageID rootID, K key,
+        Converter<BTreePage<K, V>, T> reader, Holder<T> result, Owner owner) {
+        boolean coupling = !tree.isBLinkMode();
+        PageID pageID = rootID;
+        buffer.readLatch(pageID, owner);
+        BTreePage<K, V> page = null;
+        try {
+            page = buffer.fixPage(pageID, factory, false, owner);
+            while (true) {
+                PageID nextID;
+                if (!page.getKeyRange().contains(key)) {
+                    // The page may have been split, the root may have
+                    // changed, or a new root may not have been filled yet
+                    nextID = getRightLink(page, key);
+                } else if (page.isLeafPage()) {
+                    result.setValue(reader.convert(page));
+                    return true;
+                } else {
+                    nextID = page.findChildPointer(key);
+                }
+                if (nextID == null)
+                    return false;
+                if (!coupling) {
+                    // B-link trees: the pages are never deleted, so the
+                    // link can be followed after the page is released
+                    buffer.unfix(page, owner);
+                    page = null;
+                    buffer.unlatch(pageID, owner);
+                    pageID = null;
+                }
+                buffer.readLatch(nextID, owner);
+                BTreePage<K, V> next = null;
+                try {
+                    next = buffer.fixPage(nextID, factory, false, owner);
+                } finally {
+                    if (next == null)
+                        buffer.unlatch(nextID, owner);
+                }
+                if (page != null) {
+                    buffer.unfix(page, owner);
+                    buffer.unlatch(pageID, owner);
+                }
+                page = next;
+                pageID = nextID;
+            }
+        } finally {
+            if (page != null)
+                buffer.unfix(page, owner);
+            if (pageID != null)
+                buffer.unlatch(pageID, owner);
+        }
+    }
+
+    /**
+     * B-link mode: inserts the entry into the leaf page. The leaf page is
+     * write-latched, and if it must be split, the entries are moved to a new
+     * sibling page that is linked to the page before the page is released.
+     * The parent page is latched before the split page is released, and the
+     * separator is posted to the parent page in the same way, up to the root.
+     * The pages are latched bottom-up and left-to-right, so the writers
+     * cannot deadlock.
+     * 
+     * @return true if the entry was inserted
+     */
+    public boolean insertBLink(K key, V value, Transaction<K, V> tx) {
+        // The index pages on the path to the leaf, starting from the root
+        List<PageID> path = new ArrayList<PageID>();
+        BTreePage<K, V> page = latchPageBLink(findPageBLink(key, 1, path, tx), key, tx);
+        if (page.contains(key)) {
+            try {
+                if (!isOverwriteEntries()) {
+                    if (log.isDebugEnabled())
+                        log.debug(String.format(
+                            "Not inserting key %s as it is already found in page %s", key,
+                            page.getName()));
+                    return false;
+                }
+                page.removeEntry(key);
+                page.putContents(KeyRangeImpl.getKeyRange(key), value);
+                return true;
+            } finally {
+                releaseBLink(page, tx);
+            }
+        }
+
+        // The entry to add to the current page: the leaf entry, or the
+        // separator of the child page that was split
+        K entryKey = key;
+        PageValue<?> entryValue = value;
+        while (true) {
+            if (!smoPolicy.isAboutToOverflow(page)) {
+                putEntryBLink(page, entryKey, entryValue);
+                releaseBLink(page, tx);
+                return true;
+            }
+            BTreePage<K, V> sibling = splitBLink(page, tx);
+            K separator = sibling.getKeyRange().getMin();
+            PageID siblingID = sibling.getPageID();
+            // The sibling can only be reached through the latched page
+            putEntryBLink(entryKey.compareTo(separator) < 0 ? page : sibling, entryKey,
+                entryValue);
+            buffer.unfix(sibling, tx);
+
+            BTreePage<K, V> parent = latchParentBLink(page, separator, siblingID, path, tx);
+            releaseBLink(page, tx);
+            if (parent == null) {
+                // The tree height was increased
+                return true;
+            }
+            page = parent;
+            entryKey = separator;
+            entryValue = siblingID;
+        }
+    }
+
+    /**
+     * B-link mode: deletes the entry from the leaf page. Underflown pages
+     * are not merged.
+     * 
+     * @return the deleted value; or null, if the key was not found
+     */
+    public V deleteBLink(K key, Transaction<K, V> tx) {
+        BTreePage<K, V> page = latchPageBLink(findPageBLink(key, 1, null, tx), key, tx);
+        try {
+            if (!page.contains(key)) {
+                log.warn(String.format("No entry found in %s when trying to delete %s", page,
+                    key));
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            V value = (V) page.removeContents(KeyRangeImpl.getKeyRange(key), null);
+            return value;
+        } finally {
+            releaseBLink(page, tx);
+        }
+    }
+
+    /**
+     * B-link mode: finds the page at the given height whose key range
+     * contains the key. Only one page is read-latched at a time; the next
+     * page links are followed if the pages have been split.
+     * 
+     * @param path if given, the IDs of the index pages above the height are
+     * collected here, starting from the root
+     * @return the page ID (not latched)
+     */
+    private PageID findPageBLink(K key, int height, List<PageID> path, Owner owner) {
+        PageID pageID = tree.getRootPageID();
+        assert pageID != null;
+        while (true) {
+            buffer.readLatch(pageID, owner);
+            BTreePage<K, V> page = buffer.fixPage(pageID, factory, false, owner);
+            PageID nextID;
+            try {
+                assert page.getHeight() >= height : "Page " + page.getName()
+                    + " is below height " + height;
+                nextID = getRightLink(page, key);
+                if (nextID == null) {
+                    assert page.getKeyRange().contains(key);
+                    if (page.getHeight() == height)
+                        return pageID;
+                    if (path != null)
+                        path.add(pageID);
+                    nextID = page.findChildPointer(key);
+                    assert nextID != null : String.format(
+                        "Index page %s does not contain child page with key %s", page
+                            .getName(), key);
+                }
+            } finally {
+                buffer.unfix(page, owner);
+                buffer.unlatch(pageID, owner);
+            }
+            pageID = nextID;
+        }
+    }
+
+    /**
+     * B-link mode: write-latches the page, and moves right until the page
+     * whose key range contains the key is found.
+     * 
+     * @return the page, fixed and write-latched
+     */
+    private BTreePage<K, V> latchPageBLink(PageID pageID, K key, Transaction<K, V> tx) {
+        buffer.writeLatch(pageID, tx);
+        BTreePage<K, V> page = buffer.fixPage(pageID, factory, false, tx);
+        PageID nextID;
+        while ((nextID = getRightLink(page, key)) != null) {
+            buffer.writeLatch(nextID, tx);
+            BTreePage<K, V> next = buffer.fixPage(nextID, factory, false, tx);
+            releaseBLink(page, tx);
+            page = next;
+        }
+        assert page.getKeyRange().contains(key) : "Page " + page.getName()
+            + " does not contain " + key;
+        return page;
+    }
+
+    private void releaseBLink(BTreePage<K, V> page, Transaction<K, V> tx) {
+        buffer.unlatch(page, tx);
+        buffer.unfix(page, tx);
+    }
+
+    private void putEntryBLink(BTreePage<K, V> page, K key, PageValue<?> value) {
+        if (page.isLeafPage())
+            page.putContents(KeyRangeImpl.getKeyRange(key), value);
+        else
+            page.insertSeparator(key, (PageID) value);
+    }
+
+    /**
+     * B-link mode: moves the upper half of the entries of the latched page
+     * into a new sibling page, and links the sibling after the page.
+     * 
+     * @return the sibling, fixed to the buffer
+     */
+    private BTreePage<K, V> splitBLink(BTreePage<K, V> page, Transaction<K, V> tx) {
+        if (log.isDebugEnabled())
+            log.debug(String.format("Splitting page %s", page.getName()));
+        tree.getStatisticsLogger().log(Operation.OP_PAGE_SPLIT);
+        tree.getStatisticsLogger().log(GlobalOperation.GO_PAGE_SPLIT);
+
+        BTreePage<K, V> sibling = tree.createSiblingPage(page, tx);
+        K separator = moveHalfEntries(page, sibling);
+        sibling.setKeyRange(new KeyRangeImpl<K>(separator, page.getKeyRange().getMax()));
+        sibling.setNextPage(page.getNextPage());
+        page.setNextPage(sibling.getPageID());
+        page.setKeyRange(new KeyRangeImpl<K>(page.getKeyRange().getMin(), separator));
+        return sibling;
+    }
+
+    /**
+     * B-link mode: finds and latches the parent page where the separator of
+     * the split page is posted, or increases the tree height if the split
+     * page is the root. Called with the split page latched.
+     * 
+     * @return the parent page, fixed and write-latched; or null, if a new
+     * root was created
+     */
+    private BTreePage<K, V> latchParentBLink(BTreePage<K, V> page, K separator,
+        PageID siblingID, List<PageID> path, Transaction<K, V> tx) {
+        PageID parentID;
+        if (!path.isEmpty()) {
+            parentID = path.remove(path.size() - 1);
+        } else if (page.getPageID().equals(tree.getRootPageID())) {
+            // Only the writer that has latched the root can split it
+            increaseTreeHeightBLink(page, separator, siblingID, tx);
+            return null;
+        } else {
+            // The tree has grown after the path was traversed
+            parentID = findPageBLink(separator, page.getHeight() + 1, null, tx);
+        }
+        BTreePage<K, V> parent = latchPageBLink(parentID, separator, tx);
+        assert parent.getHeight() == page.getHeight() + 1;
+        return parent;
+    }
+
+    /**
+     * B-link mode: creates a new root above the split root page and its
+     * sibling. The new root is filled before it is attached.
+     */
+    private void increaseTreeHeightBLink(BTreePage<K, V> oldRoot, K separator,
+        PageID siblingID, Transaction<K, V> tx) {
+        if (log.isDebugEnabled())
+            log.debug(String.format("Increasing tree height from page %s", oldRoot.getName()));
+        BTreePage<K, V> newRoot = tree.createPage(tx);
+        newRoot.format(oldRoot.getHeight() + 1);
+        KeyRange<K> range = newRoot.getKeyRange();
+        newRoot.putContents(new KeyRangeImpl<K>(range.getMin(), separator), oldRoot.getPageID());
+        newRoot.putContents(new KeyRangeImpl<K>(separator, range.getMax()), siblingID);
+        oldRoot.setRoot(false);
+        synchronized (tree) {
+            tree.attachRoot(newRoot, tx);
+        }
+        buffer.unfix(newRoot, tx);
+    }
+
     /**
      * Deletes a key from this leaf page.
      * 
@@ -54,7 +452,8 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
         }
         KeyRange<K> range = KeyRangeImpl.getKeyRange(key);
 
-        if (smoPolicy.isAboutToUnderflow(page, path)) {
+        boolean mergePages = isMergePages();
+        if (mergePages && smoPolicy.isAboutToUnderflow(page, path)) {
             if (!page.isRoot(path)) {
                 // Merge page to prevent underflowing
                 merge(path, tx, key);
@@ -62,14 +461,16 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
                 assert page.isLeafPage();
             }
         }
-        if (!page.isRoot(path)) {
+        if (mergePages && !page.isRoot(path)) {
             // Root page is handled separately later on in the checkUnderflow
             // method
             assert !smoPolicy.isAboutToUnderflow(page, path);
         }
 
+        latchForUpdate(page, tx);
         @SuppressWarnings("unchecked")
         V value = (V) page.removeContents(range, null);
+        unlatchAfterUpdate(page, tx);
         checkUnderflow(path, tx);
         return value;
     }
@@ -90,6 +491,10 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
 
         // Create a sibling page
         BTreePage<K, V> sibling = tree.createSiblingPage(page, tx);
+        BTreePage<K, V> parent = path.getParent();
+        // The sibling cannot be reached before it is attached to the parent
+        latchForUpdate(parent, tx);
+        latchForUpdate(page, tx);
 
         // Sets the siblings dirty
         K newMin = moveHalfEntries(page, sibling);
@@ -100,13 +505,14 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
         sibling.setNextPage(page.getNextPage());
         page.setNextPage(sibling.getPageID());
 
-        BTreePage<K, V> parent = path.getParent();
         // Sets the parent dirty
         parent.updateKeyRange(page, myNewRange);
 
         // Attach sibling to parent + update sibling key range
         parent.putContents(siblingRange, sibling.getPageID());
         sibling.setKeyRange(siblingRange);
+        unlatchAfterUpdate(page, tx);
+        unlatchAfterUpdate(parent, tx);
 
         path.ascend();
         if (myNewRange.contains(key)) {
@@ -155,7 +561,7 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
             // More than minimum amount of entries, so we can redistribute
             // values directly between the pages
             // Sets the involved pages dirty
-            redistributeEntries(page, rightSibling, parent);
+            redistributeEntries(page, rightSibling, parent, tx);
             checkEntryCountAfterSMO(page);
             checkEntryCountAfterSMO(rightSibling);
 
@@ -186,7 +592,7 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
                 .getMinEntriesAfterSMO(page);
             // More than the minimum, redistribute values between these pages
             // Sets the involved pages dirty
-            redistributeEntries(leftSibling, page, parent);
+            redistributeEntries(leftSibling, page, parent, tx);
             checkEntryCountAfterSMO(page);
             checkEntryCountAfterSMO(leftSibling);
 
@@ -234,10 +640,13 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
      * @param sibling the sibling with higher key range
      */
     protected void redistributeEntries(BTreePage<K, V> page, BTreePage<K, V> sibling,
-        BTreePage<K, V> parent) {
+        BTreePage<K, V> parent, Transaction<K, V> tx) {
         if (log.isDebugEnabled())
             log.debug(String.format("Redistributing entries between pages %s < %s", page
                 .getName(), sibling.getName()));
+        latchForUpdate(parent, tx);
+        latchForUpdate(page, tx);
+        latchForUpdate(sibling, tx);
         page.setDirty(true);
         sibling.setDirty(true);
 
@@ -272,6 +681,9 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
         KeyRange<K> siblingRange = new KeyRangeImpl<K>(separator, sibling.getKeyRange().getMax());
         parent.updateKeyRange(page, myNewRange);
         parent.updateKeyRange(sibling, siblingRange);
+        unlatchAfterUpdate(sibling, tx);
+        unlatchAfterUpdate(page, tx);
+        unlatchAfterUpdate(parent, tx);
     }
 
     /**
@@ -315,6 +727,9 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
                 .getName()));
 
         BTreePage<K, V> parent = path.ascend();
+        latchForUpdate(parent, tx);
+        latchForUpdate(first, tx);
+        latchForUpdate(second, tx);
         // Move all entries from second to first
         // Dirties all involved pages
         second.moveAllEntries(first, parent);
@@ -323,7 +738,10 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
 
         // Delete this page from the tree
         second.detach(parent);
-        buffer.delete(second, tx);
+        unlatchAfterUpdate(second, tx);
+        unlatchAfterUpdate(first, tx);
+        unlatchAfterUpdate(parent, tx);
+        tree.deletePage(second.getPageID(), tx);
 
         checkEntryCountAfterSMO(first);
 
@@ -372,6 +790,27 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
         return firstKey;
     }
 
+    /**
+     * When the updates are latched, the lookups may read the pages
+     * concurrently without latching them, so a reader can hold a fix on any
+     * page, or be about to fix it. The pages can therefore not be deleted,
+     * and underflown pages are not merged (as in the B-link mode). The root
+     * page is not collapsed or deleted either.
+     * 
+     * @return true if underflown pages are merged
+     */
+    private boolean isMergePages() {
+        return !tree.isLatchUpdates();
+    }
+
+    @Override
+    public BTreePage<K, V> checkUnderflow(PagePath<K, V, BTreePage<K, V>> path,
+        Transaction<K, V> tx) {
+        if (!isMergePages())
+            return path.getCurrent();
+        return super.checkUnderflow(path, tx);
+    }
+
     /**
      * Checks and fixes underflow at a root page.
      * 
@@ -398,16 +837,20 @@ public class BTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
             PageID childID = (PageID) root.getContents().firstEntry().getValue();
             BTreePage<K, V> child = buffer.fixPage(childID, factory, false, tx);
             assert child != null;
+            latchForUpdate(root, tx);
+            latchForUpdate(child, tx);
             child.detach(root);
             assert root.getEntryCount() == 0 : String
                 .format("Children not empty after only child moved to new tree root");
             tree.attachRoot(child, tx);
+            unlatchAfterUpdate(child, tx);
+            unlatchAfterUpdate(root, tx);
             // Unfix new root after usage (attachRoot acquired all the fixes
             // it needs)
             buffer.unfix(child, tx);
             // Unfix a second time because root is now removed from the path
             // Delete the root node
-            buffer.delete(root, tx);
+            tree.deletePage(root.getPageID(), tx);
             return child;
         }
         if (log.isDebugEnabled())
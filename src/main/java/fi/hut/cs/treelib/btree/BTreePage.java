@@ -6,12 +6,12 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
 
 import fi.hut.cs.treelib.Component;
+import fi.hut.cs.treelib.Configuration;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.KeyRange;
 import fi.hut.cs.treelib.LinkPage;
@@ -29,7 +29,6 @@ import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageFactory;
 import fi.hut.cs.treelib.util.KeyUtils;
 import fi.tuska.util.Callback;
-import fi.tuska.util.CollectionUtils;
 import fi.tuska.util.Pair;
 
 /**
@@ -55,7 +54,13 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 	 * PageValues are instances of PageID for index pages and different
 	 * PageValue classes for data pages.
 	 */
-	private TreeMap<KeyRange<K>, PageValue<?>> contents = new TreeMap<KeyRange<K>, PageValue<?>>();
+	private final BTreeContents<K> contents;
+
+	/**
+	 * The contents, when the entries are accessed directly from the page
+	 * data; null in the TreeMap compatibility mode.
+	 */
+	private final InPageContents<K> inPageContents;
 
 	protected BTreePage(BTree<K, V> tree, PageID id, int pageSize) {
 		super(id, tree, pageSize);
@@ -63,6 +68,14 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 		this.showLeafPageValues = tree.showLeafPageValues;
 		this.tree = tree;
 		this.smoPolicy = tree.getDBConfig().getSMOPolicy();
+		if (Configuration.instance().isInPageBTreeEntries()) {
+			this.inPageContents = InPageContents.create(this, dbConfig
+					.getKeyPrototype(), dbConfig.getValuePrototype());
+			this.contents = inPageContents;
+		} else {
+			this.inPageContents = null;
+			this.contents = new TreeMapContents<K>();
+		}
 
 		calculateCapacity();
 	}
@@ -106,22 +119,7 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 	public boolean getRange(final KeyRange<K> range,
 			final Callback<Pair<K, V>> callback, Owner owner) {
 		assert isLeafPage();
-
-		final K max = range.getMax();
-		return traverseLeafEntries(range.getMin(), new Callback<Pair<K, V>>() {
-			@Override
-			public boolean callback(Pair<K, V> entry) {
-				K cur = entry.getFirst();
-				if (cur.compareTo(max) >= 0) {
-					// Gone past the range, return
-					return true;
-				}
-				assert range.contains(cur);
-				callback.callback(entry);
-				// True to continue search
-				return true;
-			}
-		}, owner);
+		return traverseLeafEntries(range, callback, owner);
 	}
 
 	/**
@@ -130,13 +128,23 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 	@SuppressWarnings("unchecked")
 	protected boolean getAll(KeyRange<K> range, Callback<Pair<K, V>> callback) {
 		assert isLeafPage();
-		for (Entry<KeyRange<K>, PageValue<?>> entry : this.contents.entrySet()) {
-			if (range.contains(entry.getKey().getMin())) {
-				if (!callback.callback(new Pair<K, V>(entry.getKey().getMin(),
-						(V) entry.getValue()))) {
-					// Search stop indicated (callback returned false)
-					return false;
-				}
+		if (inPageContents != null)
+			// Reads the entries without wrapping them in key ranges
+			return inPageContents.getAll(range, callback);
+		K max = range.getMax();
+		// Start from the first entry in the range
+		Iterator<Entry<KeyRange<K>, PageValue<?>>> it = contents
+				.iterator(range.getMin());
+		while (it.hasNext()) {
+			Entry<KeyRange<K>, PageValue<?>> entry = it.next();
+			K key = entry.getKey().getMin();
+			if (key.compareTo(max) >= 0) {
+				// Gone past the range, no more entries to report
+				break;
+			}
+			if (!callback.callback(new Pair<K, V>(key, (V) entry.getValue()))) {
+				// Search stop indicated (callback returned false)
+				return false;
 			}
 		}
 		// All callbacks returned true, so continue
@@ -180,8 +188,7 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 			result.add(this);
 		} else {
 			if (getHeight() > height) {
-				for (Entry<KeyRange<K>, PageValue<?>> entry : this.contents
-						.entrySet()) {
+				for (Entry<KeyRange<K>, PageValue<?>> entry : this.contents) {
 					PageID childID = (PageID) entry.getValue();
 					BTreePage<K, V> child = dbConfig.getPageBuffer().fixPage(
 							childID, factory, false, tree.internalOwner);
@@ -243,6 +250,31 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 		child.setKeyRange(newRange);
 	}
 
+	/**
+	 * B-link trees: divides the router whose key range contains the
+	 * separator at the separator, and routes the upper part to the new child.
+	 * The key range of the child is not changed, and the separators of the
+	 * split children can be posted in any order.
+	 */
+	protected void insertSeparator(K separator, PageID newChild) {
+		assert !isLeafPage();
+		assert !isFull() : String.format(
+				"Page %s is full when storing contents", getName());
+		Entry<KeyRange<K>, PageValue<?>> entry = contents
+				.findEntry(separator);
+		assert entry != null : "No router found for " + separator + " in "
+				+ contents;
+		KeyRange<K> range = entry.getKey();
+		PageValue<?> oldChild = entry.getValue();
+		assert range.getMin().compareTo(separator) < 0 : "Separator "
+				+ separator + " already posted in " + getName();
+
+		contents.remove(range);
+		contents.put(new KeyRangeImpl<K>(range.getMin(), separator), oldChild);
+		contents.put(new KeyRangeImpl<K>(separator, range.getMax()), newChild);
+		setDirty(true);
+	}
+
 	/**
 	 * @return the sibling page, fixed to the page buffer. Remember to release
 	 *         it.
@@ -283,8 +315,8 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 		}
 		List<VisualizablePage<K, V>> res = new ArrayList<VisualizablePage<K, V>>();
 
-		for (PageValue<?> child : contents.values()) {
-			PageID router = (PageID) child;
+		for (Entry<KeyRange<K>, PageValue<?>> entry : contents) {
+			PageID router = (PageID) entry.getValue();
 			BTreePage<K, V> bChild = dbConfig.getPageBuffer().fixPage(router,
 					factory, false, tree.internalOwner);
 			res.add(bChild);
@@ -310,12 +342,8 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 
 	@Override
 	public PageValue<?> getEntry(K key) {
-		for (KeyRange<K> entry : contents.keySet()) {
-			if (entry.contains(key)) {
-				return contents.get(entry);
-			}
-		}
-		return null;
+		Entry<KeyRange<K>, PageValue<?>> entry = contents.findEntry(key);
+		return entry != null ? entry.getValue() : null;
 	}
 
 	@Override
@@ -324,10 +352,10 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 	}
 
 	protected Iterator<Map.Entry<KeyRange<K>, PageValue<?>>> contentIterator() {
-		return contents.entrySet().iterator();
+		return contents.iterator();
 	}
 
-	protected TreeMap<KeyRange<K>, PageValue<?>> getContents() {
+	protected BTreeContents<K> getContents() {
 		return contents;
 	}
 
@@ -335,7 +363,7 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 	public TextLine[] getPageData(int version, TreeDrawStyle scheme) {
 		TextLine[] keys = new TextLine[contents.size()];
 		int c = 0;
-		for (Entry<KeyRange<K>, PageValue<?>> entry : contents.entrySet()) {
+		for (Entry<KeyRange<K>, PageValue<?>> entry : contents) {
 			if (isLeafPage()) {
 				String key = entry.getKey().getMin().toString();
 				keys[c++] = new TextLine(showLeafPageValues ? key + ": "
@@ -362,7 +390,7 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 		PageValue<?> value = entry.getValue();
 		removeContents(range, value);
 		toSibling.putContents(range, value);
-		return contents.firstKey().getMin();
+		return contents.firstEntry().getKey().getMin();
 	}
 
 	/**
@@ -420,6 +448,43 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 		return size;
 	}
 
+	@Override
+	public void formatNewPage(ByteBuffer pageData) {
+		super.formatNewPage(pageData);
+		if (inPageContents != null)
+			inPageContents.attach(pageData, 0);
+	}
+
+	@Override
+	public boolean loadPageDataImpl(ByteBuffer pageData) {
+		if (inPageContents != null)
+			inPageContents.attach(pageData, 0);
+		return super.loadPageDataImpl(pageData);
+	}
+
+	@Override
+	protected void loadEntries(ByteBuffer pageData, int entryCount) {
+		if (inPageContents == null) {
+			super.loadEntries(pageData, entryCount);
+			return;
+		}
+		// The entries are accessed directly from the page data
+		inPageContents.attach(pageData, entryCount);
+		pageData.position(pageData.position() + entryCount
+				* getSingleEntrySize());
+	}
+
+	@Override
+	protected void saveEntries(ByteBuffer pageData, int entryCount) {
+		if (inPageContents == null) {
+			super.saveEntries(pageData, entryCount);
+			return;
+		}
+		// The entries are already stored in the page data
+		pageData.position(pageData.position() + entryCount
+				* getSingleEntrySize());
+	}
+
 	@Override
 	protected KeyRange<K> loadSingleEntry(ByteBuffer data, int index,
 			int entryCount) {
@@ -524,7 +589,7 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 	@Override
 	public boolean processEntries(
 			Callback<Pair<KeyRange<K>, PageValue<?>>> callback) {
-		for (Entry<KeyRange<K>, PageValue<?>> entry : contents.entrySet()) {
+		for (Entry<KeyRange<K>, PageValue<?>> entry : contents) {
 			if (!callback.callback(new Pair<KeyRange<K>, PageValue<?>>(entry
 					.getKey(), entry.getValue())))
 				return false;
@@ -542,7 +607,12 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 
 	@Override
 	public List<PageValue<?>> getEntries() {
-		return CollectionUtils.entrySetToValueList(contents.entrySet());
+		List<PageValue<?>> entries = new ArrayList<PageValue<?>>(contents
+				.size());
+		for (Entry<KeyRange<K>, PageValue<?>> entry : contents) {
+			entries.add(entry.getValue());
+		}
+		return entries;
 	}
 
 	@Override
@@ -553,7 +623,7 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 	@Override
 	public boolean containsChild(PageID childID) {
 		assert !isLeafPage();
-		for (Entry<?, PageValue<?>> entry : contents.entrySet()) {
+		for (Entry<?, PageValue<?>> entry : contents) {
 			if (childID.equals(entry.getValue()))
 				return true;
 		}
@@ -566,10 +636,19 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 	 */
 	protected boolean traverseLeafEntries(K start,
 			Callback<Pair<K, V>> callback, Owner owner) {
+		return traverseLeafEntries(new KeyRangeImpl<K>(start, start
+				.getMaxKey()), callback, owner);
+	}
+
+	/**
+	 * Traverses the entries in the given range, starting from this page and
+	 * following the next page links until the range ends.
+	 */
+	protected boolean traverseLeafEntries(KeyRange<K> range,
+			Callback<Pair<K, V>> callback, Owner owner) {
 		assert isLeafPage();
 
 		BTreePage<K, V> node = this;
-		KeyRange<K> range = new KeyRangeImpl<K>(start, start.getMaxKey());
 
 		while (node != null) {
 			if (!node.getAll(range, callback)) {
@@ -611,26 +690,30 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 		int entries = getEntryCount();
 		if (isRoot(path)) {
 			if (isLeafPage()) {
-				assert entries >= 1;
+				// Trees with latched updates may delete all the entries
+				assert entries >= 1 || tree.isLatchUpdates();
 			} else {
 				assert entries >= 2;
 			}
-		} else {
+		} else if (!tree.isLatchUpdates()) {
+			// Trees with latched updates do not merge underflown pages
 			assert entries >= getMinEntries() : entries + " < "
 					+ getMinEntries();
 		}
 
-		for (KeyRange<K> range : contents.keySet()) {
-			assert getKeyRange().contains(range);
+		for (Entry<KeyRange<K>, PageValue<?>> entry : contents) {
+			assert getKeyRange().contains(entry.getKey());
 		}
 
 		if (!isLeafPage()) {
 			PageBuffer buffer = tree.getPageBuffer();
 			PageFactory<BTreePage<K, V>> factory = tree.getPageFactory();
-			for (PageValue<?> val : getContents().values()) {
-				PageID pageID = (PageID) val;
+			for (Entry<KeyRange<K>, PageValue<?>> entry : contents) {
+				PageID pageID = (PageID) entry.getValue();
 				BTreePage<K, V> child = buffer.fixPage(pageID, factory, false,
 						tree.internalOwner);
+				assert child.getKeyRange().equals(entry.getKey()) : "Router "
+						+ entry.getKey() + " does not match child " + child;
 				path.descend(child);
 				child.checkConsistency(path);
 				path.ascend();
@@ -642,7 +725,7 @@ public class BTreePage<K extends Key<K>, V extends PageValue<?>> extends
 	@Override
 	public void printDebugInfo() {
 		super.printDebugInfo();
-		for (Entry<KeyRange<K>, PageValue<?>> entry : contents.entrySet()) {
+		for (Entry<KeyRange<K>, PageValue<?>> entry : contents) {
 			System.out.println(entry.getKey() + ": " + entry.getValue());
 		}
 	}
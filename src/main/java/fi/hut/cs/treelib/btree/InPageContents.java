@@ -0,0 +1,354 @@
+package fi.hut.cs.treelib.btree;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Map.Entry;
+
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.KeyRange;
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.PageValue;
+import fi.hut.cs.treelib.common.IntegerKey;
+import fi.hut.cs.treelib.common.LongKey;
+import fi.hut.cs.treelib.internal.KeyRangeImpl;
+import fi.hut.cs.treelib.util.ByteUtils;
+import fi.tuska.util.Callback;
+import fi.tuska.util.Pair;
+
+/**
+ * B-tree page contents that are accessed directly from the page data. The
+ * entries are stored in the page in the same fixed-width format that the
+ * page saving uses: entry i is stored at offset (header size + i * entry
+ * size), and it contains the min key of the entry followed by the entry
+ * value (a PageID for index pages).
+ *
+ * <p>
+ * Loading a page does not deserialize any entries. Lookups binary search the
+ * stored min keys, reading only the probed keys, and updates shift the
+ * following entries in place. The key range of an index page entry ends at
+ * the min key of the next entry, or at the max key of the page for the last
+ * entry.
+ *
+ * <p>
+ * All accesses go through duplicates of the page data buffer, so that
+ * concurrent readers (and the page buffer that saves the page header) do not
+ * disturb each other's buffer positions.
+ *
+ * <p>
+ * Use create() to get the contents for a page; it returns a subclass that
+ * searches the stored keys without deserializing them when the key type has
+ * a primitive representation.
+ *
+ * @author thaapasa
+ */
+class InPageContents<K extends Key<K>> implements BTreeContents<K> {
+
+    private final BTreePage<K, ?> page;
+    private final K keyPrototype;
+    private final PageValue<?> valuePrototype;
+    private final int keySize;
+
+    private ByteBuffer pageData;
+    private int entryCount = 0;
+
+    /**
+     * @param valuePrototype the prototype for leaf page values
+     * @return the contents implementation for the given key type
+     */
+    @SuppressWarnings("unchecked")
+    static <K extends Key<K>> InPageContents<K> create(BTreePage<K, ?> page, K keyPrototype,
+        PageValue<?> valuePrototype) {
+        if (keyPrototype instanceof IntegerKey)
+            return (InPageContents<K>) new IntKeyContents((BTreePage<IntegerKey, ?>) page,
+                valuePrototype);
+        if (keyPrototype instanceof LongKey)
+            return (InPageContents<K>) new LongKeyContents((BTreePage<LongKey, ?>) page,
+                valuePrototype);
+        return new InPageContents<K>(page, keyPrototype, valuePrototype);
+    }
+
+    /**
+     * @param valuePrototype the prototype for leaf page values
+     */
+    InPageContents(BTreePage<K, ?> page, K keyPrototype, PageValue<?> valuePrototype) {
+        this.page = page;
+        this.keyPrototype = keyPrototype;
+        this.valuePrototype = valuePrototype;
+        this.keySize = keyPrototype.getByteDataSize();
+    }
+
+    /**
+     * Attaches the page data that holds the entries.
+     *
+     * @param entryCount the amount of entries already stored in the page data
+     */
+    void attach(ByteBuffer pageData, int entryCount) {
+        this.pageData = pageData;
+        this.entryCount = entryCount;
+    }
+
+    private ByteBuffer data() {
+        assert pageData != null : "Page data not attached to " + page.getName();
+        return pageData.duplicate();
+    }
+
+    int offset(int index) {
+        return page.getPageHeaderSize() + index * page.getSingleEntrySize();
+    }
+
+    private K readKey(ByteBuffer data, int index) {
+        data.position(offset(index));
+        return keyPrototype.readFromBytes(data);
+    }
+
+    private PageValue<?> readValue(ByteBuffer data, int index) {
+        data.position(offset(index) + keySize);
+        return page.isLeafPage() ? valuePrototype.readFromBytes(data) : PageID.PROTOTYPE
+            .readFromBytes(data);
+    }
+
+    private void writeEntry(ByteBuffer data, int index, K key, PageValue<?> value) {
+        int pos = offset(index);
+        data.position(pos);
+        key.writeToBytes(data);
+        assert data.position() <= pos + keySize;
+        writeValue(data, index, value);
+    }
+
+    private void writeValue(ByteBuffer data, int index, PageValue<?> value) {
+        data.position(offset(index) + keySize);
+        value.writeToBytes(data);
+    }
+
+    private KeyRange<K> readRange(ByteBuffer data, int index) {
+        K min = readKey(data, index);
+        if (page.isLeafPage())
+            return KeyRangeImpl.getKeyRange(min);
+        K max = index < entryCount - 1 ? readKey(data, index + 1) : page.getKeyRange().getMax();
+        return new KeyRangeImpl<K>(min, max);
+    }
+
+    private Entry<KeyRange<K>, PageValue<?>> readEntry(ByteBuffer data, int index) {
+        if (index < 0 || index >= entryCount)
+            return null;
+        return new AbstractMap.SimpleImmutableEntry<KeyRange<K>, PageValue<?>>(readRange(data,
+            index), readValue(data, index));
+    }
+
+    /**
+     * Binary searches the stored min keys. Subclasses can override this to
+     * compare the stored keys without deserializing them.
+     *
+     * @return the index of the entry with the given min key, if found;
+     * otherwise (-(insertion point) - 1)
+     */
+    int search(ByteBuffer data, K key) {
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = readKey(data, mid).compareTo(key);
+            if (c < 0)
+                low = mid + 1;
+            else if (c > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    private void removeAt(int index) {
+        int entrySize = page.getSingleEntrySize();
+        int from = offset(index + 1);
+        ByteUtils.moveBytes(pageData, from, from - entrySize, (entryCount - index - 1)
+            * entrySize);
+        entryCount--;
+    }
+
+    @Override
+    public int size() {
+        return entryCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return entryCount == 0;
+    }
+
+    @Override
+    public PageValue<?> get(KeyRange<K> range) {
+        ByteBuffer data = data();
+        int index = search(data, range.getMin());
+        return index >= 0 ? readValue(data, index) : null;
+    }
+
+    @Override
+    public boolean containsKey(KeyRange<K> range) {
+        return search(data(), range.getMin()) >= 0;
+    }
+
+    @Override
+    public PageValue<?> put(KeyRange<K> range, PageValue<?> value) {
+        ByteBuffer data = data();
+        int index = search(data, range.getMin());
+        if (index >= 0) {
+            PageValue<?> old = readValue(data, index);
+            writeValue(data, index, value);
+            return old;
+        }
+        index = -(index + 1);
+        assert offset(entryCount + 1) <= page.getPageSize() : "No room for entry in "
+            + page.getName();
+        // Shift the following entries forward by one entry
+        int from = offset(index);
+        ByteUtils.moveBytes(pageData, from, from + page.getSingleEntrySize(), offset(entryCount)
+            - from);
+        entryCount++;
+        writeEntry(data, index, range.getMin(), value);
+        return null;
+    }
+
+    @Override
+    public PageValue<?> remove(KeyRange<K> range) {
+        ByteBuffer data = data();
+        int index = search(data, range.getMin());
+        if (index < 0)
+            return null;
+        PageValue<?> old = readValue(data, index);
+        removeAt(index);
+        return old;
+    }
+
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> firstEntry() {
+        return readEntry(data(), 0);
+    }
+
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> lastEntry() {
+        return readEntry(data(), entryCount - 1);
+    }
+
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> higherEntry(KeyRange<K> range) {
+        ByteBuffer data = data();
+        int index = search(data, range.getMin());
+        return readEntry(data, index >= 0 ? index + 1 : -(index + 1));
+    }
+
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> lowerEntry(KeyRange<K> range) {
+        ByteBuffer data = data();
+        int index = search(data, range.getMin());
+        return readEntry(data, index >= 0 ? index - 1 : -(index + 1) - 1);
+    }
+
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> floorEntry(KeyRange<K> range) {
+        ByteBuffer data = data();
+        int index = search(data, range.getMin());
+        return readEntry(data, index >= 0 ? index : -(index + 1) - 1);
+    }
+
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> findEntry(K key) {
+        ByteBuffer data = data();
+        int index = search(data, key);
+        if (page.isLeafPage())
+            return index >= 0 ? readEntry(data, index) : null;
+        if (index < 0) {
+            // The entry with the highest min key below the key
+            index = -(index + 1) - 1;
+            if (index < 0)
+                return null;
+            if (index == entryCount - 1 && key.compareTo(page.getKeyRange().getMax()) >= 0)
+                return null;
+        }
+        return readEntry(data, index);
+    }
+
+    /**
+     * Reports the leaf entries whose keys are in the given range, in key
+     * order. Only the key and value objects that are passed to the callback
+     * are created for each entry.
+     *
+     * @return false if the callback requested the traversal to stop
+     */
+    @SuppressWarnings("unchecked")
+    <V> boolean getAll(KeyRange<K> range, Callback<Pair<K, V>> callback) {
+        assert page.isLeafPage();
+        ByteBuffer data = data();
+        K max = range.getMax();
+        int index = search(data, range.getMin());
+        for (int i = index >= 0 ? index : -(index + 1); i < entryCount; i++) {
+            K key = readKey(data, i);
+            if (key.compareTo(max) >= 0)
+                // Gone past the range
+                break;
+            if (!callback.callback(new Pair<K, V>(key, (V) readValue(data, i))))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        entryCount = 0;
+    }
+
+    @Override
+    public Iterator<Entry<KeyRange<K>, PageValue<?>>> iterator() {
+        return iterator(data(), 0);
+    }
+
+    @Override
+    public Iterator<Entry<KeyRange<K>, PageValue<?>>> iterator(K from) {
+        ByteBuffer data = data();
+        int index = search(data, from);
+        return iterator(data, index >= 0 ? index : -(index + 1));
+    }
+
+    private Iterator<Entry<KeyRange<K>, PageValue<?>>> iterator(final ByteBuffer data,
+        final int start) {
+        return new Iterator<Entry<KeyRange<K>, PageValue<?>>>() {
+            private int next = start;
+            private boolean canRemove = false;
+
+            @Override
+            public boolean hasNext() {
+                return next < entryCount;
+            }
+
+            @Override
+            public Entry<KeyRange<K>, PageValue<?>> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                canRemove = true;
+                return readEntry(data, next++);
+            }
+
+            @Override
+            public void remove() {
+                if (!canRemove)
+                    throw new IllegalStateException();
+                canRemove = false;
+                removeAt(--next);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder("{");
+        for (Entry<KeyRange<K>, PageValue<?>> entry : this) {
+            if (b.length() > 1)
+                b.append(", ");
+            b.append(entry.getKey()).append("=").append(entry.getValue());
+        }
+        return b.append("}").toString();
+    }
+
+}
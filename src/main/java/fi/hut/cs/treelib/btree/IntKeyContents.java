@@ -0,0 +1,46 @@
+package fi.hut.cs.treelib.btree;
+
+import java.nio.ByteBuffer;
+
+import fi.hut.cs.treelib.PageValue;
+import fi.hut.cs.treelib.common.IntegerKey;
+
+/**
+ * In-page contents for IntegerKey pages. The stored keys are compared as
+ * plain ints read from the page data, so searching a page does not allocate
+ * any key objects.
+ * <p>
+ * Only the search is allocation-free. Range scans create just the key and
+ * value objects that they report. The page format is unchanged (there are
+ * no separate int/long arrays), and splits, merges and the entry iterators
+ * still decode each entry they touch into key and value objects.
+ * 
+ * @author thaapasa
+ */
+class IntKeyContents extends InPageContents<IntegerKey> {
+
+    IntKeyContents(BTreePage<IntegerKey, ?> page, PageValue<?> valuePrototype) {
+        super(page, IntegerKey.PROTOTYPE, valuePrototype);
+    }
+
+    @Override
+    int search(ByteBuffer data, IntegerKey key) {
+        final int k = key.intValue();
+        final int base = offset(0);
+        final int step = offset(1) - base;
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int stored = data.getInt(base + mid * step);
+            if (stored < k)
+                low = mid + 1;
+            else if (stored > k)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+}
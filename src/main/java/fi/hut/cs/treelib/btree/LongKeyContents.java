@@ -0,0 +1,46 @@
+package fi.hut.cs.treelib.btree;
+
+import java.nio.ByteBuffer;
+
+import fi.hut.cs.treelib.PageValue;
+import fi.hut.cs.treelib.common.LongKey;
+
+/**
+ * In-page contents for LongKey pages. The stored keys are compared as
+ * plain longs read from the page data, so searching a page does not allocate
+ * any key objects.
+ * <p>
+ * Only the search is allocation-free. Range scans create just the key and
+ * value objects that they report. The page format is unchanged (there are
+ * no separate int/long arrays), and splits, merges and the entry iterators
+ * still decode each entry they touch into key and value objects.
+ * 
+ * @author thaapasa
+ */
+class LongKeyContents extends InPageContents<LongKey> {
+
+    LongKeyContents(BTreePage<LongKey, ?> page, PageValue<?> valuePrototype) {
+        super(page, LongKey.PROTOTYPE, valuePrototype);
+    }
+
+    @Override
+    int search(ByteBuffer data, LongKey key) {
+        final long k = key.longValue();
+        final int base = offset(0);
+        final int step = offset(1) - base;
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long stored = data.getLong(base + mid * step);
+            if (stored < k)
+                low = mid + 1;
+            else if (stored > k)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+}
@@ -3,6 +3,7 @@ package fi.hut.cs.treelib.btree;
 import java.util.Set;
 import java.util.TreeSet;
 
+import fi.hut.cs.treelib.BulkLoadable;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.MVDatabase;
 import fi.hut.cs.treelib.PageID;
@@ -14,9 +15,11 @@ import fi.hut.cs.treelib.common.TransactionImpl;
 import fi.hut.cs.treelib.concurrency.NoopLatchManager;
 import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageStorage;
+import fi.tuska.util.Pair;
 
 public class MVVBTDatabase<K extends Key<K>, V extends PageValue<?>> extends
-    AbstractDatabase<K, V, BTreePage<K, V>> implements MVDatabase<K, V, BTreePage<K, V>> {
+    AbstractDatabase<K, V, BTreePage<K, V>> implements MVDatabase<K, V, BTreePage<K, V>>,
+    BulkLoadable<K, V> {
 
     private static final PageID INFO_PAGE_ID = new PageID(1);
 
@@ -52,6 +55,16 @@ public class MVVBTDatabase<K extends Key<K>, V extends PageValue<?>> extends
             return getDatabaseTree().commitActiveTransaction(tx);
     }
 
+    /**
+     * Builds the backing tree bottom-up from the given entries, which are
+     * all inserted with the version of the given transaction. Only allowed
+     * on an empty database.
+     */
+    @Override
+    public void bulkLoad(Iterable<Pair<K, V>> keys, Transaction<K, V> tx) {
+        getDatabaseTree().bulkLoad(keys, tx);
+    }
+
     @Override
     public Transaction<K, V> beginReadTransaction(int version) {
         return new TransactionImpl<K, V, BTreePage<K, V>>(this, version, true);
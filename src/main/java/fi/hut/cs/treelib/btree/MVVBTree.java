@@ -25,7 +25,9 @@ import fi.hut.cs.treelib.internal.KeyRangeImpl;
 import fi.hut.cs.treelib.stats.StatisticsLogger;
 import fi.hut.cs.treelib.storage.PageFactory;
 import fi.tuska.util.Callback;
+import fi.tuska.util.Converter;
 import fi.tuska.util.Holder;
+import fi.tuska.util.IteratorWrapper;
 import fi.tuska.util.NotImplementedException;
 import fi.tuska.util.Pair;
 
@@ -177,6 +179,22 @@ public class MVVBTree<K extends Key<K>, V extends PageValue<?>> extends
             .createInsert(value), getPath(savedPath), getTransaction(tx));
     }
 
+    /**
+     * Bulk-loads the entries into the empty backing tree as insertions of
+     * the version of the given transaction.
+     */
+    public void bulkLoad(Iterable<Pair<K, V>> entries, Transaction<K, V> tx) {
+        final int version = tx.getReadVersion();
+        tree.bulkLoad(new IteratorWrapper<Pair<K, V>, Pair<VersionedKey<K>, UpdateMarker<V>>>(
+            entries, new Converter<Pair<K, V>, Pair<VersionedKey<K>, UpdateMarker<V>>>() {
+                @Override
+                public Pair<VersionedKey<K>, UpdateMarker<V>> convert(Pair<K, V> entry) {
+                    return new Pair<VersionedKey<K>, UpdateMarker<V>>(new VersionedKey<K>(entry
+                        .getFirst(), version), UpdateMarker.createInsert(entry.getSecond()));
+                }
+            }), getTransaction(tx));
+    }
+
     @Override
     public MVKeyRange<K> getKeyRange() {
         KeyRange<VersionedKey<K>> range = tree.getKeyRange();
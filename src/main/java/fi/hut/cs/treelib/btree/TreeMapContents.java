@@ -0,0 +1,122 @@
+package fi.hut.cs.treelib.btree;
+
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.KeyRange;
+import fi.hut.cs.treelib.PageValue;
+import fi.hut.cs.treelib.internal.KeyRangeImpl;
+
+/**
+ * Compatibility mode B-tree page contents: the entries are deserialized into
+ * a TreeMap when the page is loaded, and serialized back to the page data
+ * when the page is saved.
+ * 
+ * @author thaapasa
+ */
+class TreeMapContents<K extends Key<K>> implements BTreeContents<K> {
+
+    /**
+     * PageValues are instances of PageID for index pages and different
+     * PageValue classes for data pages.
+     */
+    private final TreeMap<KeyRange<K>, PageValue<?>> contents = new TreeMap<KeyRange<K>, PageValue<?>>();
+
+    @Override
+    public int size() {
+        return contents.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return contents.isEmpty();
+    }
+
+    @Override
+    public PageValue<?> get(KeyRange<K> range) {
+        return contents.get(range);
+    }
+
+    @Override
+    public boolean containsKey(KeyRange<K> range) {
+        return contents.containsKey(range);
+    }
+
+    @Override
+    public PageValue<?> put(KeyRange<K> range, PageValue<?> value) {
+        return contents.put(range, value);
+    }
+
+    @Override
+    public PageValue<?> remove(KeyRange<K> range) {
+        return contents.remove(range);
+    }
+
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> firstEntry() {
+        return contents.firstEntry();
+    }
+
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> lastEntry() {
+        return contents.lastEntry();
+    }
+
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> higherEntry(KeyRange<K> range) {
+        return contents.higherEntry(range);
+    }
+
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> lowerEntry(KeyRange<K> range) {
+        return contents.lowerEntry(range);
+    }
+
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> floorEntry(KeyRange<K> range) {
+        return contents.floorEntry(range);
+    }
+
+    /**
+     * The entry ranges do not overlap, so the only candidate is the entry
+     * with the highest min key that is not above the key. It is found with a
+     * floor lookup using a probe range that starts at the key and extends
+     * to the max key, so that it sorts after any entry that starts at the
+     * key.
+     */
+    @Override
+    public Entry<KeyRange<K>, PageValue<?>> findEntry(K key) {
+        K maxKey = key.getMaxKey();
+        KeyRange<K> probe = key.compareTo(maxKey) < 0 ? new KeyRangeImpl<K>(key, maxKey)
+            : KeyRangeImpl.getKeyRange(key);
+        Entry<KeyRange<K>, PageValue<?>> entry = contents.floorEntry(probe);
+        return entry != null && entry.getKey().contains(key) ? entry : null;
+    }
+
+    @Override
+    public void clear() {
+        contents.clear();
+    }
+
+    @Override
+    public Iterator<Entry<KeyRange<K>, PageValue<?>>> iterator() {
+        return contents.entrySet().iterator();
+    }
+
+    /**
+     * The single-key range of the key sorts before all the entry ranges that
+     * start after the key, and before or at the entry that starts at the key.
+     */
+    @Override
+    public Iterator<Entry<KeyRange<K>, PageValue<?>>> iterator(K from) {
+        return contents.tailMap(KeyRangeImpl.getKeyRange(from), true).entrySet().iterator();
+    }
+
+    @Override
+    public String toString() {
+        return contents.toString();
+    }
+
+}
@@ -1,7 +1,10 @@
 package fi.hut.cs.treelib.common;
 
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
 
 import org.apache.log4j.Logger;
 
@@ -20,6 +23,7 @@ import fi.hut.cs.treelib.util.MBRPredicate;
 import fi.hut.cs.treelib.util.Predicate;
 import fi.tuska.util.Callback;
 import fi.tuska.util.CollectionUtils;
+import fi.tuska.util.Counter;
 import fi.tuska.util.Holder;
 import fi.tuska.util.Pair;
 
@@ -348,4 +352,113 @@ public abstract class AbstractMDPage<K extends Key<K>, V extends PageValue<?>, L
         return true;
     }
 
+    /**
+     * Implements a best-first k-nearest-neighbor search. The entries and
+     * child pages are queued in a priority queue ordered by their minimum
+     * distance (MINDIST) from the query point, so that the pages are visited
+     * in the order of their distance, and the entries are reported in the
+     * order of increasing distance. A child page is only visited when it is
+     * closer than the entries found so far. The search is stopped when k
+     * entries have been reported, or when the callback signals to stop.
+     * 
+     * INPUT: This page must have one fix <br/>
+     * OUTPUT: Does not change fix count
+     * 
+     * @param point the query point coordinates
+     * @return true if the search was not stopped by the callback
+     */
+    public boolean findNearest(final double[] point, int k,
+        Callback<Pair<MBR<K>, V>> callback, final Owner owner) {
+        if (k <= 0)
+            return true;
+        // All queued pages have one latch added by this search
+        final PriorityQueue<NearestCandidate> queue = new PriorityQueue<NearestCandidate>();
+        final Counter seq = new Counter();
+
+        final PageBuffer buffer = dbConfig.getPageBuffer();
+        // Add this page to queue, latch this page to maintain the invariant
+        queue.add(new NearestCandidate(0, null, getPageID(), true, seq.getCount()));
+        buffer.readLatch(getPageID(), owner);
+
+        int found = 0;
+        while (!queue.isEmpty()) {
+            final NearestCandidate candidate = queue.poll();
+            if (!candidate.isPage) {
+                @SuppressWarnings("unchecked")
+                V value = (V) candidate.value;
+                boolean cont = callback.callback(new Pair<MBR<K>, V>(candidate.mbr, value));
+                if (!cont || ++found >= k) {
+                    disposeNearestCandidates(queue, owner);
+                    return cont;
+                }
+                continue;
+            }
+
+            final PageID pageID = (PageID) candidate.value;
+            final P page = buffer.fixPage(pageID, factory, false, owner);
+            final boolean isLeaf = page.getHeight() == 1;
+
+            // Queue the entries and the child pages
+            page.processMBREntries(new Callback<Pair<MBR<K>, PageValue<?>>>() {
+                @Override
+                public boolean callback(Pair<MBR<K>, PageValue<?>> entry) {
+                    MBR<K> mbr = entry.getFirst();
+                    if (!isLeaf)
+                        buffer.readLatch((PageID) entry.getSecond(), owner);
+                    seq.advance();
+                    queue.add(new NearestCandidate(mbr.getDoubleMBR().getMinDistance(point), mbr,
+                        entry.getSecond(), !isLeaf, seq.getCount()));
+                    return true;
+                }
+            });
+
+            buffer.unlatch(pageID, owner);
+            buffer.unfix(page, owner);
+        }
+        return true;
+    }
+
+    /**
+     * Unlatches the pages that remain queued after a nearest-neighbor search.
+     */
+    private void disposeNearestCandidates(PriorityQueue<NearestCandidate> queue, Owner owner) {
+        List<PageID> pages = new ArrayList<PageID>();
+        for (NearestCandidate candidate : queue) {
+            if (candidate.isPage)
+                pages.add((PageID) candidate.value);
+        }
+        dbConfig.getPageBuffer().disposePages(pages, true, false, owner);
+    }
+
+    /**
+     * An entry or a child page queued in the nearest-neighbor search. At
+     * equal distances, entries are ordered before pages and otherwise in the
+     * order they were queued.
+     */
+    private class NearestCandidate implements Comparable<NearestCandidate> {
+        private final double distance;
+        private final MBR<K> mbr;
+        private final PageValue<?> value;
+        private final boolean isPage;
+        private final long seq;
+
+        private NearestCandidate(double distance, MBR<K> mbr, PageValue<?> value,
+            boolean isPage, long seq) {
+            this.distance = distance;
+            this.mbr = mbr;
+            this.value = value;
+            this.isPage = isPage;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(NearestCandidate o) {
+            if (distance != o.distance)
+                return distance < o.distance ? -1 : 1;
+            if (isPage != o.isPage)
+                return isPage ? 1 : -1;
+            return seq < o.seq ? -1 : (seq > o.seq ? 1 : 0);
+        }
+    }
+
 }
@@ -1,6 +1,10 @@
 package fi.hut.cs.treelib.common;
 
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.Coordinate;
 import fi.hut.cs.treelib.DatabaseConfiguration;
+import fi.hut.cs.treelib.DoubleMBR;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.KeyRange;
 import fi.hut.cs.treelib.MBR;
@@ -29,6 +33,8 @@ import fi.tuska.util.Pair;
 public abstract class AbstractMDTree<K extends Key<K>, V extends PageValue<?>, L extends Key<L>, P extends AbstractMDPage<K, V, L, P>>
     extends AbstractTree<MBR<K>, V, P> implements MDTree<K, V, P> {
 
+    private static final Logger log = Logger.getLogger(AbstractMDTree.class);
+
     /**
      * Not null, but will be prototype if the extents have not been
      * initialized.
@@ -113,6 +119,21 @@ public abstract class AbstractMDTree<K extends Key<K>, V extends PageValue<?>, L
         return res;
     }
 
+    /**
+     * Processes the root pages of the tree. The pages are fixed for the
+     * duration of the callback.
+     * 
+     * @return false if the callback signaled to stop
+     */
+    public boolean processRootPages(Callback<? super P> callback, Owner owner) {
+        P root = getRoot(owner);
+        if (root == null)
+            return true;
+        boolean res = callback.callback(root);
+        pageBuffer.unfix(root, owner);
+        return res;
+    }
+
     public boolean traverseMDEntries(final Predicate<MBR<K>> predicate,
         final Callback<Pair<MBR<K>, PageValue<?>>> operation, Owner owner) {
         return traverseMDPages(predicate, new Callback<Page<MBR<K>, V>>() {
@@ -133,6 +154,24 @@ public abstract class AbstractMDTree<K extends Key<K>, V extends PageValue<?>, L
         }, owner);
     }
 
+    @Override
+    public boolean getNearest(Coordinate<K> point, int k, Callback<Pair<MBR<K>, V>> callback,
+        Owner owner) {
+        if (log.isDebugEnabled())
+            log.debug(getName() + " operation: get " + k + " nearest to " + point);
+        P root = getRoot(owner);
+        if (root == null)
+            return true;
+
+        // Unlog a single fix from the stats (getRoot() takes one fix and
+        // findNearest() takes another for the root page)
+        stats.unlog(Operation.OP_BUFFER_FIX);
+
+        boolean res = root.findNearest(DoubleMBR.getPoint(point), k, callback, owner);
+        pageBuffer.unfix(root, owner);
+        return res;
+    }
+
     @Override
     public boolean getRange(KeyRange<MBR<K>> range, Callback<Pair<MBR<K>, V>> callback,
         Transaction<MBR<K>, V> tx) {
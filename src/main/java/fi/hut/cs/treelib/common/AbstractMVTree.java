@@ -2,6 +2,7 @@ package fi.hut.cs.treelib.common;
 
 import org.apache.log4j.Logger;
 
+import fi.hut.cs.treelib.Cursor;
 import fi.hut.cs.treelib.DatabaseConfiguration;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.KeyRange;
@@ -67,6 +68,15 @@ public abstract class AbstractMVTree<K extends Key<K>, V extends PageValue<?>, P
         return result;
     }
 
+    /**
+     * Opens a cursor that streams the entries of the given range in the read
+     * version of the transaction, in key order. The cursor must be closed
+     * after use.
+     */
+    public Cursor<K, V> openCursor(KeyRange<K> range, Transaction<K, V> tx) {
+        return new MVTreeCursor<K, V, P>(this, getRootPageID(tx.getReadVersion()), range, tx);
+    }
+
     @SuppressWarnings("unchecked")
     private V getInternal(K key, PageID rootPageID, Transaction<K, V> tx) {
         if (rootPageID == null)
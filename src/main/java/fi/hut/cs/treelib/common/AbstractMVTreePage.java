@@ -2,12 +2,10 @@ package fi.hut.cs.treelib.common;
 
 import java.awt.Color;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.TreeMap;
 import java.util.Map.Entry;
 
@@ -356,58 +354,28 @@ public abstract class AbstractMVTreePage<K extends Key<K>, V extends PageValue<?
         return data;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Scans the range depth-first from this (root) page, so that the entries
+     * are reported in key order. See MVTreeCursor.
+     * 
+     * @return true if all callbacks returned true, false if one of them
+     * returned false to stop the search.
+     */
     protected boolean getRange(KeyRange<K> range, Callback<Pair<K, V>> callback,
         Transaction<K, V> tx) {
-        Queue<PageID> queue = new ArrayDeque<PageID>();
-
-        final PageBuffer buffer = dbConfig.getPageBuffer();
-        // Latch the page
-        buffer.readLatch(getPageID(), tx);
-        queue.add(getPageID());
-
-        while (!queue.isEmpty()) {
-            PageID pageID = queue.remove();
-            // Enchancement: if the page in the queue is this page (root), do
-            // not take an extra fix
-            P page = pageID.equals(getPageID()) ? (P) this : buffer.fixPage(pageID, factory,
-                false, tx);
-            assert page != null;
-            assert page.getKeyRange().containsVersion(tx.getReadVersion());
-
-            if (page.isLeafPage()) {
-                if (!page.getLeafEntries().getRange(range, tx, callback)) {
-                    // Stop search. Dispose of the current page, and
-                    // all pages in the buffer.
-                    buffer.unlatch(page, tx);
-                    // Enhancement: this page (root) does not have an
-                    // extra fix, so do not unfix it
-                    if (page != this)
-                        buffer.unfix(page, tx);
-                    // Unlatch the page IDs in the queue
-                    buffer.disposePages(queue, true, false, tx);
+        MVTreeCursor<K, V, P> cursor = new MVTreeCursor<K, V, P>(tree, getPageID(), range, tx);
+        try {
+            Pair<K, V> entry;
+            while ((entry = cursor.next()) != null) {
+                if (!callback.callback(entry))
+                    // Stop search; closing the cursor releases the path
                     return false;
-                }
-            } else {
-                for (Entry<MVKeyRange<K>, PageValue<?>> entry : page.indexContents.entrySet()) {
-                    MVKeyRange<K> entryRange = entry.getKey();
-                    if (entryRange.containsVersion(tx.getReadVersion())
-                        && entryRange.overlaps(range)) {
-                        PageID nextPageID = (PageID) entry.getValue();
-                        buffer.readLatch(nextPageID, tx);
-                        queue.add(nextPageID);
-                    }
-                }
             }
-            // Unfix page after using it
-            buffer.unlatch(page, tx);
-            // Enhancement: this page (root) does not have an extra fix, so do
-            // not unfix it
-            if (page != this)
-                buffer.unfix(page, tx);
+            // All callbacks returned true
+            return true;
+        } finally {
+            cursor.close();
         }
-        // All callbacks returned true
-        return true;
     }
 
     protected Transaction<K, V> getLatestTX() {
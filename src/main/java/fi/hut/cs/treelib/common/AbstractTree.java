@@ -52,7 +52,12 @@ public abstract class AbstractTree<K extends Key<K>, V extends PageValue<?>, P e
     protected DatabaseConfiguration<K, V> dbConfig;
     protected PageBuffer pageBuffer;
     protected PageFactory<P> pageFactory;
-    private KeyRange<K> keyRange;
+    /**
+     * The range of keys inserted into the tree. Key ranges are immutable, so
+     * extending the range replaces this reference; volatile, because B-link
+     * inserts check the range without locking.
+     */
+    private volatile KeyRange<K> keyRange;
 
     protected final K keyPrototype;
     protected final V valuePrototype;
@@ -140,11 +145,20 @@ public abstract class AbstractTree<K extends Key<K>, V extends PageValue<?>, P e
         this.checkFixes = checkFixes;
     }
 
+    /**
+     * Creates a new page for this tree.
+     * 
+     * @return the new page, fixed to buffer
+     */
+    public P createPage(Owner owner) {
+        return pageBuffer.createPage(pageFactory, owner);
+    }
+
     /**
      * @return the new page, fixed to buffer
      */
     public P createSiblingPage(P page, Owner owner) {
-        P sibling = pageBuffer.createPage(pageFactory, owner);
+        P sibling = createPage(owner);
         sibling.format(page.getHeight());
         sibling.setKeyRange(page.getKeyRange());
         return sibling;
@@ -196,7 +210,7 @@ public abstract class AbstractTree<K extends Key<K>, V extends PageValue<?>, P e
      */
     public P createLeafRoot(Transaction<K, V> tx) {
         // Returns a new page with one fix
-        P newRoot = pageBuffer.createPage(pageFactory, tx);
+        P newRoot = createPage(tx);
         newRoot.format(1);
         // Attach the new root. The root is left fixed to the page buffer.
         attachRoot(newRoot, tx);
@@ -216,7 +230,7 @@ public abstract class AbstractTree<K extends Key<K>, V extends PageValue<?>, P e
         // P oldRoot = getRoot();
         // assert oldRoot != null;
 
-        P newRoot = pageBuffer.createPage(pageFactory, tx);
+        P newRoot = createPage(tx);
         newRoot.format(height);
 
         // Attach the new root. The root is left fixed to the page buffer.
@@ -242,6 +256,15 @@ public abstract class AbstractTree<K extends Key<K>, V extends PageValue<?>, P e
         keyRange = keyRange != null ? keyRange.extend(key) : KeyRangeImpl.getKeyRange(key);
     }
 
+    /**
+     * @return true if the key is inside the range of keys inserted into the
+     * tree, that is, if extendKeyRange(key) would not change the range
+     */
+    protected boolean isInKeyRange(K key) {
+        KeyRange<K> range = keyRange;
+        return range != null && range.contains(key);
+    }
+
     @Override
     public KeyRange<K> getKeyRange() {
         return keyRange != null ? keyRange : new KeyRangeImpl<K>(keyPrototype.getMinKey(),
@@ -331,22 +354,28 @@ public abstract class AbstractTree<K extends Key<K>, V extends PageValue<?>, P e
     protected abstract void updateInfoPage(Owner owner);
 
     protected void extendRangeBulkLoad(K key) {
-        this.keyRange = keyRange.extend(key);
+        extendKeyRange(key);
     }
 
     /**
      * Bulk-loads a set of keys. Creates a new tree structure. Returns the
      * root page of the newly built tree, fixed. All other pages are unfixed.
      * The root is not attached, so call attachRoot() after bulkLoad() to
-     * attach the newly created tree structure to the tree itself.
+     * attach the newly created tree structure to the tree itself. Both the
+     * leaf pages and the index pages are filled up to the configured bulk-load
+     * fill ratio.
      * 
      * @param keys the keys to load (must be in proper order)
-     * @return the unattached root of the new tree, with one fix (release it!)
+     * @return the unattached root of the new tree, with one fix (release
+     * it!); or null, if there were no keys to load
      */
     public P bulkLoad(Iterable<Pair<K, V>> keys, Comparator<Pair<K, V>> entryComparator) {
         Deque<PageID> pages = new LinkedList<PageID>();
         createLeafPages(keys, pages, entryComparator);
+        if (pages.isEmpty())
+            return null;
 
+        double targetFillRatio = Configuration.instance().getBulkLoadFillRatio();
         int level = 1;
         while (pages.size() > 1) {
             // Create next level
@@ -356,14 +385,21 @@ public abstract class AbstractTree<K extends Key<K>, V extends PageValue<?>, P e
             P cur = null;
             for (PageID pageID : pages) {
                 P page = pageBuffer.fixPage(pageID, pageFactory, false, internalOwner);
-                if (cur == null || cur.isFull()) {
+                // Index pages are filled to the target fill ratio like the
+                // leaf pages, but they get at least two children so that
+                // each level has fewer pages than the one below it
+                if (cur == null || cur.isFull()
+                    || (cur.getEntryCount() >= 2 && cur.getFillRatio() >= targetFillRatio)) {
                     P prevPage = cur;
-                    pageBuffer.unfix(cur, internalOwner);
-                    cur = pageBuffer.createPage(pageFactory, internalOwner);
+                    cur = createPage(internalOwner);
                     cur.format(level);
                     nextLevel.addLast(cur.getPageID());
-                    if (prevPage != null)
-                        checkPageLimits(prevPage, cur, null, false);
+                    if (prevPage != null) {
+                        // The previous page must stay fixed until its
+                        // limits have been set
+                        checkPageLimits(prevPage, cur, getFirstKey(page), false);
+                        pageBuffer.unfix(prevPage, internalOwner);
+                    }
                 }
                 assert page != null : "Page " + pageID + " not found";
                 cur.attachChild(page);
@@ -400,12 +436,13 @@ public abstract class AbstractTree<K extends Key<K>, V extends PageValue<?>, P e
 
             if (curPage == null || curPage.isFull() || curPage.getFillRatio() >= targetFillRatio) {
                 P lastPage = curPage;
-                pageBuffer.unfix(curPage, internalOwner);
-                curPage = pageBuffer.createPage(pageFactory, internalOwner);
+                curPage = createPage(internalOwner);
                 curPage.format(1);
                 pages.addLast(curPage.getPageID());
-                if (lastPage != null)
+                if (lastPage != null) {
                     checkPageLimits(lastPage, curPage, key, false);
+                    pageBuffer.unfix(lastPage, internalOwner);
+                }
             }
             assert !curPage.isFull();
             curPage.putContents(key, value);
@@ -416,6 +453,20 @@ public abstract class AbstractTree<K extends Key<K>, V extends PageValue<?>, P e
         pageBuffer.unfix(curPage, internalOwner);
     }
 
+    private K getFirstKey(P page) {
+        KeyRange<K> range = page.getKeyRange();
+        return range != null ? range.getMin() : null;
+    }
+
+    /**
+     * Called during bulk-loading when a page at some level has been filled
+     * and the next page at that level has been created, and for the last
+     * page of each level (with newPage null).
+     * 
+     * @param key the first key that goes to the new page: the first leaf
+     * entry key for leaf pages, and the min key of the first child for index
+     * pages; or null, if the child pages have no key ranges
+     */
     protected void checkPageLimits(P prevPage, P newPage, K key, boolean lastPageAtThisLevel) {
         // Nothing needed here
     }
@@ -43,6 +43,10 @@ public abstract class AbstractTreeOperations<K extends Key<K>, V extends PageVal
         this.overwriteEntries = state;
     }
 
+    protected boolean isOverwriteEntries() {
+        return overwriteEntries;
+    }
+
     @Override
     public PagePath<K, V, P> findPathForInsert(PageID rootPageID, K key, PagePath<K, V, P> path,
         Transaction<K, V> tx) {
@@ -140,6 +144,21 @@ public abstract class AbstractTreeOperations<K extends Key<K>, V extends PageVal
         return path;
     }
 
+    /**
+     * Called before a page that can be reached by readers is modified.
+     * Pages that are modified together must be latched in top-down,
+     * left-to-right order. The default implementation does nothing.
+     */
+    protected void latchForUpdate(P page, Transaction<K, V> tx) {
+    }
+
+    /**
+     * Called after the modifications of a page latched with
+     * latchForUpdate().
+     */
+    protected void unlatchAfterUpdate(P page, Transaction<K, V> tx) {
+    }
+
     /**
      * Override to change behaviour.
      * 
@@ -168,8 +187,10 @@ public abstract class AbstractTreeOperations<K extends Key<K>, V extends PageVal
             // Auto-overwrite?
             if (overwriteEntries) {
                 int oldC = page.getEntryCount();
+                latchForUpdate(page, tx);
                 V old = page.removeEntry(key);
                 page.putContents(range, value);
+                unlatchAfterUpdate(page, tx);
                 int newC = page.getEntryCount();
                 assert oldC == newC : oldC + " != " + newC;
                 if (log.isDebugEnabled())
@@ -190,7 +211,9 @@ public abstract class AbstractTreeOperations<K extends Key<K>, V extends PageVal
         if (!smoPolicy.isAboutToOverflow(page)) {
             // Insert value into this page
             // page.putContents() sets the page dirty
+            latchForUpdate(page, tx);
             page.putContents(range, value);
+            unlatchAfterUpdate(page, tx);
             if (log.isDebugEnabled())
                 log.debug(String.format("Leaf page %s was not full, added key %s",
                     page.getName(), key.toString()));
@@ -273,6 +296,7 @@ public abstract class AbstractTreeOperations<K extends Key<K>, V extends PageVal
         path.ascend();
         assert (path.isEmpty());
 
+        latchForUpdate(oldRoot, tx);
         // Dirties the old root
         oldRoot.setRoot(false);
 
@@ -286,9 +310,14 @@ public abstract class AbstractTreeOperations<K extends Key<K>, V extends PageVal
         // one key with range [-INF, INF).
         KeyRange<K> oldRootRange = getKeyRange(tree.getKeyPrototype().getMinKey(), tree
             .getKeyPrototype().getMaxKey(), oldRoot, tx);
+        // The new root is already attached, but it is empty until the old
+        // root is moved under it
+        latchForUpdate(newRoot, tx);
         newRoot.putContents(oldRootRange, oldRoot.getPageID());
         // setKeyRange dirties old root, new root is already dirty
         oldRoot.setKeyRange(oldRootRange);
+        unlatchAfterUpdate(newRoot, tx);
+        unlatchAfterUpdate(oldRoot, tx);
 
         // The root is fixed for use, so it can be put into the path
         path.attachRoot(newRoot);
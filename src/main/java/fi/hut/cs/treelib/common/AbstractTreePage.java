@@ -440,8 +440,20 @@ public abstract class AbstractTreePage<K extends Key<K>, V extends PageValue<?>,
                     getPageEntryCapacity(), getSingleEntrySize(), getPageHeaderSize(),
                     getPageSize()));
 
-        int entrySize = getSingleEntrySize();
         // Step 3. Entries
+        loadEntries(pageData, entryCount);
+        return true;
+    }
+
+    /**
+     * Loads the page entries. The page data is positioned at the start of
+     * the first entry. The default implementation loads each entry with
+     * loadSingleEntry(); pages that access the entries directly from the page
+     * data can override this.
+     */
+    protected void loadEntries(ByteBuffer pageData, int entryCount) {
+        int dataPos = pageData.position();
+        int entrySize = getSingleEntrySize();
         for (int i = 0; i < entryCount; i++) {
             loadSingleEntry(pageData, i, entryCount);
 
@@ -450,7 +462,6 @@ public abstract class AbstractTreePage<K extends Key<K>, V extends PageValue<?>,
             assert pageData.position() <= dataPos;
             pageData.position(dataPos);
         }
-        return true;
     }
 
     protected void savePageCustomHeader(ByteBuffer pageData) {
@@ -497,6 +508,17 @@ public abstract class AbstractTreePage<K extends Key<K>, V extends PageValue<?>,
                 getPageSize()));
 
         // Step 2. Entries
+        saveEntries(pageData, entryCount);
+    }
+
+    /**
+     * Saves the page entries. The page data is positioned at the start of
+     * the first entry. The default implementation saves each entry with
+     * saveSingleEntry(); pages that keep the entries directly in the page
+     * data can override this.
+     */
+    protected void saveEntries(ByteBuffer pageData, int entryCount) {
+        int dataPos = pageData.position();
         int entrySize = getSingleEntrySize();
         Object position = null;
         for (int i = 0; i < entryCount; i++) {
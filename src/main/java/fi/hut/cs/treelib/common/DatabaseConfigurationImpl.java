@@ -4,8 +4,10 @@ import fi.hut.cs.treelib.DatabaseConfiguration;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.PageValue;
 import fi.hut.cs.treelib.concurrency.LatchManager;
+import fi.hut.cs.treelib.storage.BackgroundPageWriter;
 import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageStorage;
+import fi.hut.cs.treelib.storage.ReplacementPolicy;
 
 public class DatabaseConfigurationImpl<K extends Key<K>, V extends PageValue<?>> implements
     DatabaseConfiguration<K, V> {
@@ -90,4 +92,40 @@ public class DatabaseConfigurationImpl<K extends Key<K>, V extends PageValue<?>>
         return smoPolicy;
     }
 
+    /**
+     * Sets the page replacement policy of the page buffer. Used from the
+     * Spring configuration files.
+     */
+    public void setReplacementPolicy(ReplacementPolicy policy) {
+        pageBuffer.setReplacementPolicy(policy);
+    }
+
+    public ReplacementPolicy getReplacementPolicy() {
+        return pageBuffer.getReplacementPolicy();
+    }
+
+    /**
+     * Sets the background page writer of the page buffer. Used from the
+     * Spring configuration files.
+     */
+    public void setPageWriter(BackgroundPageWriter writer) {
+        pageBuffer.setPageWriter(writer);
+    }
+
+    public BackgroundPageWriter getPageWriter() {
+        return pageBuffer.getPageWriter();
+    }
+
+    /**
+     * Selects whether the page buffer frames are allocated from direct
+     * (off-heap) memory. Used from the Spring configuration files.
+     */
+    public void setDirectBufferFrames(boolean direct) {
+        pageBuffer.setDirectFrames(direct);
+    }
+
+    public boolean isDirectBufferFrames() {
+        return pageBuffer.isDirectFrames();
+    }
+
 }
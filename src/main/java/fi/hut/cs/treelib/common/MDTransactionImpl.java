@@ -3,6 +3,7 @@ package fi.hut.cs.treelib.common;
 import java.util.ArrayList;
 import java.util.List;
 
+import fi.hut.cs.treelib.Coordinate;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.MBR;
 import fi.hut.cs.treelib.MDDatabase;
@@ -79,6 +80,29 @@ public class MDTransactionImpl<K extends Key<K>, V extends PageValue<?>, L exten
         return lc.getList();
     }
 
+    @Override
+    public boolean getNearest(Coordinate<K> point, int k, Callback<Pair<MBR<K>, V>> callback) {
+        if (committed)
+            throw new IllegalStateException("Already committed");
+        database.getStatisticsLogger().newAction(Action.ACTION_QUERY_NEAREST);
+        boolean res = database.getDatabaseTree().getNearest(point, k, callback, this);
+        runAfterAction();
+        return res;
+    }
+
+    @Override
+    public List<Pair<MBR<K>, V>> getNearest(Coordinate<K> point, int k) {
+        if (committed)
+            throw new IllegalStateException("Already committed");
+        StatisticsLogger stats = database.getStatisticsLogger();
+        stats.newAction(Action.ACTION_QUERY_NEAREST);
+        ListCreatingCallback<Pair<MBR<K>, V>> lc = new ListCreatingCallback<Pair<MBR<K>, V>>(
+            stats);
+        database.getDatabaseTree().getNearest(point, k, lc, this);
+        runAfterAction();
+        return lc.getList();
+    }
+
     @Override
     public boolean getAll(final Callback<Pair<MBR<K>, V>> callback) {
         return getOverlapping(database.getKeyPrototype().getEntireArea(), callback);
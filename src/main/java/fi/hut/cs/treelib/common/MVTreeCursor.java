@@ -0,0 +1,202 @@
+package fi.hut.cs.treelib.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import fi.hut.cs.treelib.Cursor;
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.KeyRange;
+import fi.hut.cs.treelib.MVKeyRange;
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.PageValue;
+import fi.hut.cs.treelib.Transaction;
+import fi.hut.cs.treelib.storage.PageBuffer;
+import fi.hut.cs.treelib.storage.PageFactory;
+import fi.tuska.util.Callback;
+import fi.tuska.util.Pair;
+
+/**
+ * Depth-first cursor over a key range of a single version of a
+ * multiversion tree. The child pages of an index page that are alive at the
+ * read version are visited in key order, so the entries are returned in key
+ * order.
+ *
+ * <p>
+ * Only the pages on the current path from the root to the current leaf page
+ * are read-latched and fixed. When the cursor moves to a leaf page, the next
+ * sibling leaf page is fixed to the buffer in advance. Closing the cursor
+ * releases all the latches and fixes, so the scan can be stopped at any
+ * point.
+ *
+ * @author thaapasa
+ */
+class MVTreeCursor<K extends Key<K>, V extends PageValue<?>, P extends AbstractMVTreePage<K, V, P>>
+    implements Cursor<K, V> {
+
+    /** A page on the current path, with the child pages left to visit. */
+    private class Frame {
+        private final P page;
+        private final List<PageID> children;
+        private int next = 0;
+
+        private Frame(P page) {
+            this.page = page;
+            this.children = page.isLeafPage() ? null : getChildren(page);
+        }
+    }
+
+    private final PageBuffer buffer;
+    private final PageFactory<P> factory;
+    private final KeyRange<K> range;
+    private final Transaction<K, V> tx;
+    private final int version;
+
+    private PageID rootID;
+    private final List<Frame> path = new ArrayList<Frame>();
+    /** The next sibling leaf page, fixed in advance */
+    private P prefetched = null;
+
+    private final List<Pair<K, V>> entries = new ArrayList<Pair<K, V>>();
+    private int position = 0;
+
+    private final Callback<Pair<K, V>> collector = new Callback<Pair<K, V>>() {
+        @Override
+        public boolean callback(Pair<K, V> entry) {
+            entries.add(entry);
+            return true;
+        }
+    };
+
+    private final Comparator<Pair<MVKeyRange<K>, PageID>> keyOrder = new Comparator<Pair<MVKeyRange<K>, PageID>>() {
+        @Override
+        public int compare(Pair<MVKeyRange<K>, PageID> o1, Pair<MVKeyRange<K>, PageID> o2) {
+            return o1.getFirst().getMin().compareTo(o2.getFirst().getMin());
+        }
+    };
+
+    /**
+     * @param rootID the root page of the read version of the transaction, or
+     * null if the version is empty
+     */
+    protected MVTreeCursor(AbstractMVTree<K, V, P> tree, PageID rootID, KeyRange<K> range,
+        Transaction<K, V> tx) {
+        this.buffer = tree.getPageBuffer();
+        this.factory = tree.getPageFactory();
+        this.rootID = rootID;
+        this.range = range;
+        this.tx = tx;
+        this.version = tx.getReadVersion();
+    }
+
+    @Override
+    public Pair<K, V> next() {
+        while (position >= entries.size()) {
+            if (!moveToNextLeaf())
+                return null;
+        }
+        return entries.get(position++);
+    }
+
+    /**
+     * @return the IDs of the child pages that are alive at the read version
+     * and overlap the range, in key order
+     */
+    private List<PageID> getChildren(P page) {
+        List<Pair<MVKeyRange<K>, PageID>> alive = new ArrayList<Pair<MVKeyRange<K>, PageID>>();
+        for (Entry<MVKeyRange<K>, PageValue<?>> entry : page.indexContents.entrySet()) {
+            MVKeyRange<K> entryRange = entry.getKey();
+            if (entryRange.containsVersion(version) && entryRange.overlaps(range)) {
+                alive.add(new Pair<MVKeyRange<K>, PageID>(entryRange, (PageID) entry.getValue()));
+            }
+        }
+        Collections.sort(alive, keyOrder);
+        List<PageID> children = new ArrayList<PageID>(alive.size());
+        for (Pair<MVKeyRange<K>, PageID> child : alive) {
+            children.add(child.getSecond());
+        }
+        return children;
+    }
+
+    /**
+     * Latches and fixes the given page. The prefetched page is used if it is
+     * the requested page.
+     */
+    private P enter(PageID pageID) {
+        buffer.readLatch(pageID, tx);
+        if (prefetched != null) {
+            P page = prefetched;
+            prefetched = null;
+            if (page.getPageID().equals(pageID))
+                return page;
+            buffer.unfix(page, tx);
+        }
+        P page = buffer.fixPage(pageID, factory, false, tx);
+        assert page != null;
+        assert page.getKeyRange().containsVersion(version);
+        return page;
+    }
+
+    private void leave(Frame frame) {
+        buffer.unlatch(frame.page, tx);
+        buffer.unfix(frame.page, tx);
+    }
+
+    /**
+     * Moves depth-first to the next leaf page, and copies its entries.
+     *
+     * @return false if there are no more leaf pages
+     */
+    private boolean moveToNextLeaf() {
+        entries.clear();
+        position = 0;
+        if (rootID != null) {
+            // Start from the root page
+            path.add(new Frame(enter(rootID)));
+            rootID = null;
+        } else if (!path.isEmpty() && path.get(path.size() - 1).page.isLeafPage()) {
+            // The current leaf page has been processed
+            leave(path.remove(path.size() - 1));
+        }
+
+        while (!path.isEmpty()) {
+            Frame frame = path.get(path.size() - 1);
+            if (frame.page.isLeafPage()) {
+                frame.page.getLeafEntries().getRange(range, tx, collector);
+                if (!entries.isEmpty())
+                    return true;
+                leave(path.remove(path.size() - 1));
+                continue;
+            }
+            if (frame.next >= frame.children.size()) {
+                // All children visited, backtrack
+                leave(path.remove(path.size() - 1));
+                continue;
+            }
+            P child = enter(frame.children.get(frame.next++));
+            if (child.isLeafPage() && frame.next < frame.children.size()) {
+                // Fix the next sibling leaf page in advance
+                prefetched = buffer.fixPage(frame.children.get(frame.next), factory, false, tx);
+            }
+            path.add(new Frame(child));
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        while (!path.isEmpty()) {
+            leave(path.remove(path.size() - 1));
+        }
+        if (prefetched != null) {
+            buffer.unfix(prefetched, tx);
+            prefetched = null;
+        }
+        rootID = null;
+        entries.clear();
+        position = 0;
+    }
+
+}
@@ -65,7 +65,8 @@ public class PagePath<K extends Key<K>, V extends PageValue<?>, P extends Page<K
         if (getCurrent() == child) {
             return;
         }
-        log.debug("Descending to " + child);
+        if (log.isDebugEnabled())
+            log.debug("Descending to " + child);
         P parent = getCurrent();
         assert parent.containsChild(child.getPageID()) : "Cannot descend from " + parent + " to "
             + child;
@@ -80,12 +81,14 @@ public class PagePath<K extends Key<K>, V extends PageValue<?>, P extends Page<K
         P page = getCurrent();
         assert page != null;
         if (page.isLeafPage()) {
-            log.debug(String.format("Page %s is leaf, cannot descend", page.getName()));
+            if (log.isDebugEnabled())
+                log.debug(String.format("Page %s is leaf, cannot descend", page.getName()));
             return;
         }
         // Adds a fixed page to the path
         P child = (P) page.getChild(key, owner);
-        log.debug("Descending to " + child);
+        if (log.isDebugEnabled())
+            log.debug("Descending to " + child);
         path.add(child);
     }
 
@@ -94,7 +97,8 @@ public class PagePath<K extends Key<K>, V extends PageValue<?>, P extends Page<K
             throw new IllegalStateException("No pages left in path, cannot ascend");
         }
         P child = path.remove(path.size() - 1);
-        log.debug("Ascending from " + child);
+        if (log.isDebugEnabled())
+            log.debug("Ascending from " + child);
         return getCurrent();
     }
 
@@ -111,7 +115,8 @@ public class PagePath<K extends Key<K>, V extends PageValue<?>, P extends Page<K
     }
 
     public void attachRoot(P root) {
-        log.debug("Starting path from " + root);
+        if (log.isDebugEnabled())
+            log.debug("Starting path from " + root);
         if (!path.isEmpty()) {
             throw new IllegalStateException("Path not empty when attaching root");
         }
@@ -0,0 +1,253 @@
+package fi.hut.cs.treelib.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.MBR;
+import fi.hut.cs.treelib.MDDatabase;
+import fi.hut.cs.treelib.MDTree;
+import fi.hut.cs.treelib.Owner;
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.PageValue;
+import fi.hut.cs.treelib.storage.PageBuffer;
+import fi.tuska.util.Callback;
+import fi.tuska.util.Pair;
+
+/**
+ * Spatial join of two multidimensional databases, using the synchronized
+ * tree traversal of Brinkhoff, Kriegel and Seeger. Both trees are descended
+ * together, following only the pairs of entries whose MBRs overlap. Within
+ * a pair of pages, the entries are restricted to the intersection of the
+ * page MBRs, and the overlapping entry pairs are found with a plane sweep
+ * along the first dimension. If the trees are of different height, only the
+ * higher tree is descended until the heights match.
+ *
+ * <p>
+ * The result pairs are reported to the callback as [entry of the first
+ * database, entry of the second database]. Overlapping is defined in
+ * {@link MBR#overlaps(MBR)}.
+ *
+ * @author thaapasa
+ */
+public class SpatialJoin<K extends Key<K>, V1 extends PageValue<?>, V2 extends PageValue<?>> {
+
+    private static final Logger log = Logger.getLogger(SpatialJoin.class);
+
+    private final AbstractMDTree<K, V1, ?, ?> tree1;
+    private final AbstractMDTree<K, V2, ?, ?> tree2;
+
+    private final Comparator<Pair<MBR<K>, PageValue<?>>> lowCoordinateComparator = new Comparator<Pair<MBR<K>, PageValue<?>>>() {
+        @Override
+        public int compare(Pair<MBR<K>, PageValue<?>> o1, Pair<MBR<K>, PageValue<?>> o2) {
+            return o1.getFirst().getLow(0).compareTo(o2.getFirst().getLow(0));
+        }
+    };
+
+    public SpatialJoin(MDDatabase<K, V1, ?> database1, MDDatabase<K, V2, ?> database2) {
+        this.tree1 = getTree(database1.getDatabaseTree());
+        this.tree2 = getTree(database2.getDatabaseTree());
+    }
+
+    private static <K extends Key<K>, V extends PageValue<?>> AbstractMDTree<K, V, ?, ?> getTree(
+        MDTree<K, V, ?> tree) {
+        if (!(tree instanceof AbstractMDTree<?, ?, ?, ?>))
+            throw new IllegalArgumentException("Spatial join is not supported for "
+                + tree.getClass().getSimpleName());
+        return (AbstractMDTree<K, V, ?, ?>) tree;
+    }
+
+    /**
+     * Runs the join.
+     *
+     * @return true if all the result pairs were processed; false if the
+     * callback signaled to stop
+     */
+    public boolean join(final Callback<Pair<Pair<MBR<K>, V1>, Pair<MBR<K>, V2>>> callback,
+        final Owner owner) {
+        if (log.isDebugEnabled())
+            log.debug("Spatial join of " + tree1.getName() + " and " + tree2.getName());
+        return tree1.processRootPages(new Callback<AbstractMDPage<K, V1, ?, ?>>() {
+            @Override
+            public boolean callback(final AbstractMDPage<K, V1, ?, ?> root1) {
+                return tree2.processRootPages(new Callback<AbstractMDPage<K, V2, ?, ?>>() {
+                    @Override
+                    public boolean callback(AbstractMDPage<K, V2, ?, ?> root2) {
+                        return joinRoots(root1, root2, callback, owner);
+                    }
+                }, owner);
+            }
+        }, owner);
+    }
+
+    private boolean joinRoots(AbstractMDPage<K, V1, ?, ?> root1,
+        AbstractMDPage<K, V2, ?, ?> root2,
+        Callback<Pair<Pair<MBR<K>, V1>, Pair<MBR<K>, V2>>> callback, Owner owner) {
+        if (root1.getPageMBR() == null || root2.getPageMBR() == null
+            || !root1.getPageMBR().overlaps(root2.getPageMBR()))
+            return true;
+        // The roots are fixed by the caller, but they must be latched like
+        // the rest of the visited pages
+        PageBuffer buffer1 = root1.dbConfig.getPageBuffer();
+        PageBuffer buffer2 = root2.dbConfig.getPageBuffer();
+        buffer1.readLatch(root1.getPageID(), owner);
+        buffer2.readLatch(root2.getPageID(), owner);
+        boolean res = joinPages(root1, root2, callback, owner);
+        buffer2.unlatch(root2.getPageID(), owner);
+        buffer1.unlatch(root1.getPageID(), owner);
+        return res;
+    }
+
+    /**
+     * Joins the subtrees rooted at the given pages. The page MBRs must
+     * overlap.
+     *
+     * INPUT: The pages must be fixed and latched <br/>
+     * OUTPUT: Does not change fixes or latches
+     */
+    @SuppressWarnings("unchecked")
+    private boolean joinPages(AbstractMDPage<K, V1, ?, ?> page1,
+        AbstractMDPage<K, V2, ?, ?> page2,
+        Callback<Pair<Pair<MBR<K>, V1>, Pair<MBR<K>, V2>>> callback, Owner owner) {
+        // Only the entries that overlap the intersection of the pages can be
+        // part of the result
+        MBR<K> area = page1.getPageMBR().intersection(page2.getPageMBR());
+        int height1 = page1.getHeight();
+        int height2 = page2.getHeight();
+
+        if (height1 > height2) {
+            // Descend the first tree only
+            for (Pair<MBR<K>, PageValue<?>> entry : getEntries(page1, area)) {
+                AbstractMDPage<K, V1, ?, ?> child = (AbstractMDPage<K, V1, ?, ?>) fixChild(
+                    page1, (PageID) entry.getSecond(), owner);
+                boolean res = joinPages(child, page2, callback, owner);
+                releasePage(child, owner);
+                if (!res)
+                    return false;
+            }
+            return true;
+        }
+        if (height2 > height1) {
+            // Descend the second tree only
+            for (Pair<MBR<K>, PageValue<?>> entry : getEntries(page2, area)) {
+                AbstractMDPage<K, V2, ?, ?> child = (AbstractMDPage<K, V2, ?, ?>) fixChild(
+                    page2, (PageID) entry.getSecond(), owner);
+                boolean res = joinPages(page1, child, callback, owner);
+                releasePage(child, owner);
+                if (!res)
+                    return false;
+            }
+            return true;
+        }
+
+        boolean isLeaf = height1 == 1;
+        for (Pair<Pair<MBR<K>, PageValue<?>>, Pair<MBR<K>, PageValue<?>>> pair : sweep(
+            getEntries(page1, area), getEntries(page2, area))) {
+            if (isLeaf) {
+                Pair<MBR<K>, V1> entry1 = new Pair<MBR<K>, V1>(pair.getFirst().getFirst(),
+                    (V1) pair.getFirst().getSecond());
+                Pair<MBR<K>, V2> entry2 = new Pair<MBR<K>, V2>(pair.getSecond().getFirst(),
+                    (V2) pair.getSecond().getSecond());
+                if (!callback.callback(new Pair<Pair<MBR<K>, V1>, Pair<MBR<K>, V2>>(entry1,
+                    entry2)))
+                    return false;
+            } else {
+                AbstractMDPage<K, V1, ?, ?> child1 = (AbstractMDPage<K, V1, ?, ?>) fixChild(
+                    page1, (PageID) pair.getFirst().getSecond(), owner);
+                AbstractMDPage<K, V2, ?, ?> child2 = (AbstractMDPage<K, V2, ?, ?>) fixChild(
+                    page2, (PageID) pair.getSecond().getSecond(), owner);
+                boolean res = joinPages(child1, child2, callback, owner);
+                releasePage(child2, owner);
+                releasePage(child1, owner);
+                if (!res)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the entries of the page that overlap the given area, sorted by
+     * the low coordinate of the first dimension
+     */
+    private List<Pair<MBR<K>, PageValue<?>>> getEntries(AbstractMDPage<K, ?, ?, ?> page,
+        final MBR<K> area) {
+        final List<Pair<MBR<K>, PageValue<?>>> entries = new ArrayList<Pair<MBR<K>, PageValue<?>>>(
+            page.getEntryCount());
+        page.processMBREntries(new Callback<Pair<MBR<K>, PageValue<?>>>() {
+            @Override
+            public boolean callback(Pair<MBR<K>, PageValue<?>> entry) {
+                if (area.overlaps(entry.getFirst()))
+                    entries.add(entry);
+                return true;
+            }
+        });
+        Collections.sort(entries, lowCoordinateComparator);
+        return entries;
+    }
+
+    /**
+     * Finds the overlapping pairs of the entries with a plane sweep. Both
+     * lists must be sorted by the low coordinate of the first dimension.
+     *
+     * @return the overlapping pairs, in the sweep order
+     */
+    private List<Pair<Pair<MBR<K>, PageValue<?>>, Pair<MBR<K>, PageValue<?>>>> sweep(
+        List<Pair<MBR<K>, PageValue<?>>> entries1, List<Pair<MBR<K>, PageValue<?>>> entries2) {
+        List<Pair<Pair<MBR<K>, PageValue<?>>, Pair<MBR<K>, PageValue<?>>>> pairs = new ArrayList<Pair<Pair<MBR<K>, PageValue<?>>, Pair<MBR<K>, PageValue<?>>>>();
+        int i = 0;
+        int j = 0;
+        while (i < entries1.size() && j < entries2.size()) {
+            Pair<MBR<K>, PageValue<?>> e1 = entries1.get(i);
+            Pair<MBR<K>, PageValue<?>> e2 = entries2.get(j);
+            if (lowCoordinateComparator.compare(e1, e2) <= 0) {
+                // Sweep with e1 over the entries of the second list that
+                // start before e1 ends
+                K high = e1.getFirst().getHigh(0);
+                for (int k = j; k < entries2.size(); k++) {
+                    Pair<MBR<K>, PageValue<?>> other = entries2.get(k);
+                    if (other.getFirst().getLow(0).compareTo(high) > 0)
+                        break;
+                    if (e1.getFirst().overlaps(other.getFirst()))
+                        pairs.add(new Pair<Pair<MBR<K>, PageValue<?>>, Pair<MBR<K>, PageValue<?>>>(
+                            e1, other));
+                }
+                i++;
+            } else {
+                // Sweep with e2 over the entries of the first list
+                K high = e2.getFirst().getHigh(0);
+                for (int k = i; k < entries1.size(); k++) {
+                    Pair<MBR<K>, PageValue<?>> other = entries1.get(k);
+                    if (other.getFirst().getLow(0).compareTo(high) > 0)
+                        break;
+                    if (other.getFirst().overlaps(e2.getFirst()))
+                        pairs.add(new Pair<Pair<MBR<K>, PageValue<?>>, Pair<MBR<K>, PageValue<?>>>(
+                            other, e2));
+                }
+                j++;
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * @return the child page, fixed and latched
+     */
+    private AbstractMDPage<K, ?, ?, ?> fixChild(AbstractMDPage<K, ?, ?, ?> parent,
+        PageID childID, Owner owner) {
+        PageBuffer buffer = parent.dbConfig.getPageBuffer();
+        buffer.readLatch(childID, owner);
+        return buffer.fixPage(childID, parent.factory, false, owner);
+    }
+
+    private void releasePage(AbstractMDPage<K, ?, ?, ?> page, Owner owner) {
+        PageBuffer buffer = page.dbConfig.getPageBuffer();
+        buffer.unlatch(page.getPageID(), owner);
+        buffer.unfix(page, owner);
+    }
+
+}
@@ -14,7 +14,8 @@ import fi.hut.cs.treelib.Owner;
 
 /**
  * A simple implementation of the latch manager. Uses a global resource lock
- * for synchronizing the accesses to the individual latches.
+ * for synchronizing the accesses to the map of the individual latches. The
+ * global lock is not held while waiting for a latch.
  * 
  * @author thaapasa
  */
@@ -32,17 +33,14 @@ public class DefaultLatchManager implements LatchManager {
     public void readLatch(LatchTarget target, Owner owner) {
         if (log.isDebugEnabled())
             log.debug("Read latch requested for " + target + " by " + owner);
-        globalLock.lock();
+        LatchInfo info = pinLatchInfo(target, true);
         try {
-            LatchInfo info = getLatchInfo(target, true);
-            assert info != null;
-
             // Will block if needed
             info.readLatch(owner);
         } catch (InterruptedException e) {
-            throw new OwnerInterruptedException("writeLatch()", target, owner, e);
+            throw new OwnerInterruptedException("readLatch()", target, owner, e);
         } finally {
-            globalLock.unlock();
+            unpinLatchInfo(target, info);
         }
     }
 
@@ -50,17 +48,14 @@ public class DefaultLatchManager implements LatchManager {
     public void writeLatch(LatchTarget target, Owner owner) {
         if (log.isDebugEnabled())
             log.debug("Write latch requested for " + target + " by " + owner);
-        globalLock.lock();
+        LatchInfo info = pinLatchInfo(target, true);
         try {
-            LatchInfo info = getLatchInfo(target, true);
-            assert info != null;
-
             // Will block if needed
             info.writeLatch(owner);
         } catch (InterruptedException e) {
             throw new OwnerInterruptedException("writeLatch()", target, owner, e);
         } finally {
-            globalLock.unlock();
+            unpinLatchInfo(target, info);
         }
     }
 
@@ -68,29 +63,61 @@ public class DefaultLatchManager implements LatchManager {
     public void unlatch(LatchTarget target, Owner owner) {
         if (log.isDebugEnabled())
             log.debug("Releasing latch on " + target + " by " + owner);
-        globalLock.lock();
+        LatchInfo info = pinLatchInfo(target, false);
+        assert info != null;
         try {
-            LatchInfo info = getLatchInfo(target, false);
-            assert info != null;
-
             info.unlatch(owner);
+        } finally {
+            unpinLatchInfo(target, info);
+        }
+    }
 
-            // Check if the latch info can be removed now
-            if (info.isEmpty()) {
-                latches.remove(target);
+    /**
+     * Optimistic reads are not supported.
+     */
+    @Override
+    public long readStamp(LatchTarget target) {
+        return 0;
+    }
+
+    @Override
+    public boolean validate(LatchTarget target, long stamp) {
+        return false;
+    }
+
+    /**
+     * Finds the latch info of the target, and pins it so that it is not
+     * removed while the latch is being requested. The global lock is only
+     * held while the latch info is looked up; it must never be acquired
+     * while holding the lock of a latch info.
+     */
+    private LatchInfo pinLatchInfo(LatchTarget target, boolean create) {
+        globalLock.lock();
+        try {
+            LatchInfo info = latches.get(target);
+            if (info == null && create) {
+                info = new LatchInfo();
+                latches.put(target, info);
             }
+            if (info != null)
+                info.pins++;
+            return info;
         } finally {
             globalLock.unlock();
         }
     }
 
-    private LatchInfo getLatchInfo(LatchTarget target, boolean create) {
-        LatchInfo info = latches.get(target);
-        if (info == null && create) {
-            info = new LatchInfo();
-            latches.put(target, info);
+    private void unpinLatchInfo(LatchTarget target, LatchInfo info) {
+        globalLock.lock();
+        try {
+            info.pins--;
+            // Check if the latch info can be removed now
+            if (info.isEmpty()) {
+                latches.remove(target);
+            }
+        } finally {
+            globalLock.unlock();
         }
-        return info;
     }
 
     private class LatchInfo {
@@ -98,7 +125,8 @@ public class DefaultLatchManager implements LatchManager {
         private final Lock lock = new ReentrantLock(true);
         private final Condition writer = lock.newCondition();
         private final Condition reader = lock.newCondition();
-        private int inWaitQueue = 0;
+        /** Amount of latch requests in progress; guarded by the global lock. */
+        private int pins = 0;
 
         private Integer writeLatchHolder = null;
         private Set<Integer> readLatchHolders = new HashSet<Integer>();
@@ -106,14 +134,20 @@ public class DefaultLatchManager implements LatchManager {
         private LatchInfo() {
         }
 
+        /**
+         * Called while holding the global lock.
+         */
         public boolean isEmpty() {
-            return writeLatchHolder == null && readLatchHolders.isEmpty() && inWaitQueue == 0;
+            if (pins > 0)
+                return false;
+            lock.lock();
+            try {
+                return writeLatchHolder == null && readLatchHolders.isEmpty();
+            } finally {
+                lock.unlock();
+            }
         }
 
-        /**
-         * Upon entry, we have both the global lock and the local lock. The
-         * global lock is released when we are waiting.
-         */
         public void writeLatch(Owner owner) throws InterruptedException {
             lock.lock();
             try {
@@ -122,14 +156,19 @@ public class DefaultLatchManager implements LatchManager {
                         + " re-requesting write lock, ignoring");
                     return;
                 }
-                // Wait until this thread can take the write lock
-                waitWrite(owner);
-
-                // At this point we have the local lock and can take the write
-                // lock
-                assert writeLatchHolder == null : writeLatchHolder;
-                assert readLatchHolders.isEmpty() : readLatchHolders;
-
+                // Wait until this thread can take the write lock.
+                // It is okay to take write lock when
+                // a) there is no other write lock AND
+                // b) there are no readers OR there is only one reader who
+                // is requesting upgrade
+                while (writeLatchHolder != null
+                    || !(readLatchHolders.isEmpty() || (readLatchHolders.size() == 1 && readLatchHolders
+                        .contains(owner.getOwnerID())))) {
+                    // Can't lock now, as there is either a writer or
+                    // reader(s)
+                    writer.await();
+                }
+                readLatchHolders.clear();
                 writeLatchHolder = owner.getOwnerID();
             } finally {
                 lock.unlock();
@@ -139,10 +178,11 @@ public class DefaultLatchManager implements LatchManager {
         public void readLatch(Owner owner) throws InterruptedException {
             lock.lock();
             try {
-                // Wait until this thread can acquire a read latch
-                waitRead();
-                // At this point we have the lock and can take a read latch
-                assert writeLatchHolder == null;
+                // Can take read latch when there is no other write latch
+                while (writeLatchHolder != null) {
+                    // Can't take read lock (there is a writer); so wait
+                    reader.await();
+                }
                 readLatchHolders.add(owner.getOwnerID());
             } finally {
                 lock.unlock();
@@ -169,66 +209,18 @@ public class DefaultLatchManager implements LatchManager {
             }
         }
 
-        private void waitWrite(Owner owner) throws InterruptedException {
-            globalLock.unlock();
-            inWaitQueue++;
-            try {
-                while (true) {
-                    // Check if it is ok to take write lock now.
-                    // It is okay to take write lock when
-                    // a) there is no other write lock AND
-                    // b) there are no readers OR there is only one reader who
-                    // is requesting upgrade
-                    if (writeLatchHolder == null
-                        && (readLatchHolders.isEmpty() || (readLatchHolders.size() == 1 && readLatchHolders
-                            .contains(owner.getOwnerID())))) {
-                        readLatchHolders.clear();
-                        break;
-                    }
-                    // Can't lock now, as there is either a writer or
-                    // reader(s)
-                    writer.await();
-                }
-            } finally {
-                inWaitQueue--;
-                globalLock.lock();
-            }
-        }
-
-        private void waitRead() throws InterruptedException {
-            globalLock.unlock();
-            inWaitQueue++;
-            try {
-                // Can take read latch when there is no other write latch
-                while (writeLatchHolder != null) {
-                    // Can't take read lock (there is a writer); so wait
-                    reader.await();
-                }
-            } finally {
-                inWaitQueue--;
-                globalLock.lock();
-            }
-        }
-
         private void signalNext() {
-            globalLock.unlock();
             // There cannot be a write latch holder at this point, as it would
             // have just been released prior to calling this method
             assert writeLatchHolder == null;
 
-            try {
-                if (readLatchHolders.isEmpty()) {
-                    // Signal a writer
-                    writer.signal();
-                }
-                if (writeLatchHolder == null) {
-                    // No writer in line (or already readers), so signal a
-                    // reader
-                    reader.signal();
-                }
-            } finally {
-                globalLock.lock();
+            if (readLatchHolders.isEmpty()) {
+                // Signal a writer
+                writer.signal();
             }
+            // The waiting readers can all take the latch (or wait again, if
+            // the signaled writer gets the latch first)
+            reader.signalAll();
         }
 
         @Override
@@ -24,4 +24,25 @@ public interface LatchManager {
      */
     void unlatch(LatchTarget target, Owner owner);
 
+    /**
+     * Starts an optimistic read of the target object. The read does not
+     * latch the target; instead, the returned stamp must be validated with
+     * validate() after the read. The stamp is invalidated when the target
+     * is write-latched.
+     * 
+     * @return the stamp; or 0 if the target is currently write-latched, or
+     * if this latch manager does not support optimistic reads (in which case
+     * the target must be read-latched instead)
+     */
+    long readStamp(LatchTarget target);
+
+    /**
+     * Validates an optimistic read of the target object.
+     * 
+     * @param stamp the stamp returned by readStamp()
+     * @return true if the target has not been write-latched after the stamp
+     * was taken, so that the values read from it are consistent
+     */
+    boolean validate(LatchTarget target, long stamp);
+
 }
@@ -45,4 +45,17 @@ public class NoopLatchManager implements LatchManager {
             log.debug("Latch of " + target + " released by " + owner);
     }
 
+    /**
+     * Nothing is latched, so the optimistic reads are always valid.
+     */
+    @Override
+    public long readStamp(LatchTarget target) {
+        return 1;
+    }
+
+    @Override
+    public boolean validate(LatchTarget target, long stamp) {
+        return true;
+    }
+
 }
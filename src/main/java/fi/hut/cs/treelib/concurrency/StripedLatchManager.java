@@ -0,0 +1,393 @@
+package fi.hut.cs.treelib.concurrency;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.Owner;
+
+/**
+ * A latch manager that stripes the latch state by the hash of the latch
+ * target, and does not use any global lock.
+ *
+ * <p>
+ * Each stripe holds an array of latch slots. A slot is bound to a single
+ * latch target at a time, and its latch state is a single state word that is
+ * updated with CAS operations: the state is either zero (not latched),
+ * WRITE_LATCHED, or the amount of read latch holders combined with the sum of
+ * the reader owner IDs. The owner ID sum identifies the reader when there is
+ * only one reader, so that a single reader can upgrade its read latch to a
+ * write latch. Latching a target that already has a slot does not take any
+ * locks; the stripe monitor is only taken when a target is bound to a slot,
+ * and when an owner must wait for a latch. Slots are not released when the
+ * latch is released, they are rebound to other targets when needed; the
+ * slot array of a stripe grows if all the slots are in use. Thus, latching
+ * does not allocate any objects after the slot arrays have warmed up.
+ *
+ * <p>
+ * Optimistic reads are supported with slot versions. The version of a slot
+ * is odd while the slot is write-latched, and it is incremented when the
+ * write latch is taken and released, and when the slot is rebound. The read
+ * stamp of a target consists of the slot index and the slot version; if the
+ * target is not bound to a slot, the stamp records the bind count of the
+ * stripe instead (a writer must bind a slot before it can write-latch the
+ * target). Taking and validating stamps does not write to shared memory.
+ * Like other seqlock-style schemes on Java 6, the validation relies on the
+ * volatile read of the version not being reordered before the preceding
+ * page reads; the readers must also tolerate exceptions caused by reading
+ * inconsistent data.
+ *
+ * <p>
+ * Differences to DefaultLatchManager: read latches are counted, so a read
+ * latch taken twice by the same owner must also be released twice; and the
+ * latches are not fair, so a steady stream of readers can delay a waiting
+ * writer.
+ *
+ * @author thaapasa
+ */
+public class StripedLatchManager implements LatchManager {
+
+    private static final Logger log = Logger.getLogger(StripedLatchManager.class);
+
+    private static final int DEFAULT_STRIPES = 64;
+    private static final int INITIAL_SLOTS = 4;
+
+    /** State of a write-latched slot. */
+    private static final long WRITE_LATCHED = -1L;
+    /** State of a slot that is being rebound to another target. */
+    private static final long REBINDING = Long.MIN_VALUE;
+    /** Bits of the state word used for the reader count. */
+    private static final int READER_BITS = 15;
+    private static final long READER_MASK = (1L << READER_BITS) - 1;
+    /** Bits of a read stamp used for the slot index (plus one). */
+    private static final int STAMP_SLOT_BITS = 16;
+    private static final long STAMP_SLOT_MASK = (1L << STAMP_SLOT_BITS) - 1;
+    /** Slot index code of the stamps of targets that have no slot. */
+    private static final long UNBOUND_STAMP = STAMP_SLOT_MASK;
+    private static final long STAMP_VERSION_MASK = -1L >>> STAMP_SLOT_BITS;
+
+    private final Stripe[] stripes;
+
+    public StripedLatchManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripeCount the amount of stripes; rounded up to a power of two
+     */
+    public StripedLatchManager(int stripeCount) {
+        int count = Integer.highestOneBit(Math.max(stripeCount, 1));
+        if (count < stripeCount)
+            count <<= 1;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public void readLatch(LatchTarget target, Owner owner) {
+        if (log.isDebugEnabled())
+            log.debug("Read latch requested for " + target + " by " + owner);
+        Stripe stripe = getStripe(target);
+        Slot slot = pin(stripe, target);
+        try {
+            long readerUnit = 1L + (ownerBits(owner) << READER_BITS);
+            while (true) {
+                long s = slot.state;
+                if (s >= 0) {
+                    if ((s & READER_MASK) == READER_MASK)
+                        throw new IllegalStateException("Too many readers on " + target);
+                    if (Slot.STATE.compareAndSet(slot, s, s + readerUnit))
+                        return;
+                } else if (s == REBINDING) {
+                    // The slot is being checked for rebinding; the binding
+                    // will be cancelled because the slot is pinned
+                    Thread.yield();
+                } else {
+                    await(stripe, slot, false, owner);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new OwnerInterruptedException("readLatch()", target, owner, e);
+        } finally {
+            unpin(slot);
+        }
+    }
+
+    @Override
+    public void writeLatch(LatchTarget target, Owner owner) {
+        if (log.isDebugEnabled())
+            log.debug("Write latch requested for " + target + " by " + owner);
+        Stripe stripe = getStripe(target);
+        Slot slot = pin(stripe, target);
+        try {
+            while (true) {
+                long s = slot.state;
+                if (s == WRITE_LATCHED && slot.writer == owner.getOwnerID()) {
+                    log.warn("Write latch holder " + owner + " re-requesting write lock, ignoring");
+                    return;
+                }
+                if (canWrite(s, owner)) {
+                    if (Slot.STATE.compareAndSet(slot, s, WRITE_LATCHED)) {
+                        slot.writer = owner.getOwnerID();
+                        // Invalidates the optimistic reads
+                        slot.version++;
+                        return;
+                    }
+                } else if (s == REBINDING) {
+                    Thread.yield();
+                } else {
+                    await(stripe, slot, true, owner);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new OwnerInterruptedException("writeLatch()", target, owner, e);
+        } finally {
+            unpin(slot);
+        }
+    }
+
+    @Override
+    public void unlatch(LatchTarget target, Owner owner) {
+        if (log.isDebugEnabled())
+            log.debug("Releasing latch on " + target + " by " + owner);
+        Stripe stripe = getStripe(target);
+        // The slot cannot be rebound while the latch is held
+        Slot slot = stripe.find(target);
+        assert slot != null : "No latch on " + target;
+
+        long readerUnit = 1L + (ownerBits(owner) << READER_BITS);
+        while (true) {
+            long s = slot.state;
+            long next;
+            if (s == WRITE_LATCHED) {
+                assert slot.writer == owner.getOwnerID() : slot.writer + " != " + owner;
+                slot.writer = 0;
+                slot.version++;
+                next = 0;
+            } else {
+                assert s > 0 : "Read latch not held on " + target + " by " + owner;
+                next = s - readerUnit;
+            }
+            if (Slot.STATE.compareAndSet(slot, s, next))
+                break;
+        }
+        // Owners waiting for this latch have pinned the slot
+        if (slot.pins > 0) {
+            synchronized (stripe) {
+                stripe.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public long readStamp(LatchTarget target) {
+        Stripe stripe = getStripe(target);
+        long binds = stripe.binds;
+        Slot[] slots = stripe.slots;
+        for (int i = 0; i < slots.length; i++) {
+            Slot slot = slots[i];
+            if (!target.equals(slot.target))
+                continue;
+            // Read order: version, state, target (rebinding changes them in
+            // the reverse order)
+            long version = slot.version;
+            long s = slot.state;
+            if ((version & 1) != 0 || s == WRITE_LATCHED || s == REBINDING
+                || !target.equals(slot.target) || i + 1 >= UNBOUND_STAMP)
+                return 0;
+            return ((version & STAMP_VERSION_MASK) << STAMP_SLOT_BITS) | (i + 1);
+        }
+        return ((binds & STAMP_VERSION_MASK) << STAMP_SLOT_BITS) | UNBOUND_STAMP;
+    }
+
+    @Override
+    public boolean validate(LatchTarget target, long stamp) {
+        if (stamp == 0)
+            return false;
+        Stripe stripe = getStripe(target);
+        long code = stamp & STAMP_SLOT_MASK;
+        if (code == UNBOUND_STAMP)
+            return (stripe.binds & STAMP_VERSION_MASK) == stamp >>> STAMP_SLOT_BITS;
+        // Slots are never moved to other indices
+        Slot slot = stripe.slots[(int) code - 1];
+        return (slot.version & STAMP_VERSION_MASK) == stamp >>> STAMP_SLOT_BITS;
+    }
+
+    private Stripe getStripe(LatchTarget target) {
+        int h = target.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    private static long ownerBits(Owner owner) {
+        return owner.getOwnerID() & 0xffffffffL;
+    }
+
+    /**
+     * The write latch can be taken if the slot is not latched, or if the
+     * owner is the only reader.
+     */
+    private static boolean canWrite(long state, Owner owner) {
+        if (state == 0)
+            return true;
+        return state > 0 && (state & READER_MASK) == 1
+            && (state >>> READER_BITS) == ownerBits(owner);
+    }
+
+    /**
+     * Waits on the stripe monitor until the latch state changes. The slot
+     * must be pinned, so that the unlatching owner notifies the stripe.
+     */
+    private void await(Stripe stripe, Slot slot, boolean write, Owner owner)
+        throws InterruptedException {
+        synchronized (stripe) {
+            long s = slot.state;
+            boolean blocked = write ? (s != REBINDING && !canWrite(s, owner))
+                : s == WRITE_LATCHED;
+            if (blocked)
+                stripe.wait();
+        }
+    }
+
+    /**
+     * Finds the slot bound to the target, binding a slot if there is none,
+     * and pins the slot so that it cannot be rebound to another target.
+     */
+    private Slot pin(Stripe stripe, LatchTarget target) {
+        while (true) {
+            Slot slot = stripe.find(target);
+            if (slot == null) {
+                synchronized (stripe) {
+                    slot = stripe.bind(target);
+                }
+            }
+            Slot.PINS.incrementAndGet(slot);
+            // The state must be read before the target; rebinding writes the
+            // target before resetting the state
+            if (slot.state != REBINDING && target.equals(slot.target))
+                return slot;
+            // Rebound to another target in between
+            unpin(slot);
+        }
+    }
+
+    private void unpin(Slot slot) {
+        Slot.PINS.decrementAndGet(slot);
+    }
+
+    private static class Slot {
+        // The updaters must be created here to access the private fields
+        private static final AtomicLongFieldUpdater<Slot> STATE = AtomicLongFieldUpdater
+            .newUpdater(Slot.class, "state");
+        private static final AtomicIntegerFieldUpdater<Slot> PINS = AtomicIntegerFieldUpdater
+            .newUpdater(Slot.class, "pins");
+
+        private volatile LatchTarget target;
+        /** Latch state; see the class comment. */
+        private volatile long state;
+        /** Amount of owners that are latching or waiting for this slot. */
+        private volatile int pins;
+        /** Owner ID of the write latch holder. */
+        private volatile int writer;
+        /**
+         * Version for optimistic reads; odd while write-latched. Only
+         * updated by the write latch holder, or while rebinding.
+         */
+        private volatile long version;
+
+        /**
+         * Tries to unbind the slot from its current target.
+         *
+         * @return true if the slot was free and is now marked as being
+         * rebound
+         */
+        private boolean tryUnbind() {
+            if (pins != 0 || !STATE.compareAndSet(this, 0, REBINDING))
+                return false;
+            if (pins != 0) {
+                // Pinned in between, cancel
+                state = 0;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            long s = state;
+            return String.format("%s: %s, pins %d", target, s == WRITE_LATCHED ? "writer "
+                + writer : (s & READER_MASK) + " readers", pins);
+        }
+    }
+
+    /**
+     * The slots of a single stripe. The stripe object is also used as the
+     * monitor for binding slots and for waiting for latches.
+     */
+    private static class Stripe {
+        private volatile Slot[] slots;
+        /**
+         * Incremented after a slot is bound to a new target; updated while
+         * holding the stripe monitor.
+         */
+        private volatile long binds;
+
+        private Stripe() {
+            slots = new Slot[INITIAL_SLOTS];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new Slot();
+            }
+        }
+
+        private Slot find(LatchTarget target) {
+            for (Slot slot : slots) {
+                if (target.equals(slot.target))
+                    return slot;
+            }
+            return null;
+        }
+
+        /**
+         * Binds a slot to the target. Must be called while holding the
+         * stripe monitor.
+         */
+        private Slot bind(LatchTarget target) {
+            // Re-check, the target might have been bound while waiting for
+            // the monitor
+            Slot slot = find(target);
+            if (slot != null)
+                return slot;
+            Slot[] cur = slots;
+            for (Slot s : cur) {
+                if (s.target == null) {
+                    s.target = target;
+                    binds++;
+                    return s;
+                }
+                if (s.tryUnbind()) {
+                    // The version is changed before the target, so that
+                    // the stamps of the previous target are invalidated
+                    s.version += 2;
+                    s.target = target;
+                    s.state = 0;
+                    binds++;
+                    return s;
+                }
+            }
+            // All slots in use, grow the stripe
+            Slot[] grown = new Slot[cur.length * 2];
+            System.arraycopy(cur, 0, grown, 0, cur.length);
+            for (int i = cur.length; i < grown.length; i++) {
+                grown[i] = new Slot();
+            }
+            grown[cur.length].target = target;
+            slots = grown;
+            binds++;
+            return grown[cur.length];
+        }
+    }
+
+}
@@ -8,6 +8,7 @@ import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 
+import fi.hut.cs.treelib.Configuration;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.KeyRange;
 import fi.hut.cs.treelib.MBR;
@@ -22,9 +23,11 @@ import fi.hut.cs.treelib.common.AbstractMDTree;
 import fi.hut.cs.treelib.common.SMOPolicy;
 import fi.hut.cs.treelib.concurrency.LatchManager;
 import fi.hut.cs.treelib.storage.PageStorage;
+import fi.hut.cs.treelib.util.ExternalSorter;
 import fi.hut.cs.treelib.util.Predicate;
 import fi.tuska.util.Callback;
 import fi.tuska.util.CollectionUtils;
+import fi.tuska.util.Converter;
 import fi.tuska.util.Pair;
 
 public abstract class AbstractMDDatabase<K extends Key<K>, V extends PageValue<?>, L extends Key<L>, P extends AbstractMDPage<K, V, L, P>>
@@ -86,6 +89,39 @@ public abstract class AbstractMDDatabase<K extends Key<K>, V extends PageValue<?
         return sortedKeys.toArray((Pair<MBR<K>, V>[]) Array.newInstance(Pair.class, 0));
     }
 
+    /**
+     * Creates a sorter for bulk-loading that orders the entries by the given
+     * sort key, and by the MBRs for entries with the same sort key. The sort
+     * keys are calculated once per entry, and the sort runs are sorted with
+     * the amount of threads given in the configuration.
+     * 
+     * @param runSize the max amount of entries to sort in memory; larger
+     * inputs are sorted externally
+     */
+    protected <S extends Key<S>> ExternalSorter<MBR<K>, V> createSorter(
+        Converter<MBR<K>, S> sortKeyCreator, int runSize) {
+        ExternalSorter<MBR<K>, V> sorter = new ExternalSorter<MBR<K>, V>(getKeyPrototype(),
+            getValuePrototype(), runSize, sortKeyCreator);
+        sorter.setThreads(Configuration.instance().getBulkLoadSortThreads());
+        return sorter;
+    }
+
+    /**
+     * @return a comparator that orders the entries the same way as the
+     * sorters created with {@link #createSorter(Converter, int)}
+     */
+    protected <S extends Key<S>> Comparator<Pair<MBR<K>, V>> getSortKeyComparator(
+        final Converter<MBR<K>, S> sortKeyCreator) {
+        return new Comparator<Pair<MBR<K>, V>>() {
+            @Override
+            public int compare(Pair<MBR<K>, V> o1, Pair<MBR<K>, V> o2) {
+                int c = sortKeyCreator.convert(o1.getFirst()).compareTo(
+                    sortKeyCreator.convert(o2.getFirst()));
+                return c != 0 ? c : o1.getFirst().compareTo(o2.getFirst());
+            }
+        };
+    }
+
     /**
      * Adjusts the slice end position in an STR split so that the list is
      * split properly
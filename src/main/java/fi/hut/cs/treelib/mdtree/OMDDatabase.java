@@ -1,12 +1,11 @@
 package fi.hut.cs.treelib.mdtree;
 
-import java.util.Arrays;
 import java.util.Comparator;
-import java.util.List;
 
 import org.apache.log4j.Logger;
 
 import fi.hut.cs.treelib.BulkLoadable;
+import fi.hut.cs.treelib.Configuration;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.MBR;
 import fi.hut.cs.treelib.PageValue;
@@ -57,16 +56,28 @@ public abstract class OMDDatabase<K extends Key<K>, V extends PageValue<?>, L ex
         };
     }
 
+    /**
+     * Bulk-loads the entries to an empty database. The entries are sorted by
+     * the search key of the tree (such as the Hilbert value of the MBR
+     * center point), and the tree is built bottom-up by packing the leaf
+     * pages up to the configured fill ratio. The search keys are calculated
+     * once per entry; inputs larger than the configured sort run size are
+     * sorted externally.
+     */
     @Override
     public void bulkLoad(Iterable<Pair<MBR<K>, V>> keys, Transaction<MBR<K>, V> tx) {
-        Comparator<Pair<MBR<K>, V>> comp = getEntryComparator();
-        // Sort keys by minimum the tree ordering coordinate
-        Pair<MBR<K>, V>[] keyArray = getSortedArray(keys, comp);
-        final int keyCount = keyArray.length;
+        Converter<MBR<K>, L> searchKeyCreator = getDatabaseTree().getSearchKeyCreator();
+        // The input is always sorted here, so there is no run size limit if
+        // external sorting is not enabled
+        int runSize = Configuration.instance().getBulkLoadSortRunSize();
+        Iterable<Pair<MBR<K>, V>> sortedKeys = createSorter(searchKeyCreator,
+            runSize > 0 ? runSize : Integer.MAX_VALUE).sort(keys);
 
-        log.info("Bulk-loading " + keyCount + " keys to " + getDatabaseTree().getName());
-        List<Pair<MBR<K>, V>> keyList = Arrays.asList(keyArray);
-        OMDPage<K, V, L> root = getDatabaseTree().bulkLoad(keyList, comp);
+        log.info("Bulk-loading keys to " + getDatabaseTree().getName());
+        OMDPage<K, V, L> root = getDatabaseTree().bulkLoad(sortedKeys,
+            getSortKeyComparator(searchKeyCreator));
+        if (root == null)
+            return;
         getDatabaseTree().attachRoot(root, tx);
         getPageBuffer().unfix(root, tx);
     }
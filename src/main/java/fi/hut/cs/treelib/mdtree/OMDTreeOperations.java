@@ -5,6 +5,7 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import fi.hut.cs.treelib.DoubleMBR;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.MBR;
 import fi.hut.cs.treelib.Owner;
@@ -291,9 +292,11 @@ public class OMDTreeOperations<K extends Key<K>, V extends PageValue<?>, L exten
      * @return a goodness value for the given split
      */
     protected float getSplitValue(MBR<K> p1, MBR<K> p2) {
+        DoubleMBR d1 = p1.getDoubleMBR();
+        DoubleMBR d2 = p2.getDoubleMBR();
         if (p1.overlaps(p2))
-            return p1.countOverlapArea(p2).toFloat();
-        return -p1.countEnlargement(p2).toFloat();
+            return (float) d1.getOverlapArea(d2);
+        return (float) -d1.getEnlargement(d2);
     }
 
     protected int findOptimalSplitPos(OMDPage<K, V, L> page) {
@@ -1,10 +1,18 @@
 package fi.hut.cs.treelib.mdtree;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
 import org.apache.log4j.Logger;
 
 import fi.hut.cs.treelib.Component;
 import fi.hut.cs.treelib.Coordinate;
 import fi.hut.cs.treelib.DatabaseConfiguration;
+import fi.hut.cs.treelib.DoubleMBR;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.KeyRange;
 import fi.hut.cs.treelib.MBR;
@@ -119,6 +127,82 @@ public class PackedJTree<K extends Key<K>, V extends PageValue<?>> extends
         }, owner);
     }
 
+    /**
+     * Runs the nearest-neighbor search over the packed subtrees. The
+     * subtrees are searched in the order of the distance of their extents
+     * from the query point, and the k nearest entries found so far are
+     * collected. The search ends when the next subtree is farther away than
+     * the k:th nearest entry found.
+     */
+    @Override
+    public boolean getNearest(Coordinate<K> point, final int k,
+        Callback<Pair<MBR<K>, V>> callback, final Owner owner) {
+        if (log.isDebugEnabled()) {
+            log.debug(getName() + " operation: get " + k + " nearest to " + point);
+        }
+        if (rootTree == null || k <= 0)
+            return true;
+
+        final double[] p = DoubleMBR.getPoint(point);
+        // Subtree distances and root page IDs
+        final List<Pair<Double, IntegerValue>> trees = new ArrayList<Pair<Double, IntegerValue>>();
+        rootTree.traverseMDEntries(mbrAllPred, new Callback<Pair<MBR<K>, PageValue<?>>>() {
+            @Override
+            public boolean callback(Pair<MBR<K>, PageValue<?>> entry) {
+                double dist = entry.getFirst().getDoubleMBR().getMinDistance(p);
+                trees.add(new Pair<Double, IntegerValue>(dist, (IntegerValue) entry.getSecond()));
+                return true;
+            }
+        }, owner);
+        Collections.sort(trees, new Comparator<Pair<Double, IntegerValue>>() {
+            @Override
+            public int compare(Pair<Double, IntegerValue> o1, Pair<Double, IntegerValue> o2) {
+                return o1.getFirst().compareTo(o2.getFirst());
+            }
+        });
+
+        // The nearest entries found so far, the farthest first
+        final PriorityQueue<Pair<Double, Pair<MBR<K>, V>>> nearest = new PriorityQueue<Pair<Double, Pair<MBR<K>, V>>>(
+            k + 1, new Comparator<Pair<Double, Pair<MBR<K>, V>>>() {
+                @Override
+                public int compare(Pair<Double, Pair<MBR<K>, V>> o1,
+                    Pair<Double, Pair<MBR<K>, V>> o2) {
+                    return o2.getFirst().compareTo(o1.getFirst());
+                }
+            });
+        for (Pair<Double, IntegerValue> subtree : trees) {
+            if (nearest.size() >= k && subtree.getFirst() > nearest.peek().getFirst())
+                break;
+            JTree<K, V> tree = getExactTree(subtree.getSecond());
+            tree.getNearest(point, k, new Callback<Pair<MBR<K>, V>>() {
+                @Override
+                public boolean callback(Pair<MBR<K>, V> entry) {
+                    double dist = entry.getFirst().getDoubleMBR().getMinDistance(p);
+                    // Entries are found in the order of distance, so the
+                    // rest of this subtree is farther away
+                    if (nearest.size() >= k && dist >= nearest.peek().getFirst())
+                        return false;
+                    nearest.add(new Pair<Double, Pair<MBR<K>, V>>(dist, entry));
+                    if (nearest.size() > k)
+                        nearest.poll();
+                    return true;
+                }
+            }, owner);
+            tree.close();
+        }
+
+        // Report the entries in the order of increasing distance
+        LinkedList<Pair<MBR<K>, V>> result = new LinkedList<Pair<MBR<K>, V>>();
+        while (!nearest.isEmpty()) {
+            result.addFirst(nearest.poll().getSecond());
+        }
+        for (Pair<MBR<K>, V> entry : result) {
+            if (!callback.callback(entry))
+                return false;
+        }
+        return true;
+    }
+
     @Override
     public boolean contains(MBR<K> key, Transaction<MBR<K>, V> tx) {
         JTree<K, V> tree = getExactTree(key);
@@ -252,6 +336,20 @@ public class PackedJTree<K extends Key<K>, V extends PageValue<?>> extends
         }, owner);
     }
 
+    /**
+     * Processes the root pages of all the packed subtrees.
+     */
+    @Override
+    public boolean processRootPages(
+        final Callback<? super OMDPage<K, V, Coordinate<K>>> callback, final Owner owner) {
+        return traverseTrees(mbrAllPred, new Callback<JTree<K, V>>() {
+            @Override
+            public boolean callback(JTree<K, V> tree) {
+                return tree.processRootPages(callback, owner);
+            }
+        }, owner);
+    }
+
     @Override
     public boolean isEmpty(final Transaction<MBR<K>, V> tx) {
         if (rootTree.isEmpty(rootsTX))
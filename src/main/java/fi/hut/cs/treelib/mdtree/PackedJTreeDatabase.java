@@ -1,7 +1,5 @@
 package fi.hut.cs.treelib.mdtree;
 
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -25,6 +23,7 @@ import fi.hut.cs.treelib.stats.StatisticsLogger;
 import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageStorage;
 import fi.tuska.util.Callback;
+import fi.tuska.util.CollectionUtils;
 import fi.tuska.util.Converter;
 import fi.tuska.util.Pair;
 
@@ -112,15 +111,21 @@ public class PackedJTreeDatabase<K extends Key<K>, V extends PageValue<?>> exten
         return (PackedJTree<K, V>) super.getDatabaseTree();
     }
 
+    /**
+     * Bulk-loads the entries to an empty database. The entries are sorted by
+     * the minimum Y coordinate and divided into STR slices; each slice is
+     * then sorted by the J-tree search key and bulk-loaded into a separate
+     * J-tree. The slices need random access, so the entries are always
+     * sorted in memory.
+     */
     @Override
     public void bulkLoad(Iterable<Pair<MBR<K>, V>> keys, Transaction<MBR<K>, V> tx) {
-        // Sort keys by minimum Y coordinate
-        Pair<MBR<K>, V>[] keyArray = getSortedArray(keys, SORT_BY_Y);
-        final int keyCount = keyArray.length;
+        // Sort keys by minimum Y coordinate (the search key of the root tree)
+        List<Pair<MBR<K>, V>> keyList = CollectionUtils.getList(createSorter(
+            rootTree.getSearchKeyCreator(), Integer.MAX_VALUE).sort(keys));
+        final int keyCount = keyList.size();
         log.info("Bulk-loading " + keyCount + " keys to Packed J-tree");
 
-        List<Pair<MBR<K>, V>> keyList = Arrays.asList(keyArray);
-
         createSTRSlices(keyList, rootTree.getLeafPageCapacity(), 1, getSTRSliceCreator(tx));
     }
 
@@ -141,10 +146,14 @@ public class PackedJTreeDatabase<K extends Key<K>, V extends PageValue<?>> exten
                     PackedJTreeDatabase.this);
                 newTree.setStatisticsLogger(getDatabaseTree().getStatisticsLogger());
 
-                // Sort the sub-list by the natural ordering of the MBRs
-                Collections.sort(sublist);
+                // Sort the sub-list by the search key of the J-tree
+                Converter<MBR<K>, Coordinate<K>> searchKeyCreator = newTree
+                    .getSearchKeyCreator();
+                Iterable<Pair<MBR<K>, V>> sorted = createSorter(searchKeyCreator,
+                    Integer.MAX_VALUE).sort(sublist);
                 // Bulk-load the values into the new tree
-                OMDPage<K, V, Coordinate<K>> newRoot = newTree.bulkLoad(sublist, null);
+                OMDPage<K, V, Coordinate<K>> newRoot = newTree.bulkLoad(sorted,
+                    getSortKeyComparator(searchKeyCreator));
                 assert newRoot.getPageID().equals(newRootID) : newRoot.getPageID() + " != "
                     + newRootID;
                 // Attach the new root to the tree
@@ -21,10 +21,12 @@ import fi.hut.cs.treelib.common.OrderedTransactionImpl;
 import fi.hut.cs.treelib.common.SMOPolicy;
 import fi.hut.cs.treelib.common.UpdateMarker;
 import fi.hut.cs.treelib.common.VersionedKey;
-import fi.hut.cs.treelib.concurrency.DefaultLatchManager;
+import fi.hut.cs.treelib.concurrency.StripedLatchManager;
 import fi.hut.cs.treelib.stats.Statistics.GlobalOperation;
+import fi.hut.cs.treelib.storage.BackgroundPageWriter;
 import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageStorage;
+import fi.hut.cs.treelib.storage.ReplacementPolicy;
 
 /**
  * The database class for the concurrent multiversion B-tree.
@@ -46,16 +48,19 @@ public class CMVBTDatabase<K extends Key<K>, V extends PageValue<?>> extends
 
     private int lastMaintenanceRun = 0;
     private int maxMaintenanceAtOnce = 100;
+    private int maintenanceBatchSize = 1;
 
     private PageBuffer vbtBuffer;
     private PageStorage vbtStorage;
 
     private final SMOPolicy vbtSMOPolicy;
 
+    private CMVBTMaintenanceScheduler maintenanceScheduler = null;
+
     public CMVBTDatabase(int bufferSize, int vbtBufferSize, SMOPolicy vbtSMOPolicy,
         SMOPolicy tmvbtSMOPolicy, K keyPrototype, V valuePrototype, PageStorage pageStorage,
         PageStorage vbtPageStorage) {
-        super(bufferSize - vbtBufferSize, pageStorage, tmvbtSMOPolicy, new DefaultLatchManager(),
+        super(bufferSize - vbtBufferSize, pageStorage, tmvbtSMOPolicy, new StripedLatchManager(),
             keyPrototype, valuePrototype);
 
         PageBuffer pageBuffer = getPageBuffer();
@@ -72,6 +77,76 @@ public class CMVBTDatabase<K extends Key<K>, V extends PageValue<?>> extends
         return vbt;
     }
 
+    /**
+     * @return the amount of pages used by the VBT. The count is maintained
+     * incrementally, so this can be called without the tree lock.
+     */
+    public long countVBTPages() {
+        return vbt.getPageCount();
+    }
+
+    /**
+     * Sets the background maintenance scheduler. With a scheduler, the
+     * maintenance transactions are run by the scheduler thread instead of
+     * the committing transactions. Used from the Spring configuration
+     * files.
+     */
+    public void setMaintenanceScheduler(CMVBTMaintenanceScheduler scheduler) {
+        if (maintenanceScheduler != null)
+            maintenanceScheduler.stop();
+        this.maintenanceScheduler = scheduler;
+        if (scheduler != null)
+            scheduler.start(this);
+    }
+
+    public CMVBTMaintenanceScheduler getMaintenanceScheduler() {
+        return maintenanceScheduler;
+    }
+
+    /**
+     * Sets the page replacement policy of the VBT page buffer. The policy
+     * instance cannot be shared with the TMVBT page buffer, so it is set
+     * separately. When the VBT is stored in the same page storage as the
+     * TMVBT, the trees share one page buffer, and this replaces the policy
+     * of that buffer. Used from the Spring configuration files.
+     */
+    public void setVBTReplacementPolicy(ReplacementPolicy policy) {
+        vbtBuffer.setReplacementPolicy(policy);
+    }
+
+    public ReplacementPolicy getVBTReplacementPolicy() {
+        return vbtBuffer.getReplacementPolicy();
+    }
+
+    /**
+     * Sets the background page writer of the VBT page buffer. A writer can
+     * only write the pages of one buffer, so it is set separately from the
+     * TMVBT page writer. Used from the Spring configuration files.
+     */
+    public void setVBTPageWriter(BackgroundPageWriter writer) {
+        vbtBuffer.setPageWriter(writer);
+    }
+
+    public BackgroundPageWriter getVBTPageWriter() {
+        return vbtBuffer.getPageWriter();
+    }
+
+    /**
+     * Selects the frame memory of both the TMVBT and the VBT page buffers.
+     * The info pages of the trees are already buffered when the database
+     * has been created, so the unfixed pages are written out and removed
+     * from the buffers before the frame memory is changed.
+     */
+    @Override
+    public void setDirectBufferFrames(boolean direct) {
+        getPageBuffer().flush(true);
+        super.setDirectBufferFrames(direct);
+        if (vbtBuffer != getPageBuffer()) {
+            vbtBuffer.flush(true);
+            vbtBuffer.setDirectFrames(direct);
+        }
+    }
+
     @Override
     protected void initStructures() {
         PageBuffer pageBuffer = getPageBuffer();
@@ -97,11 +172,28 @@ public class CMVBTDatabase<K extends Key<K>, V extends PageValue<?>> extends
         // Create the VBT
         vbt = new VersionedBTree<K, V>(0.3, VBT_INFO_PAGE_ID, getVBTConfig());
         vbt.setCheckFixes(false);
+        // Counted for the maintenance scheduler page budget
+        vbt.enablePageCount();
 
         // Set VBT to auto-overwrite entries
         vbt.setOverwriteEntries(true);
         // Create the CMVBT wrapper
-        initialize(new CMVBTree<K, V>(CMVBT_INFO_PAGE_ID, tmvbt, vbt, this));
+        CMVBTree<K, V> cmvbt = new CMVBTree<K, V>(CMVBT_INFO_PAGE_ID, tmvbt, vbt, this);
+        cmvbt.setMaintenanceBatchSize(maintenanceBatchSize);
+        initialize(cmvbt);
+
+        if (maintenanceScheduler != null) {
+            // Restart the scheduler when the database is reopened
+            maintenanceScheduler.start(this);
+        }
+    }
+
+    @Override
+    public void close() {
+        // Stop the scheduler first, closing flushes the transient commits
+        if (maintenanceScheduler != null)
+            maintenanceScheduler.stop();
+        super.close();
     }
 
     @Override
@@ -140,6 +232,19 @@ public class CMVBTDatabase<K extends Key<K>, V extends PageValue<?>> extends
         };
     }
 
+    /**
+     * Sets the maximum amount of commit versions moved in one maintenance
+     * transaction. Used from the Spring configuration files.
+     */
+    public void setMaintenanceBatchSize(int batchSize) {
+        getDatabaseTree().setMaintenanceBatchSize(batchSize);
+        this.maintenanceBatchSize = batchSize;
+    }
+
+    public int getMaintenanceBatchSize() {
+        return maintenanceBatchSize;
+    }
+
     public void setAutoMaintenance(int frequency, int numAtOnce) {
         Configuration.instance().setMaintenanceFrequency(frequency);
         this.maxMaintenanceAtOnce = numAtOnce;
@@ -163,17 +268,30 @@ public class CMVBTDatabase<K extends Key<K>, V extends PageValue<?>> extends
     @Override
     public int commit(Transaction<K, V> tx) {
         int commitVer = 0;
+        CMVBTMaintenanceScheduler scheduler = maintenanceScheduler;
         if (tx.isReadOnly()) {
             // Read-only transactions require no special actions
             commitVer = tx.getReadVersion();
         } else {
             commitVer = getDatabaseTree().commitTransaction(tx);
+            if (scheduler != null)
+                scheduler.committed(commitVer);
             log.debug(String.format("Committed transaction %d to final commit-version %d", tx
                 .getTransactionID(), commitVer));
         }
         // Check if maintenance is required
         if (lastMaintenanceRun >= Configuration.instance().getMaintenanceFrequency()) {
-            requestMaintenance();
+            if (scheduler != null && scheduler.isRunning()) {
+                // Leave the maintenance transactions to the scheduler thread
+                lastMaintenanceRun = 0;
+                scheduler.wakeUp();
+            } else {
+                requestMaintenance();
+            }
+        }
+        if (scheduler != null && !tx.isReadOnly()) {
+            // Wait for the scheduler if the VBT has grown too large
+            scheduler.awaitBudget();
         }
         return commitVer;
     }
@@ -0,0 +1,225 @@
+package fi.hut.cs.treelib.mvbt;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.stats.StatisticsLogger;
+import fi.hut.cs.treelib.stats.Statistics.Value;
+
+/**
+ * Background maintenance scheduler for the CMVBT. The scheduler thread
+ * drains the CTS table by running the maintenance transactions that move
+ * the transient commits from the VBT to the TMVBT, so that the committing
+ * transactions do not need to run the maintenance transactions themselves.
+ *
+ * <p>
+ * The scheduler runs one maintenance transaction at a time, each holding
+ * the CMVBT tree lock exclusively, so that the user operations can proceed
+ * between the maintenance transactions. If the VBT grows beyond the page budget, the
+ * committing transactions are blocked until the scheduler has migrated
+ * enough transient commits (back-pressure).
+ *
+ * <p>
+ * The scheduler logs the amount of transient commits waiting for migration
+ * (VAL_MAINTENANCE_QUEUE_DEPTH) and the time from commit to migration, in
+ * milliseconds (VAL_MAINTENANCE_LAG). The lag is logged for each commit
+ * version that has become stable, also when the versions have been migrated
+ * by another thread.
+ *
+ * @author thaapasa
+ */
+public class CMVBTMaintenanceScheduler implements Runnable {
+
+    private static final Logger log = Logger.getLogger(CMVBTMaintenanceScheduler.class);
+
+    /** Maximum amount of VBT pages before commits are blocked (0 = no limit). */
+    private final int vbtPageBudget;
+    /** Wake-up interval, in milliseconds. */
+    private final long interval;
+
+    private CMVBTDatabase<?, ?> database;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    private final Object signal = new Object();
+    private boolean signalled = false;
+
+    /** Notified after each maintenance transaction. */
+    private final Object progress = new Object();
+
+    /** Commit times of the transient versions, guarded by itself. */
+    private final SortedMap<Integer, Long> commitTimes = new TreeMap<Integer, Long>();
+
+    public CMVBTMaintenanceScheduler() {
+        this(0, 100);
+    }
+
+    public CMVBTMaintenanceScheduler(int vbtPageBudget, long interval) {
+        if (vbtPageBudget < 0)
+            throw new IllegalArgumentException("VBT page budget must not be negative (was "
+                + vbtPageBudget + ")");
+        this.vbtPageBudget = vbtPageBudget;
+        this.interval = interval;
+    }
+
+    public int getVBTPageBudget() {
+        return vbtPageBudget;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Starts the scheduler thread for the given database.
+     */
+    synchronized void start(CMVBTDatabase<?, ?> database) {
+        if (thread != null)
+            return;
+        this.database = database;
+        this.running = true;
+        this.thread = new Thread(this, "CMVBTMaintenance");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        log.info("Started CMVBT maintenance scheduler, VBT page budget " + vbtPageBudget);
+    }
+
+    /**
+     * Stops the scheduler thread and waits for it to finish the current
+     * maintenance transaction. The remaining transient commits are left in
+     * the CTS table.
+     */
+    synchronized void stop() {
+        if (thread == null)
+            return;
+        running = false;
+        wakeUp();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+        log.info("Stopped CMVBT maintenance scheduler");
+    }
+
+    /**
+     * Wakes up the scheduler thread, if it is waiting.
+     */
+    void wakeUp() {
+        synchronized (signal) {
+            signalled = true;
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Records the commit time of a transient version. Called after the
+     * transaction has been committed.
+     */
+    void committed(int commitVer) {
+        long now = System.currentTimeMillis();
+        synchronized (commitTimes) {
+            // The version may already have been migrated; the stable
+            // version is advanced before the moved versions are cleared
+            if (commitVer > database.getDatabaseTree().getStableVersion())
+                commitTimes.put(commitVer, now);
+        }
+    }
+
+    /**
+     * Blocks the calling thread while the VBT is over the page budget and
+     * there are transient commits that can be migrated.
+     */
+    void awaitBudget() {
+        if (vbtPageBudget == 0)
+            return;
+        while (running && isOverBudget()) {
+            wakeUp();
+            synchronized (progress) {
+                try {
+                    progress.wait(interval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the budget without the CMVBT locks; the VBT page count and the
+     * amount of transient commits are maintained in atomic counters.
+     */
+    private boolean isOverBudget() {
+        return database.countVBTPages() > vbtPageBudget
+            && database.getDatabaseTree().getTransientCommitCount() > 0;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                synchronized (signal) {
+                    if (!signalled)
+                        signal.wait(interval);
+                    signalled = false;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!running)
+                break;
+
+            try {
+                while (running && migrate()) {
+                    synchronized (progress) {
+                        progress.notifyAll();
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.error("Error when running the maintenance transactions: " + e, e);
+            }
+        }
+    }
+
+    /**
+     * Runs one maintenance transaction.
+     *
+     * @return true if a transient commit was migrated
+     */
+    private boolean migrate() {
+        CMVBTree<?, ?> cmvbt = database.getDatabaseTree();
+        StatisticsLogger stats = database.getStatisticsLogger();
+        if (!cmvbt.needMaintenance())
+            return false;
+        stats.log(Value.VAL_MAINTENANCE_QUEUE_DEPTH, cmvbt.getTransientCommitCount());
+        // A batched maintenance transaction may move several versions
+        cmvbt.runMaintenanceTransaction();
+        int stableVer = cmvbt.getStableVersion();
+
+        long now = System.currentTimeMillis();
+        synchronized (commitTimes) {
+            SortedMap<Integer, Long> moved = commitTimes.headMap(stableVer + 1);
+            for (long commitTime : moved.values()) {
+                stats.log(Value.VAL_MAINTENANCE_LAG, now - commitTime);
+            }
+            moved.clear();
+        }
+        if (log.isDebugEnabled())
+            log.debug("Migrated transient commits up to " + stableVer + " to the TMVBT");
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CMVBT maintenance scheduler, VBT page budget %d, interval %d ms",
+            vbtPageBudget, interval);
+    }
+
+}
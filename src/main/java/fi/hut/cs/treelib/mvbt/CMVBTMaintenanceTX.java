@@ -1,5 +1,10 @@
 package fi.hut.cs.treelib.mvbt;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
 import org.apache.log4j.Logger;
 
 import fi.hut.cs.treelib.Key;
@@ -17,6 +22,16 @@ import fi.hut.cs.treelib.stats.Statistics.GlobalOperation;
 import fi.hut.cs.treelib.stats.Statistics.Operation;
 import fi.tuska.util.Pair;
 
+/**
+ * Maintenance transaction that moves transient commits from the VBT to the
+ * TMVBT. A maintenance transaction normally moves a single commit version.
+ * In the batched mode, a contiguous run of commit versions is collected
+ * from the VBT in one ordered pass, which also deletes the collected
+ * updates, and the updates are then applied to the TMVBT in commit version
+ * order.
+ * 
+ * @author thaapasa
+ */
 public class CMVBTMaintenanceTX<K extends Key<K>, V extends PageValue<?>> {
 
     private static final Logger log = Logger.getLogger(CMVBTMaintenanceTX.class);
@@ -26,6 +41,8 @@ public class CMVBTMaintenanceTX<K extends Key<K>, V extends PageValue<?>> {
     private final VersionedBTree<K, V> vbt;
     private final int moveVer;
     private final int startVer;
+    /** The last commit version moved by this transaction. */
+    private final int lastMoveVer;
 
     private static final Owner MAINTENANCE_OWNER = new OwnerImpl("CMVBT-maintenance");
 
@@ -36,11 +53,32 @@ public class CMVBTMaintenanceTX<K extends Key<K>, V extends PageValue<?>> {
         this.vbt = vbt;
         this.moveVer = moveVer;
         this.startVer = startVer;
+        this.lastMoveVer = moveVer;
+    }
+
+    /**
+     * Creates a batched maintenance transaction that moves the commit
+     * versions moveVer - lastMoveVer. The commit versions must be the
+     * earliest transient commits.
+     */
+    protected CMVBTMaintenanceTX(CMVBTree<K, V> cmvbt, TMVBTree<K, V> tmvbt,
+        VersionedBTree<K, V> vbt, int moveVer, int startVer, int lastMoveVer) {
+        this.cmvbt = cmvbt;
+        this.tmvbt = tmvbt;
+        this.vbt = vbt;
+        this.moveVer = moveVer;
+        this.startVer = startVer;
+        this.lastMoveVer = lastMoveVer;
+        assert lastMoveVer >= moveVer;
     }
 
     public void start() {
         cmvbt.getStatisticsLogger().log(GlobalOperation.GO_MAINTENANCE_TX);
         cmvbt.getStatisticsLogger().log(Operation.OP_MAINTENANCE_TX);
+        if (lastMoveVer > moveVer) {
+            startBatch();
+            return;
+        }
         log.debug("Starting maintenance transaction; moving " + startVer + " -> " + moveVer);
         // Step 1. Move version counter, find transient start time version
         // Already done
@@ -48,9 +86,9 @@ public class CMVBTMaintenanceTX<K extends Key<K>, V extends PageValue<?>> {
         // Find the mapping used
         CMVBTree<K, V>.TransientMapping mapping = cmvbt.getTransientMappingForReadTX(moveVer);
         // Consistency check for the mapping...
-        assert mapping.startVersions.size() == 1;
-        assert mapping.startVersions.contains(startVer);
-        assert mapping.stc.get(startVer) == moveVer;
+        assert mapping.size() == 1;
+        assert mapping.isVisible(startVer);
+        assert mapping.getCommitVersion(startVer) == moveVer;
 
         // Step 2. Apply all updates of version moveVer to the TMVBT
         applyUpdatesToTMVBT(mapping);
@@ -65,6 +103,104 @@ public class CMVBTMaintenanceTX<K extends Key<K>, V extends PageValue<?>> {
         cmvbt.removeTransientMapping(moveVer, startVer);
     }
 
+    private void startBatch() {
+        log.debug("Starting batched maintenance transaction; moving versions " + moveVer
+            + " - " + lastMoveVer);
+        // The mapping contains all the moved versions
+        CMVBTree<K, V>.TransientMapping mapping = cmvbt
+            .getTransientMappingForReadTX(lastMoveVer);
+        assert mapping.size() == lastMoveVer - moveVer + 1;
+        assert mapping.getCommitVersion(startVer) == moveVer;
+
+        // Steps 2 and 4. Collect the updates of all moved versions and
+        // delete them from the VBT in a single pass
+        SortedMap<Integer, List<Pair<K, UpdateMarker<V>>>> updates = collectUpdatesFromVBT(mapping);
+
+        for (int ver = moveVer; ver <= lastMoveVer; ver++) {
+            int start = cmvbt.getStartVersion(ver);
+            // Step 2. Apply the updates to the TMVBT in commit version order
+            applyUpdatesToTMVBT(ver, updates.get(ver));
+            // Step 3. Increase stable version counter
+            cmvbt.setStableVersion(ver, MAINTENANCE_OWNER);
+            // Step 5. Remove the mapping from the CTS table
+            cmvbt.removeTransientMapping(ver, start);
+        }
+    }
+
+    /**
+     * Scans the VBT once in key order, and removes all updates of the
+     * start versions in the mapping.
+     * 
+     * @return the removed updates, grouped by their commit versions and
+     * ordered by key within each version
+     */
+    private SortedMap<Integer, List<Pair<K, UpdateMarker<V>>>> collectUpdatesFromVBT(
+        CMVBTree<K, V>.TransientMapping mapping) {
+        log.debug("Starting to collect updates from the VBT");
+        SortedMap<Integer, List<Pair<K, UpdateMarker<V>>>> updates = new TreeMap<Integer, List<Pair<K, UpdateMarker<V>>>>();
+
+        // The entry after the min key
+        VersionedKey<K> curKey = new VersionedKey<K>(cmvbt.getKeyPrototype().getMinKey(),
+            Integer.MAX_VALUE);
+        // Deleting from the VBT requires the full path
+        PagePath<VersionedKey<K>, UpdateMarker<V>, BTreePage<VersionedKey<K>, UpdateMarker<V>>> vbtPath = new PagePath<VersionedKey<K>, UpdateMarker<V>, BTreePage<VersionedKey<K>, UpdateMarker<V>>>(
+            true);
+        Transaction<VersionedKey<K>, UpdateMarker<V>> tx = new DummyTransaction<VersionedKey<K>, UpdateMarker<V>>(
+            AbstractTree.DEFAULT_READ_VERSION, AbstractTree.DEFAULT_TRANSACTION_ID,
+            MAINTENANCE_OWNER);
+        while (true) {
+            Pair<VersionedKey<K>, UpdateMarker<V>> next = vbt.nextEntry(curKey, vbtPath, tx);
+            if (next == null)
+                break;
+            curKey = next.getFirst();
+
+            // Skip the updates of the transactions that are not moved
+            Integer commitVer = mapping.getCommitVersion(curKey.getVersion());
+            if (commitVer == null)
+                continue;
+
+            List<Pair<K, UpdateMarker<V>>> list = updates.get(commitVer);
+            if (list == null) {
+                list = new ArrayList<Pair<K, UpdateMarker<V>>>();
+                updates.put(commitVer, list);
+            }
+            list.add(new Pair<K, UpdateMarker<V>>(curKey.getKey(), next.getSecond()));
+            vbt.delete(curKey, vbtPath, tx);
+        }
+
+        vbt.getPageBuffer().unfix(vbtPath, tx);
+        return updates;
+    }
+
+    /**
+     * Applies the given updates to the TMVBT with version number ver.
+     * 
+     * @param updates the updates, ordered by key; or null, if there are none
+     */
+    private void applyUpdatesToTMVBT(int ver, List<Pair<K, UpdateMarker<V>>> updates) {
+        int tmvbtTXID = tmvbt.beginTransaction(MAINTENANCE_OWNER);
+        assert tmvbtTXID == ver : tmvbtTXID + " != " + ver;
+
+        Transaction<K, V> tmvbtTX = new DummyTransaction<K, V>(ver, ver, MAINTENANCE_OWNER);
+        PagePath<K, V, MVBTPage<K, V>> mvbtPath = new PagePath<K, V, MVBTPage<K, V>>(true);
+        if (updates != null) {
+            for (Pair<K, UpdateMarker<V>> entry : updates) {
+                UpdateMarker<V> update = entry.getSecond();
+                if (log.isDebugEnabled())
+                    log.debug("Applying update " + update + " to TMVBT");
+
+                if (update.isDelete()) {
+                    tmvbt.delete(entry.getFirst(), mvbtPath, tmvbtTX);
+                } else {
+                    tmvbt.insert(entry.getFirst(), update.getValue(), mvbtPath, tmvbtTX);
+                }
+            }
+        }
+        tmvbt.getPageBuffer().unfix(mvbtPath, tmvbtTX);
+
+        tmvbt.commitTransaction(tmvbtTX);
+    }
+
     /**
      * Finds all updates of transient start version startVer from the VBT, and
      * applies them to the TMVBT with version number moveVer.
@@ -115,7 +251,7 @@ public class CMVBTMaintenanceTX<K extends Key<K>, V extends PageValue<?>> {
      */
     private void deleteUpdatesFromVBT(CMVBTree<K, V>.TransientMapping mapping) {
         log.debug("Starting to delete updates from the VBT");
-        int startVer = mapping.firstStart;
+        int startVer = mapping.getFirstStart();
 
         K curKey = cmvbt.getKeyPrototype().getMinKey();
         PagePath<VersionedKey<K>, UpdateMarker<V>, BTreePage<VersionedKey<K>, UpdateMarker<V>>> vbtPath = new PagePath<VersionedKey<K>, UpdateMarker<V>, BTreePage<VersionedKey<K>, UpdateMarker<V>>>(
@@ -2,17 +2,15 @@ package fi.hut.cs.treelib.mvbt;
 
 import org.apache.log4j.Logger;
 
+import fi.hut.cs.treelib.Cursor;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.KeyRange;
 import fi.hut.cs.treelib.PageValue;
 import fi.hut.cs.treelib.Transaction;
-import fi.hut.cs.treelib.btree.BTreePage;
 import fi.hut.cs.treelib.common.DummyTransaction;
-import fi.hut.cs.treelib.common.PagePath;
 import fi.hut.cs.treelib.common.TreeShortcuts;
 import fi.hut.cs.treelib.common.UpdateMarker;
 import fi.hut.cs.treelib.common.VersionedKey;
-import fi.hut.cs.treelib.internal.KeyRangeImpl;
 import fi.hut.cs.treelib.stats.StatisticsLogger;
 import fi.hut.cs.treelib.stats.Statistics.Operation;
 import fi.tuska.util.Callback;
@@ -82,22 +80,6 @@ public class CMVBTOperations<K extends Key<K>, V extends PageValue<?>> {
     }
 
     public boolean getRange(KeyRange<K> range, Callback<Pair<K, V>> callback, Transaction<K, V> tx) {
-        PagePath<VersionedKey<K>, UpdateMarker<V>, BTreePage<VersionedKey<K>, UpdateMarker<V>>> vbtPath = new PagePath<VersionedKey<K>, UpdateMarker<V>, BTreePage<VersionedKey<K>, UpdateMarker<V>>>(
-            true);
-        PagePath<K, V, MVBTPage<K, V>> tmvbtPath = new PagePath<K, V, MVBTPage<K, V>>(true);
-        boolean result = getRange(range, callback, vbtPath, tmvbtPath, tx);
-
-        tmvbt.getPageBuffer().unfix(tmvbtPath, tx);
-        vbt.getPageBuffer().unfix(vbtPath, tx);
-        return result;
-    }
-
-    private boolean getRange(
-        KeyRange<K> range,
-        Callback<Pair<K, V>> callback,
-        PagePath<VersionedKey<K>, UpdateMarker<V>, BTreePage<VersionedKey<K>, UpdateMarker<V>>> vbtPath,
-        PagePath<K, V, MVBTPage<K, V>> tmvbtPath, Transaction<K, V> tx) {
-
         int version = tx.getReadVersion();
         StatisticsLogger stats = cmvbt.getStatisticsLogger();
         if (tx.isReadOnly() && cmvbt.isStable(version)) {
@@ -105,109 +87,63 @@ public class CMVBTOperations<K extends Key<K>, V extends PageValue<?>> {
             stats.log(Operation.OP_VERSION_STABLE);
             // Version is stable, so read it directly from the TMVBT
             return tmvbt.getRange(range, callback, tx);
-        } else {
-            stats.log(Operation.OP_VERSION_TRANSIENT);
-            log.debug("Version " + version + " is not stable, querying from TMVBT + VBT");
-            CMVBTree<K, V>.TransientMapping mapping = tx.isReadOnly() ? cmvbt
-                .getTransientMappingForReadTX(version) : cmvbt.getTransientMappingForUpdatingTX(
-                version, tx.getTransactionID());
-
-            K startKey = range.getMin().previousKey();
-            K rangeMax = range.getMax();
-
-            K curKey = startKey;
-            while (true) {
-                // Scan to next keys of both structures
-                Pair<K, UpdateMarker<V>> nextVBT = vbt.findNextMarker(curKey, mapping, vbtPath,
-                    vbtTX);
-                Pair<K, V> nextTMVBT = tmvbt.nextEntry(curKey, tmvbtPath, tx);
-                stats.log(Operation.OP_KEYS_PROCESSED);
+        }
+
+        stats.log(Operation.OP_VERSION_TRANSIENT);
+        log.debug("Version " + version + " is not stable, querying from TMVBT + VBT");
+        CMVBTree<K, V>.TransientMapping mapping = tx.isReadOnly() ? cmvbt
+            .getTransientMappingForReadTX(version) : cmvbt.getTransientMappingForUpdatingTX(
+            version, tx.getTransactionID());
 
-                // Check which update is most recent
+        // Merge the entries of both structures in key order
+        Cursor<K, UpdateMarker<V>> vbtCursor = vbt.openMarkerCursor(range, mapping, vbtTX);
+        Cursor<K, V> tmvbtCursor = tmvbt.openCursor(range, tx);
+        try {
+            Pair<K, UpdateMarker<V>> nextVBT = vbtCursor.next();
+            Pair<K, V> nextTMVBT = tmvbtCursor.next();
+            while (nextVBT != null || nextTMVBT != null) {
+                stats.log(Operation.OP_KEYS_PROCESSED);
                 int c = 0;
                 if (nextVBT == null) {
                     // No more entries in VBT
-                    if (nextTMVBT == null) {
-                        // Past the end of both structures, no callbacks
-                        // returned false
-                        return true;
-                    }
-                    // TMVBT is smaller, and should be checked next
                     c = 1;
                 } else if (nextTMVBT == null) {
-                    // VBT is smaller, and should be checked next
+                    // No more entries in TMVBT
                     c = -1;
                 } else {
-                    // Compare the entries
                     c = nextVBT.getFirst().compareTo(nextTMVBT.getFirst());
                 }
-                if (c < 0) {
-                    // VBT < TMVBT, so check the VBT value
-                    UpdateMarker<V> marker = nextVBT.getSecond();
-                    if (!marker.isDelete()) {
-                        // Not a delete, so this is a match!
-
-                        // Next key is nextVBT.getFirst()
-                        if (nextVBT.getFirst().compareTo(rangeMax) >= 0)
-                            break;
-                        if (!callback.callback(new Pair<K, V>(nextVBT.getFirst(), marker
-                            .getValue()))) {
-                            // Stop indicated
-                            return false;
-                        }
-                    }
 
-                    // Mark current key for scanning to next entry
-                    curKey = nextVBT.getFirst();
-                } else if (c > 0) {
-                    // VBT > TMVBT, so TMVBT contains most recent update, this
-                    // is a match!
-                    // Next key is nextTMVBT.getFirst()
-                    if (nextTMVBT.getFirst().compareTo(rangeMax) >= 0)
-                        break;
+                if (c > 0) {
+                    // No updates to this key in the VBT, so the TMVBT entry
+                    // is a match
                     if (!callback.callback(nextTMVBT)) {
                         // Stop indicated
                         return false;
                     }
+                    nextTMVBT = tmvbtCursor.next();
+                    continue;
+                }
 
-                    // Mark current key for scanning to next entry
-                    curKey = nextTMVBT.getFirst();
-
-                    if (nextVBT == null) {
-                        // No more entries in VBT, find the rest of the
-                        // entries directly from the TMVBT
-                        K nextStart = curKey.nextKey();
-                        if (nextStart.equals(range.getMax()))
-                            return true;
-                        KeyRange<K> restRange = new KeyRangeImpl<K>(nextStart, range.getMax());
-                        assert !restRange.isEmpty();
-                        return tmvbt.getRange(restRange, callback, tx);
-                    }
-                } else {
-                    // The same key found from VBT and TMVBT
-                    // Mark current key for scanning to next entry
-                    curKey = nextVBT.getFirst();
-                    assert nextTMVBT.getFirst().equals(curKey);
-
-                    UpdateMarker<V> marker = nextVBT.getSecond();
-                    if (!marker.isDelete()) {
-                        // Next key is nextVBT.getFirst()
-                        if (nextVBT.getFirst().compareTo(rangeMax) >= 0)
-                            break;
-                        // VBT update is most recent for this key, and it is
-                        // not a delete
-                        if (!callback.callback(new Pair<K, V>(nextVBT.getFirst(), marker
-                            .getValue()))) {
-                            // Stop indicated
-                            return false;
-                        }
+                // The VBT update is the most recent one for this key (and it
+                // overrides the TMVBT entry if c == 0)
+                UpdateMarker<V> marker = nextVBT.getSecond();
+                if (!marker.isDelete()) {
+                    if (!callback.callback(new Pair<K, V>(nextVBT.getFirst(), marker
+                        .getValue()))) {
+                        // Stop indicated
+                        return false;
                     }
                 }
+                if (c == 0)
+                    nextTMVBT = tmvbtCursor.next();
+                nextVBT = vbtCursor.next();
             }
-
-            // Broke out of loop, so we're past the entries.
-            // No callback indicated stop, so return true
+            // Past the end of both structures, no callbacks returned false
             return true;
+        } finally {
+            tmvbtCursor.close();
+            vbtCursor.close();
         }
     }
 
@@ -230,9 +166,12 @@ public class CMVBTOperations<K extends Key<K>, V extends PageValue<?>> {
 
             int moveVer = cmvbt.getEarliestTransientCommitID();
             int startVer = cmvbt.getStartVersion(moveVer);
+            // The transient commit versions are consecutive
+            int lastMoveVer = Math.min(moveVer + cmvbt.getMaintenanceBatchSize() - 1, cmvbt
+                .getCommittedVersion());
 
             CMVBTMaintenanceTX<K, V> maintenanceTX = new CMVBTMaintenanceTX<K, V>(cmvbt, tmvbt,
-                vbt, moveVer, startVer);
+                vbt, moveVer, startVer, lastMoveVer);
             maintenanceTX.start();
 
         } finally {
@@ -1,11 +1,14 @@
 package fi.hut.cs.treelib.mvbt;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
@@ -43,6 +46,14 @@ import fi.tuska.util.Pair;
  * for the TMVBT and one for the VBT). We could implement a saved path
  * subclass that stores two saved paths to deal with this issue.
  * 
+ * <p>
+ * The VBT and the TMVBT have no page latches, so the operations that modify
+ * them (user inserts and deletes, and the maintenance transactions) take the
+ * tree lock exclusively, and the queries share it. The queries can therefore
+ * run concurrently with each other and with commits. The CTS table is
+ * guarded by itself. This lets a CMVBTMaintenanceScheduler run the
+ * maintenance transactions in the background.
+ * 
  * @author thaapasa
  */
 public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
@@ -51,12 +62,19 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
 
     private static final Logger log = Logger.getLogger(CMVBTree.class);
 
-    private int maxCommittedTransactionID;
+    private volatile int maxCommittedTransactionID;
     /** Stable version. Same as tmvbt.getCommittedVersion(). */
-    private int stableVer;
+    private volatile int stableVer;
+
+    /** Commit-to-start version mapping; guarded by itself */
+    private final SortedMap<Integer, Integer> cts = new TreeMap<Integer, Integer>();
+    /** Amount of entries in the CTS table, readable without the CTS lock */
+    private final AtomicInteger transientCommits = new AtomicInteger();
+    /** Shared snapshot of the CTS table for the transient mappings */
+    private CTSSnapshot ctsSnapshot;
 
-    /** Commit-to-start version mapping */
-    private SortedMap<Integer, Integer> cts = new TreeMap<Integer, Integer>();
+    /** Shared by the queries, exclusive for the VBT and TMVBT updates */
+    private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
 
     /** The transactional MVBT storage for stable transactions */
     private TMVBTree<K, V> tmvbt;
@@ -65,6 +83,9 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
 
     private CMVBTOperations<K, V> operations;
 
+    /** Maximum amount of commit versions moved by one maintenance TX. */
+    private int maintenanceBatchSize = 1;
+
     private PageFactory<CMVBTInfoPage<K>> infoPageFactory;
     private MVKeyRange<K> range;
 
@@ -94,11 +115,47 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
     }
 
     public boolean hasTransientCommits() {
-        return !cts.isEmpty();
+        return transientCommits.get() > 0;
+    }
+
+    public int getStableVersion() {
+        return stableVer;
+    }
+
+    public int getMaintenanceBatchSize() {
+        return maintenanceBatchSize;
+    }
+
+    /**
+     * Sets the maximum amount of commit versions that are moved from the VBT
+     * to the TMVBT in one maintenance transaction. With more than one
+     * version, the VBT is scanned once for all the versions.
+     */
+    public void setMaintenanceBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be positive (was " + batchSize
+                + ")");
+        this.maintenanceBatchSize = batchSize;
+    }
+
+    /**
+     * @return the amount of transient commits waiting for maintenance
+     */
+    public int getTransientCommitCount() {
+        return transientCommits.get();
     }
 
     public int getEarliestTransientCommitID() {
-        return cts.firstKey();
+        synchronized (cts) {
+            return cts.firstKey();
+        }
+    }
+
+    /**
+     * @return the lock that guards the VBT and the TMVBT
+     */
+    ReentrantReadWriteLock getTreeLock() {
+        return treeLock;
     }
 
     @Override
@@ -107,7 +164,10 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
     }
 
     public int getStartVersion(int commitVersion) {
-        Integer cv = cts.get(commitVersion);
+        Integer cv;
+        synchronized (cts) {
+            cv = cts.get(commitVersion);
+        }
         assert cv != null;
         return cv;
     }
@@ -120,7 +180,8 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
         // Old stable version must be lower than the new commit version
         assert stableVer < commitVer : stableVer + " >= " + commitVer;
         // Check that CTS and the commitVer match
-        assert cts.firstKey() == commitVer : cts.firstKey() + " != " + commitVer;
+        assert getEarliestTransientCommitID() == commitVer : getEarliestTransientCommitID()
+            + " != " + commitVer;
         stableVer = commitVer;
         updateInfoPage(owner);
     }
@@ -130,11 +191,17 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
      * from the CTS table.
      */
     protected void removeTransientMapping(int commitVer, int startVer) {
-        // Check that the maintenance TX only tries to delete the first key
-        // from CTS
-        assert cts.firstKey() == commitVer : cts.firstKey() + " != " + commitVer;
-        Integer oldValue = cts.remove(commitVer);
-        assert oldValue == startVer : oldValue + " != " + startVer;
+        synchronized (cts) {
+            // Check that the maintenance TX only tries to delete the first
+            // key from CTS
+            assert cts.firstKey() == commitVer : cts.firstKey() + " != " + commitVer;
+            Integer oldValue = cts.remove(commitVer);
+            transientCommits.decrementAndGet();
+            // The shared snapshot can only be appended to, so it is rebuilt
+            // when the head of the CTS table is trimmed
+            ctsSnapshot = null;
+            assert oldValue == startVer : oldValue + " != " + startVer;
+        }
     }
 
     public int getCommittedVersion() {
@@ -143,13 +210,18 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
 
     @Override
     public void flush() {
-        // First flush all transient commits into the TMVBT
-        while (hasTransientCommits()) {
-            runMaintenanceTransaction();
-        }
+        treeLock.writeLock().lock();
+        try {
+            // First flush all transient commits into the TMVBT
+            while (hasTransientCommits()) {
+                runMaintenanceTransaction();
+            }
 
-        // Then do standard DB flush
-        super.flush();
+            // Then do standard DB flush
+            super.flush();
+        } finally {
+            treeLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -158,66 +230,232 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
      * @return the commit-time version number of the transaction
      */
     protected int commitTransaction(Transaction<K, V> tx) {
-        // Increase the max committed TX ID counter
-        int commitVer = ++maxCommittedTransactionID;
-        cts.put(commitVer, tx.getTransactionID());
-        updateInfoPage(tx);
-        return commitVer;
+        // Commits do not modify the trees, but the maintenance transactions
+        // also update the info page
+        treeLock.readLock().lock();
+        try {
+            synchronized (cts) {
+                // Increase the max committed TX ID counter
+                int commitVer = ++maxCommittedTransactionID;
+                cts.put(commitVer, tx.getTransactionID());
+                transientCommits.incrementAndGet();
+                updateInfoPage(tx);
+                return commitVer;
+            }
+        } finally {
+            treeLock.readLock().unlock();
+        }
     }
 
+    /**
+     * A read-only view of the transient commits that are visible to a
+     * transaction. The mappings are backed by a shared CTS snapshot, so they
+     * are cheap to create and safe to use from several reader threads.
+     */
     protected class TransientMapping {
+        private final CTSSnapshot snapshot;
+        /** Amount of snapshot commits visible in this mapping */
+        private final int count;
+        /** Start version of an active updating transaction, or null */
+        private final Integer transientID;
+
+        private TransientMapping(CTSSnapshot snapshot, int count, Integer transientID) {
+            this.snapshot = snapshot;
+            this.count = count;
+            this.transientID = transientID;
+        }
+
+        /**
+         * @return the commit-time version of the given start-time version, or
+         * null if the version is not visible in this mapping. The active
+         * updating transaction gets the commit version Integer.MAX_VALUE, so
+         * that its own updates are the most important ones.
+         */
+        public Integer getCommitVersion(int startVer) {
+            if (transientID != null && transientID.intValue() == startVer)
+                return Integer.MAX_VALUE;
+            Integer commitVer = snapshot.stc.get(startVer);
+            if (commitVer == null || count == 0
+                || commitVer > snapshot.commitVersions[count - 1])
+                return null;
+            return commitVer;
+        }
+
+        public boolean isVisible(int startVer) {
+            return getCommitVersion(startVer) != null;
+        }
+
+        /**
+         * @return the amount of start-time versions visible in this mapping
+         */
+        public int size() {
+            return transientID != null ? count + 1 : count;
+        }
+
+        public Integer getFirstStart() {
+            Integer first = count > 0 ? snapshot.firstStarts[count - 1] : null;
+            if (transientID != null && (first == null || transientID < first))
+                return transientID;
+            return first;
+        }
+
+        public Integer getLastStart() {
+            Integer last = count > 0 ? snapshot.lastStarts[count - 1] : null;
+            if (transientID != null && (last == null || transientID > last))
+                return transientID;
+            return last;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder("{");
+            for (int i = 0; i < count; i++) {
+                if (i > 0)
+                    buf.append(", ");
+                buf.append(snapshot.startVersions[i]).append("=").append(
+                    snapshot.commitVersions[i]);
+            }
+            if (transientID != null)
+                buf.append(count > 0 ? ", " : "").append(transientID).append("=active");
+            return buf.append("}").toString();
+        }
+
+    }
+
+    /**
+     * An append-only copy of the CTS table, shared by all the transactions.
+     * New commits are appended to the end of the shared arrays, and each
+     * transient mapping only sees the first count commits, so the mappings
+     * created earlier stay valid. The snapshot is only rebuilt when the
+     * maintenance removes commits from the head of the CTS table. The read
+     * mappings of each commit version are created once per snapshot.
+     * 
+     * <p>
+     * The snapshot is appended to while holding the CTS lock. The arrays are
+     * replaced by larger copies when they fill up; the entries visible to a
+     * mapping are never changed, so readers may use either copy.
+     */
+    private class CTSSnapshot {
+        /** Transient commit-time versions, in ascending order */
+        private volatile int[] commitVersions;
+        /** The start-time versions of the commits */
+        private volatile int[] startVersions;
+        /** Smallest start-time version of the first i+1 commits */
+        private volatile int[] firstStarts;
+        /** Largest start-time version of the first i+1 commits */
+        private volatile int[] lastStarts;
+        /** Amount of commits in the snapshot */
+        private volatile int size;
         /** Reverse mapping from start-time versions to commit-time versions */
-        public Map<Integer, Integer> stc = new HashMap<Integer, Integer>();
-        /** List of start-time versions, ordered by the starting time */
-        public Set<Integer> startVersions = new HashSet<Integer>();
-
-        public Integer firstStart = null;
-        public Integer lastStart = null;
-
-        public TransientMapping(int version) {
-            if (version > stableVer) {
-                // Loop through transient commit-time versions
-                for (int v = stableVer + 1; v <= version; v++) {
-                    // Find transient start ver from CTS table
-                    Integer startV = cts.get(v);
-                    // If no entry found from CTS, assume that transaction v
-                    // is a read-only transaction with no updates
-                    if (startV != null) {
-                        addMapping(startV, v);
-                    }
-                }
+        private final Map<Integer, Integer> stc = new ConcurrentHashMap<Integer, Integer>();
+        /** Read mappings, indexed by the amount of visible commits */
+        private final List<TransientMapping> readMappings = new ArrayList<TransientMapping>();
+
+        /**
+         * Creates a snapshot of the current CTS table.
+         */
+        private CTSSnapshot() {
+            int capacity = Math.max(cts.size(), 16);
+            commitVersions = new int[capacity];
+            startVersions = new int[capacity];
+            firstStarts = new int[capacity];
+            lastStarts = new int[capacity];
+            readMappings.add(null);
+            for (Map.Entry<Integer, Integer> entry : cts.entrySet()) {
+                append(entry.getKey(), entry.getValue());
             }
         }
 
-        public TransientMapping(int version, int transientID) {
-            this(version);
-            // Check the version itself (for active transactions)
-            if (!stc.containsKey(transientID)) {
-                assert !startVersions.contains(transientID);
-                // Not committed, make this version the most important one
-                addMapping(transientID, Integer.MAX_VALUE);
-            } else {
-                assert startVersions.contains(transientID);
+        /**
+         * Appends the commits that have been added to the CTS table after
+         * the last commit of this snapshot.
+         */
+        private void update() {
+            if (size == cts.size())
+                return;
+            SortedMap<Integer, Integer> added = size > 0 ? cts
+                .tailMap(commitVersions[size - 1] + 1) : cts;
+            for (Map.Entry<Integer, Integer> entry : added.entrySet()) {
+                append(entry.getKey(), entry.getValue());
             }
+            assert size == cts.size() : size + " != " + cts.size();
         }
 
-        public void addMapping(int startTime, int commitTime) {
-            stc.put(startTime, commitTime);
-            startVersions.add(startTime);
-            if (firstStart == null || startTime < firstStart)
-                firstStart = startTime;
-            if (lastStart == null || startTime > lastStart)
-                lastStart = startTime;
+        private void append(int commitVer, int start) {
+            int i = size;
+            if (i == commitVersions.length) {
+                // Double the capacity; the copies are published before the
+                // new entry
+                int capacity = i * 2;
+                commitVersions = Arrays.copyOf(commitVersions, capacity);
+                startVersions = Arrays.copyOf(startVersions, capacity);
+                firstStarts = Arrays.copyOf(firstStarts, capacity);
+                lastStarts = Arrays.copyOf(lastStarts, capacity);
+            }
+            commitVersions[i] = commitVer;
+            startVersions[i] = start;
+            firstStarts[i] = i > 0 ? Math.min(firstStarts[i - 1], start) : start;
+            lastStarts[i] = i > 0 ? Math.max(lastStarts[i - 1], start) : start;
+            stc.put(start, commitVer);
+            readMappings.add(null);
+            size = i + 1;
+        }
+
+        /**
+         * @return the amount of transient commits visible to the given
+         * commit-time version
+         */
+        private int countVisible(int version) {
+            int pos = Arrays.binarySearch(commitVersions, 0, size, version);
+            return pos >= 0 ? pos + 1 : -pos - 1;
         }
 
+        private TransientMapping getReadMapping(int version) {
+            int count = countVisible(version);
+            TransientMapping mapping = readMappings.get(count);
+            if (mapping == null) {
+                mapping = new TransientMapping(this, count, null);
+                readMappings.set(count, mapping);
+            }
+            return mapping;
+        }
+    }
+
+    /**
+     * Must be called while holding the CTS lock.
+     * 
+     * @return the shared snapshot of the current CTS table, extended with
+     * the commits that have been added after the previous call
+     */
+    private CTSSnapshot getCTSSnapshot() {
+        CTSSnapshot snapshot = ctsSnapshot;
+        if (snapshot == null) {
+            snapshot = new CTSSnapshot();
+            ctsSnapshot = snapshot;
+        } else {
+            snapshot.update();
+        }
+        return snapshot;
     }
 
     protected TransientMapping getTransientMappingForReadTX(int version) {
-        return new TransientMapping(version);
+        synchronized (cts) {
+            return getCTSSnapshot().getReadMapping(version);
+        }
     }
 
     protected TransientMapping getTransientMappingForUpdatingTX(int version, int transientID) {
-        return new TransientMapping(version, transientID);
+        synchronized (cts) {
+            CTSSnapshot snapshot = getCTSSnapshot();
+            int count = snapshot.countVisible(version);
+            Integer commitVer = snapshot.stc.get(transientID);
+            if (commitVer != null && commitVer <= version) {
+                // Already committed, the version is visible as such
+                return snapshot.getReadMapping(version);
+            }
+            // Not committed, make this version the most important one
+            return new TransientMapping(snapshot, count, transientID);
+        }
     }
 
     @Override
@@ -312,8 +550,13 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
     public boolean contains(K key, Transaction<K, V> tx) {
         if (log.isDebugEnabled())
             log.debug("CMVBT action: contains " + key + " @ " + tx.getReadVersion());
-        V value = operations.get(key, tx);
-        return value != null;
+        treeLock.readLock().lock();
+        try {
+            V value = operations.get(key, tx);
+            return value != null;
+        } finally {
+            treeLock.readLock().unlock();
+        }
     }
 
     @Override
@@ -321,26 +564,47 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
         Transaction<K, V> tx) {
         if (log.isDebugEnabled())
             log.debug("CMVBT action: contains " + key + " @ " + tx.getTransactionID());
-        return operations.insert(key, value, tx);
+        treeLock.writeLock().lock();
+        try {
+            return operations.insert(key, value, tx);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
     }
 
     @Override
     public boolean delete(K key, PagePath<K, V, MVBTPage<K, V>> savedPath, Transaction<K, V> tx) {
         if (log.isDebugEnabled())
             log.debug("CMVBT action: delete " + key + " @ " + tx.getTransactionID());
-        return operations.delete(key, tx);
+        treeLock.writeLock().lock();
+        try {
+            return operations.delete(key, tx);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
     }
 
     @Override
-    public boolean getRange(KeyRange<K> range, Callback<Pair<K, V>> callback, Transaction<K, V> tx) {
-        return operations.getRange(range, callback, tx);
+    public boolean getRange(KeyRange<K> range, Callback<Pair<K, V>> callback,
+        Transaction<K, V> tx) {
+        treeLock.readLock().lock();
+        try {
+            return operations.getRange(range, callback, tx);
+        } finally {
+            treeLock.readLock().unlock();
+        }
     }
 
     @Override
     public V get(K key, Transaction<K, V> tx) {
         if (log.isDebugEnabled())
             log.debug("CMVBT action: get " + key + " @ " + tx.getReadVersion());
-        return operations.get(key, tx);
+        treeLock.readLock().lock();
+        try {
+            return operations.get(key, tx);
+        } finally {
+            treeLock.readLock().unlock();
+        }
     }
 
     @Override
@@ -355,22 +619,34 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
 
     @Override
     public void checkConsistency(Object... params) {
-        tmvbt.checkConsistency();
-        vbt.checkConsistency();
+        treeLock.readLock().lock();
+        try {
+            tmvbt.checkConsistency();
+            vbt.checkConsistency();
+        } finally {
+            treeLock.readLock().unlock();
+        }
     }
 
     @Override
     public void printDebugInfo() {
-        System.out.println(this);
-        System.out.println("TMVBT: " + tmvbt);
-        tmvbt.printDebugInfo();
-
-        System.out.println("VBT: " + vbt);
-        vbt.printDebugInfo();
-        long vbtEntries = TreeShortcuts.countEntries(vbt);
-        System.out.println("Entries in VBT: " + vbtEntries);
-
-        System.out.println("CTS: " + cts);
+        treeLock.readLock().lock();
+        try {
+            System.out.println(this);
+            System.out.println("TMVBT: " + tmvbt);
+            tmvbt.printDebugInfo();
+
+            System.out.println("VBT: " + vbt);
+            vbt.printDebugInfo();
+            long vbtEntries = TreeShortcuts.countEntries(vbt);
+            System.out.println("Entries in VBT: " + vbtEntries);
+
+            synchronized (cts) {
+                System.out.println("CTS: " + cts);
+            }
+        } finally {
+            treeLock.readLock().unlock();
+        }
     }
 
     @Override
@@ -401,10 +677,15 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
     @Override
     public void traverseMVPages(Predicate<MVKeyRange<K>> predicate,
         Callback<Page<K, V>> operation, Owner owner) {
-        while (hasTransientCommits()) {
-            runMaintenanceTransaction();
+        treeLock.writeLock().lock();
+        try {
+            while (hasTransientCommits()) {
+                runMaintenanceTransaction();
+            }
+            tmvbt.traverseMVPages(predicate, operation, owner);
+        } finally {
+            treeLock.writeLock().unlock();
         }
-        tmvbt.traverseMVPages(predicate, operation, owner);
     }
 
     @Override
@@ -423,7 +704,12 @@ public class CMVBTree<K extends Key<K>, V extends PageValue<?>> extends
     }
 
     public void runMaintenanceTransaction() {
-        operations.runMaintenanceTransaction();
+        treeLock.writeLock().lock();
+        try {
+            operations.runMaintenanceTransaction();
+        } finally {
+            treeLock.writeLock().unlock();
+        }
     }
 
     public boolean needMaintenance() {
@@ -30,6 +30,8 @@ public class MVBTDatabase<K extends Key<K>, V extends PageValue<?>> extends
 
     private static final SMOPolicy ROOT_TREE_POLICY = new NonThrashingSMOPolicy(0.2, 0.2);
 
+    private int rootCacheSize = RootCache.DEFAULT_CAPACITY;
+
     public MVBTDatabase(int bufferSize, SMOPolicy smoPolicy, K keyPrototype, V valuePrototype,
         PageStorage pageStorage) {
         super(bufferSize, pageStorage, smoPolicy, NoopLatchManager.instance(), keyPrototype,
@@ -75,10 +77,24 @@ public class MVBTDatabase<K extends Key<K>, V extends PageValue<?>> extends
         tree.setDefaultBufferFixesAfterActions(2);
         tree.getRootStar().setDefaultBufferFixesAfterActions(2);
         tree.getRootStar().setCheckFixes(false);
+        tree.setRootCacheSize(rootCacheSize);
 
         super.initialize(tree);
     }
 
+    /**
+     * Sets the maximum amount of root* version intervals that the MVB-tree
+     * keeps cached in memory. Zero disables the root cache.
+     */
+    public void setRootCacheSize(int size) {
+        getDatabaseTree().setRootCacheSize(size);
+        this.rootCacheSize = size;
+    }
+
+    public int getRootCacheSize() {
+        return rootCacheSize;
+    }
+
     protected static PageBuffer createPageBuffer(PageStorage pageStorage, int bufferSize) {
         // Create the page buffer, and reserve the info pages
         PageBuffer pageBuffer = new PageBuffer(pageStorage, bufferSize, NoopLatchManager
@@ -33,6 +33,7 @@ import fi.hut.cs.treelib.common.SingleVersionTree;
 import fi.hut.cs.treelib.common.TreeShortcuts;
 import fi.hut.cs.treelib.internal.KeyRangeImpl;
 import fi.hut.cs.treelib.stats.StatisticsLogger;
+import fi.hut.cs.treelib.stats.Statistics.Operation;
 import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageFactory;
 import fi.hut.cs.treelib.util.Predicate;
@@ -56,12 +57,14 @@ public class MVBTree<K extends Key<K>, V extends PageValue<?>> extends
 
     private static final Logger log = Logger.getLogger(MVBTree.class);
 
-    protected int activeVersion = 0;
+    protected volatile int activeVersion = 0;
     private final BTree<IntegerKey, PageID> roots;
     private final Transaction<IntegerKey, PageID> rootsTX;
 
     /** Current root kept cached. */
     private MVBTPage<K, V> currentRoot;
+    /** Cached root* intervals for the historical versions */
+    private final RootCache rootCache = new RootCache(RootCache.DEFAULT_CAPACITY);
 
     /**
      * The range of key version space in the database, for visualization. Will
@@ -242,6 +245,7 @@ public class MVBTree<K extends Key<K>, V extends PageValue<?>> extends
         // Insert invalid page id as the root id for this version
         TreeShortcuts.insert(roots, new IntegerKey(getActiveVersion()), PageID.INVALID_PAGE_ID,
             rootsTX);
+        rootCache.rootChanged(getActiveVersion());
         log.debug("Cleared tree");
     }
 
@@ -275,12 +279,57 @@ public class MVBTree<K extends Key<K>, V extends PageValue<?>> extends
         if (version == activeVersion) {
             return (currentRoot != null) ? currentRoot.getPageID() : null;
         }
-        Pair<IntegerKey, PageID> entry = roots.floorEntry(new IntegerKey(version), rootsTX);
+        return findRootPageID(version);
+    }
+
+    /**
+     * Finds the root page of a version that is not the active version. The
+     * root* is only searched if the version is not found from the root
+     * cache; the root* interval of the version is then cached.
+     */
+    private PageID findRootPageID(int version) {
+        RootCache.Interval cached = rootCache.find(version);
+        if (cached != null) {
+            stats.log(Operation.OP_ROOT_CACHE_HIT);
+            PageID root = cached.getRoot();
+            return root != null && root.isValid() ? root : null;
+        }
+        stats.log(Operation.OP_ROOT_CACHE_MISS);
+        // New roots are only attached at the active version, so the root*
+        // entries of the versions before it can no longer change
+        int active = activeVersion;
+        IntegerKey vKey = new IntegerKey(version);
+        Pair<IntegerKey, PageID> entry = roots.floorEntry(vKey, rootsTX);
+        if (rootCache.isEnabled() && version < active) {
+            // The next root* entry ends the interval of this root
+            PagePath<IntegerKey, PageID, BTreePage<IntegerKey, PageID>> path = new PagePath<IntegerKey, PageID, BTreePage<IntegerKey, PageID>>(
+                false);
+            Pair<IntegerKey, PageID> next = roots.nextEntry(vKey, path, rootsTX);
+            pageBuffer.unfix(path, rootsTX);
+            int end = next != null ? Math.min(next.getFirst().intValue(), active) : active;
+            rootCache.put(entry != null ? entry.getFirst().intValue() : Integer.MIN_VALUE, end,
+                entry != null ? entry.getSecond() : null);
+        }
         if (entry == null || !entry.getSecond().isValid())
             return null;
         return entry.getSecond();
     }
 
+    /**
+     * @return the maximum amount of version intervals kept in the root cache
+     */
+    public int getRootCacheSize() {
+        return rootCache.getCapacity();
+    }
+
+    /**
+     * Sets the maximum amount of root* version intervals kept in memory. Zero
+     * disables the root cache.
+     */
+    public void setRootCacheSize(int size) {
+        rootCache.setCapacity(size);
+    }
+
     /**
      * Returns the fixed root page. Caller must unfix the root page after
      * usage!
@@ -290,10 +339,10 @@ public class MVBTree<K extends Key<K>, V extends PageValue<?>> extends
         if (version == activeVersion) {
             return getRoot(owner);
         }
-        Pair<IntegerKey, PageID> entry = roots.floorEntry(new IntegerKey(version), rootsTX);
-        if (entry == null || !entry.getSecond().isValid())
+        PageID rootID = findRootPageID(version);
+        if (rootID == null)
             return null;
-        MVBTPage<K, V> page = pageBuffer.fixPage(entry.getSecond(), pageFactory, false, owner);
+        MVBTPage<K, V> page = pageBuffer.fixPage(rootID, pageFactory, false, owner);
         return page;
     }
 
@@ -381,6 +430,7 @@ public class MVBTree<K extends Key<K>, V extends PageValue<?>> extends
         boolean success = TreeShortcuts
             .insert(this.roots, vKey, currentRoot.getPageID(), rootsTX);
         assert success;
+        rootCache.rootChanged(activeVersion);
         updateInfoPage(tx);
     }
 
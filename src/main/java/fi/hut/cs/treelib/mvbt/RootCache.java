@@ -0,0 +1,159 @@
+package fi.hut.cs.treelib.mvbt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.hut.cs.treelib.PageID;
+
+/**
+ * In-memory cache of the root* of an MVB-tree. Each cached interval maps a
+ * range of versions [start, end) to the root page that all the versions of
+ * the interval share, so a cached version can be found without searching
+ * the root*. Intervals end at the latest active version at the time of the
+ * root* search at most, because a new root may still be attached at the
+ * active version. An interval is also cut when a new root is attached inside
+ * it.
+ *
+ * <p>
+ * The cache holds at most the given amount of intervals. When it is full,
+ * the least recently used interval is evicted.
+ *
+ * @author thaapasa
+ */
+class RootCache {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** An immutable version interval with its root page. */
+    protected static class Interval {
+        private final int start;
+        private final int end;
+        /** The root page; null or invalid if the versions have no root */
+        private final PageID root;
+        private volatile long lastUsed;
+
+        private Interval(int start, int end, PageID root) {
+            this.start = start;
+            this.end = end;
+            this.root = root;
+        }
+
+        public PageID getRoot() {
+            return root;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + "): " + root;
+        }
+    }
+
+    /** Cached intervals, ordered by the start version */
+    private final ConcurrentSkipListMap<Integer, Interval> intervals = new ConcurrentSkipListMap<Integer, Interval>();
+    private final AtomicLong clock = new AtomicLong();
+    private volatile int capacity;
+
+    protected RootCache(int capacity) {
+        setCapacity(capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param capacity the maximum amount of cached intervals; zero disables
+     * the cache
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Cache capacity must not be negative (was "
+                + capacity + ")");
+        this.capacity = capacity;
+        evict();
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    public int size() {
+        return intervals.size();
+    }
+
+    /**
+     * @return the cached interval that contains the given version, or null
+     * if the version is not cached
+     */
+    public Interval find(int version) {
+        Map.Entry<Integer, Interval> entry = intervals.floorEntry(version);
+        if (entry == null)
+            return null;
+        Interval interval = entry.getValue();
+        if (version >= interval.end)
+            return null;
+        interval.lastUsed = clock.incrementAndGet();
+        return interval;
+    }
+
+    /**
+     * Caches the root page of the versions [start, end).
+     */
+    public void put(int start, int end, PageID root) {
+        if (!isEnabled())
+            return;
+        assert start < end : start + " >= " + end;
+        Interval interval = new Interval(start, end, root);
+        interval.lastUsed = clock.incrementAndGet();
+        intervals.put(start, interval);
+        evict();
+    }
+
+    /**
+     * Called when the root* entry of the given version is changed. The
+     * cached intervals that reach the version are cut to end before it.
+     */
+    public void rootChanged(int version) {
+        // Only the interval containing the version and the ones after it
+        Integer from = intervals.floorKey(version);
+        for (Interval interval : (from != null ? intervals.tailMap(from) : intervals).values()) {
+            if (interval.end <= version)
+                continue;
+            if (interval.start >= version) {
+                intervals.remove(interval.start, interval);
+            } else {
+                Interval cut = new Interval(interval.start, version, interval.root);
+                cut.lastUsed = interval.lastUsed;
+                intervals.replace(interval.start, interval, cut);
+            }
+        }
+    }
+
+    public void clear() {
+        intervals.clear();
+    }
+
+    /**
+     * Removes the least recently used intervals until the cache fits its
+     * capacity.
+     */
+    private void evict() {
+        while (intervals.size() > capacity) {
+            Interval oldest = null;
+            for (Interval interval : intervals.values()) {
+                if (oldest == null || interval.lastUsed < oldest.lastUsed)
+                    oldest = interval;
+            }
+            if (oldest == null)
+                return;
+            intervals.remove(oldest.start, oldest);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Root* cache " + intervals.values() + ", capacity " + capacity;
+    }
+
+}
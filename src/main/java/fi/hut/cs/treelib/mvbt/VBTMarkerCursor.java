@@ -0,0 +1,63 @@
+package fi.hut.cs.treelib.mvbt;
+
+import fi.hut.cs.treelib.Cursor;
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.PageValue;
+import fi.hut.cs.treelib.common.UpdateMarker;
+import fi.hut.cs.treelib.common.VersionedKey;
+import fi.tuska.util.Pair;
+
+/**
+ * Cursor over the update markers of the VBT. The versioned keys of a key are
+ * stored next to each other in the VBT, so the cursor scans the VBT entries
+ * once and reports, for each key, the most recent update marker that is
+ * visible in the transient mapping.
+ *
+ * @author thaapasa
+ */
+class VBTMarkerCursor<K extends Key<K>, V extends PageValue<?>> implements
+    Cursor<K, UpdateMarker<V>> {
+
+    private final Cursor<VersionedKey<K>, UpdateMarker<V>> entries;
+    private final CMVBTree<K, V>.TransientMapping mapping;
+
+    /** The first VBT entry that has not been processed yet. */
+    private Pair<VersionedKey<K>, UpdateMarker<V>> pending = null;
+
+    protected VBTMarkerCursor(Cursor<VersionedKey<K>, UpdateMarker<V>> entries,
+        CMVBTree<K, V>.TransientMapping mapping) {
+        this.entries = entries;
+        this.mapping = mapping;
+    }
+
+    @Override
+    public Pair<K, UpdateMarker<V>> next() {
+        if (pending == null)
+            pending = entries.next();
+        while (pending != null) {
+            K key = pending.getFirst().getKey();
+            UpdateMarker<V> latest = null;
+            int latestCommit = Integer.MIN_VALUE;
+            // Go through all the versions of the key
+            while (pending != null && pending.getFirst().getKey().equals(key)) {
+                Integer commitVer = mapping.getCommitVersion(pending.getFirst().getVersion());
+                // Skip the versions that are not visible
+                if (commitVer != null && commitVer >= latestCommit) {
+                    latest = pending.getSecond();
+                    latestCommit = commitVer;
+                }
+                pending = entries.next();
+            }
+            if (latest != null)
+                return new Pair<K, UpdateMarker<V>>(key, latest);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        entries.close();
+        pending = null;
+    }
+
+}
@@ -5,8 +5,10 @@ import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
 
+import fi.hut.cs.treelib.Cursor;
 import fi.hut.cs.treelib.DatabaseConfiguration;
 import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.KeyRange;
 import fi.hut.cs.treelib.PageID;
 import fi.hut.cs.treelib.PageValue;
 import fi.hut.cs.treelib.Transaction;
@@ -43,14 +45,13 @@ public class VersionedBTree<K extends Key<K>, V extends PageValue<?>> extends
     protected UpdateMarker<V> findLatestKey(K key, final CMVBTree<K, V>.TransientMapping mapping,
         Transaction<VersionedKey<K>, UpdateMarker<V>> tx) {
         if (log.isDebugEnabled())
-            log.debug("Finding latest key " + key + " with versions: " + mapping.stc
-                + " (starts " + mapping.startVersions + ")");
+            log.debug("Finding latest key " + key + " with versions: " + mapping);
 
-        if (mapping.startVersions.size() < 1)
+        if (mapping.size() < 1)
             return null;
 
-        VersionedKey<K> min = new VersionedKey<K>(key, mapping.firstStart);
-        VersionedKey<K> max = new VersionedKey<K>(key, mapping.lastStart + 1);
+        VersionedKey<K> min = new VersionedKey<K>(key, mapping.getFirstStart());
+        VersionedKey<K> max = new VersionedKey<K>(key, mapping.getLastStart() + 1);
 
         final SortedMap<Integer, UpdateMarker<V>> foundKeys = new TreeMap<Integer, UpdateMarker<V>>();
 
@@ -63,14 +64,14 @@ public class VersionedBTree<K extends Key<K>, V extends PageValue<?>> extends
                     VersionedKey<K> key = entry.getFirst();
                     int ver = key.getVersion();
                     // Check if this is an actually valid version
-                    if (!mapping.startVersions.contains(ver))
+                    if (!mapping.isVisible(ver))
                         // Return true to continue
                         return true;
 
                     // This is a valid version. Add the update to the sorted
                     // map.
                     // Find out commit-time version
-                    Integer commitVer = mapping.stc.get(ver);
+                    Integer commitVer = mapping.getCommitVersion(ver);
                     assert commitVer != null : "No commitver for startver " + ver;
                     // Add the update to the commit list
                     foundKeys.put(commitVer, entry.getSecond());
@@ -85,16 +86,30 @@ public class VersionedBTree<K extends Key<K>, V extends PageValue<?>> extends
         return foundKeys.get(foundKeys.lastKey());
     }
 
+    /**
+     * Opens a cursor that streams the most recent update markers of the keys
+     * in the given range, as seen by the transient mapping. The cursor must
+     * be closed after use.
+     */
+    protected Cursor<K, UpdateMarker<V>> openMarkerCursor(KeyRange<K> range,
+        CMVBTree<K, V>.TransientMapping mapping,
+        Transaction<VersionedKey<K>, UpdateMarker<V>> tx) {
+        // All versions of the keys in the range
+        VersionedKey<K> min = new VersionedKey<K>(range.getMin(), Integer.MIN_VALUE);
+        VersionedKey<K> max = new VersionedKey<K>(range.getMax(), Integer.MIN_VALUE);
+        return new VBTMarkerCursor<K, V>(openCursor(new KeyRangeImpl<VersionedKey<K>>(min,
+            max), tx), mapping);
+    }
+
     protected Pair<K, UpdateMarker<V>> findNextMarker(
         K key,
         final CMVBTree<K, V>.TransientMapping mapping,
         PagePath<VersionedKey<K>, UpdateMarker<V>, BTreePage<VersionedKey<K>, UpdateMarker<V>>> savedPath,
         Transaction<VersionedKey<K>, UpdateMarker<V>> tx) {
         if (log.isDebugEnabled())
-            log.debug("Finding next key " + key + " with versions: " + mapping.stc + " (starts "
-                + mapping.startVersions + ")");
+            log.debug("Finding next key " + key + " with versions: " + mapping);
 
-        if (mapping.startVersions.size() < 1)
+        if (mapping.size() < 1)
             return null;
 
         // Range is from this key (max version, does not exist) to the max
@@ -114,7 +129,7 @@ public class VersionedBTree<K extends Key<K>, V extends PageValue<?>> extends
 
             int ver = curKey.getVersion();
             // Check if this is an actually relevant version
-            if (!mapping.startVersions.contains(ver)) {
+            if (!mapping.isVisible(ver)) {
                 if (keyValue.isInitialized()) {
                     // Check if we're still at the correct key
                     if (!curKey.getKey().equals(keyValue.getValue())) {
@@ -146,14 +161,14 @@ public class VersionedBTree<K extends Key<K>, V extends PageValue<?>> extends
 
             // This is a valid version. Add the update to the sorted map.
             // Find out commit-time version
-            Integer commitVer = mapping.stc.get(ver);
+            Integer commitVer = mapping.getCommitVersion(ver);
             assert commitVer != null;
             // Add the update to the commit list
             foundKeys.put(commitVer, marker);
 
             // We can also stop if the last possible start version is
             // encountered
-            if (ver >= mapping.lastStart)
+            if (ver >= mapping.getLastStart())
                 break;
         }
 
@@ -0,0 +1,71 @@
+package fi.hut.cs.treelib.operations;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.MBR;
+import fi.hut.cs.treelib.MDDatabase;
+import fi.hut.cs.treelib.MDTransaction;
+import fi.hut.cs.treelib.common.IntegerValue;
+import fi.hut.cs.treelib.stats.StatisticsLogger;
+import fi.tuska.util.Callback;
+import fi.tuska.util.Holder;
+import fi.tuska.util.Pair;
+
+/**
+ * Runs a k-nearest-neighbor query for each key. The keys are MBRs; the low
+ * corner of each MBR is used as the query point.
+ * 
+ * @author thaapasa
+ */
+public class NearestQueryOperation<K extends Key<K>> implements Operation<K> {
+
+    private static final Logger log = Logger.getLogger(NearestQueryOperation.class);
+    private static final Boolean WARN_IF_MISSING_ENTRIES = false;
+    public static final int DEFAULT_NEAREST_COUNT = 10;
+
+    private MDDatabase<K, IntegerValue, ?> database;
+    private int nearestCount = DEFAULT_NEAREST_COUNT;
+
+    public NearestQueryOperation(MDDatabase<K, IntegerValue, ?> database,
+        StatisticsLogger statisticsLogger) {
+        this.database = database;
+    }
+
+    public void setNearestCount(int nearestCount) {
+        this.nearestCount = nearestCount;
+    }
+
+    public int getNearestCount() {
+        return nearestCount;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void execute(Iterable<K> keys) {
+        MDTransaction<K, IntegerValue> tx = database.beginTransaction();
+        ProgressCounter count = new ProgressCounter("nearest");
+        for (K key : keys) {
+            count.advance();
+            MBR<K> mbrK = (MBR<K>) key;
+            final Holder<Boolean> found = new Holder<Boolean>(Boolean.FALSE);
+            tx.getNearest(mbrK.getMin(), nearestCount, new Callback<Pair<MBR<K>, IntegerValue>>() {
+                @Override
+                public boolean callback(Pair<MBR<K>, IntegerValue> entry) {
+                    // Just go through the entries
+                    found.setValue(Boolean.TRUE);
+                    return true;
+                }
+            });
+            if (!found.getValue() && WARN_IF_MISSING_ENTRIES) {
+                log.warn("No value found near " + key);
+            }
+        }
+        tx.commit();
+    }
+
+    @Override
+    public boolean requiresKeys() {
+        return true;
+    }
+}
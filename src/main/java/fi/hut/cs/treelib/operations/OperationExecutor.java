@@ -50,6 +50,8 @@ public class OperationExecutor<K extends Key<K>> implements InitializingBean {
     public static final String OPERATION_CHECK = "check";
     public static final String OPERATION_QUERY_OVERLAPS = "overlaps";
     public static final String OPERATION_QUERY_EXACT = "exact";
+    public static final String OPERATION_QUERY_NEAREST = "nearest";
+    public static final String OPERATION_SPATIAL_JOIN = "join";
     public static final String OPERATION_DELETE = "delete";
     public static final String OPERATION_CHECK_DATA = "check-data";
     public static final String OPERATION_EXECUTE = "execute";
@@ -60,6 +62,8 @@ public class OperationExecutor<K extends Key<K>> implements InitializingBean {
     public ExecuteOperation<K> executeOp;
 
     private Database<K, IntegerValue, ?> database;
+    /** Optional second database for the spatial join */
+    private MDDatabase<K, IntegerValue, ?> joinDatabase;
     private K keyPrototype;
     private StatisticsLogger statisticsLogger = NoStatistics.instance();
     private StatisticsPrinter statisticsPrinter = new DefaultStatisticsPrinter();
@@ -83,6 +87,8 @@ public class OperationExecutor<K extends Key<K>> implements InitializingBean {
         if (Configuration.instance().isShowStatistics()) {
             statisticsLogger = new StatisticsImpl();
             database.setStatisticsLogger(statisticsLogger);
+            if (joinDatabase != null)
+                joinDatabase.setStatisticsLogger(statisticsLogger);
         }
 
         executeOp = new ExecuteOperation<K>(this);
@@ -98,13 +104,18 @@ public class OperationExecutor<K extends Key<K>> implements InitializingBean {
         operations.put(OPERATION_CHECK, new CheckOperation<K, IntegerValue>(database,
             statisticsLogger));
 
-        // Multidimensional operations (exact query, overlap query)
+        // Multidimensional operations (exact query, overlap query, nearest
+        // neighbor query, spatial join)
         if (database.isMultiDimension()) {
             MDDatabase<K, IntegerValue, ?> mddb = (MDDatabase<K, IntegerValue, ?>) database;
             operations.put(OPERATION_QUERY_OVERLAPS, new OverlapQueryOperation<K>(mddb,
                 statisticsLogger));
             operations.put(OPERATION_QUERY_EXACT, new ExactQueryOperation<K>(mddb,
                 statisticsLogger));
+            operations.put(OPERATION_QUERY_NEAREST, new NearestQueryOperation<K>(mddb,
+                statisticsLogger));
+            operations.put(OPERATION_SPATIAL_JOIN, new SpatialJoinOperation<K>(mddb,
+                joinDatabase, statisticsLogger));
         }
     }
 
@@ -117,6 +128,18 @@ public class OperationExecutor<K extends Key<K>> implements InitializingBean {
         return database;
     }
 
+    /**
+     * Sets the database that the spatial join operation joins the database
+     * with. If not set, the join uses the keys of the key file.
+     */
+    public void setJoinDatabase(MDDatabase<K, IntegerValue, ?> joinDatabase) {
+        this.joinDatabase = joinDatabase;
+    }
+
+    public MDDatabase<K, IntegerValue, ?> getJoinDatabase() {
+        return joinDatabase;
+    }
+
     public void setKeyPrototype(K keyPrototype) {
         this.keyPrototype = keyPrototype;
     }
@@ -0,0 +1,98 @@
+package fi.hut.cs.treelib.operations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.DatabaseConfiguration;
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.MBR;
+import fi.hut.cs.treelib.MDDatabase;
+import fi.hut.cs.treelib.MDTransaction;
+import fi.hut.cs.treelib.common.IntegerValue;
+import fi.hut.cs.treelib.common.SpatialJoin;
+import fi.hut.cs.treelib.rtree.RTreeDatabase;
+import fi.hut.cs.treelib.stats.StatisticsLogger;
+import fi.hut.cs.treelib.stats.Statistics.Action;
+import fi.hut.cs.treelib.storage.MemoryPageStorage;
+import fi.tuska.util.Callback;
+import fi.tuska.util.Pair;
+
+/**
+ * Runs a spatial join between the database and another MD database. If a
+ * join database has been configured, the database is joined with it.
+ * Otherwise, the keys are bulk-loaded to a temporary in-memory R-tree, and
+ * the database is joined with that.
+ * 
+ * @author thaapasa
+ */
+public class SpatialJoinOperation<K extends Key<K>> implements Operation<K> {
+
+    private static final Logger log = Logger.getLogger(SpatialJoinOperation.class);
+
+    private MDDatabase<K, IntegerValue, ?> database;
+    private MDDatabase<K, IntegerValue, ?> joinDatabase;
+    private StatisticsLogger statisticsLogger;
+
+    public SpatialJoinOperation(MDDatabase<K, IntegerValue, ?> database,
+        MDDatabase<K, IntegerValue, ?> joinDatabase, StatisticsLogger statisticsLogger) {
+        this.database = database;
+        this.joinDatabase = joinDatabase;
+        this.statisticsLogger = statisticsLogger;
+    }
+
+    @Override
+    public void execute(Iterable<K> keys) {
+        MDDatabase<K, IntegerValue, ?> other = joinDatabase;
+        if (other == null)
+            other = createKeyDatabase(keys);
+
+        MDTransaction<K, IntegerValue> tx = database.beginTransaction();
+        statisticsLogger.newAction(Action.ACTION_SPATIAL_JOIN);
+        final ProgressCounter count = new ProgressCounter("join");
+        new SpatialJoin<K, IntegerValue, IntegerValue>(database, other).join(
+            new Callback<Pair<Pair<MBR<K>, IntegerValue>, Pair<MBR<K>, IntegerValue>>>() {
+                @Override
+                public boolean callback(
+                    Pair<Pair<MBR<K>, IntegerValue>, Pair<MBR<K>, IntegerValue>> pair) {
+                    // Just go through the result pairs
+                    count.advance();
+                    return true;
+                }
+            }, tx);
+        tx.commit();
+        log.info("Spatial join found " + count.getCount() + " pairs");
+
+        if (other != joinDatabase)
+            other.close();
+    }
+
+    /**
+     * @return a temporary in-memory R-tree that contains the given keys
+     */
+    @SuppressWarnings("unchecked")
+    private MDDatabase<K, IntegerValue, ?> createKeyDatabase(Iterable<K> keys) {
+        log.info("Bulk-loading the join keys to a temporary R-tree");
+        List<Pair<MBR<K>, IntegerValue>> entries = new ArrayList<Pair<MBR<K>, IntegerValue>>();
+        int value = 0;
+        for (K key : keys) {
+            entries.add(new Pair<MBR<K>, IntegerValue>((MBR<K>) key, new IntegerValue(++value)));
+        }
+        RTreeDatabase<K, IntegerValue> db = new RTreeDatabase<K, IntegerValue>(database
+            .getBufferSize(), ((DatabaseConfiguration<?, ?>) database).getSMOPolicy(),
+            database.getKeyPrototype(), IntegerValue.PROTOTYPE, new MemoryPageStorage(database
+                .getPageSize()));
+        MDTransaction<K, IntegerValue> tx = db.beginTransaction();
+        db.bulkLoad(entries, tx);
+        tx.commit();
+        // Page fixes of the join are logged to the same statistics
+        db.setStatisticsLogger(statisticsLogger);
+        return db;
+    }
+
+    @Override
+    public boolean requiresKeys() {
+        return joinDatabase == null;
+    }
+}
@@ -0,0 +1,116 @@
+package fi.hut.cs.treelib.rtree;
+
+import fi.hut.cs.treelib.DoubleMBR;
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.MBR;
+import fi.hut.cs.treelib.PageValue;
+import fi.tuska.util.Pair;
+import fi.tuska.util.SortedList;
+
+/**
+ * Structure-of-arrays copy of the entries of an R-tree page. The low and
+ * high coordinates of the entry MBRs are stored in parallel primitive
+ * arrays, one array per dimension and bound, so that overlap queries can
+ * filter the entries with tight loops over the arrays. Only the matching
+ * entries need to be accessed as objects.
+ *
+ * <p>
+ * The copy is immutable; the page discards it whenever its contents
+ * change. It can only be created for MBRs whose primitive view is exact.
+ *
+ * @author thaapasa
+ */
+class PackedMBREntries<K extends Key<K>> {
+
+    private final int size;
+    private final int dimensions;
+    /** lows[d][i] is the low coordinate of entry i in dimension d */
+    private final double[][] lows;
+    /** highs[d][i] is the high coordinate of entry i in dimension d */
+    private final double[][] highs;
+    private final Object[] keys;
+    private final Object[] values;
+
+    private PackedMBREntries(int size, int dimensions) {
+        this.size = size;
+        this.dimensions = dimensions;
+        this.lows = new double[dimensions][size];
+        this.highs = new double[dimensions][size];
+        this.keys = new Object[size];
+        this.values = new Object[size];
+    }
+
+    /**
+     * @return the packed copy of the given entries; or null, if the entry
+     * MBRs cannot be represented exactly with primitive coordinates
+     */
+    protected static <K extends Key<K>> PackedMBREntries<K> create(
+        SortedList<MBR<K>, PageValue<?>> entries, int dimensions) {
+        PackedMBREntries<K> packed = new PackedMBREntries<K>(entries.size(), dimensions);
+        int i = 0;
+        for (Pair<MBR<K>, PageValue<?>> entry : entries) {
+            DoubleMBR mbr = entry.getFirst().getDoubleMBR();
+            if (!mbr.isExact())
+                return null;
+            for (int d = 0; d < dimensions; d++) {
+                packed.lows[d][i] = mbr.getLow(d);
+                packed.highs[d][i] = mbr.getHigh(d);
+            }
+            packed.keys[i] = entry.getFirst();
+            packed.values[i] = entry.getSecond();
+            i++;
+        }
+        return packed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds the entries whose MBR overlaps the given MBR, as defined in
+     * {@link MBR#overlaps(MBR)}. The matches array is also used as the work
+     * area, so no arrays are allocated.
+     *
+     * @param matches receives the indices of the matching entries; must
+     * have room for {@link #size()} indices
+     * @return the amount of matching entries
+     */
+    public int findOverlapping(DoubleMBR mbr, int[] matches) {
+        // First dimension collects the candidate indices...
+        double[] lo = lows[0];
+        double[] hi = highs[0];
+        double qLow = mbr.getLow(0);
+        double qHigh = mbr.getHigh(0);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            matches[count] = i;
+            count += (lo[i] <= qHigh & hi[i] >= qLow) ? 1 : 0;
+        }
+        // ...and the rest of the dimensions filter them in place
+        for (int d = 1; d < dimensions && count > 0; d++) {
+            lo = lows[d];
+            hi = highs[d];
+            qLow = mbr.getLow(d);
+            qHigh = mbr.getHigh(d);
+            int kept = 0;
+            for (int j = 0; j < count; j++) {
+                int i = matches[j];
+                matches[kept] = i;
+                kept += (lo[i] <= qHigh & hi[i] >= qLow) ? 1 : 0;
+            }
+            count = kept;
+        }
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    public MBR<K> getKey(int index) {
+        return (MBR<K>) keys[index];
+    }
+
+    public PageValue<?> getValue(int index) {
+        return (PageValue<?>) values[index];
+    }
+
+}
@@ -8,6 +8,7 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import fi.hut.cs.treelib.DoubleMBR;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.MBR;
 import fi.hut.cs.treelib.Owner;
@@ -21,7 +22,6 @@ import fi.hut.cs.treelib.stats.StatisticsLogger;
 import fi.hut.cs.treelib.stats.Statistics.Operation;
 import fi.hut.cs.treelib.util.MBRPredicate;
 import fi.hut.cs.treelib.util.MDDBUtils;
-import fi.tuska.util.Array;
 import fi.tuska.util.Callback;
 import fi.tuska.util.CollectionUtils;
 import fi.tuska.util.Pair;
@@ -237,8 +237,9 @@ public class RTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
         // will go to the sibling page
         boolean addToThis = true;
         // First check if pageID is set; if it is, use that to select the page
-        if (pageID != null ? page.containsChild(pageID) : myNewMBR.countEnlargement(key)
-            .compareTo(siblingMBR.countEnlargement(key)) < 0) {
+        if (pageID != null ? page.containsChild(pageID) : myNewMBR.getDoubleMBR()
+            .getEnlargement(key.getDoubleMBR()) < siblingMBR.getDoubleMBR().getEnlargement(
+            key.getDoubleMBR())) {
             myNewMBR = myNewMBR.extend(key);
             page.setPageMBR(myNewMBR);
         } else {
@@ -382,12 +383,12 @@ public class RTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
 
         // [A] if overlap(listL, listR) < overlap(listB, listT) then split
         // along x
-        MBR<K> mbrL = getListMBR(listL);
-        MBR<K> mbrR = getListMBR(listR);
-        MBR<K> mbrT = getListMBR(listT);
-        MBR<K> mbrB = getListMBR(listB);
-        float xOverlap = mbrL.countOverlapArea(mbrR).toFloat();
-        float yOverlap = mbrB.countOverlapArea(mbrT).toFloat();
+        double[] mbrL = getListBounds(listL);
+        double[] mbrR = getListBounds(listR);
+        double[] mbrT = getListBounds(listT);
+        double[] mbrB = getListBounds(listB);
+        double xOverlap = DoubleMBR.overlapArea(mbrL, mbrR);
+        double yOverlap = DoubleMBR.overlapArea(mbrB, mbrT);
         if (xOverlap < yOverlap)
             return listR;
         if (yOverlap < xOverlap)
@@ -397,15 +398,22 @@ public class RTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
         // coverage
 
         // TODO: Is this what is meant with the previous sentence?
-        float coverageX = mbrL.getArea().toFloat() + mbrR.getArea().toFloat();
-        float coverageY = mbrT.getArea().toFloat() + mbrB.getArea().toFloat();
+        double coverageX = DoubleMBR.area(mbrL) + DoubleMBR.area(mbrR);
+        double coverageY = DoubleMBR.area(mbrT) + DoubleMBR.area(mbrB);
         return coverageX < coverageY ? listR : listB;
     }
 
-    private MBR<K> getListMBR(List<Pair<MBR<K>, Integer>> list) {
-        MBR<K> total = null;
+    /**
+     * @return the bounds of the MBR covering all the MBRs of the list
+     */
+    private double[] getListBounds(List<Pair<MBR<K>, Integer>> list) {
+        double[] total = null;
         for (Pair<MBR<K>, Integer> entry : list) {
-            total = total != null ? total.extend(entry.getFirst()) : entry.getFirst();
+            DoubleMBR mbr = entry.getFirst().getDoubleMBR();
+            if (total == null)
+                total = mbr.copyBounds();
+            else
+                DoubleMBR.extend(total, mbr);
         }
         return total;
     }
@@ -456,6 +464,17 @@ public class RTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
             public int compare(Pair<MBR<K>, Integer> p1, Pair<MBR<K>, Integer> p2) {
                 MBR<K> m1 = p1.getFirst();
                 MBR<K> m2 = p2.getFirst();
+                DoubleMBR d1 = m1.getDoubleMBR();
+                DoubleMBR d2 = m2.getDoubleMBR();
+                if (d1.isExact() && d2.isExact()) {
+                    int c = Double.compare(d1.getLow(axis), d2.getLow(axis));
+                    if (c != 0)
+                        return c;
+                    c = Double.compare(d1.getHigh(axis), d2.getHigh(axis));
+                    if (c != 0)
+                        return c;
+                    return p1.getSecond().compareTo(p2.getSecond());
+                }
                 int c = m1.getLow(axis).compareTo(m2.getLow(axis));
                 if (c != 0)
                     return c;
@@ -481,39 +500,47 @@ public class RTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
             + list.size() + ")";
 
         // Precalculate the MBRs of the rightmost groups
-        // reverseMBR[i] contains the MBR of all elements with index k >= i
-        Array<MBR<K>> reverseMBRs = new Array<MBR<K>>(list.size());
-        MBR<K> curMBR = null;
+        // reverseBounds[i] contains the MBR of all elements with index k >= i
+        double[][] reverseBounds = new double[list.size()][];
+        double[] curBounds = null;
         // Create the reverse MBR list backwards
         for (int i = list.size() - 1; i >= 0; i--) {
-            MBR<K> elementMBR = list.get(i).getFirst();
-            curMBR = curMBR != null ? curMBR.extend(elementMBR) : elementMBR;
-            reverseMBRs.put(i, curMBR);
+            DoubleMBR elementMBR = list.get(i).getFirst().getDoubleMBR();
+            if (curBounds == null) {
+                curBounds = elementMBR.copyBounds();
+            } else {
+                curBounds = curBounds.clone();
+                DoubleMBR.extend(curBounds, elementMBR);
+            }
+            reverseBounds[i] = curBounds;
         }
 
-        MBR<K> leftMBR = null;
+        double[] leftBounds = null;
         double totalS = 0;
         int minPos = -1;
         double minOverlapArea = 0;
         for (int i = 0; i < max; i++) {
-            MBR<K> elementMBR = list.get(i).getFirst();
-            leftMBR = leftMBR != null ? leftMBR.extend(elementMBR) : elementMBR;
+            DoubleMBR elementMBR = list.get(i).getFirst().getDoubleMBR();
+            if (leftBounds == null)
+                leftBounds = elementMBR.copyBounds();
+            else
+                DoubleMBR.extend(leftBounds, elementMBR);
 
-            // leftMBR contains now the MBR of the left group, that is the
+            // leftBounds contains now the MBR of the left group, that is the
             // MBR of all elements with index k <= i
             if (i >= min) {
                 // Test split with split at position i
 
-                MBR<K> rightMBR = reverseMBRs.get(i + 1);
+                double[] rightBounds = reverseBounds[i + 1];
 
                 // [B] Compute S, the sum of all margin-values of the
                 // different distributions
                 // In [B], margin-value means the (sum of the) perimeter
                 // length of the MBRs
-                float curS = leftMBR.getPerimeter().add(rightMBR.getPerimeter()).toFloat();
+                double curS = DoubleMBR.perimeter(leftBounds) + DoubleMBR.perimeter(rightBounds);
                 totalS += curS;
 
-                double overlapArea = leftMBR.countOverlapArea(rightMBR).toFloat();
+                double overlapArea = DoubleMBR.overlapArea(leftBounds, rightBounds);
                 if (minPos < 0 || overlapArea < minOverlapArea) {
                     minPos = i;
                     minOverlapArea = overlapArea;
@@ -546,7 +573,8 @@ public class RTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
             // different distributions.
             sortMBRsByAxis(mbrs, axis);
 
-            log.debug("Axis: " + axis + ", MBRs: " + mbrs);
+            if (log.isDebugEnabled())
+                log.debug("Axis: " + axis + ", MBRs: " + mbrs);
             // Possible split types:
             Pair<Double, Integer> m = findRStarMinSplitPos(mbrs, minEntries);
             double curS = m.getFirst();
@@ -648,25 +676,18 @@ public class RTreeOperations<K extends Key<K>, V extends PageValue<?>> extends
 
         boolean res = root.traverseMDPages(new MBRPredicate<K>(mbr, false, 1),
             new Callback<Page<MBR<K>, V>>() {
+                /** Match buffer shared by the leaf pages of this query */
+                private int[] matches = new int[0];
+
                 @Override
                 public boolean callback(Page<MBR<K>, V> page) {
+                    if (callback == null)
+                        return true;
                     RTreePage<K, V> rPage = (RTreePage<K, V>) page;
-                    return rPage.processMBREntries(new Callback<Pair<MBR<K>, PageValue<?>>>() {
-                        @Override
-                        @SuppressWarnings("unchecked")
-                        public boolean callback(Pair<MBR<K>, PageValue<?>> entry) {
-                            V val = (V) entry.getSecond();
-                            if (mbr.overlaps(entry.getFirst())) {
-                                if (callback != null) {
-                                    boolean continueSearch = callback
-                                        .callback(new Pair<MBR<K>, V>(entry.getFirst(), val));
-                                    if (!continueSearch)
-                                        return false;
-                                }
-                            }
-                            return true;
-                        }
-                    });
+                    if (matches.length < rPage.getEntryCount())
+                        matches = new int[Math.max(rPage.getEntryCount(), rPage
+                            .getPageEntryCapacity())];
+                    return rPage.processOverlappingEntries(mbr, matches, callback);
                 }
             }, owner);
         // Unfix the extra latch on the root page
@@ -5,9 +5,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
 
 import fi.hut.cs.treelib.Component;
+import fi.hut.cs.treelib.DoubleMBR;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.KeyRange;
 import fi.hut.cs.treelib.MBR;
@@ -42,6 +42,14 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
      */
     private SortedList<MBR<K>, PageValue<?>> contents = new SortedList<MBR<K>, PageValue<?>>();
 
+    /**
+     * Packed copy of the leaf entries for overlap queries, created when
+     * first needed and discarded when the contents change.
+     */
+    private PackedMBREntries<K> packedEntries;
+    /** False if the entry MBRs cannot be packed */
+    private boolean packable = true;
+
     public RTreePage(RTree<K, V> tree, PageID id) {
         super(id, tree);
         this.tree = tree;
@@ -50,6 +58,14 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
     @Override
     protected void clearContents() {
         contents.clear();
+        contentsChanged();
+    }
+
+    /**
+     * Must be called whenever the contents are modified.
+     */
+    private void contentsChanged() {
+        packedEntries = null;
     }
 
     @Override
@@ -86,6 +102,7 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
         assert !isFull() : String.format("Page %s is full when storing contents", getName());
 
         contents.add(mbr, value);
+        contentsChanged();
         extendPageMBR(mbr);
         setDirty(true);
     }
@@ -95,6 +112,7 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
         PageValue<?> value = contents.removeFirst(mbr);
         if (value == null)
             return null;
+        contentsChanged();
         setDirty(true);
         return value;
     }
@@ -102,6 +120,7 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
     public boolean removeContents(MBR<K> mbr, PageID childID) {
         assert !isLeafPage();
         boolean res = contents.remove(mbr, childID);
+        contentsChanged();
         return res;
     }
 
@@ -129,6 +148,7 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
             Pair<MBR<K>, PageValue<?>> entry = i.next();
             if (entry.getSecond().equals(childID)) {
                 i.remove();
+                contentsChanged();
                 found = true;
                 break;
             }
@@ -257,23 +277,28 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
         if (contents.isEmpty())
             return null;
 
-        PriorityQueue<Pair<Float, Pair<MBR<K>, PageValue<?>>>> queue = new PriorityQueue<Pair<Float, Pair<MBR<K>, PageValue<?>>>>();
-
+        // Select the router with the least enlargement; ties are broken by
+        // the router MBR and then by the child page ID
+        DoubleMBR target = mbr.getDoubleMBR();
+        Pair<MBR<K>, PageValue<?>> best = null;
+        double bestVal = 0;
         for (Pair<MBR<K>, PageValue<?>> router : contents) {
-            MBR<K> rMBR = router.getFirst();
-            float mbrVal = rMBR.countEnlargement(mbr).toFloat();
-            queue.add(new Pair<Float, Pair<MBR<K>, PageValue<?>>>(mbrVal, router));
+            double mbrVal = router.getFirst().getDoubleMBR().getEnlargement(target);
+            if (best == null || mbrVal < bestVal
+                || (mbrVal == bestVal && compareRouters(router, best) < 0)) {
+                best = router;
+                bestVal = mbrVal;
+            }
         }
+        assert best != null;
 
-        Pair<Float, Pair<MBR<K>, PageValue<?>>> val = queue.remove();
-        assert val != null;
-
-        MBR<K> rMBR = val.getSecond().getFirst();
-        PageID pageID = (PageID) val.getSecond().getSecond();
+        MBR<K> rMBR = best.getFirst();
+        PageID pageID = (PageID) best.getSecond();
         // Check if the selected router MBR needs enlargement
         if (!rMBR.contains(mbr)) {
             // Enlarge the router MBR
             contents.remove(rMBR, pageID);
+            contentsChanged();
             rMBR = rMBR.extend(mbr);
             // putContents will set the page dirty
             putContents(rMBR, pageID);
@@ -281,6 +306,13 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
         return new Pair<MBR<K>, PageID>(rMBR, pageID);
     }
 
+    private int compareRouters(Pair<MBR<K>, PageValue<?>> r1, Pair<MBR<K>, PageValue<?>> r2) {
+        int c = r1.getFirst().compareTo(r2.getFirst());
+        if (c != 0)
+            return c;
+        return ((PageID) r1.getSecond()).compareTo((PageID) r2.getSecond());
+    }
+
     @Override
     public PageValue<?> getEntry(MBR<K> key) {
         for (Pair<MBR<K>, PageValue<?>> entry : contents) {
@@ -306,7 +338,24 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
     }
 
     public Iterator<Pair<MBR<K>, PageValue<?>>> contentIterator() {
-        return contents.iterator();
+        final Iterator<Pair<MBR<K>, PageValue<?>>> it = contents.iterator();
+        return new Iterator<Pair<MBR<K>, PageValue<?>>>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Pair<MBR<K>, PageValue<?>> next() {
+                return it.next();
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+                contentsChanged();
+            }
+        };
     }
 
     @Override
@@ -365,6 +414,7 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
         int c = 0;
         while (contents.contains(mbr)) {
             PageValue<?> val = contents.removeFirst(mbr);
+            contentsChanged();
             // putContents sets the other page dirty
             toPage.putContents(mbr, val);
             c++;
@@ -386,6 +436,65 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
         return true;
     }
 
+    /**
+     * Processes the entries of this leaf page whose MBR overlaps the given
+     * MBR. The entries are filtered with the packed copy of the page
+     * contents, so only the matching entries are created for the callback.
+     * 
+     * @param matches a work area for the indices of the matching entries,
+     * reused over the pages of a query; should have room for all the
+     * entries of this page
+     */
+    @SuppressWarnings("unchecked")
+    protected boolean processOverlappingEntries(MBR<K> mbr, int[] matches,
+        Callback<Pair<MBR<K>, V>> callback) {
+        assert isLeafPage();
+        PackedMBREntries<K> packed = getPackedEntries();
+        if (packed == null) {
+            // Compare the entries one by one
+            for (Pair<MBR<K>, PageValue<?>> entry : contents) {
+                if (mbr.overlaps(entry.getFirst())) {
+                    if (!callback.callback(new Pair<MBR<K>, V>(entry.getFirst(), (V) entry
+                        .getSecond())))
+                        return false;
+                }
+            }
+            return true;
+        }
+        if (matches.length < packed.size())
+            matches = new int[packed.size()];
+        int count = packed.findOverlapping(mbr.getDoubleMBR(), matches);
+        for (int i = 0; i < count; i++) {
+            int index = matches[i];
+            if (!callback.callback(new Pair<MBR<K>, V>(packed.getKey(index), (V) packed
+                .getValue(index))))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the packed copy of the page contents; or null, if the entries
+     * cannot be packed
+     */
+    private PackedMBREntries<K> getPackedEntries() {
+        if (!packable)
+            return null;
+        PackedMBREntries<K> packed = packedEntries;
+        if (packed == null) {
+            // Concurrent readers may both create the copy; it is immutable,
+            // so either one can be used
+            packed = PackedMBREntries.create(contents, dbConfig.getKeyPrototype()
+                .getDimensions());
+            if (packed == null) {
+                packable = false;
+                return null;
+            }
+            packedEntries = packed;
+        }
+        return packed;
+    }
+
     @Override
     public PageID findChildPointer(MBR<K> key) {
         throw new UnsupportedOperationException("Not supported");
@@ -468,6 +577,7 @@ public class RTreePage<K extends Key<K>, V extends PageValue<?>> extends
     @Override
     @SuppressWarnings("unchecked")
     protected V removeEntry(MBR<K> key) {
+        contentsChanged();
         return (V) contents.removeFirst(key);
     }
 
@@ -10,6 +10,7 @@ import fi.hut.cs.treelib.Transaction;
 import fi.hut.cs.treelib.action.ActionWriter;
 import fi.tuska.util.Callback;
 import fi.tuska.util.Counter;
+import fi.tuska.util.Holder;
 import fi.tuska.util.Pair;
 
 public class ReportGeneratingProgram<K extends Key<K>, V extends PageValue<?>> implements Program {
@@ -63,9 +64,15 @@ public class ReportGeneratingProgram<K extends Key<K>, V extends PageValue<?>> i
         // Range query
         log.info("Starting report generation of version " + qv + "; tx ID is "
             + tx.getTransactionID());
+        final Holder<K> lastKey = new Holder<K>();
         tx.getRange(range, new Callback<Pair<K, V>>() {
             @Override
             public boolean callback(Pair<K, V> object) {
+                // The report is generated in key order
+                assert !lastKey.isInitialized()
+                    || lastKey.getValue().compareTo(object.getFirst()) < 0 : "Entry "
+                    + object.getFirst() + " reported after " + lastKey.getValue();
+                lastKey.setValue(object.getFirst());
                 // Processing ...
                 foundEntries.advance();
                 // True to continue search
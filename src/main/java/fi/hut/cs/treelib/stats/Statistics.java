@@ -6,8 +6,8 @@ public interface Statistics {
 
     enum Action {
         ACTION_INSERT, ACTION_DELETE, ACTION_QUERY, ACTION_QUERY_FLOOR, ACTION_QUERY_NEXT,
-        ACTION_QUERY_EXACT, ACTION_QUERY_OVERLAPS, ACTION_CONTAINS, ACTION_RANGE_QUERY,
-        ACTION_CLEAR, ACTION_SPECIAL
+        ACTION_QUERY_EXACT, ACTION_QUERY_OVERLAPS, ACTION_QUERY_NEAREST, ACTION_SPATIAL_JOIN,
+        ACTION_CONTAINS, ACTION_RANGE_QUERY, ACTION_CLEAR, ACTION_SPECIAL
     };
 
     enum Operation {
@@ -19,7 +19,7 @@ public interface Statistics {
         OP_TRAVERSE_PATH, OP_RETRAVERSE_PATH, OP_BACKTRACK_PATH, OP_SUBTREE_TRAVERSED,
         OP_KEYS_PROCESSED, OP_VERSION_STABLE, OP_VERSION_TRANSIENT,
 
-        OP_MAINTENANCE_TX
+        OP_MAINTENANCE_TX, OP_ROOT_CACHE_HIT, OP_ROOT_CACHE_MISS
     }
 
     enum GlobalOperation {
@@ -29,7 +29,8 @@ public interface Statistics {
 
     enum Value {
         VAL_SPLIT_RATIO, VAL_SPLIT_OVERLAP_AREA, VAL_SPLIT_OVERLAP_RATIO, VAL_PAGE_FILL_RATIO,
-        VAL_LEAF_PAGE_FILL_RATIO, VAL_INDEX_PAGE_FILL_RATIO
+        VAL_LEAF_PAGE_FILL_RATIO, VAL_INDEX_PAGE_FILL_RATIO, VAL_MAINTENANCE_QUEUE_DEPTH,
+        VAL_MAINTENANCE_LAG
     }
 
     long getActionCount();
@@ -0,0 +1,135 @@
+package fi.hut.cs.treelib.storage;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Background writer for the page buffer. The writer thread keeps a target
+ * fraction of the buffer frames clean by writing dirty, unfixed pages to the
+ * page storage ahead of their eviction, so that evictions do not need to do
+ * synchronous writes on the critical path of a page fix. The pages are
+ * written in page ID order, so that the writes are as sequential as possible.
+ * 
+ * <p>
+ * The writer wakes up periodically, and whenever the page buffer has to
+ * write a dirty page during an eviction.
+ * 
+ * <p>
+ * Page buffers that have page flush listeners (such as the TSB database) are
+ * not written in the background, because the listeners must run on the
+ * threads that use the tree.
+ * 
+ * @author thaapasa
+ */
+public class BackgroundPageWriter implements Runnable {
+
+    private static final Logger log = Logger.getLogger(BackgroundPageWriter.class);
+
+    /** Target ratio of clean pages in the buffer (0-1). */
+    private final double cleanTarget;
+    /** Wake-up interval, in milliseconds. */
+    private final long interval;
+    /** Maximum amount of pages written in one batch. */
+    private final int batchSize;
+
+    private PageBuffer buffer;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    private final Object signal = new Object();
+    private boolean signalled = false;
+
+    public BackgroundPageWriter() {
+        this(0.5, 100, 64);
+    }
+
+    public BackgroundPageWriter(double cleanTarget, long interval, int batchSize) {
+        if (cleanTarget < 0 || cleanTarget > 1)
+            throw new IllegalArgumentException("Clean target must be between 0 and 1 (was "
+                + cleanTarget + ")");
+        this.cleanTarget = cleanTarget;
+        this.interval = interval;
+        this.batchSize = batchSize;
+    }
+
+    public double getCleanTarget() {
+        return cleanTarget;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Starts the writer thread for the given page buffer.
+     */
+    synchronized void start(PageBuffer buffer) {
+        if (thread != null)
+            return;
+        this.buffer = buffer;
+        this.running = true;
+        this.thread = new Thread(this, "PageWriter-" + buffer.getPageStorage());
+        this.thread.setDaemon(true);
+        this.thread.start();
+        log.info("Started background page writer, clean target " + cleanTarget);
+    }
+
+    /**
+     * Stops the writer thread and waits for it to finish the current batch.
+     */
+    synchronized void stop() {
+        if (thread == null)
+            return;
+        running = false;
+        wakeUp();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        log.info("Stopped background page writer");
+    }
+
+    /**
+     * Wakes up the writer thread, if it is waiting.
+     */
+    void wakeUp() {
+        synchronized (signal) {
+            signalled = true;
+            signal.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                synchronized (signal) {
+                    if (!signalled)
+                        signal.wait(interval);
+                    signalled = false;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!running)
+                break;
+
+            try {
+                int written;
+                do {
+                    written = buffer.cleanPages(cleanTarget, batchSize);
+                } while (running && written >= batchSize);
+            } catch (RuntimeException e) {
+                log.error("Error when writing pages in the background: " + e, e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Background page writer, clean target %.2f, interval %d ms",
+            cleanTarget, interval);
+    }
+
+}
@@ -0,0 +1,160 @@
+package fi.hut.cs.treelib.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.hut.cs.treelib.PageID;
+
+/**
+ * A single frame (buffer slot) of the page buffer. The frame holds the page
+ * data area and the page object that is currently loaded into it.
+ *
+ * <p>
+ * The fix count doubles as the frame state: a non-negative value means that
+ * a page is resident and the value is the number of fixes on it; the value
+ * {@link #RESERVED} means that the frame is exclusively owned by a single
+ * thread (it is free, being loaded, being evicted or being deleted) and
+ * cannot be fixed.
+ *
+ * @author thaapasa
+ */
+class BufferFrame {
+
+    /** Fix count value of frames that are not available for fixing. */
+    static final int RESERVED = -1;
+
+    private final int index;
+    private final ByteBuffer data;
+    private final AtomicInteger fixCount = new AtomicInteger(RESERVED);
+
+    private volatile PageID pageID;
+    private volatile StoredPage page;
+    /** The data area of the current page; either data or a storage view. */
+    private volatile ByteBuffer pageData;
+
+    BufferFrame(int index, ByteBuffer data) {
+        this.index = index;
+        this.data = data;
+        this.pageData = data;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    ByteBuffer getData() {
+        return data;
+    }
+
+    /**
+     * @return the data area of the page that is currently in the frame
+     */
+    ByteBuffer getPageData() {
+        return pageData;
+    }
+
+    /**
+     * Attaches a storage view as the data area of the page that is loaded
+     * into a reserved frame.
+     */
+    void attach(ByteBuffer view) {
+        assert fixCount.get() == RESERVED : this;
+        this.pageData = view;
+    }
+
+    /**
+     * @return true if the page data of this frame is a view to the storage
+     */
+    boolean isStorageView() {
+        return pageData != data;
+    }
+
+    PageID getPageID() {
+        return pageID;
+    }
+
+    StoredPage getPage() {
+        return page;
+    }
+
+    int getFixCount() {
+        return fixCount.get();
+    }
+
+    /**
+     * Installs a page to a reserved frame and publishes it with one fix.
+     */
+    void install(StoredPage page) {
+        assert fixCount.get() == RESERVED : this;
+        this.pageID = page.getPageID();
+        this.page = page;
+        // The volatile write publishes the page fields above
+        fixCount.set(1);
+    }
+
+    /**
+     * Clears the page from a reserved frame, so that the frame can be reused.
+     */
+    void release() {
+        assert fixCount.get() == RESERVED : this;
+        this.page = null;
+        this.pageID = null;
+        this.pageData = data;
+    }
+
+    /**
+     * Tries to add a fix to the frame. Fails if the frame is reserved.
+     * Callers must check that the frame still holds the requested page after
+     * a successful fix.
+     */
+    boolean tryFix() {
+        while (true) {
+            int c = fixCount.get();
+            if (c < 0)
+                return false;
+            if (fixCount.compareAndSet(c, c + 1))
+                return true;
+        }
+    }
+
+    /**
+     * @return the remaining fix count
+     */
+    int unfix() {
+        int c = fixCount.decrementAndGet();
+        assert c >= 0 : "Page " + pageID + " unfixed too many times";
+        return c;
+    }
+
+    /**
+     * Reserves an unfixed frame for eviction.
+     *
+     * @return true if the frame had no fixes and is now reserved
+     */
+    boolean tryReserve() {
+        return fixCount.compareAndSet(0, RESERVED);
+    }
+
+    /**
+     * Reserves a frame that the caller has the only fix on.
+     *
+     * @return true if the frame had exactly one fix and is now reserved
+     */
+    boolean tryReserveFixed() {
+        return fixCount.compareAndSet(1, RESERVED);
+    }
+
+    /**
+     * Returns a reserved frame back to the normal, unfixed state.
+     */
+    void unreserve() {
+        boolean success = fixCount.compareAndSet(RESERVED, 0);
+        assert success : this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Frame %d: page %s, fixes %d", index, pageID, fixCount.get());
+    }
+
+}
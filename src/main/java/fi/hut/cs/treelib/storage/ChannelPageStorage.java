@@ -0,0 +1,167 @@
+package fi.hut.cs.treelib.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.PageID;
+
+/**
+ * Stores the pages in a file, using the positional read and write methods of
+ * a FileChannel. Unlike FilePageStorage, the page loads and saves are not
+ * synchronized: positional channel I/O does not move a shared file pointer,
+ * so several page misses can be served concurrently.
+ * 
+ * <p>
+ * The buffer pages do not need to be backed by an array, so this storage
+ * can also be used with direct (off-heap) buffer pages.
+ * 
+ * @author thaapasa
+ */
+public class ChannelPageStorage implements PageStorage {
+
+    private static final Logger log = Logger.getLogger(ChannelPageStorage.class);
+
+    private static final String FILE_MODE = "rw";
+    private final File fileName;
+    private RandomAccessFile file = null;
+    private volatile FileChannel channel = null;
+
+    private final int pageSize;
+
+    public ChannelPageStorage(int pageSize, File fileName) {
+        this.fileName = fileName;
+        this.pageSize = pageSize;
+    }
+
+    public File getFile() {
+        return fileName;
+    }
+
+    @Override
+    public void deletePage(PageID pageID) {
+        // Nothing to do
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    private long getPagePosition(PageID pageID) {
+        assert pageID != null;
+        return (long) pageID.intValue() * pageSize;
+    }
+
+    /**
+     * Called from page factory to load a page
+     */
+    @Override
+    public void loadPage(PageID pageID, ByteBuffer bufferPage) throws IOException {
+        assert isInitialized();
+        if (log.isDebugEnabled())
+            log.debug(String.format("Loading page %s from %s", pageID, this));
+        assert pageSize == bufferPage.capacity() : pageSize + " != " + bufferPage.capacity();
+
+        // Use a duplicate so that concurrent readers of the buffer page are
+        // not affected by the position changes
+        ByteBuffer target = bufferPage.duplicate();
+        target.clear();
+        long pagePos = getPagePosition(pageID);
+        while (target.hasRemaining()) {
+            int read = channel.read(target, pagePos + target.position());
+            if (read < 0)
+                break;
+        }
+        // File not initialized this far yet. Fill the rest with zeros.
+        while (target.hasRemaining()) {
+            target.put((byte) 0);
+        }
+    }
+
+    @Override
+    public void savePage(PageID pageID, ByteBuffer bufferPage) throws IOException {
+        assert isInitialized();
+        if (log.isDebugEnabled())
+            log.debug(String.format("Saving page %s to %s", pageID, this));
+        assert pageSize == bufferPage.capacity() : pageSize + " != " + bufferPage.capacity();
+
+        ByteBuffer source = bufferPage.duplicate();
+        source.clear();
+        long pagePos = getPagePosition(pageID);
+        while (source.hasRemaining()) {
+            channel.write(source, pagePos + source.position());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!isInitialized())
+            return;
+        channel = null;
+        // Closing the file closes the channel also
+        file.close();
+        file = null;
+    }
+
+    @Override
+    public synchronized void initialize() throws IOException {
+        assert file == null;
+        // Open file
+        file = new RandomAccessFile(fileName, FILE_MODE);
+        channel = file.getChannel();
+        assert channel != null;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return channel != null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Channel storage, page size %d bytes, file %s", pageSize, fileName);
+    }
+
+    @Override
+    public PageID getMaxPageID() {
+        assert isInitialized();
+        try {
+            long fileSize = channel.size();
+            int pgCount = (int) (fileSize / pageSize);
+            assert fileSize % pageSize == 0 : fileSize + " is not exactly divisible by "
+                + pageSize;
+            // Id of last page is the page count - 1
+            return new PageID(pgCount - 1);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean containsPage(PageID pageID) {
+        assert isInitialized();
+        return pageID.intValue() <= getMaxPageID().intValue();
+    }
+
+    @Override
+    public synchronized boolean clear() {
+        assert isInitialized();
+        try {
+            channel.truncate(0);
+        } catch (IOException e) {
+            log.warn("Could not clear database file: " + e.getMessage(), e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void reservePageID(PageID pageID) {
+        // Nothing required
+    }
+}
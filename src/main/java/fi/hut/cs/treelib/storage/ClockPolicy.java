@@ -0,0 +1,84 @@
+package fi.hut.cs.treelib.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import fi.hut.cs.treelib.PageID;
+
+/**
+ * CLOCK (second chance) replacement. Each frame has a reference bit that is
+ * set when the page is fixed; the clock hand clears the bits and evicts the
+ * first unfixed page whose bit is already clear. Buffer hits only touch the
+ * reference bit of the frame, so this policy takes no locks.
+ * 
+ * @author thaapasa
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private FrameTable frames;
+    private AtomicIntegerArray referenced;
+    private final AtomicInteger hand = new AtomicInteger(0);
+
+    public ClockPolicy() {
+    }
+
+    @Override
+    public void initialize(FrameTable frames) {
+        this.frames = frames;
+        this.referenced = new AtomicIntegerArray(frames.getFrameCount());
+        this.hand.set(0);
+    }
+
+    @Override
+    public void pageFixed(int frame) {
+        // Only write to the shared bit when it actually changes
+        if (referenced.get(frame) == 0)
+            referenced.set(frame, 1);
+    }
+
+    @Override
+    public void pageLoaded(int frame, PageID pageID) {
+        referenced.set(frame, 1);
+    }
+
+    @Override
+    public void pageRemoved(int frame) {
+        referenced.set(frame, 0);
+    }
+
+    @Override
+    public int reserveVictim() {
+        int size = frames.getFrameCount();
+        // Two full passes are enough to find a victim if there are any
+        // unfixed pages
+        for (int step = 0; step < size * 2 + 1; step++) {
+            int frame = nextPosition(size);
+            if (!frames.isUnfixed(frame))
+                continue;
+            if (referenced.get(frame) != 0) {
+                // Second chance
+                referenced.set(frame, 0);
+                continue;
+            }
+            if (frames.tryReserve(frame))
+                return frame;
+        }
+        return -1;
+    }
+
+    private int nextPosition(int size) {
+        int pos = hand.getAndIncrement() % size;
+        return pos < 0 ? pos + size : pos;
+    }
+
+    @Override
+    public String getName() {
+        return "CLOCK";
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " replacement policy";
+    }
+
+}
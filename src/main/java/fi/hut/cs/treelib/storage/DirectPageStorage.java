@@ -0,0 +1,29 @@
+package fi.hut.cs.treelib.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import fi.hut.cs.treelib.PageID;
+
+/**
+ * A page storage that can give direct views to the stored page data. The
+ * page buffer uses the views as the page data areas instead of copying the
+ * page data to its own buffer frames. Page updates go directly to the
+ * storage through the view, so the page buffer does not call savePage() for
+ * pages that are accessed through views.
+ * 
+ * @author thaapasa
+ */
+public interface DirectPageStorage extends PageStorage {
+
+    /**
+     * Returns a view to the stored data of the page. The view has a capacity
+     * of exactly one page, and it is positioned at the start of the page. If
+     * the page does not yet exist, the storage is extended and the returned
+     * page data is cleared.
+     * 
+     * @return the page data view
+     */
+    ByteBuffer getPageView(PageID pageID) throws IOException;
+
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.apache.log4j.Logger;
 
@@ -59,25 +60,60 @@ public class FilePageStorage implements PageStorage {
         assert isInitialized();
         log.debug(String.format("Loading page %s from %s", pageID, this));
         assert pageSize == bufferPage.capacity() : pageSize + " != " + bufferPage.capacity();
+        if (!bufferPage.hasArray()) {
+            loadPageDirect(pageID, bufferPage);
+            return;
+        }
         seekToPage(pageID);
         try {
-            file.readFully(bufferPage.array());
+            file.readFully(bufferPage.array(), bufferPage.arrayOffset(), pageSize);
         } catch (EOFException e) {
             // File not initialized yet. Fill with zeros.
-            byte[] arr = bufferPage.array();
-            for (int i = 0; i < arr.length; i++) {
-                arr[i] = 0;
+            clearPage(bufferPage);
+        }
+    }
+
+    /**
+     * Loads a page into a buffer that is not backed by an array (a direct
+     * buffer).
+     */
+    private void loadPageDirect(PageID pageID, ByteBuffer bufferPage) throws IOException {
+        FileChannel channel = file.getChannel();
+        ByteBuffer target = bufferPage.duplicate();
+        target.clear();
+        long offset = (long) pageID.intValue() * pageSize;
+        while (target.hasRemaining()) {
+            if (channel.read(target, offset + target.position()) < 0) {
+                // File not initialized yet. Fill with zeros.
+                clearPage(bufferPage);
+                return;
             }
         }
     }
 
+    private void clearPage(ByteBuffer bufferPage) {
+        for (int i = 0; i < pageSize; i++) {
+            bufferPage.put(i, (byte) 0);
+        }
+    }
+
     @Override
     public synchronized void savePage(PageID pageID, ByteBuffer bufferPage) throws IOException {
         assert isInitialized();
         log.debug(String.format("Saving page %s to %s", pageID, this));
         assert pageSize == bufferPage.capacity() : pageSize + " != " + bufferPage.capacity();
+        if (!bufferPage.hasArray()) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer source = bufferPage.duplicate();
+            source.clear();
+            long offset = (long) pageID.intValue() * pageSize;
+            while (source.hasRemaining()) {
+                channel.write(source, offset + source.position());
+            }
+            return;
+        }
         seekToPage(pageID);
-        file.write(bufferPage.array());
+        file.write(bufferPage.array(), bufferPage.arrayOffset(), pageSize);
     }
 
     @Override
@@ -0,0 +1,205 @@
+package fi.hut.cs.treelib.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import fi.hut.cs.treelib.PageID;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil & Weikum). The policy evicts the page
+ * whose K:th most recent reference is the oldest. Pages that have been
+ * referenced less than K times have an infinite backward K-distance, and
+ * they are evicted first (in LRU order). With K = 2, pages that a scan
+ * touches only once are evicted before the frequently used index pages.
+ *
+ * <p>
+ * The reference times come from a logical clock that advances on every
+ * reference, loads and buffer hits alike. Hits only advance the clock and
+ * write the history of their own frame, without taking locks. Concurrent
+ * fixes of the same page may lose a history entry, which only makes the
+ * history slightly inaccurate.
+ *
+ * <p>
+ * The eviction candidates are kept in a priority queue ordered by the K:th
+ * reference time. Hits do not reorder the queue; instead, a candidate whose
+ * history has changed since it was queued is queued again with its current
+ * reference times when it reaches the head of the queue. The references only
+ * move forward in time, so the head of the queue is always the correct
+ * victim once it is up to date.
+ *
+ * @author thaapasa
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private FrameTable frames;
+    /**
+     * Reference history: entry [frame * k + i] is the time of the (i+1):th
+     * most recent reference to the page in the frame; zero for no reference.
+     */
+    private AtomicLongArray history;
+    /** Logical time; advanced on every page reference. */
+    private final AtomicLong clock = new AtomicLong(0);
+
+    /** Eviction candidates; guarded by this policy. */
+    private PriorityQueue<Candidate> candidates;
+    /** Load count of each frame, to detect removed pages; guarded by this. */
+    private int[] generation;
+
+    /** An eviction candidate, with the reference times when it was queued. */
+    private static class Candidate implements Comparable<Candidate> {
+        private final int frame;
+        private final int generation;
+        private final long kth;
+        private final long last;
+
+        private Candidate(int frame, int generation, long kth, long last) {
+            this.frame = frame;
+            this.generation = generation;
+            this.kth = kth;
+            this.last = last;
+        }
+
+        @Override
+        public int compareTo(Candidate o) {
+            if (kth != o.kth)
+                return kth < o.kth ? -1 : 1;
+            if (last != o.last)
+                return last < o.last ? -1 : 1;
+            return frame - o.frame;
+        }
+    }
+
+    public LRUKPolicy() {
+        this(DEFAULT_K);
+    }
+
+    public LRUKPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("K must be at least 1 (was " + k + ")");
+        this.k = k;
+    }
+
+    @Override
+    public synchronized void initialize(FrameTable frames) {
+        int size = frames.getFrameCount();
+        this.frames = frames;
+        this.history = new AtomicLongArray(size * k);
+        this.candidates = new PriorityQueue<Candidate>(Math.max(size, 1));
+        this.generation = new int[size];
+        this.clock.set(0);
+    }
+
+    @Override
+    public void pageFixed(int frame) {
+        recordReference(frame, clock.incrementAndGet());
+    }
+
+    @Override
+    public synchronized void pageLoaded(int frame, PageID pageID) {
+        long now = clock.incrementAndGet();
+        clearHistory(frame);
+        recordReference(frame, now);
+        generation[frame]++;
+        candidates.add(createCandidate(frame));
+        if (candidates.size() > generation.length * 2) {
+            purgeRemoved();
+        }
+    }
+
+    @Override
+    public synchronized void pageRemoved(int frame) {
+        // The queued candidate of the frame is discarded when it is dequeued
+        generation[frame]++;
+        clearHistory(frame);
+    }
+
+    private void recordReference(int frame, long now) {
+        int base = frame * k;
+        for (int i = k - 1; i > 0; i--) {
+            history.set(base + i, history.get(base + i - 1));
+        }
+        history.set(base, now);
+    }
+
+    private void clearHistory(int frame) {
+        int base = frame * k;
+        for (int i = 0; i < k; i++) {
+            history.set(base + i, 0);
+        }
+    }
+
+    private Candidate createCandidate(int frame) {
+        int base = frame * k;
+        return new Candidate(frame, generation[frame], history.get(base + k - 1), history
+            .get(base));
+    }
+
+    /**
+     * Removes the candidates of removed pages, so that pages that are
+     * removed without eviction do not make the queue grow.
+     */
+    private void purgeRemoved() {
+        List<Candidate> live = new ArrayList<Candidate>(generation.length);
+        for (Candidate c : candidates) {
+            if (c.generation == generation[c.frame])
+                live.add(c);
+        }
+        candidates.clear();
+        candidates.addAll(live);
+    }
+
+    @Override
+    public synchronized int reserveVictim() {
+        // Fixed pages are set aside and queued again afterwards
+        List<Candidate> fixed = null;
+        int victim = -1;
+        // Buffer hits advance the clock while the lock is held, so a page
+        // that is referenced all the time could be queued again forever.
+        // After this many refreshes the queued reference times are used as
+        // they are; they are then only slightly out of date.
+        int refreshes = generation.length * k;
+        while (victim < 0) {
+            Candidate c = candidates.poll();
+            if (c == null)
+                break;
+            if (c.generation != generation[c.frame])
+                // The page has been removed
+                continue;
+            Candidate current = createCandidate(c.frame);
+            if ((current.kth != c.kth || current.last != c.last) && refreshes > 0) {
+                refreshes--;
+                candidates.add(current);
+                continue;
+            }
+            if (frames.isUnfixed(c.frame) && frames.tryReserve(c.frame)) {
+                victim = c.frame;
+                // Stays queued in case the page is not removed after all
+                candidates.add(current);
+            } else {
+                if (fixed == null)
+                    fixed = new ArrayList<Candidate>();
+                fixed.add(current);
+            }
+        }
+        if (fixed != null)
+            candidates.addAll(fixed);
+        return victim;
+    }
+
+    @Override
+    public String getName() {
+        return "LRU-" + k;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " replacement policy";
+    }
+
+}
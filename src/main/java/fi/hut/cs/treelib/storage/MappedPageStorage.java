@@ -0,0 +1,243 @@
+package fi.hut.cs.treelib.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.PageID;
+
+/**
+ * Stores the pages in a memory-mapped file. The file is mapped in large
+ * segments, and the page buffer accesses the pages through slices of the
+ * mapped segments (see DirectPageStorage), so loading a page does not copy
+ * any data. This storage is intended for read-mostly index files, such as
+ * MVBT and TMVBT files that are mainly used for historical queries.
+ * 
+ * <p>
+ * The file grows in whole segments when pages are accessed past the end of
+ * the mapped area. The logical page count is tracked in memory, so that
+ * containsPage() does not need to query the file size; the file is
+ * truncated to the logical size when the storage is closed.
+ * 
+ * @author thaapasa
+ */
+public class MappedPageStorage implements DirectPageStorage {
+
+    private static final Logger log = Logger.getLogger(MappedPageStorage.class);
+
+    /** Default segment size: 16 MB. */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final String FILE_MODE = "rw";
+    private static final MappedByteBuffer[] NO_SEGMENTS = new MappedByteBuffer[0];
+
+    private final File fileName;
+    private final int pageSize;
+    private final int pagesPerSegment;
+    private final int segmentSize;
+
+    private RandomAccessFile file = null;
+    private FileChannel channel = null;
+    /** Mapped segments; the array is replaced when the mapping grows. */
+    private volatile MappedByteBuffer[] segments = NO_SEGMENTS;
+    /** Amount of pages in the storage. */
+    private final AtomicInteger pageCount = new AtomicInteger(0);
+
+    public MappedPageStorage(int pageSize, File fileName) {
+        this(pageSize, fileName, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize the size of the mapped segments, in bytes. Rounded
+     * down to a multiple of the page size.
+     */
+    public MappedPageStorage(int pageSize, File fileName, int segmentSize) {
+        this.fileName = fileName;
+        this.pageSize = pageSize;
+        this.pagesPerSegment = Math.max(1, segmentSize / pageSize);
+        this.segmentSize = pagesPerSegment * pageSize;
+    }
+
+    public File getFile() {
+        return fileName;
+    }
+
+    @Override
+    public void deletePage(PageID pageID) {
+        // Nothing to do
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the mapped segment that contains the given page, mapping more
+     * of the file if required
+     */
+    private MappedByteBuffer getSegment(int pageIndex) throws IOException {
+        int segment = pageIndex / pagesPerSegment;
+        MappedByteBuffer[] cur = segments;
+        if (segment < cur.length)
+            return cur[segment];
+        return mapSegments(segment);
+    }
+
+    private synchronized MappedByteBuffer mapSegments(int lastSegment) throws IOException {
+        assert isInitialized();
+        MappedByteBuffer[] cur = segments;
+        if (lastSegment < cur.length)
+            return cur[lastSegment];
+
+        MappedByteBuffer[] grown = new MappedByteBuffer[lastSegment + 1];
+        System.arraycopy(cur, 0, grown, 0, cur.length);
+        for (int i = cur.length; i <= lastSegment; i++) {
+            if (log.isDebugEnabled())
+                log.debug(String.format("Mapping segment %d of %s", i, this));
+            // Mapping past the end of the file extends the file
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * segmentSize,
+                segmentSize);
+        }
+        segments = grown;
+        return grown[lastSegment];
+    }
+
+    private ByteBuffer slicePage(PageID pageID) throws IOException {
+        int pageIndex = pageID.intValue();
+        ByteBuffer segment = getSegment(pageIndex).duplicate();
+        int offset = (pageIndex % pagesPerSegment) * pageSize;
+        segment.limit(offset + pageSize);
+        segment.position(offset);
+        return segment.slice();
+    }
+
+    private void extendTo(PageID pageID) {
+        int needed = pageID.intValue() + 1;
+        while (true) {
+            int cur = pageCount.get();
+            if (cur >= needed || pageCount.compareAndSet(cur, needed))
+                return;
+        }
+    }
+
+    @Override
+    public ByteBuffer getPageView(PageID pageID) throws IOException {
+        assert isInitialized();
+        if (log.isDebugEnabled())
+            log.debug(String.format("Mapping page %s from %s", pageID, this));
+        ByteBuffer view = slicePage(pageID);
+        extendTo(pageID);
+        return view;
+    }
+
+    /**
+     * Called from page factory to load a page
+     */
+    @Override
+    public void loadPage(PageID pageID, ByteBuffer bufferPage) throws IOException {
+        assert isInitialized();
+        if (log.isDebugEnabled())
+            log.debug(String.format("Loading page %s from %s", pageID, this));
+        assert pageSize == bufferPage.capacity() : pageSize + " != " + bufferPage.capacity();
+        ByteBuffer target = bufferPage.duplicate();
+        target.clear();
+        if (containsPage(pageID)) {
+            target.put(slicePage(pageID));
+        } else {
+            // Page does not exist yet. Fill with zeros.
+            while (target.hasRemaining()) {
+                target.put((byte) 0);
+            }
+        }
+    }
+
+    @Override
+    public void savePage(PageID pageID, ByteBuffer bufferPage) throws IOException {
+        assert isInitialized();
+        if (log.isDebugEnabled())
+            log.debug(String.format("Saving page %s to %s", pageID, this));
+        assert pageSize == bufferPage.capacity() : pageSize + " != " + bufferPage.capacity();
+        ByteBuffer source = bufferPage.duplicate();
+        source.clear();
+        slicePage(pageID).put(source);
+        extendTo(pageID);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!isInitialized())
+            return;
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        segments = NO_SEGMENTS;
+        // Cut off the unused part of the last mapped segment
+        channel.truncate((long) pageCount.get() * pageSize);
+        file.close();
+        file = null;
+        channel = null;
+    }
+
+    @Override
+    public synchronized void initialize() throws IOException {
+        assert file == null;
+        // Open file
+        file = new RandomAccessFile(fileName, FILE_MODE);
+        channel = file.getChannel();
+        long fileSize = channel.size();
+        assert fileSize % pageSize == 0 : fileSize + " is not exactly divisible by " + pageSize;
+        pageCount.set((int) (fileSize / pageSize));
+        segments = NO_SEGMENTS;
+        // Map the existing pages up front
+        if (pageCount.get() > 0)
+            mapSegments((pageCount.get() - 1) / pagesPerSegment);
+    }
+
+    @Override
+    public synchronized boolean isInitialized() {
+        return file != null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Mapped storage, page size %d bytes, segment size %d bytes, file %s",
+            pageSize, segmentSize, fileName);
+    }
+
+    @Override
+    public PageID getMaxPageID() {
+        // Id of last page is the page count - 1
+        return new PageID(pageCount.get() - 1);
+    }
+
+    @Override
+    public boolean containsPage(PageID pageID) {
+        return pageID.intValue() < pageCount.get();
+    }
+
+    @Override
+    public synchronized boolean clear() {
+        assert isInitialized();
+        try {
+            segments = NO_SEGMENTS;
+            pageCount.set(0);
+            channel.truncate(0);
+        } catch (IOException e) {
+            log.warn("Could not clear database file: " + e.getMessage(), e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void reservePageID(PageID pageID) {
+        // Nothing required
+    }
+}
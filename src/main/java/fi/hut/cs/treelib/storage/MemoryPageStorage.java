@@ -32,7 +32,7 @@ public class MemoryPageStorage implements PageStorage {
     }
 
     @Override
-    public void deletePage(PageID pageID) {
+    public synchronized void deletePage(PageID pageID) {
         assert isInitialized();
         pages.remove(pageID);
     }
@@ -56,7 +56,7 @@ public class MemoryPageStorage implements PageStorage {
      * Called from page factory to load a page
      */
     @Override
-    public void loadPage(PageID pageID, ByteBuffer bufferPage) {
+    public synchronized void loadPage(PageID pageID, ByteBuffer bufferPage) {
         assert isInitialized();
         log.debug(String.format("Loading page %s from %s", pageID, this));
         assert pageSize == bufferPage.capacity() : pageSize + " != " + bufferPage.capacity();
@@ -64,21 +64,22 @@ public class MemoryPageStorage implements PageStorage {
         if (localData != null) {
             log.debug(String.format("Loading page %s data from memory storage", pageID));
             // Copy page data to buffer page
-            System.arraycopy(localData, 0, bufferPage.array(), 0, pageSize);
+            ByteBuffer target = bufferPage.duplicate();
+            target.clear();
+            target.put(localData);
         } else {
             // This creates the local buffer page. Might not actually be
             // necessary.
             // localData = getBufferPage(pageID);
             log.debug(String.format("Page %s does not yet exist, clearing buffer page", pageID));
             // New page, clear it to zeroes
-            byte[] arr = bufferPage.array();
-            for (int i = 0; i < arr.length; i++)
-                arr[i] = 0;
+            for (int i = 0; i < pageSize; i++)
+                bufferPage.put(i, (byte) 0);
         }
     }
 
     @Override
-    public void savePage(PageID pageID, ByteBuffer bufferPage) {
+    public synchronized void savePage(PageID pageID, ByteBuffer bufferPage) {
         assert isInitialized();
         log.debug(String.format("Saving page %s to %s", pageID, this));
         assert pageSize == bufferPage.capacity() : pageSize + " != " + bufferPage.capacity();
@@ -87,7 +88,9 @@ public class MemoryPageStorage implements PageStorage {
         byte[] localData = getBufferPage(pageID);
 
         // Copy the buffer page to the local data storage
-        System.arraycopy(bufferPage.array(), 0, localData, 0, pageSize);
+        ByteBuffer source = bufferPage.duplicate();
+        source.clear();
+        source.get(localData);
     }
 
     @Override
@@ -101,13 +104,13 @@ public class MemoryPageStorage implements PageStorage {
     }
 
     @Override
-    public String toString() {
+    public synchronized String toString() {
         return String.format("Memory storage, page size %d bytes (stored %d pages), id %d",
             pageSize, pages.size(), hashCode());
     }
 
     @Override
-    public PageID getMaxPageID() {
+    public synchronized PageID getMaxPageID() {
         assert isInitialized();
         if (pages.isEmpty())
             return PageID.INVALID_PAGE_ID;
@@ -115,21 +118,21 @@ public class MemoryPageStorage implements PageStorage {
     }
 
     @Override
-    public boolean containsPage(PageID pageID) {
+    public synchronized boolean containsPage(PageID pageID) {
         assert isInitialized();
         assert pageID != null;
         return pages.containsKey(pageID);
     }
 
     @Override
-    public boolean clear() {
+    public synchronized boolean clear() {
         assert isInitialized();
         pages.clear();
         return true;
     }
 
     @Override
-    public void reservePageID(PageID pageID) {
+    public synchronized void reservePageID(PageID pageID) {
         getBufferPage(pageID);
     }
 
@@ -2,12 +2,19 @@ package fi.hut.cs.treelib.storage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
@@ -25,9 +32,7 @@ import fi.hut.cs.treelib.stats.StatisticsLogger;
 import fi.hut.cs.treelib.stats.Statistics.Operation;
 import fi.tuska.util.AssertionSupport;
 import fi.tuska.util.Callback;
-import fi.tuska.util.FixableLeakingMap;
 import fi.tuska.util.Holder;
-import fi.tuska.util.Pair;
 
 /**
  * Page buffer reserves pages 0, x, 2x, 3x etc. for storing the
@@ -36,6 +41,14 @@ import fi.tuska.util.Pair;
  * 8192, etc. are reserved. All other pages are free for use.
  * 
  * <p>
+ * The page buffer can be used concurrently from several threads. Fixing a
+ * page that is already resident in the buffer does not take any locks: the
+ * page table is a concurrent map and the fix counts of the buffer frames are
+ * atomic counters. Loading a page from the storage is serialized only with
+ * other loads that hash to the same load lock stripe. Victim frames are
+ * selected with a clock sweep over the unfixed frames.
+ * 
+ * <p>
  * The page buffer also contains convenience methods for using the latch
  * manager to latch and unlatch pages.
  * 
@@ -49,24 +62,45 @@ public class PageBuffer implements Component {
      */
     private static final boolean WRITE_CLEAN_PAGES = false;
 
+    /**
+     * Maximum size of a single direct memory block that backs the buffer
+     * frames (64 MB).
+     */
+    private static final int DIRECT_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    /** Amount of lock stripes used to serialize page loads. */
+    private static final int LOAD_LOCK_STRIPES = 32;
+
     private static final Owner BUFFER_INTERNAL_OWNER = new OwnerImpl("PageBuffer-internal");
 
     private final int bufferSize;
     private final int pageSize;
     private final PageStorage storage;
-    /** Key: page id, Contents: page and buffer position index */
-    private final FixableLeakingMap<PageID, Pair<StoredPage, Integer>> pageBuffer;
-    private final LinkedList<Integer> freeBufferList = new LinkedList<Integer>();
+    /** Key: page id, Contents: the buffer frame that holds the page */
+    private final ConcurrentMap<PageID, BufferFrame> pageTable;
+    private final Queue<BufferFrame> freeFrames = new ConcurrentLinkedQueue<BufferFrame>();
+    private final BufferFrame[] frames;
+    private final Lock[] loadLocks;
+    private final ReplacementPolicy.FrameTable frameTable = new FrameTableImpl();
+    private volatile ReplacementPolicy replacementPolicy = new ClockPolicy();
+    /** Background page writer; null if pages are only written when evicted. */
+    private volatile BackgroundPageWriter pageWriter = null;
+    /** Held while pages are written in batches, to make flush() a barrier. */
+    private final Lock writeBatchLock = new ReentrantLock();
+    /** Guards the page allocation map updates. */
+    private final Object allocationLock = new Object();
     private final PageFactory<PageAllocationMap> mapFactory;
-    private final byte[][] bufferData;
-    private final ByteBuffer[] buffer;
+    /** Page data areas of the buffer frames. */
+    private ByteBuffer[] bufferData;
+    /** True if the frames are backed by direct (off-heap) memory. */
+    private boolean directFrames = false;
     private final LatchManager latchManager;
     private static final Logger log = Logger.getLogger(PageBuffer.class);
 
-    private static final Map<Integer, PageFactory<?>> registeredFactories = new HashMap<Integer, PageFactory<?>>();
+    private static final Map<Integer, PageFactory<?>> registeredFactories = new ConcurrentHashMap<Integer, PageFactory<?>>();
 
     /** Listeners for page flush events. */
-    private List<PageFlushListener> flushListeners = new ArrayList<PageFlushListener>(3);
+    private List<PageFlushListener> flushListeners = new CopyOnWriteArrayList<PageFlushListener>();
 
     private StatisticsLogger stats = NoStatistics.instance();
 
@@ -75,23 +109,16 @@ public class PageBuffer implements Component {
         this.pageSize = storage.getPageSize();
         this.storage = storage;
         this.mapFactory = new PageAllocationMapFactory(pageSize);
-        this.bufferData = new byte[bufferSize][pageSize];
-        this.buffer = new ByteBuffer[bufferSize];
+        this.bufferData = allocateBufferData(false);
+        this.frames = new BufferFrame[bufferSize];
         this.latchManager = latchManager;
-        // Create the page buffer
-        this.pageBuffer = new FixableLeakingMap<PageID, Pair<StoredPage, Integer>>(bufferSize);
-        this.pageBuffer
-            .addLeakEventListener(new FixableLeakingMap.LeakEventListener<PageID, Pair<StoredPage, Integer>>() {
-                @Override
-                public void itemLeaked(PageID pageID, Pair<StoredPage, Integer> data) {
-                    StoredPage page = data.getFirst();
-                    int bufferIndex = data.getSecond();
-                    if (log.isDebugEnabled())
-                        log.debug("Leaking page " + pageID + " at buffer id " + bufferIndex);
-                    flushPage(page, bufferIndex);
-                    freeBufferList.add(bufferIndex);
-                }
-            });
+        // Create the page table
+        this.pageTable = new ConcurrentHashMap<PageID, BufferFrame>(bufferSize * 2, 0.75f,
+            LOAD_LOCK_STRIPES);
+        this.loadLocks = new Lock[LOAD_LOCK_STRIPES];
+        for (int i = 0; i < LOAD_LOCK_STRIPES; i++) {
+            loadLocks[i] = new ReentrantLock();
+        }
 
         registerPageFactory(mapFactory);
         clearStructures();
@@ -114,18 +141,110 @@ public class PageBuffer implements Component {
         return pageSize;
     }
 
+    public ReplacementPolicy getReplacementPolicy() {
+        return replacementPolicy;
+    }
+
+    /**
+     * Changes the page replacement policy. The pages that are already in the
+     * buffer are registered to the new policy as if they had just been
+     * loaded.
+     */
+    public void setReplacementPolicy(ReplacementPolicy policy) {
+        policy.initialize(frameTable);
+        for (BufferFrame frame : frames) {
+            PageID pageID = frame.getPageID();
+            if (pageID != null && frame.getFixCount() >= 0)
+                policy.pageLoaded(frame.getIndex(), pageID);
+        }
+        this.replacementPolicy = policy;
+        log.info(String.format("Using %s for %s", policy, this));
+    }
+
+    public BackgroundPageWriter getPageWriter() {
+        return pageWriter;
+    }
+
+    /**
+     * Sets the background page writer. The writer is started when the page
+     * buffer is initialized, and stopped when the page buffer is closed.
+     * 
+     * @param writer the page writer; or null to stop writing pages in the
+     * background
+     */
+    public void setPageWriter(BackgroundPageWriter writer) {
+        if (pageWriter != null)
+            pageWriter.stop();
+        this.pageWriter = writer;
+        if (writer != null && isInitialized())
+            writer.start(this);
+    }
+
+    public boolean isDirectFrames() {
+        return directFrames;
+    }
+
+    /**
+     * Selects whether the buffer frames are backed by direct (off-heap)
+     * memory instead of heap byte arrays. Direct frames keep large buffers
+     * out of the garbage-collected heap. Can only be changed when there are
+     * no pages in the buffer.
+     */
+    public void setDirectFrames(boolean direct) {
+        if (direct == directFrames)
+            return;
+        if (getPagesInBuffer() > 0) {
+            throw new IllegalStateException("Cannot change frame memory when pages are in buffer: "
+                + this);
+        }
+        this.bufferData = allocateBufferData(direct);
+        this.directFrames = direct;
+        clearStructures();
+        log.info(String.format("Using %s frames for %s", direct ? "direct" : "heap", this));
+    }
+
+    /**
+     * Allocates the page data areas for the buffer frames. Direct frames are
+     * sliced from a few large direct memory blocks.
+     */
+    private ByteBuffer[] allocateBufferData(boolean direct) {
+        ByteBuffer[] data = new ByteBuffer[bufferSize];
+        if (!direct) {
+            for (int i = 0; i < bufferSize; i++) {
+                data[i] = ByteBuffer.wrap(new byte[pageSize]);
+            }
+            return data;
+        }
+        int framesPerBlock = Math.max(1, DIRECT_BLOCK_SIZE / pageSize);
+        ByteBuffer block = null;
+        for (int i = 0; i < bufferSize; i++) {
+            int offset = i % framesPerBlock;
+            if (offset == 0) {
+                int blockFrames = Math.min(framesPerBlock, bufferSize - i);
+                block = ByteBuffer.allocateDirect(blockFrames * pageSize);
+            }
+            block.limit((offset + 1) * pageSize);
+            block.position(offset * pageSize);
+            data[i] = block.slice();
+        }
+        return data;
+    }
+
     public void clearStructures() {
-        freeBufferList.clear();
-        pageBuffer.clear();
-        // Initialize buffer pages
-        // Mark the pages as free, and allocate ByteBuffer objects
+        freeFrames.clear();
+        pageTable.clear();
+        // Initialize buffer frames
+        // Mark the frames as free, and allocate ByteBuffer objects
         for (int i = 0; i < bufferSize; i++) {
-            // Add all pages to the free buffer page list
-            freeBufferList.addLast(i);
-            this.buffer[i] = ByteBuffer.wrap(this.bufferData[i]);
-            assert this.buffer[i].capacity() == pageSize;
-            assert this.buffer[i].remaining() == pageSize;
+            ByteBuffer data = this.bufferData[i];
+            data.clear();
+            assert data.capacity() == pageSize;
+            assert data.remaining() == pageSize;
+            this.frames[i] = new BufferFrame(i, data);
+            // Add all frames to the free frame list
+            freeFrames.add(this.frames[i]);
         }
+        replacementPolicy.initialize(frameTable);
     }
 
     public boolean clear() {
@@ -148,6 +267,8 @@ public class PageBuffer implements Component {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        if (pageWriter != null)
+            pageWriter.start(this);
     }
 
     public boolean isInitialized() {
@@ -158,12 +279,23 @@ public class PageBuffer implements Component {
         return storage;
     }
 
+    /**
+     * @return a summary of the pages that are currently fixed, with the fix
+     * counts
+     */
     public String getPageFixSummary() {
-        return pageBuffer.getEntryFixSummary();
+        SortedMap<PageID, Integer> fixes = new TreeMap<PageID, Integer>();
+        for (BufferFrame frame : frames) {
+            PageID pageID = frame.getPageID();
+            int fixCount = frame.getFixCount();
+            if (pageID != null && fixCount > 0)
+                fixes.put(pageID, fixCount);
+        }
+        return fixes.toString();
     }
 
     public boolean containsPage(PageID pageID) {
-        return pageBuffer.contains(pageID);
+        return pageTable.containsKey(pageID);
     }
 
     /**
@@ -174,80 +306,129 @@ public class PageBuffer implements Component {
      * counts as two)
      */
     public int getTotalPageFixes() {
-        return pageBuffer.getTotalFixCount();
+        int total = 0;
+        for (BufferFrame frame : frames) {
+            int fixCount = frame.getFixCount();
+            if (fixCount > 0)
+                total += fixCount;
+        }
+        return total;
     }
 
     public int getPagesInBuffer() {
-        return pageBuffer.getSize();
+        return pageTable.size();
     }
 
-    public synchronized void flush(boolean removeUnfixed) {
-        log.debug("Flushing entire page buffer");
-        List<Pair<StoredPage, Integer>> removePages = null;
-        if (removeUnfixed)
-            removePages = new ArrayList<Pair<StoredPage, Integer>>(pageBuffer.getSize());
-
-        for (PageID pageID : pageBuffer.keySet()) {
-            Pair<StoredPage, Integer> data = pageBuffer.get(pageID);
-            assert !freeBufferList.contains(data.getSecond()) : data;
-
-            StoredPage page = data.getFirst();
-            int bufferIndex = data.getSecond();
-
-            flushPage(page, bufferIndex);
-            pageBuffer.unfix(pageID);
-
-            if (removeUnfixed && !pageBuffer.isFixed(pageID))
-                removePages.add(data);
+    /**
+     * @return the amount of dirty pages in the buffer
+     */
+    public int getDirtyPageCount() {
+        int count = 0;
+        for (BufferFrame frame : frames) {
+            StoredPage page = frame.getPage();
+            if (page != null && page.isDirty())
+                count++;
         }
+        return count;
+    }
 
-        if (removeUnfixed) {
-            log.debug("Removing unfixed pages");
-            // Remove all unfixed pages in the pageIDs array
-            for (Pair<StoredPage, Integer> data : removePages) {
-                StoredPage page = data.getFirst();
-                int bufferIndex = data.getSecond();
-
-                assert !pageBuffer.isFixed(page.getPageID()) : page.getPageID();
-
-                int s = pageBuffer.getSize();
-                removePage(page, bufferIndex);
-                assert pageBuffer.getSize() == s - 1 : "Total space should be " + (s - 1)
-                    + ", is " + pageBuffer.getSize();
+    /**
+     * Flushes all pages to the page storage. Waits for the background page
+     * writer to finish its current batch, so all the pages that are in the
+     * buffer when this method is called have been written when it returns.
+     */
+    public void flush(boolean removeUnfixed) {
+        log.debug("Flushing entire page buffer");
+        writeBatchLock.lock();
+        try {
+            for (BufferFrame frame : frames) {
+                if (frame.getPageID() == null)
+                    continue;
+
+                if (removeUnfixed && frame.tryReserve()) {
+                    // Unfixed page, flush and remove it from the buffer
+                    evict(frame);
+                    freeFrames.add(frame);
+                } else if (frame.tryFix()) {
+                    if (frame.getPageID() != null)
+                        flushFrame(frame);
+                    frame.unfix();
+                }
             }
+        } finally {
+            writeBatchLock.unlock();
         }
     }
 
     /**
-     * Flushes the given page to page buffer and to the page storage.
+     * Writes dirty, unfixed pages to the page storage so that (if possible)
+     * at least the given ratio of the buffer frames is clean. The pages are
+     * written in page ID order. Called by the background page writer.
+     * 
+     * <p>
+     * Nothing is written if page flush listeners are registered. The
+     * listeners update the state of the tree that owns the pages (for
+     * example, the TSB VTT), so they may only be run by the threads that use
+     * the tree; such pages are written when they are evicted or flushed.
+     * 
+     * @param cleanTarget the target ratio of clean frames (0-1)
+     * @param maxPages the maximum amount of pages to write
+     * @return the amount of pages written
      */
-    public synchronized void flushPage(StoredPage page, int bufferIndex) {
-        if (log.isDebugEnabled())
-            log.debug(String.format("Flushing page %s", page.getPageID()));
-
-        // Inform listeners that page is about to be flushed
-        for (PageFlushListener listener : flushListeners) {
-            listener.prepareForFlush(page);
-        }
-
-        if (WRITE_CLEAN_PAGES || page.isDirty()) {
-            // Flush page data to buffer page (if it's not already updated)
-            buffer[bufferIndex].rewind();
-            page.savePageData();
-            page.setDirty(false);
-
-            // Store buffer page data to storage area
-            try {
-                stats.log(Operation.OP_BUFFER_WRITE);
-                buffer[bufferIndex].rewind();
-                storage.savePage(page.getPageID(), buffer[bufferIndex]);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    int cleanPages(double cleanTarget, int maxPages) {
+        if (!flushListeners.isEmpty())
+            return 0;
+        writeBatchLock.lock();
+        try {
+            // Snapshot the dirty pages, sorted by page ID
+            SortedMap<PageID, BufferFrame> dirty = new TreeMap<PageID, BufferFrame>();
+            for (BufferFrame frame : frames) {
+                PageID pageID = frame.getPageID();
+                StoredPage page = frame.getPage();
+                if (pageID != null && page != null && page.isDirty())
+                    dirty.put(pageID, frame);
             }
+            int allowedDirty = (int) (bufferSize * (1 - cleanTarget));
+            int toWrite = Math.min(dirty.size() - allowedDirty, maxPages);
+            int written = 0;
+            for (Entry<PageID, BufferFrame> entry : dirty.entrySet()) {
+                if (written >= toWrite)
+                    break;
+                BufferFrame frame = entry.getValue();
+                // Reserve the frame so that the page cannot be fixed (and
+                // modified) while it is being written; skip fixed pages
+                if (!frame.tryReserve())
+                    continue;
+                try {
+                    StoredPage page = frame.getPage();
+                    if (entry.getKey().equals(frame.getPageID()) && page.isDirty()) {
+                        flushFrame(frame);
+                        written++;
+                    }
+                } finally {
+                    frame.unreserve();
+                }
+            }
+            if (written > 0 && log.isDebugEnabled())
+                log.debug(String.format("Wrote %d pages in the background", written));
+            return written;
+        } finally {
+            writeBatchLock.unlock();
         }
     }
 
-    public synchronized void close() throws IOException {
+    /**
+     * Flushes the given page to page buffer and to the page storage.
+     */
+    public void flushPage(StoredPage page, int bufferIndex) {
+        BufferFrame frame = frames[bufferIndex];
+        assert frame.getPage() == page : page + " is not in " + frame;
+        flushFrame(frame);
+    }
+
+    public void close() throws IOException {
+        if (pageWriter != null)
+            pageWriter.stop();
         flush(false);
         storage.close();
     }
@@ -256,8 +437,8 @@ public class PageBuffer implements Component {
      * For debugging, prints the fix state of the map.
      */
     @Override
-    public synchronized void printDebugInfo() {
-        pageBuffer.printFixes(System.out);
+    public void printDebugInfo() {
+        System.out.println("Page fixes: " + getPageFixSummary());
         int totalPages = countUsedPages();
         System.out.println("Total pages in storage: " + totalPages);
         if (totalPages < 10) {
@@ -292,17 +473,15 @@ public class PageBuffer implements Component {
      * @return the fixed page
      */
     @SuppressWarnings("unchecked")
-    public synchronized <T extends StoredPage> T fixPage(PageID pageID, PageFactory<T> factory,
+    public <T extends StoredPage> T fixPage(PageID pageID, PageFactory<T> factory,
         boolean createNewPage, Owner owner) {
         if (log.isDebugEnabled())
             log.debug(String.format("Fixing page %s to page buffer", pageID));
 
         stats.log(Operation.OP_BUFFER_FIX);
-        // pageBuffer.get() fixes the page
-        Pair<StoredPage, Integer> data = pageBuffer.get(pageID);
-        if (data != null) {
+        StoredPage page = fixResidentPage(pageID);
+        if (page != null) {
             // Page found from buffer
-            StoredPage page = data.getFirst();
             if (log.isDebugEnabled())
                 logOperation("Found", pageID);
             return (T) page;
@@ -316,16 +495,14 @@ public class PageBuffer implements Component {
      * @param pageID the page to fix
      * @return the fixed page; or null, if no such page exists
      */
-    public synchronized StoredPage fixPage(PageID pageID, Owner owner) {
+    public StoredPage fixPage(PageID pageID, Owner owner) {
         if (log.isDebugEnabled())
             log.debug(String.format("Fixing page %s to page buffer", pageID));
 
         stats.log(Operation.OP_BUFFER_FIX);
-        // pageBuffer.get() fixes the page
-        Pair<StoredPage, Integer> data = pageBuffer.get(pageID);
-        if (data != null) {
+        StoredPage page = fixResidentPage(pageID);
+        if (page != null) {
             // Page found from buffer
-            StoredPage page = data.getFirst();
             if (log.isDebugEnabled())
                 logOperation("Found", pageID);
             return page;
@@ -336,29 +513,33 @@ public class PageBuffer implements Component {
     /**
      * @return the newly created page, with one fix to the buffer.
      */
-    public synchronized <T extends StoredPage> T createPage(PageFactory<T> factory, Owner owner) {
+    public <T extends StoredPage> T createPage(PageFactory<T> factory, Owner owner) {
         PageID newPageID = reserveNewPageID(owner);
 
         stats.log(Operation.OP_SPACEMAP_ALLOCATE);
-        pageBuffer.ensureCapacity();
+        BufferFrame frame = acquireFrame(newPageID);
 
         // Load the page data
-        int bufferID = 0;
+        ByteBuffer data;
         try {
-            bufferID = loadPageIntoBuffer(newPageID);
+            data = loadPageData(newPageID, frame);
         } catch (IOException e) {
+            freeFrame(frame);
             throw new RuntimeException(e);
         }
         // Create empty page
         final T page = factory.createEmptyPage(newPageID);
         // Format the page as a new page
-        buffer[bufferID].clear();
-        page.formatNewPage(buffer[bufferID]);
+        data.clear();
+        page.formatNewPage(data);
         // New pages are dirty so they are saved
         page.setDirty(true);
 
         // Add the page to the buffer
-        pageBuffer.put(newPageID, new Pair<StoredPage, Integer>(page, bufferID));
+        frame.install(page);
+        replacementPolicy.pageLoaded(frame.getIndex(), newPageID);
+        BufferFrame old = pageTable.putIfAbsent(newPageID, frame);
+        assert old == null : "Page " + newPageID + " already in buffer: " + old;
 
         if (log.isDebugEnabled())
             logOperation("Created", newPageID);
@@ -369,17 +550,20 @@ public class PageBuffer implements Component {
      * Requires that the page is fixed, and that no other thread has a fix on
      * it.
      */
-    public synchronized void delete(StoredPage page, Owner owner) {
+    public void delete(StoredPage page, Owner owner) {
         delete(page.getPageID(), owner);
     }
 
     private void clearInternal(PageID pageID) {
-        Pair<StoredPage, Integer> data = pageBuffer.get(pageID);
-        // Two unfixes: one for the previous get, one for the caller page fix
-        pageBuffer.unfix(pageID);
-        pageBuffer.unfix(pageID);
+        BufferFrame frame = pageTable.get(pageID);
+        // Take over the caller's fix
+        if (frame == null || !frame.tryReserveFixed()) {
+            throw new IllegalStateException("Page " + pageID
+                + " must have exactly one fix when clearing it");
+        }
         // Remove the page from page buffer
-        removePage(data.getFirst(), data.getSecond());
+        pageTable.remove(pageID, frame);
+        freeFrame(frame);
 
         try {
             storage.deletePage(pageID);
@@ -388,8 +572,8 @@ public class PageBuffer implements Component {
         }
     }
 
-    public synchronized void clear(PageID pageID, Owner owner) {
-        int fixCount = pageBuffer.getFixCount(pageID);
+    public void clear(PageID pageID, Owner owner) {
+        int fixCount = getFixCount(pageID);
         if (fixCount != 1)
             throw new IllegalStateException("Clear() requires exactly one fix on the page (was: "
                 + fixCount + ")");
@@ -398,8 +582,8 @@ public class PageBuffer implements Component {
         clearInternal(pageID);
     }
 
-    public synchronized void delete(PageID pageID, Owner owner) {
-        int fixCount = pageBuffer.getFixCount(pageID);
+    public void delete(PageID pageID, Owner owner) {
+        int fixCount = getFixCount(pageID);
         if (fixCount != 1)
             throw new IllegalStateException(
                 "Delete() requires exactly one fix on the page (was: " + fixCount + ")");
@@ -408,24 +592,41 @@ public class PageBuffer implements Component {
         clearInternal(pageID);
 
         // Delete the page from the page allocation map
-        PageAllocationMap map = getPageAllocationMap(pageID, owner);
-        map.release(pageID);
-        unfix(map, owner);
+        synchronized (allocationLock) {
+            PageAllocationMap map = getPageAllocationMap(pageID, owner);
+            map.release(pageID);
+            unfix(map, owner);
+        }
     }
 
-    public synchronized void readLatch(PageID pageID, Owner owner) {
+    public void readLatch(PageID pageID, Owner owner) {
         latchManager.readLatch(pageID, owner);
     }
 
-    public synchronized void writeLatch(PageID pageID, Owner owner) {
+    public void writeLatch(PageID pageID, Owner owner) {
         latchManager.writeLatch(pageID, owner);
     }
 
-    public synchronized void unlatch(StoredPage page, Owner owner) {
+    /**
+     * Starts an optimistic read of the page; see LatchManager.readStamp().
+     */
+    public long readStamp(PageID pageID) {
+        return latchManager.readStamp(pageID);
+    }
+
+    /**
+     * Validates an optimistic read of the page; see
+     * LatchManager.validate().
+     */
+    public boolean validate(PageID pageID, long stamp) {
+        return latchManager.validate(pageID, stamp);
+    }
+
+    public void unlatch(StoredPage page, Owner owner) {
         latchManager.unlatch(page.getPageID(), owner);
     }
 
-    public synchronized void unlatch(PageID pageID, Owner owner) {
+    public void unlatch(PageID pageID, Owner owner) {
         latchManager.unlatch(pageID, owner);
     }
 
@@ -461,7 +662,7 @@ public class PageBuffer implements Component {
      * Clears the given page path, unfixing all pages on it and removing them
      * from the path.
      */
-    public synchronized <K extends Key<K>, V extends PageValue<?>, P extends Page<K, V>> void unfix(
+    public <K extends Key<K>, V extends PageValue<?>, P extends Page<K, V>> void unfix(
         PagePath<K, V, P> path, Owner owner) {
         if (path == null)
             return;
@@ -476,18 +677,21 @@ public class PageBuffer implements Component {
      * @param page page to unfix. Can be null, in which case the call is
      * ignored.
      */
-    public synchronized void unfix(StoredPage page, Owner owner) {
+    public void unfix(StoredPage page, Owner owner) {
         if (page == null) {
             return;
         }
         unfix(page.getPageID(), owner);
     }
 
-    public synchronized void unfix(PageID pageID, Owner owner) {
+    public void unfix(PageID pageID, Owner owner) {
         if (pageID == null) {
             return;
         }
-        pageBuffer.unfix(pageID);
+        BufferFrame frame = pageTable.get(pageID);
+        if (frame == null)
+            throw new IllegalStateException("Page " + pageID + " is not in the page buffer");
+        frame.unfix();
         if (log.isDebugEnabled())
             logOperation("Unfixed", pageID);
     }
@@ -500,54 +704,113 @@ public class PageBuffer implements Component {
      * if the page was already reserved
      */
     public boolean reservePageID(PageID pageID) {
-        PageAllocationMap map = getPageAllocationMap(pageID, BUFFER_INTERNAL_OWNER);
         boolean wasFree = false;
-        if (map.isFree(pageID)) {
-            map.reserve(pageID);
-            wasFree = true;
+        synchronized (allocationLock) {
+            PageAllocationMap map = getPageAllocationMap(pageID, BUFFER_INTERNAL_OWNER);
+            if (map.isFree(pageID)) {
+                map.reserve(pageID);
+                wasFree = true;
+            }
+            unfix(map, BUFFER_INTERNAL_OWNER);
         }
-        unfix(map, BUFFER_INTERNAL_OWNER);
         storage.reservePageID(pageID);
         return wasFree;
     }
 
     @Override
     public String toString() {
-        return String.format("Pagebuffer, size: %d/%d (fixes: %s, free: %d=%d) (page size: %d)",
-            pageBuffer.getSize(), pageBuffer.getMaximumSize(), getTotalPageFixes(), pageBuffer
-                .getFreeSlots(), freeBufferList.size(), pageSize);
+        return String.format(
+            "Pagebuffer, size: %d/%d (fixes: %s, free: %d) (page size: %d, policy: %s)",
+            pageTable.size(), bufferSize, getTotalPageFixes(), freeFrames.size(), pageSize,
+            replacementPolicy.getName());
     }
 
-    private void removePage(StoredPage page, int bufferIndex) {
-        assert !freeBufferList.contains(bufferIndex) : "Buffer index " + bufferIndex
-            + " already free, page " + page;
-        pageBuffer.remove(page.getPageID());
+    private int getFixCount(PageID pageID) {
+        BufferFrame frame = pageTable.get(pageID);
+        return frame != null ? Math.max(frame.getFixCount(), 0) : 0;
+    }
+
+    /**
+     * Fixes the page if it is resident in the buffer. Does not take any
+     * locks.
+     * 
+     * @return the fixed page; or null, if the page is not resident (or it is
+     * currently being evicted)
+     */
+    private StoredPage fixResidentPage(PageID pageID) {
+        BufferFrame frame = pageTable.get(pageID);
+        if (frame == null || !frame.tryFix())
+            return null;
+        // The frame might have been reused for another page before the fix
+        // took effect
+        if (!pageID.equals(frame.getPageID())) {
+            frame.unfix();
+            return null;
+        }
+        replacementPolicy.pageFixed(frame.getIndex());
+        return frame.getPage();
+    }
+
+    private Lock getLoadLock(PageID pageID) {
+        return loadLocks[(pageID.hashCode() & 0x7fffffff) % LOAD_LOCK_STRIPES];
     }
 
     @SuppressWarnings("unchecked")
     private <T extends StoredPage> T loadPageFromStorage(PageID pageID, PageFactory<T> factory,
         boolean createNewPage) {
-        if (!createNewPage && !storage.containsPage(pageID))
-            return null;
-
-        stats.log(Operation.OP_BUFFER_READ);
-        pageBuffer.ensureCapacity();
-        // ensureCapacity() might actually load the page
-        Pair<StoredPage, Integer> data = pageBuffer.get(pageID);
-        if (data != null) {
-            return (T) data.getFirst();
+        while (true) {
+            StoredPage resident = fixResidentPage(pageID);
+            if (resident != null)
+                return (T) resident;
+            if (pageTable.containsKey(pageID)) {
+                // Page is being evicted by another thread, wait for it to
+                // reach the storage
+                Thread.yield();
+                continue;
+            }
+            if (!createNewPage && !storage.containsPage(pageID))
+                return null;
+
+            // Acquiring a frame might cause a page to flush out, and flush
+            // listeners might actually load this page
+            BufferFrame frame = acquireFrame(pageID);
+            Lock lock = getLoadLock(pageID);
+            lock.lock();
+            boolean loaded = false;
+            try {
+                if (pageTable.containsKey(pageID)) {
+                    // Someone else loaded the page, retry
+                    continue;
+                }
+                stats.log(Operation.OP_BUFFER_READ);
+                T page = loadPageIntoFrame(pageID, factory, createNewPage, frame);
+                pageTable.put(pageID, frame);
+                loaded = true;
+
+                if (log.isDebugEnabled())
+                    logOperation("Loaded", pageID);
+                return page;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                lock.unlock();
+                if (!loaded)
+                    freeFrame(frame);
+            }
         }
+    }
 
-        int bufferID = 0;
-        try {
-            bufferID = loadPageIntoBuffer(pageID);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    @SuppressWarnings("unchecked")
+    private <T extends StoredPage> T loadPageIntoFrame(PageID pageID, PageFactory<T> factory,
+        boolean createNewPage, BufferFrame frame) throws IOException {
+        if (log.isDebugEnabled())
+            log.debug(String.format("Loading page %s from %s", pageID, storage));
+
+        // Load contents from storage to local buffer
+        ByteBuffer pageBuf = loadPageData(pageID, frame);
 
         if (factory == null) {
             // Peek the page type from the page data
-            ByteBuffer pageBuf = buffer[bufferID];
             int pageType = pageBuf.getInt();
             pageBuf.rewind();
 
@@ -569,21 +832,134 @@ public class PageBuffer implements Component {
         final T page = factory.createEmptyPage(pageID);
 
         // Load page from buffer page
-        buffer[bufferID].rewind();
-        if (!page.loadPageData(buffer[bufferID])) {
+        if (!page.loadPageData(pageBuf)) {
             if (!createNewPage) {
                 throw new UnsupportedOperationException("Page data is invalid for page " + pageID
                     + " and not allowed to create a new page");
             }
-            page.formatNewPage(buffer[bufferID]);
+            page.formatNewPage(pageBuf);
+        }
+
+        frame.install(page);
+        replacementPolicy.pageLoaded(frame.getIndex(), pageID);
+        return page;
+    }
+
+    /**
+     * Loads the page data into a reserved frame. Pages of direct page
+     * storages are accessed through storage views, so their data is not
+     * copied.
+     * 
+     * @return the page data area, rewound
+     */
+    private ByteBuffer loadPageData(PageID pageID, BufferFrame frame) throws IOException {
+        ByteBuffer pageBuf;
+        if (storage instanceof DirectPageStorage) {
+            pageBuf = ((DirectPageStorage) storage).getPageView(pageID);
+            frame.attach(pageBuf);
+        } else {
+            pageBuf = frame.getData();
+            pageBuf.rewind();
+            storage.loadPage(pageID, pageBuf);
+        }
+        pageBuf.rewind();
+        return pageBuf;
+    }
+
+    /**
+     * Finds a free frame for loading a page. If there are no free frames, a
+     * victim page is evicted from the buffer. The returned frame is reserved
+     * for the caller; it must be either installed with a page or returned
+     * with freeFrame().
+     */
+    private BufferFrame acquireFrame(PageID forPage) {
+        BufferFrame frame = freeFrames.poll();
+        if (frame != null)
+            return frame;
+
+        int victim = replacementPolicy.reserveVictim();
+        if (victim >= 0) {
+            frame = frames[victim];
+            evict(frame);
+            return frame;
         }
+        // Another thread might have released a frame in the meanwhile
+        frame = freeFrames.poll();
+        if (frame != null)
+            return frame;
 
-        // Add the page to the page buffer
-        pageBuffer.put(pageID, new Pair<StoredPage, Integer>(page, bufferID));
+        throw new IndexOutOfBoundsException("No free frames when fixing page " + forPage + ": "
+            + this + "; fixes: " + getPageFixSummary());
+    }
 
+    /**
+     * Flushes the page of a reserved frame and removes the page from the
+     * buffer. The frame stays reserved for the caller.
+     */
+    private void evict(BufferFrame frame) {
+        PageID pageID = frame.getPageID();
         if (log.isDebugEnabled())
-            logOperation("Loaded", pageID);
-        return page;
+            log.debug("Leaking page " + pageID + " at buffer id " + frame.getIndex());
+        boolean wasDirty = frame.getPage().isDirty();
+        try {
+            flushFrame(frame);
+        } catch (RuntimeException e) {
+            frame.unreserve();
+            throw e;
+        }
+        BackgroundPageWriter writer = pageWriter;
+        if (wasDirty && writer != null) {
+            // The writer is falling behind
+            writer.wakeUp();
+        }
+        pageTable.remove(pageID, frame);
+        replacementPolicy.pageRemoved(frame.getIndex());
+        frame.release();
+    }
+
+    private void freeFrame(BufferFrame frame) {
+        replacementPolicy.pageRemoved(frame.getIndex());
+        frame.release();
+        freeFrames.add(frame);
+    }
+
+    /**
+     * Flushes the page in the given frame to the page storage. The frame
+     * must either be fixed or reserved by the caller.
+     */
+    private void flushFrame(BufferFrame frame) {
+        StoredPage page = frame.getPage();
+        if (log.isDebugEnabled())
+            log.debug(String.format("Flushing page %s", page.getPageID()));
+
+        // Inform listeners that page is about to be flushed
+        for (PageFlushListener listener : flushListeners) {
+            listener.prepareForFlush(page);
+        }
+
+        synchronized (frame) {
+            if (WRITE_CLEAN_PAGES || page.isDirty()) {
+                ByteBuffer data = frame.getPageData();
+                // Flush page data to buffer page (if it's not already
+                // updated)
+                data.rewind();
+                page.savePageData();
+                page.setDirty(false);
+                if (frame.isStorageView()) {
+                    // Page data was written directly to the storage
+                    return;
+                }
+
+                // Store buffer page data to storage area
+                try {
+                    stats.log(Operation.OP_BUFFER_WRITE);
+                    data.rewind();
+                    storage.savePage(page.getPageID(), data);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
     }
 
     /**
@@ -594,17 +970,19 @@ public class PageBuffer implements Component {
      */
     public PageID reserveNewPageID(Owner owner) {
         int tryRange = 0;
-        while (true) {
-            PageAllocationMap map = getPageAllocationMap(new PageID(tryRange), owner);
-            PageID pageID = map.findAndReserve();
-            unfix(map, owner);
-
-            if (pageID != null) {
-                return pageID;
+        synchronized (allocationLock) {
+            while (true) {
+                PageAllocationMap map = getPageAllocationMap(new PageID(tryRange), owner);
+                PageID pageID = map.findAndReserve();
+                unfix(map, owner);
+
+                if (pageID != null) {
+                    return pageID;
+                }
+                // No free space found on this space section, skip to next
+                // section. Section size is pageSize * 8 pages
+                tryRange += pageSize * 8;
             }
-            // No free space found on this space section, skip to next section
-            // Section size is pageSize * 8 pages
-            tryRange += pageSize * 8;
         }
     }
 
@@ -619,42 +997,15 @@ public class PageBuffer implements Component {
         return map;
     }
 
-    /**
-     * @return the index of the buffer slot used to load the page. Needs to be
-     * inserted to pageBuffer so that the slot will be freed!
-     */
-    private int loadPageIntoBuffer(PageID pageID) throws IOException {
-        if (log.isDebugEnabled())
-            log.debug(String.format("Loading page %s from %s", pageID, storage));
-
-        // Ensure capacity for adding one more item. May cause a page to flush
-        // out. This will call the itemLeaked() -method.
-        // pageBuffer.ensureCapacity();
-
-        if (log.isDebugEnabled())
-            log.debug("Buffer: " + this);
-
-        assert !freeBufferList.isEmpty() : "No free buffers when fixing page " + pageID + ": "
-            + freeBufferList + "; " + this;
-        final int bufferIndex = freeBufferList.removeFirst();
-
-        // Load contents from storage to local buffer
-        buffer[bufferIndex].rewind();
-        storage.loadPage(pageID, buffer[bufferIndex]);
-
-        return bufferIndex;
-    }
-
     private void logOperation(String oper, PageID pageID) {
         if (log.isDebugEnabled()) {
             if (AssertionSupport.isAssertionsEnabled())
-                log.debug(String.format("%s page %s (%s), free: %d=%d", oper, pageID,
-                    getPageFixSummary(), pageBuffer.getFreeSlots(), freeBufferList.size()));
+                log.debug(String.format("%s page %s (%s), free: %d", oper, pageID,
+                    getPageFixSummary(), freeFrames.size()));
             else
-                log.debug(String.format("%s page %s, free: %d=%d", oper, pageID, pageBuffer
-                    .getFreeSlots(), freeBufferList.size()));
+                log.debug(String.format("%s page %s, free: %d", oper, pageID, freeFrames
+                    .size()));
         }
-        // assert pageBuffer.getFreeSlots() == freeBufferList.size();
     }
 
     public int getTotalPageCount() {
@@ -688,4 +1039,26 @@ public class PageBuffer implements Component {
         }
     }
 
+    /**
+     * Exposes the frame states to the replacement policy.
+     */
+    private class FrameTableImpl implements ReplacementPolicy.FrameTable {
+
+        @Override
+        public int getFrameCount() {
+            return bufferSize;
+        }
+
+        @Override
+        public boolean isUnfixed(int frame) {
+            return frames[frame].getFixCount() == 0;
+        }
+
+        @Override
+        public boolean tryReserve(int frame) {
+            return frames[frame].tryReserve();
+        }
+
+    }
+
 }
@@ -0,0 +1,73 @@
+package fi.hut.cs.treelib.storage;
+
+import fi.hut.cs.treelib.PageID;
+
+/**
+ * Page replacement policy of the page buffer. The policy is informed of page
+ * fixes, loads and removals, and it selects the victim frame when the page
+ * buffer needs to evict a page. Frames are identified by their index in the
+ * page buffer.
+ * 
+ * <p>
+ * The methods are called concurrently by all the threads that use the page
+ * buffer, so implementations must be thread-safe.
+ * 
+ * @author thaapasa
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Access to the frame states of the page buffer.
+     */
+    interface FrameTable {
+
+        int getFrameCount();
+
+        /**
+         * @return true if the frame holds a page that is not fixed
+         */
+        boolean isUnfixed(int frame);
+
+        /**
+         * Tries to reserve an unfixed frame for eviction.
+         * 
+         * @return true if the frame is now reserved for the caller
+         */
+        boolean tryReserve(int frame);
+
+    }
+
+    /**
+     * Initializes the policy for the given frames. Called by the page buffer
+     * when the policy is attached and whenever the buffer is cleared.
+     */
+    void initialize(FrameTable frames);
+
+    /**
+     * Called when a page that is already in the buffer is fixed (a buffer
+     * hit).
+     */
+    void pageFixed(int frame);
+
+    /**
+     * Called when a page has been loaded (or created) to the frame (a buffer
+     * miss).
+     */
+    void pageLoaded(int frame, PageID pageID);
+
+    /**
+     * Called when the page in the frame has been removed from the buffer.
+     */
+    void pageRemoved(int frame);
+
+    /**
+     * Selects a victim frame and reserves it with FrameTable.tryReserve().
+     * 
+     * @return the index of the reserved frame; or -1, if no unfixed frame was
+     * found
+     */
+    int reserveVictim();
+
+    String getName();
+
+}
@@ -0,0 +1,217 @@
+package fi.hut.cs.treelib.storage;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import fi.hut.cs.treelib.PageID;
+
+/**
+ * Full 2Q replacement (Johnson & Shasha). Newly loaded pages enter the FIFO
+ * queue A1in. Pages evicted from A1in are remembered in the ghost queue
+ * A1out (page IDs only); a page that is loaded again while it is remembered
+ * in A1out is considered hot and enters the LRU queue Am. Pages that a range
+ * scan touches once therefore never push the hot index pages out of Am.
+ *
+ * <p>
+ * A1in and Am are linked lists of the buffer frames, and they are only
+ * changed on buffer misses, under the lock of the policy. Buffer hits take no
+ * locks: a hit only sets the reference bit of the frame. The LRU order of Am
+ * is approximated with the reference bits: a referenced page at the head of
+ * Am is moved to the tail (and its bit cleared) instead of being evicted.
+ *
+ * @author thaapasa
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private static final int NONE = -1;
+
+    /** Share of the buffer frames used for the A1in queue. */
+    private final double a1inRatio;
+    /** Size of the A1out ghost queue relative to the buffer size. */
+    private final double a1outRatio;
+
+    private FrameTable frames;
+    private int a1inLimit;
+    private int a1outLimit;
+    /** Reference bits of the frames, set on buffer hits */
+    private AtomicIntegerArray referenced;
+
+    /** The queues; guarded by this policy. */
+    private final FrameQueue a1in = new FrameQueue();
+    private final FrameQueue am = new FrameQueue();
+    /** The queue of each frame, or null; guarded by this policy. */
+    private FrameQueue[] frameQueue;
+    private int[] next;
+    private int[] prev;
+    private PageID[] framePages;
+    private final Set<PageID> a1out = new LinkedHashSet<PageID>();
+
+    /** A doubly-linked list of frames, linked through the next/prev arrays. */
+    private class FrameQueue {
+        private int head = NONE;
+        private int tail = NONE;
+        private int size = 0;
+
+        private void clear() {
+            head = tail = NONE;
+            size = 0;
+        }
+
+        private void addLast(int frame) {
+            prev[frame] = tail;
+            next[frame] = NONE;
+            if (tail != NONE)
+                next[tail] = frame;
+            else
+                head = frame;
+            tail = frame;
+            frameQueue[frame] = this;
+            size++;
+        }
+
+        private void remove(int frame) {
+            if (prev[frame] != NONE)
+                next[prev[frame]] = next[frame];
+            else
+                head = next[frame];
+            if (next[frame] != NONE)
+                prev[next[frame]] = prev[frame];
+            else
+                tail = prev[frame];
+            prev[frame] = next[frame] = NONE;
+            frameQueue[frame] = null;
+            size--;
+        }
+    }
+
+    public TwoQueuePolicy() {
+        this(0.25, 0.5);
+    }
+
+    public TwoQueuePolicy(double a1inRatio, double a1outRatio) {
+        this.a1inRatio = a1inRatio;
+        this.a1outRatio = a1outRatio;
+    }
+
+    @Override
+    public synchronized void initialize(FrameTable frames) {
+        int size = frames.getFrameCount();
+        this.frames = frames;
+        this.a1inLimit = Math.max(1, (int) (size * a1inRatio));
+        this.a1outLimit = Math.max(1, (int) (size * a1outRatio));
+        this.referenced = new AtomicIntegerArray(size);
+        this.frameQueue = new FrameQueue[size];
+        this.next = new int[size];
+        this.prev = new int[size];
+        Arrays.fill(next, NONE);
+        Arrays.fill(prev, NONE);
+        this.framePages = new PageID[size];
+        a1in.clear();
+        am.clear();
+        a1out.clear();
+    }
+
+    @Override
+    public void pageFixed(int frame) {
+        // Only write to the shared bit when it actually changes
+        if (referenced.get(frame) == 0)
+            referenced.set(frame, 1);
+    }
+
+    @Override
+    public synchronized void pageLoaded(int frame, PageID pageID) {
+        if (frameQueue[frame] != null)
+            frameQueue[frame].remove(frame);
+        framePages[frame] = pageID;
+        referenced.set(frame, 0);
+        if (a1out.remove(pageID)) {
+            am.addLast(frame);
+        } else {
+            a1in.addLast(frame);
+        }
+    }
+
+    @Override
+    public synchronized void pageRemoved(int frame) {
+        if (frameQueue[frame] != null)
+            frameQueue[frame].remove(frame);
+        framePages[frame] = null;
+        referenced.set(frame, 0);
+    }
+
+    @Override
+    public synchronized int reserveVictim() {
+        // Evict from A1in when it has grown past its limit; otherwise from
+        // Am. Fall back to the other queue if there are no unfixed pages.
+        boolean fromA1in = a1in.size > a1inLimit;
+        int victim = fromA1in ? reserveFirst(a1in) : reserveLRU();
+        if (victim < 0) {
+            fromA1in = !fromA1in;
+            victim = fromA1in ? reserveFirst(a1in) : reserveLRU();
+        }
+        if (victim >= 0 && fromA1in) {
+            remember(framePages[victim]);
+        }
+        return victim;
+    }
+
+    /**
+     * Reserves the first unfixed frame of the queue. The frame stays in the
+     * queue until the page buffer removes the page.
+     */
+    private int reserveFirst(FrameQueue queue) {
+        for (int frame = queue.head; frame != NONE; frame = next[frame]) {
+            if (frames.isUnfixed(frame) && frames.tryReserve(frame))
+                return frame;
+        }
+        return -1;
+    }
+
+    /**
+     * Reserves the least recently used unfixed frame of Am. Referenced frames
+     * get a second chance at the tail of the queue.
+     */
+    private int reserveLRU() {
+        int frame = am.head;
+        // Each frame is moved to the tail at most once
+        for (int steps = am.size * 2; frame != NONE && steps > 0; steps--) {
+            int following = next[frame];
+            if (referenced.get(frame) != 0) {
+                referenced.set(frame, 0);
+                am.remove(frame);
+                am.addLast(frame);
+                if (following == NONE)
+                    following = frame;
+            } else if (frames.isUnfixed(frame) && frames.tryReserve(frame)) {
+                return frame;
+            }
+            frame = following;
+        }
+        return -1;
+    }
+
+    private void remember(PageID pageID) {
+        if (pageID == null)
+            return;
+        a1out.add(pageID);
+        if (a1out.size() > a1outLimit) {
+            Iterator<PageID> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "2Q";
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " replacement policy";
+    }
+
+}
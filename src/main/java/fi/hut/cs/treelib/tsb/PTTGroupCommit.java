@@ -0,0 +1,227 @@
+package fi.hut.cs.treelib.tsb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import fi.tuska.util.Callback;
+import fi.tuska.util.Pair;
+
+/**
+ * Group commit of the PTT updates of the TSB-tree. The committing
+ * transactions append their [transaction ID, commit version] entries to a
+ * queue. One of the committers at a time acts as the flusher: it waits for
+ * the batch to fill up (at most the maximum wait time), and writes the
+ * queued entries to the PTT as a single batch. A commit returns only after
+ * the batch that contains its entry has been written, so the commits that
+ * arrive while a batch is being written are persisted together in the next
+ * batch.
+ *
+ * <p>
+ * If writing a batch fails, the exception is thrown to every committer
+ * whose entry was in the batch; the entries of the batch are not written.
+ *
+ * @author thaapasa
+ */
+class PTTGroupCommit {
+
+    private static final Logger log = Logger.getLogger(PTTGroupCommit.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /** Writes a batch of [transaction ID, commit version] entries. */
+    private final Callback<List<Pair<Integer, Integer>>> writer;
+
+    private int maxBatchSize = DEFAULT_BATCH_SIZE;
+    /** Maximum time (ms) the flusher waits for the batch to fill up */
+    private long maxWait = 0;
+
+    private final LinkedList<Pair<Integer, Integer>> queue = new LinkedList<Pair<Integer, Integer>>();
+    /** Amount of entries queued so far; the entry tickets */
+    private long queued = 0;
+    /** Amount of entries handled (written or failed) so far */
+    private long processed = 0;
+    /** Amount of entries written so far */
+    private long persisted = 0;
+    private boolean flushing = false;
+    private long batches = 0;
+    /** The failed batches whose committers have not all returned yet */
+    private final List<FailedBatch> failures = new LinkedList<FailedBatch>();
+
+    /** A batch whose writing failed; covers the tickets first..last. */
+    private static class FailedBatch {
+        private final long first;
+        private final long last;
+        private final Throwable cause;
+        /** The committers of the batch that have not been told yet */
+        private int waiting;
+
+        private FailedBatch(long first, long last, Throwable cause) {
+            this.first = first;
+            this.last = last;
+            this.cause = cause;
+            this.waiting = (int) (last - first + 1);
+        }
+    }
+
+    protected PTTGroupCommit(Callback<List<Pair<Integer, Integer>>> writer) {
+        this.writer = writer;
+    }
+
+    public synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public synchronized void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("Batch size must be positive (was "
+                + maxBatchSize + ")");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public synchronized long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * @param maxWait the maximum time (in milliseconds) that a batch waits
+     * for more commits before it is written; zero writes the queued entries
+     * right away
+     */
+    public synchronized void setMaxWait(long maxWait) {
+        if (maxWait < 0)
+            throw new IllegalArgumentException("Wait time must not be negative (was " + maxWait
+                + ")");
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @return the amount of batches written so far
+     */
+    public synchronized long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * @return the amount of entries written so far
+     */
+    public synchronized long getPersistedCount() {
+        return persisted;
+    }
+
+    /**
+     * Queues the PTT entry of a committed transaction, and returns after the
+     * entry has been written to the PTT.
+     *
+     * @throws RuntimeException (or Error) the exception that the writer threw
+     * when writing the batch that contained the entry
+     */
+    public void commit(int transactionID, int commitVersion) {
+        boolean interrupted = false;
+        long ticket;
+        synchronized (this) {
+            queue.addLast(new Pair<Integer, Integer>(transactionID, commitVersion));
+            ticket = ++queued;
+            // Wake up the flusher waiting for the batch to fill up
+            notifyAll();
+        }
+        while (true) {
+            List<Pair<Integer, Integer>> batch;
+            long first;
+            synchronized (this) {
+                while (processed < ticket && flushing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // The entry must be persisted before returning
+                        interrupted = true;
+                    }
+                }
+                if (processed >= ticket)
+                    break;
+                // Become the flusher
+                flushing = true;
+                interrupted |= waitForBatch();
+                batch = new ArrayList<Pair<Integer, Integer>>(Math.min(queue.size(),
+                    maxBatchSize));
+                while (!queue.isEmpty() && batch.size() < maxBatchSize) {
+                    batch.add(queue.removeFirst());
+                }
+                // The queue is in ticket order
+                first = processed + 1;
+            }
+            Throwable failure = null;
+            try {
+                if (log.isDebugEnabled())
+                    log.debug("Writing a batch of " + batch.size() + " PTT entries");
+                writer.callback(batch);
+            } catch (RuntimeException e) {
+                failure = e;
+            } catch (Error e) {
+                failure = e;
+            } finally {
+                synchronized (this) {
+                    processed += batch.size();
+                    if (failure == null) {
+                        persisted += batch.size();
+                        batches++;
+                    } else {
+                        log.warn("Writing a batch of " + batch.size()
+                            + " PTT entries failed: " + failure);
+                        failures.add(new FailedBatch(first, processed, failure));
+                    }
+                    flushing = false;
+                    notifyAll();
+                }
+            }
+        }
+        Throwable failure = takeFailure(ticket);
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw (RuntimeException) failure;
+    }
+
+    /**
+     * @return the exception that failed the batch of the entry with the given
+     * ticket; or null, if the entry was written
+     */
+    private synchronized Throwable takeFailure(long ticket) {
+        for (Iterator<FailedBatch> it = failures.iterator(); it.hasNext();) {
+            FailedBatch failed = it.next();
+            if (ticket >= failed.first && ticket <= failed.last) {
+                if (--failed.waiting == 0)
+                    it.remove();
+                return failed.cause;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits until the batch is full or the maximum wait time has passed.
+     * Must be called while holding the lock.
+     *
+     * @return true if the thread was interrupted
+     */
+    private boolean waitForBatch() {
+        long deadline = System.currentTimeMillis() + maxWait;
+        while (queue.size() < maxBatchSize) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
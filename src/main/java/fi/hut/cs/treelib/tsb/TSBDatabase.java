@@ -24,7 +24,7 @@ import fi.hut.cs.treelib.common.IntegerValue;
 import fi.hut.cs.treelib.common.NonThrashingSMOPolicy;
 import fi.hut.cs.treelib.common.OrderedTransactionImpl;
 import fi.hut.cs.treelib.common.SMOPolicy;
-import fi.hut.cs.treelib.concurrency.DefaultLatchManager;
+import fi.hut.cs.treelib.concurrency.StripedLatchManager;
 import fi.hut.cs.treelib.stats.Statistics.GlobalOperation;
 import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageStorage;
@@ -45,11 +45,14 @@ public class TSBDatabase<K extends Key<K>, V extends PageValue<?>> extends
     private final SplitPolicy splitPolicy;
     private final boolean batchPTTUpdate;
 
+    private int pttGroupCommitSize = PTTGroupCommit.DEFAULT_BATCH_SIZE;
+    private long pttGroupCommitWait = 0;
+
     private static final SMOPolicy PTT_SMO_POLICY = new NonThrashingSMOPolicy(0.2, 0.2);
 
     public TSBDatabase(int bufferSize, K keyPrototype, V valuePrototype, SplitPolicy splitPolicy,
         boolean batchPTTUpdate, PageStorage pageStorage) {
-        super(bufferSize, pageStorage, new DummySMOPolicy(), new DefaultLatchManager(),
+        super(bufferSize, pageStorage, new DummySMOPolicy(), new StripedLatchManager(),
             keyPrototype, valuePrototype);
 
         this.splitPolicy = splitPolicy;
@@ -67,6 +70,8 @@ public class TSBDatabase<K extends Key<K>, V extends PageValue<?>> extends
             PTT_INFO_PAGE_ID, getPTTConfig());
         TSBTree<K, V> tree = new TSBTree<K, V>(INFO_PAGE_ID, splitPolicy, batchPTTUpdate, ptt,
             this);
+        tree.setPTTGroupCommitSize(pttGroupCommitSize);
+        tree.setPTTGroupCommitWait(pttGroupCommitWait);
         initialize(tree);
 
         pageBuffer.registerPageFlushListener(tree);
@@ -113,6 +118,34 @@ public class TSBDatabase<K extends Key<K>, V extends PageValue<?>> extends
         return commitVer;
     }
 
+    /**
+     * Sets the maximum amount of concurrent commits whose PTT entries are
+     * written to the PTT as a single batch. Not used when the PTT is
+     * batch-updated during maintenance.
+     */
+    public void setPTTGroupCommitSize(int size) {
+        getDatabaseTree().setPTTGroupCommitSize(size);
+        this.pttGroupCommitSize = size;
+    }
+
+    public int getPTTGroupCommitSize() {
+        return pttGroupCommitSize;
+    }
+
+    /**
+     * Sets the maximum time (in milliseconds) that a PTT group commit waits
+     * for more commits before writing the batch. Zero writes the pending
+     * entries right away.
+     */
+    public void setPTTGroupCommitWait(long wait) {
+        getDatabaseTree().setPTTGroupCommitWait(wait);
+        this.pttGroupCommitWait = wait;
+    }
+
+    public long getPTTGroupCommitWait() {
+        return pttGroupCommitWait;
+    }
+
     @Override
     public TSBTree<K, V> getDatabaseTree() {
         return (TSBTree<K, V>) super.getDatabaseTree();
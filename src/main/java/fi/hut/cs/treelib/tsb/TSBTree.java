@@ -1,8 +1,11 @@
 package fi.hut.cs.treelib.tsb;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeMap;
@@ -110,6 +113,16 @@ public class TSBTree<K extends Key<K>, V extends PageValue<?>> extends
 
     protected final boolean batchPTTUpdate;
 
+    /** Writes the PTT entries of committed transactions in batches */
+    private final PTTGroupCommit groupCommit = new PTTGroupCommit(
+        new Callback<List<Pair<Integer, Integer>>>() {
+            @Override
+            public boolean callback(List<Pair<Integer, Integer>> batch) {
+                writePTTBatch(batch);
+                return true;
+            }
+        });
+
     protected TSBTree(PageID infoPageID, SplitPolicy splitPolicy, boolean batchPTTUpdate,
         BTree<IntegerKey, IntegerValue> ptt, DatabaseConfiguration<K, V> dbConfig) {
         super("tsb", "Time-Split B-tree", infoPageID, dbConfig);
@@ -156,7 +169,23 @@ public class TSBTree<K extends Key<K>, V extends PageValue<?>> extends
         operations.setSplitPolicy(policy);
     }
 
-    protected synchronized int commitTransaction(Transaction<K, V> tx) {
+    /**
+     * Commits the transaction. When the PTT is not batch-updated, the PTT
+     * entry of an updating transaction is written via the group commit, and
+     * this method returns after the entry has been persisted.
+     */
+    protected int commitTransaction(Transaction<K, V> tx) {
+        int commitVersion = registerCommit(tx);
+        if (tx.isUpdating() && !batchPTTUpdate) {
+            // Update PTT unless PTT batch updating is selected.
+            // In PTT batch updating, the PTT is updated when maintenance
+            // is requested.
+            groupCommit.commit(tx.getTransactionID(), commitVersion);
+        }
+        return commitVersion;
+    }
+
+    private synchronized int registerCommit(Transaction<K, V> tx) {
         committedVersion++;
         range = range.extendVersion(committedVersion);
         if (tx.isUpdating()) {
@@ -167,21 +196,74 @@ public class TSBTree<K extends Key<K>, V extends PageValue<?>> extends
                 log.debug("Commit " + tx.getDebugID() + " (refs: " + refCount + ") to cver "
                     + committedVersion + ", marking this to PTT and VTT");
 
-            if (!batchPTTUpdate) {
-                // Update PTT unless PTT batch updating is selected.
-                // In PTT batch updating, the PTT is updated when maintenance
-                // is requested.
-                TreeShortcuts.insert(ptt, new IntegerKey(tx.getTransactionID()),
-                    new IntegerValue(committedVersion), pttTX);
-            }
-            // VTT is updated anyway
+            // VTT is updated anyway; the entry is marked as persisted when
+            // it has been written to PTT
             vtt.put(tx.getTransactionID(), new Triple<Integer, Integer, Boolean>(
-                committedVersion, refCount, !batchPTTUpdate));
+                committedVersion, refCount, Boolean.FALSE));
         }
         updateInfoPage(tx);
         return committedVersion;
     }
 
+    /**
+     * Writes a batch of group-committed [transaction ID, commit version]
+     * entries to PTT. The entries are inserted in key order along a single
+     * saved page path.
+     */
+    private synchronized void writePTTBatch(List<Pair<Integer, Integer>> batch) {
+        Collections.sort(batch, new Comparator<Pair<Integer, Integer>>() {
+            @Override
+            public int compare(Pair<Integer, Integer> o1, Pair<Integer, Integer> o2) {
+                return o1.getFirst().compareTo(o2.getFirst());
+            }
+        });
+        PagePath<IntegerKey, IntegerValue, BTreePage<IntegerKey, IntegerValue>> pttPath = new PagePath<IntegerKey, IntegerValue, BTreePage<IntegerKey, IntegerValue>>(
+            true);
+        try {
+            for (Pair<Integer, Integer> entry : batch) {
+                Triple<Integer, Integer, Boolean> info = vtt.get(entry.getFirst());
+                if (info == null) {
+                    // All the temporaries of the transaction have already
+                    // been converted, so the PTT entry is not needed
+                    continue;
+                }
+                ptt.insert(new IntegerKey(entry.getFirst()), new IntegerValue(entry
+                    .getSecond()), pttPath, pttTX);
+                info.setThird(Boolean.TRUE);
+            }
+        } finally {
+            pageBuffer.unfix(pttPath, pttTX);
+        }
+    }
+
+    /**
+     * @param size the maximum amount of commits whose PTT entries are
+     * written together
+     */
+    public void setPTTGroupCommitSize(int size) {
+        groupCommit.setMaxBatchSize(size);
+    }
+
+    public int getPTTGroupCommitSize() {
+        return groupCommit.getMaxBatchSize();
+    }
+
+    /**
+     * @param wait the maximum time (in milliseconds) that the PTT group
+     * commit waits for more commits to fill up a batch
+     */
+    public void setPTTGroupCommitWait(long wait) {
+        groupCommit.setMaxWait(wait);
+    }
+
+    public long getPTTGroupCommitWait() {
+        return groupCommit.getMaxWait();
+    }
+
+    protected long getPTTGroupCommitBatchCount() {
+        return groupCommit.getBatchCount();
+    }
+
     protected void flushVTTtoPTT() {
         if (!batchPTTUpdate) {
             // No batch PTT updating, so do nothing
@@ -560,12 +642,12 @@ public class TSBTree<K extends Key<K>, V extends PageValue<?>> extends
             // have been caused by a page flush operation (not a nice loop).
             // So, mark up information about to-be-deleted-ptt-entries
             if (info.getThird()) {
-                // Need to delete the entry only if it is persisted
+                // Need to delete the entry only if it is persisted. An entry
+                // that is still waiting for the PTT group commit is skipped
+                // when the batch is written.
                 synchronized (pttDeleteList) {
                     pttDeleteList.addLast(new IntegerKey(transactionID));
                 }
-            } else {
-                assert batchPTTUpdate;
             }
         }
     }
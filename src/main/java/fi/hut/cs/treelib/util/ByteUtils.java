@@ -61,12 +61,25 @@ public class ByteUtils {
             log.error(String.format(
                 "Too long string stored, reported len is %d, but max len is %d (%d)", strLen,
                 maxLen, maxStrLen));
-            return new String(data.array(), data.position(), maxStrLen, charset);
+            return decodeString(data, maxStrLen, charset);
         } else {
-            return new String(data.array(), data.position(), strLen, charset);
+            return decodeString(data, strLen, charset);
         }
     }
 
+    /**
+     * Decodes a string from the current position of the buffer, without
+     * moving the position. Works also with direct buffers.
+     */
+    private static String decodeString(ByteBuffer data, int len, Charset charset) {
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + data.position(), len, charset);
+        }
+        byte[] bytes = new byte[len];
+        data.duplicate().get(bytes);
+        return new String(bytes, charset);
+    }
+
     /**
      * @param maxLen the maximum amount of bytes available for storing the
      * string. The maximum length for the actual stored string is four bytes
@@ -140,4 +153,24 @@ public class ByteUtils {
         return ((data.get(pos) & 0xff) & mask) > 0;
     }
 
+    /**
+     * Moves a block of bytes inside a buffer. The source and target areas
+     * may overlap. The positions are absolute buffer indices, and the
+     * position of the buffer is not changed.
+     */
+    public static void moveBytes(ByteBuffer data, int from, int to, int length) {
+        if (length <= 0 || from == to)
+            return;
+        if (data.hasArray()) {
+            int base = data.arrayOffset();
+            System.arraycopy(data.array(), base + from, data.array(), base + to, length);
+        } else if (to < from) {
+            for (int i = 0; i < length; i++)
+                data.put(to + i, data.get(from + i));
+        } else {
+            for (int i = length - 1; i >= 0; i--)
+                data.put(to + i, data.get(from + i));
+        }
+    }
+
 }
@@ -0,0 +1,418 @@
+package fi.hut.cs.treelib.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.PageValue;
+import fi.tuska.util.Converter;
+import fi.tuska.util.Pair;
+
+/**
+ * Sorts key-value entries by the keys, using temporary files when there are
+ * more entries than fit in a single sort run. The input is read in runs of
+ * at most runSize entries, and each run is sorted in memory. If the input
+ * fits in one run, the sorted run is returned directly; otherwise the sorted
+ * runs are written to temporary files, and they are merged when the result
+ * is iterated.
+ *
+ * <p>
+ * The entries can also be sorted by a sort key derived from the keys (such
+ * as the Hilbert value of an MBR), with ties broken by the keys. The sort
+ * key of each entry is calculated only once, and stored alongside the entry
+ * while it is being sorted. The runs can be sorted with several threads:
+ * each thread sorts a part of the run, and the sorted parts are merged.
+ *
+ * <p>
+ * The sort is stable: entries with equal keys are returned in input order.
+ * The entries are stored in the run files in the same fixed-width format
+ * that the pages use, so the keys and values must be storable.
+ *
+ * @author thaapasa
+ */
+public class ExternalSorter<K extends Key<K>, V extends PageValue<?>> {
+
+    private static final Logger log = Logger.getLogger(ExternalSorter.class);
+
+    /** Size of the read and write buffers of the run files. */
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    /** Runs smaller than this are not split between threads. */
+    private static final int MIN_PART_SIZE = 10000;
+
+    private final K keyPrototype;
+    private final V valuePrototype;
+    private final int runSize;
+    private final int entrySize;
+    /** Creates the sort keys; null to sort by the keys only */
+    private final Converter<K, ? extends Comparable<?>> sortKeyCreator;
+    /** Amount of threads used to sort a run; zero means one per processor */
+    private int threads = 1;
+
+    private final Comparator<SortEntry> entryComparator = new Comparator<SortEntry>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(SortEntry o1, SortEntry o2) {
+            if (o1.sortKey != null) {
+                int c = ((Comparable<Object>) o1.sortKey).compareTo(o2.sortKey);
+                if (c != 0)
+                    return c;
+            }
+            return o1.entry.getFirst().compareTo(o2.entry.getFirst());
+        }
+    };
+
+    /**
+     * @param runSize the max amount of entries to sort in memory
+     */
+    public ExternalSorter(K keyPrototype, V valuePrototype, int runSize) {
+        this(keyPrototype, valuePrototype, runSize, null);
+    }
+
+    /**
+     * @param runSize the max amount of entries to sort in memory
+     * @param sortKeyCreator creates the sort keys of the entries from the
+     * keys; null to sort by the keys only
+     */
+    public <S extends Comparable<? super S>> ExternalSorter(K keyPrototype, V valuePrototype,
+        int runSize, Converter<K, S> sortKeyCreator) {
+        if (runSize < 1)
+            throw new IllegalArgumentException("Run size must be positive: " + runSize);
+        this.keyPrototype = keyPrototype;
+        this.valuePrototype = valuePrototype;
+        this.runSize = runSize;
+        this.entrySize = keyPrototype.getByteDataSize() + valuePrototype.getByteDataSize();
+        this.sortKeyCreator = sortKeyCreator;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads the amount of threads used to sort each run; zero
+     * means one thread per available processor
+     */
+    public void setThreads(int threads) {
+        if (threads < 0)
+            throw new IllegalArgumentException("Thread count must not be negative: " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * Sorts the entries. The run files (if any) are deleted when the result
+     * has been iterated through.
+     *
+     * @return the sorted entries; can only be iterated once if the input did
+     * not fit in a single run
+     */
+    public Iterable<Pair<K, V>> sort(Iterable<Pair<K, V>> entries) {
+        List<Pair<K, V>> run = new ArrayList<Pair<K, V>>();
+        final List<File> runFiles = new ArrayList<File>();
+        int threadCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = threadCount > 1 ? Executors.newFixedThreadPool(threadCount)
+            : null;
+        try {
+            for (Pair<K, V> entry : entries) {
+                run.add(entry);
+                if (run.size() >= runSize) {
+                    runFiles.add(writeRun(sortRun(run, executor, threadCount)));
+                    run.clear();
+                }
+            }
+            if (runFiles.isEmpty()) {
+                // Everything fits in memory
+                return sortRun(run, executor, threadCount);
+            }
+            if (!run.isEmpty())
+                runFiles.add(writeRun(sortRun(run, executor, threadCount)));
+        } catch (IOException e) {
+            for (File file : runFiles) {
+                file.delete();
+            }
+            throw new RuntimeException(e);
+        } finally {
+            if (executor != null)
+                executor.shutdown();
+        }
+
+        log.info(String.format("Merging %d sorted runs of %d entries", runFiles.size(),
+            runSize));
+        return new Iterable<Pair<K, V>>() {
+            @Override
+            public Iterator<Pair<K, V>> iterator() {
+                return new MergeIterator(runFiles);
+            }
+        };
+    }
+
+    private SortEntry createSortEntry(Pair<K, V> entry) {
+        return new SortEntry(sortKeyCreator != null ? sortKeyCreator.convert(entry.getFirst())
+            : null, entry);
+    }
+
+    /**
+     * Sorts the entries of the given part of a run.
+     */
+    private List<SortEntry> sortPart(List<Pair<K, V>> part) {
+        List<SortEntry> sorted = new ArrayList<SortEntry>(part.size());
+        for (Pair<K, V> entry : part) {
+            sorted.add(createSortEntry(entry));
+        }
+        Collections.sort(sorted, entryComparator);
+        return sorted;
+    }
+
+    /**
+     * Sorts a run in memory. Large runs are split into parts that are
+     * sorted with the executor, and the sorted parts are then merged.
+     *
+     * @return the sorted entries of the run, in a new list
+     */
+    private List<Pair<K, V>> sortRun(List<Pair<K, V>> run, ExecutorService executor,
+        int threadCount) {
+        int partCount = executor != null ? Math.min(threadCount, run.size() / MIN_PART_SIZE)
+            : 1;
+        List<Pair<K, V>> result = new ArrayList<Pair<K, V>>(run.size());
+        if (partCount <= 1) {
+            for (SortEntry entry : sortPart(run)) {
+                result.add(entry.entry);
+            }
+            return result;
+        }
+
+        int partSize = (run.size() + partCount - 1) / partCount;
+        List<Future<List<SortEntry>>> futures = new ArrayList<Future<List<SortEntry>>>(
+            partCount);
+        for (int start = 0; start < run.size(); start += partSize) {
+            final List<Pair<K, V>> part = run.subList(start, Math.min(start + partSize, run
+                .size()));
+            futures.add(executor.submit(new Callable<List<SortEntry>>() {
+                @Override
+                public List<SortEntry> call() {
+                    return sortPart(part);
+                }
+            }));
+        }
+        final List<List<SortEntry>> parts = new ArrayList<List<SortEntry>>(futures.size());
+        try {
+            for (Future<List<SortEntry>> future : futures) {
+                parts.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while sorting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+
+        // Merge the parts; positions[i] is the next unmerged entry of part i
+        final int[] positions = new int[parts.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(parts.size(),
+            new Comparator<Integer>() {
+                @Override
+                public int compare(Integer p1, Integer p2) {
+                    int c = entryComparator.compare(parts.get(p1).get(positions[p1]), parts.get(
+                        p2).get(positions[p2]));
+                    // Earlier parts first, to keep the sort stable
+                    return c != 0 ? c : p1 - p2;
+                }
+            });
+        for (int i = 0; i < parts.size(); i++) {
+            queue.add(i);
+        }
+        while (!queue.isEmpty()) {
+            int p = queue.poll();
+            List<SortEntry> part = parts.get(p);
+            result.add(part.get(positions[p]).entry);
+            if (++positions[p] < part.size())
+                queue.add(p);
+        }
+        return result;
+    }
+
+    /**
+     * @param run the sorted entries of the run
+     */
+    private File writeRun(List<Pair<K, V>> run) throws IOException {
+        File file = File.createTempFile("treelib-sort", ".run");
+        file.deleteOnExit();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            int perBuffer = Math.max(IO_BUFFER_SIZE / entrySize, 1);
+            ByteBuffer buffer = ByteBuffer.allocate(perBuffer * entrySize);
+            int count = 0;
+            for (Pair<K, V> entry : run) {
+                // Entries are written at fixed offsets, because some values
+                // do not write their entire data area
+                buffer.position(count * entrySize);
+                entry.getFirst().writeToBytes(buffer);
+                buffer.position(count * entrySize + keyPrototype.getByteDataSize());
+                entry.getSecond().writeToBytes(buffer);
+                if (++count == perBuffer) {
+                    writeFully(channel, buffer, count);
+                    count = 0;
+                }
+            }
+            writeFully(channel, buffer, count);
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    private void writeFully(FileChannel channel, ByteBuffer buffer, int count)
+        throws IOException {
+        buffer.position(0);
+        buffer.limit(count * entrySize);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * An entry with its (cached) sort key.
+     */
+    private class SortEntry {
+        private final Object sortKey;
+        private final Pair<K, V> entry;
+
+        private SortEntry(Object sortKey, Pair<K, V> entry) {
+            this.sortKey = sortKey;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Reads the entries of a single run file in order.
+     */
+    private class RunReader {
+        private final int runIndex;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final ByteBuffer buffer;
+        private SortEntry current;
+
+        private RunReader(int runIndex, File file) throws IOException {
+            this.runIndex = runIndex;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "r");
+            this.buffer = ByteBuffer.allocate(Math.max(IO_BUFFER_SIZE / entrySize, 1)
+                * entrySize);
+            // Start with an empty buffer
+            buffer.limit(0);
+        }
+
+        /**
+         * @return true if the next entry was read; false if the run has
+         * ended (and the run file has been deleted)
+         */
+        @SuppressWarnings("unchecked")
+        private boolean advance() throws IOException {
+            if (!buffer.hasRemaining() && !fill()) {
+                close();
+                current = null;
+                return false;
+            }
+            int pos = buffer.position();
+            K key = keyPrototype.readFromBytes(buffer);
+            buffer.position(pos + keyPrototype.getByteDataSize());
+            V value = (V) valuePrototype.readFromBytes(buffer);
+            buffer.position(pos + entrySize);
+            current = createSortEntry(new Pair<K, V>(key, value));
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            buffer.clear();
+            FileChannel channel = raf.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    break;
+            }
+            buffer.flip();
+            assert buffer.limit() % entrySize == 0;
+            return buffer.hasRemaining();
+        }
+
+        private void close() throws IOException {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * Merges the sorted runs.
+     */
+    private class MergeIterator implements Iterator<Pair<K, V>> {
+        private final PriorityQueue<RunReader> queue;
+
+        private MergeIterator(List<File> runFiles) {
+            this.queue = new PriorityQueue<RunReader>(runFiles.size(),
+                new Comparator<RunReader>() {
+                    @Override
+                    public int compare(RunReader r1, RunReader r2) {
+                        int c = entryComparator.compare(r1.current, r2.current);
+                        // Earlier runs first, to keep the sort stable
+                        return c != 0 ? c : r1.runIndex - r2.runIndex;
+                    }
+                });
+            try {
+                for (int i = 0; i < runFiles.size(); i++) {
+                    RunReader reader = new RunReader(i, runFiles.get(i));
+                    if (reader.advance())
+                        queue.add(reader);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            RunReader reader = queue.poll();
+            if (reader == null)
+                throw new NoSuchElementException();
+            Pair<K, V> entry = reader.current.entry;
+            try {
+                if (reader.advance())
+                    queue.add(reader);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -1,10 +1,21 @@
 package fi.hut.cs.treelib;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 import fi.hut.cs.treelib.common.FloatKey;
 import fi.hut.cs.treelib.common.MDSMOPolicy;
 import fi.hut.cs.treelib.common.SMOPolicy;
+import fi.hut.cs.treelib.common.SpatialJoin;
 import fi.hut.cs.treelib.common.StringValue;
+import fi.hut.cs.treelib.rtree.RTreeDatabase;
+import fi.hut.cs.treelib.storage.MemoryPageStorage;
 import fi.hut.cs.treelib.storage.PageStorage;
+import fi.tuska.util.Callback;
+import fi.tuska.util.Counter;
+import fi.tuska.util.Pair;
 
 public abstract class AbstractMDDatabaseTest<P extends MDPage<FloatKey, StringValue, ?>> extends
     AbstractDatabaseTest<MBR<FloatKey>, P> {
@@ -78,6 +89,125 @@ public abstract class AbstractMDDatabaseTest<P extends MDPage<FloatKey, StringVa
             .getValue());
     }
 
+    public void testGetNearest() {
+        MDDatabase<FloatKey, StringValue, P> db = createDatabase();
+        execute(db, OPERATIONS);
+
+        MDTransaction<FloatKey, StringValue> tx = db.beginTransaction();
+        List<Pair<MBR<FloatKey>, StringValue>> all = tx.getAll();
+        assertGT(all.size(), 0);
+
+        float[][] points = new float[][] { { 0, 0 }, { 20, 20 }, { 50, 50 }, { 95, 95 },
+            { 31, 10 }, { 100, 0 } };
+        int[] counts = new int[] { 1, 5, all.size(), all.size() + 3 };
+        for (float[] p : points) {
+            Coordinate<FloatKey> point = new Coordinate<FloatKey>(new FloatKey(p[0]),
+                new FloatKey(p[1]));
+            // Brute-force distances of all the entries
+            List<Double> expected = new ArrayList<Double>();
+            for (Pair<MBR<FloatKey>, StringValue> entry : all) {
+                expected.add(getDistance(entry.getFirst(), point));
+            }
+            Collections.sort(expected);
+
+            for (int k : counts) {
+                List<Pair<MBR<FloatKey>, StringValue>> nearest = tx.getNearest(point, k);
+                assertEquals(Math.min(k, all.size()), nearest.size());
+                for (int i = 0; i < nearest.size(); i++) {
+                    assertEquals(expected.get(i), getDistance(nearest.get(i).getFirst(), point),
+                        1e-6);
+                }
+            }
+        }
+
+        // Stopping the search from the callback
+        final Counter count = new Counter();
+        assertFalse(tx.getNearest(new Coordinate<FloatKey>(new FloatKey(50), new FloatKey(50)),
+            10, new Callback<Pair<MBR<FloatKey>, StringValue>>() {
+                @Override
+                public boolean callback(Pair<MBR<FloatKey>, StringValue> entry) {
+                    count.advance();
+                    return count.getCount() < 3;
+                }
+            }));
+        assertEquals(3, count.getCount());
+        tx.commit();
+        db.checkConsistency();
+    }
+
+    public void testSpatialJoin() {
+        MDDatabase<FloatKey, StringValue, P> db = createDatabase();
+        execute(db, OPERATIONS);
+        Random random = new Random(31);
+        MDTransaction<FloatKey, StringValue> tx = db.beginTransaction();
+        for (int i = 0; i < 300; i++) {
+            tx.insert(getRandomMBR(random), new StringValue("a" + i));
+        }
+        tx.commit();
+
+        // Join with an R-tree of different data
+        RTreeDatabase<FloatKey, StringValue> other = new RTreeDatabase<FloatKey, StringValue>(
+            32, MD_SMO_POLICY, KEY_PROTO, StringValue.PROTOTYPE, new MemoryPageStorage(350));
+        MDTransaction<FloatKey, StringValue> otx = other.beginTransaction();
+        for (int i = 0; i < 200; i++) {
+            otx.insert(getRandomMBR(random), new StringValue("b" + i));
+        }
+        otx.commit();
+
+        // Brute-force result with overlap queries
+        tx = db.beginTransaction();
+        otx = other.beginTransaction();
+        List<String> expected = new ArrayList<String>();
+        for (Pair<MBR<FloatKey>, StringValue> entry : otx.getAll()) {
+            for (Pair<MBR<FloatKey>, StringValue> match : tx.getOverlapping(entry.getFirst())) {
+                expected.add(match.getSecond() + "/" + entry.getSecond());
+            }
+        }
+        otx.commit();
+        Collections.sort(expected);
+        assertGT(expected.size(), 0);
+
+        final List<String> result = new ArrayList<String>();
+        assertTrue(new SpatialJoin<FloatKey, StringValue, StringValue>(db, other).join(
+            new Callback<Pair<Pair<MBR<FloatKey>, StringValue>, Pair<MBR<FloatKey>, StringValue>>>() {
+                @Override
+                public boolean callback(
+                    Pair<Pair<MBR<FloatKey>, StringValue>, Pair<MBR<FloatKey>, StringValue>> pair) {
+                    assertTrue(pair.getFirst().getFirst().overlaps(pair.getSecond().getFirst()));
+                    result.add(pair.getFirst().getSecond() + "/" + pair.getSecond().getSecond());
+                    return true;
+                }
+            }, tx));
+        Collections.sort(result);
+        assertEquals(expected, result);
+
+        // Stopping the join from the callback
+        final Counter count = new Counter();
+        assertFalse(new SpatialJoin<FloatKey, StringValue, StringValue>(other, db).join(
+            new Callback<Pair<Pair<MBR<FloatKey>, StringValue>, Pair<MBR<FloatKey>, StringValue>>>() {
+                @Override
+                public boolean callback(
+                    Pair<Pair<MBR<FloatKey>, StringValue>, Pair<MBR<FloatKey>, StringValue>> pair) {
+                    count.advance();
+                    return count.getCount() < 5;
+                }
+            }, tx));
+        assertEquals(5, count.getCount());
+        tx.commit();
+        db.checkConsistency();
+        other.checkConsistency();
+    }
+
+    private MBR<FloatKey> getRandomMBR(Random random) {
+        float x = random.nextFloat() * 100;
+        float y = random.nextFloat() * 100;
+        return getMBR(x, x + random.nextFloat() * 8, y, y + random.nextFloat() * 8);
+    }
+
+    private double getDistance(MBR<FloatKey> mbr, Coordinate<FloatKey> point) {
+        return mbr.getDoubleMBR().getMinDistance(DoubleMBR.getPoint(point));
+    }
+
     @Override
     public MBR<FloatKey> parse(String value) {
         FloatKey x1 = keyProto.getLow(0).parse(value);
@@ -1,9 +1,11 @@
 package fi.hut.cs.treelib;
 
 import java.nio.ByteBuffer;
+import java.util.Random;
 
 import org.apache.log4j.Logger;
 
+import fi.hut.cs.treelib.common.FloatKey;
 import fi.hut.cs.treelib.common.IntegerKey;
 
 public class MBRTest extends TreeLibTest {
@@ -224,6 +226,61 @@ public class MBRTest extends TreeLibTest {
         assertEquals(getMBR(-10, 4, 1, 5), SRC.extend(getMBR(-10, 3, 1, 4)));
     }
 
+    private MBR<FloatKey> getFloatMBR(Random random) {
+        float x = random.nextInt(20);
+        float y = random.nextInt(20);
+        return new MBR<FloatKey>(new FloatKey(x), new FloatKey(x + random.nextInt(8)),
+            new FloatKey(y), new FloatKey(y + random.nextInt(8)));
+    }
+
+    private boolean keyOverlaps(MBR<FloatKey> m1, MBR<FloatKey> m2) {
+        for (int i = 0; i < m1.getDimensions(); i++) {
+            if (m1.getLow(i).compareTo(m2.getHigh(i)) > 0
+                || m1.getHigh(i).compareTo(m2.getLow(i)) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    public void testDoubleMBR() {
+        DoubleMBR d = getMBR(1, 5, 3, 8).getDoubleMBR();
+        assertTrue(d.isExact());
+        assertEquals(2, d.getDimensions());
+        assertEquals(1.0, d.getLow(0));
+        assertEquals(8.0, d.getHigh(1));
+        assertEquals(20.0, d.getArea());
+        assertEquals(18.0, d.getPerimeter());
+
+        // Squared minimum distances from points
+        assertEquals(0.0, d.getMinDistance(new double[] { 3, 4 }));
+        assertEquals(10.0, d.getMinDistance(new double[] { 0, 0 }));
+        assertEquals(8.0, d.getMinDistance(new double[] { 7, 10 }));
+        assertEquals(4.0, d.getMinDistance(new double[] { 3, 10 }));
+        double[] point = DoubleMBR.getPoint(getMBR(1, 5, 3, 8).getMin());
+        assertEquals(1.0, point[0]);
+        assertEquals(3.0, point[1]);
+
+        // The primitive kernels match the key-based calculations
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            MBR<FloatKey> m1 = getFloatMBR(random);
+            MBR<FloatKey> m2 = getFloatMBR(random);
+            DoubleMBR d1 = m1.getDoubleMBR();
+            DoubleMBR d2 = m2.getDoubleMBR();
+            assertEquals(keyOverlaps(m1, m2), m1.overlaps(m2));
+            assertEquals(m1.overlaps(m2), d1.overlaps(d2));
+            assertEquals(m1.contains(m2), d1.contains(d2));
+            assertEquals(m1.getArea().toFloat(), d1.getArea(), 1e-6);
+            assertEquals(m1.getPerimeter().toFloat(), d1.getPerimeter(), 1e-6);
+            assertEquals(m1.countEnlargement(m2).toFloat(), d1.getEnlargement(d2), 1e-6);
+            assertEquals(m1.countOverlapArea(m2).toFloat(), d1.getOverlapArea(d2), 1e-6);
+
+            double[] bounds = d1.copyBounds();
+            DoubleMBR.extend(bounds, d2);
+            assertEquals(m1.extend(m2).getArea().toFloat(), DoubleMBR.area(bounds), 1e-6);
+        }
+    }
+
     private final int MAX = Integer.MAX_VALUE;
     private final int MIN = Integer.MIN_VALUE;
 
@@ -0,0 +1,222 @@
+package fi.hut.cs.treelib.btree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.Transaction;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.common.IntegerKey;
+import fi.hut.cs.treelib.common.IntegerValue;
+import fi.hut.cs.treelib.common.NonThrashingSMOPolicy;
+import fi.hut.cs.treelib.concurrency.DefaultLatchManager;
+import fi.hut.cs.treelib.concurrency.LatchManager;
+import fi.hut.cs.treelib.concurrency.StripedLatchManager;
+import fi.hut.cs.treelib.storage.MemoryPageStorage;
+import fi.tuska.util.Pair;
+
+/**
+ * Inserts and deletes keys from several writer threads in the B-link mode,
+ * while reader threads check that the inserted keys are found.
+ */
+public class BTreeBLinkTest extends TreeLibTest {
+
+    private static final Logger log = Logger.getLogger(BTreeBLinkTest.class);
+
+    private static final int PAGE_SIZE = 400;
+    private static final int BUFFER_SIZE = 4000;
+    private static final int WRITERS = 4;
+    private static final int READERS = 2;
+    private static final int KEYS_PER_WRITER = 5000;
+
+    private BTreeDatabase<IntegerKey, IntegerValue> createDatabase(LatchManager latchManager) {
+        BTreeDatabase<IntegerKey, IntegerValue> db = new BTreeDatabase<IntegerKey, IntegerValue>(
+            BUFFER_SIZE, new NonThrashingSMOPolicy(0.2, 0.2), latchManager,
+            IntegerKey.PROTOTYPE, IntegerValue.PROTOTYPE, new MemoryPageStorage(PAGE_SIZE));
+        db.getDatabaseTree().setBLinkMode(true);
+        // The page fix counts are not checked, because of the concurrent
+        // operations
+        db.getDatabaseTree().setCheckFixes(false);
+        return db;
+    }
+
+    public void testSingleWriter() {
+        BTreeDatabase<IntegerKey, IntegerValue> db = createDatabase(new StripedLatchManager());
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        for (int i = 0; i < KEYS_PER_WRITER; i++) {
+            assertTrue(tx.insert(new IntegerKey(i), new IntegerValue(i)));
+        }
+        assertFalse(tx.insert(new IntegerKey(10), new IntegerValue(-1)));
+        assertEquals(10, tx.get(new IntegerKey(10)).intValue());
+        for (int i = 0; i < KEYS_PER_WRITER; i += 2) {
+            assertTrue(tx.delete(new IntegerKey(i)));
+        }
+        assertFalse(tx.delete(new IntegerKey(0)));
+        tx.commit();
+
+        db.checkConsistency();
+        assertGT(db.getDatabaseTree().getHeight(), 2);
+        tx = db.beginTransaction();
+        List<Pair<IntegerKey, IntegerValue>> all = tx.getAll();
+        assertEquals(KEYS_PER_WRITER / 2, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(i * 2 + 1, all.get(i).getFirst().intValue());
+        }
+        tx.commit();
+    }
+
+    public void testInsertInsideKeyRange() throws InterruptedException {
+        final BTreeDatabase<IntegerKey, IntegerValue> db = createDatabase(new StripedLatchManager());
+        final Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        assertTrue(tx.insert(new IntegerKey(0), new IntegerValue(0)));
+        assertTrue(tx.insert(new IntegerKey(1000), new IntegerValue(1000)));
+
+        // Inserts inside the key range of the tree do not lock the tree
+        final AtomicBoolean inserted = new AtomicBoolean(false);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                inserted.set(tx.insert(new IntegerKey(500), new IntegerValue(500)));
+            }
+        });
+        synchronized (db.getDatabaseTree()) {
+            writer.start();
+            writer.join(10000);
+            assertTrue(inserted.get());
+        }
+        tx.commit();
+        db.checkConsistency();
+    }
+
+    public void testConcurrentWriters() throws InterruptedException {
+        runWriters(new StripedLatchManager());
+    }
+
+    public void testConcurrentWritersLatchedReads() throws InterruptedException {
+        // No optimistic reads, so the lookups read-latch the pages
+        runWriters(new DefaultLatchManager());
+    }
+
+    private void runWriters(LatchManager latchManager) throws InterruptedException {
+        final BTreeDatabase<IntegerKey, IntegerValue> db = createDatabase(latchManager);
+
+        // Each writer inserts its own keys in random order, so the writers
+        // split the same pages
+        final int[][] keys = new int[WRITERS][KEYS_PER_WRITER];
+        for (int t = 0; t < WRITERS; t++) {
+            List<Integer> order = new ArrayList<Integer>();
+            for (int i = 0; i < KEYS_PER_WRITER; i++) {
+                order.add(i * WRITERS + t);
+            }
+            Collections.shuffle(order, new Random(t));
+            for (int i = 0; i < KEYS_PER_WRITER; i++) {
+                keys[t][i] = order.get(i);
+            }
+        }
+        // The amount of keys inserted by each writer
+        final AtomicIntegerArray inserted = new AtomicIntegerArray(WRITERS);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicInteger errors = new AtomicInteger(0);
+
+        Thread[] writers = new Thread[WRITERS];
+        for (int t = 0; t < WRITERS; t++) {
+            final int writer = t;
+            final Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int key : keys[writer]) {
+                            if (!tx.insert(new IntegerKey(key), new IntegerValue(key))) {
+                                log.error("Key " + key + " not inserted");
+                                errors.incrementAndGet();
+                            }
+                            inserted.incrementAndGet(writer);
+                        }
+                        // Delete every other key
+                        for (int i = 0; i < KEYS_PER_WRITER; i += 2) {
+                            if (!tx.delete(new IntegerKey(keys[writer][i]))) {
+                                log.error("Key " + keys[writer][i] + " not deleted");
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("Error in update: " + e, e);
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+        }
+        Thread[] readers = new Thread[READERS];
+        for (int t = 0; t < READERS; t++) {
+            final long seed = t;
+            final Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (writing.get()) {
+                            // The keys at odd positions are never deleted
+                            int writer = random.nextInt(WRITERS);
+                            int count = inserted.get(writer) / 2;
+                            if (count == 0)
+                                continue;
+                            int key = keys[writer][random.nextInt(count) * 2 + 1];
+                            IntegerValue value = tx.get(new IntegerKey(key));
+                            if (value == null || value.intValue() != key) {
+                                log.error("Wrong value for " + key + ": " + value);
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("Error in lookup: " + e, e);
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        log.info(String.format("%s: %d writers inserted %d keys in %d ms, tree height %d",
+            latchManager.getClass().getSimpleName(), WRITERS, WRITERS * KEYS_PER_WRITER, System
+                .currentTimeMillis()
+                - start, db.getDatabaseTree().getHeight()));
+
+        assertEquals(0, errors.get());
+        db.checkConsistency();
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        List<Pair<IntegerKey, IntegerValue>> all = tx.getAll();
+        assertEquals(WRITERS * KEYS_PER_WRITER / 2, all.size());
+        for (int t = 0; t < WRITERS; t++) {
+            for (int i = 0; i < KEYS_PER_WRITER; i++) {
+                IntegerValue value = tx.get(new IntegerKey(keys[t][i]));
+                if (i % 2 == 0)
+                    assertNull(value);
+                else
+                    assertEquals(keys[t][i], value.intValue());
+            }
+        }
+        tx.commit();
+    }
+
+}
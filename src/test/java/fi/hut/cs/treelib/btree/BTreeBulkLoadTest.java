@@ -0,0 +1,241 @@
+package fi.hut.cs.treelib.btree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import fi.hut.cs.treelib.Configuration;
+import fi.hut.cs.treelib.Page;
+import fi.hut.cs.treelib.Transaction;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.common.IntegerKey;
+import fi.hut.cs.treelib.common.IntegerValue;
+import fi.hut.cs.treelib.common.NonThrashingSMOPolicy;
+import fi.hut.cs.treelib.common.SMOPolicy;
+import fi.hut.cs.treelib.common.TreeShortcuts;
+import fi.hut.cs.treelib.internal.KeyRangeImpl;
+import fi.hut.cs.treelib.storage.MemoryPageStorage;
+import fi.hut.cs.treelib.util.ExternalSorter;
+import fi.hut.cs.treelib.util.KeyRangePredicate;
+import fi.tuska.util.Callback;
+import fi.tuska.util.Pair;
+
+public class BTreeBulkLoadTest extends TreeLibTest {
+
+    private static final int PAGE_SIZE = 400;
+    private static final int KEYS = 5000;
+
+    private final Configuration config = Configuration.instance();
+    private final SMOPolicy smoPolicy = new NonThrashingSMOPolicy(0.2, 0.2);
+    private int oldRunSize;
+    private double oldFillRatio;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        oldRunSize = config.getBulkLoadSortRunSize();
+        oldFillRatio = config.getBulkLoadFillRatio();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        config.setBulkLoadSortRunSize(oldRunSize);
+        config.setBulkLoadFillRatio(oldFillRatio);
+        super.tearDown();
+    }
+
+    private BTreeDatabase<IntegerKey, IntegerValue> createDatabase() {
+        return new BTreeDatabase<IntegerKey, IntegerValue>(32, smoPolicy, IntegerKey.PROTOTYPE,
+            IntegerValue.PROTOTYPE, new MemoryPageStorage(PAGE_SIZE));
+    }
+
+    private List<Pair<IntegerKey, IntegerValue>> createEntries(int count, boolean shuffle) {
+        List<Pair<IntegerKey, IntegerValue>> entries = new ArrayList<Pair<IntegerKey, IntegerValue>>();
+        for (int i = 0; i < count; i++) {
+            entries.add(new Pair<IntegerKey, IntegerValue>(new IntegerKey(i * 2),
+                new IntegerValue(i)));
+        }
+        if (shuffle)
+            Collections.shuffle(entries, new Random(count));
+        return entries;
+    }
+
+    private void checkContents(BTreeDatabase<IntegerKey, IntegerValue> db, int count) {
+        db.checkConsistency(true);
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, tx.get(new IntegerKey(i * 2)).intValue());
+            assertNull(tx.get(new IntegerKey(i * 2 + 1)));
+        }
+        List<Pair<IntegerKey, IntegerValue>> all = tx.getAll();
+        assertEquals(count, all.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i * 2, all.get(i).getFirst().intValue());
+        }
+        assertEquals(10, tx.getRange(
+            new KeyRangeImpl<IntegerKey>(new IntegerKey(100), new IntegerKey(120))).size());
+        tx.commit();
+    }
+
+    public void testSortedBulkLoad() {
+        config.setBulkLoadSortRunSize(0);
+        BTreeDatabase<IntegerKey, IntegerValue> db = createDatabase();
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        db.bulkLoad(createEntries(KEYS, false), tx);
+        tx.commit();
+        checkContents(db, KEYS);
+
+        // Bulk-loaded pages are filled up to the fill ratio, so the tree is
+        // smaller than a tree built with inserts
+        BTreeDatabase<IntegerKey, IntegerValue> insertDB = createDatabase();
+        tx = insertDB.beginTransaction();
+        for (Pair<IntegerKey, IntegerValue> entry : createEntries(KEYS, true)) {
+            tx.insert(entry.getFirst(), entry.getSecond());
+        }
+        tx.commit();
+        assertGT(TreeShortcuts.countPages(insertDB.getDatabaseTree(), false), TreeShortcuts
+            .countPages(db.getDatabaseTree(), false));
+    }
+
+    public void testIndexPageFillRatio() {
+        config.setBulkLoadSortRunSize(0);
+        config.setBulkLoadFillRatio(0.5);
+        BTreeDatabase<IntegerKey, IntegerValue> db = createDatabase();
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        db.bulkLoad(createEntries(KEYS, false), tx);
+        tx.commit();
+        checkContents(db, KEYS);
+
+        // Index pages are filled up to the fill ratio, like the leaf pages
+        final List<Double> indexFills = new ArrayList<Double>();
+        BTree<IntegerKey, IntegerValue> tree = db.getDatabaseTree();
+        tree.traversePages(new KeyRangePredicate<IntegerKey>(),
+            new Callback<Page<IntegerKey, IntegerValue>>() {
+                @Override
+                public boolean callback(Page<IntegerKey, IntegerValue> page) {
+                    if (page.getHeight() > 1)
+                        indexFills.add(page.getFillRatio());
+                    return true;
+                }
+            }, tree.internalOwner);
+        assertGT(indexFills.size(), 2);
+        for (double fill : indexFills) {
+            assertTrue(String.valueOf(fill), fill < 0.75);
+        }
+    }
+
+    public void testUnsortedInMemory() {
+        config.setBulkLoadSortRunSize(KEYS * 2);
+        BTreeDatabase<IntegerKey, IntegerValue> db = createDatabase();
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        db.bulkLoad(createEntries(KEYS, true), tx);
+        tx.commit();
+        checkContents(db, KEYS);
+    }
+
+    public void testUnsortedExternal() {
+        config.setBulkLoadSortRunSize(300);
+        BTreeDatabase<IntegerKey, IntegerValue> db = createDatabase();
+        List<Pair<IntegerKey, IntegerValue>> entries = createEntries(KEYS, true);
+        // Duplicates are skipped; the first entry of each key is loaded
+        entries.add(new Pair<IntegerKey, IntegerValue>(new IntegerKey(20), new IntegerValue(-1)));
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        db.bulkLoad(entries, tx);
+        tx.commit();
+        checkContents(db, KEYS);
+    }
+
+    public void testUnsortedWithoutSorting() {
+        config.setBulkLoadSortRunSize(0);
+        BTreeDatabase<IntegerKey, IntegerValue> db = createDatabase();
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        try {
+            db.bulkLoad(createEntries(100, true), tx);
+            fail("Unsorted input accepted");
+        } catch (IllegalArgumentException e) {
+            // OK, input not in order
+        }
+    }
+
+    public void testNonEmptyDatabase() {
+        BTreeDatabase<IntegerKey, IntegerValue> db = createDatabase();
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        tx.insert(new IntegerKey(1), new IntegerValue(1));
+        try {
+            db.bulkLoad(createEntries(100, false), tx);
+            fail("Bulk-load to a non-empty database");
+        } catch (IllegalStateException e) {
+            // OK, only empty databases can be bulk-loaded
+        }
+        // A root left empty by deletions is replaced
+        tx.delete(new IntegerKey(1));
+        db.bulkLoad(createEntries(100, false), tx);
+        tx.commit();
+        checkContents(db, 100);
+    }
+
+    public void testUpdatesAfterBulkLoad() {
+        BTreeDatabase<IntegerKey, IntegerValue> db = createDatabase();
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        db.bulkLoad(createEntries(KEYS, false), tx);
+        // Fill the gaps, splitting the bulk-loaded pages
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(tx.insert(new IntegerKey(i * 2 + 1), new IntegerValue(-i)));
+        }
+        for (int i = 0; i < KEYS; i += 2) {
+            assertTrue(tx.delete(new IntegerKey(i * 2)));
+        }
+        tx.commit();
+        db.checkConsistency(true);
+        assertEquals(KEYS + KEYS / 2, db.beginTransaction().getAll().size());
+    }
+
+    public void testMVVBTBulkLoad() {
+        MVVBTDatabase<IntegerKey, IntegerValue> db = new MVVBTDatabase<IntegerKey, IntegerValue>(
+            32, smoPolicy, IntegerKey.PROTOTYPE, IntegerValue.PROTOTYPE, new MemoryPageStorage(
+                PAGE_SIZE));
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        db.bulkLoad(createEntries(KEYS, true), tx);
+        int version = tx.getReadVersion();
+        tx.commit();
+        db.checkConsistency(true);
+
+        tx = db.beginTransaction();
+        tx.delete(new IntegerKey(10));
+        tx.commit();
+
+        tx = db.beginReadTransaction(version);
+        assertEquals(5, tx.get(new IntegerKey(10)).intValue());
+        assertEquals(KEYS, tx.getAll().size());
+        tx.commit();
+        tx = db.beginReadTransaction(db.getCommittedVersion());
+        assertNull(tx.get(new IntegerKey(10)));
+        assertEquals(KEYS - 1, tx.getAll().size());
+        tx.commit();
+    }
+
+    public void testExternalSorterStable() {
+        List<Pair<IntegerKey, IntegerValue>> entries = new ArrayList<Pair<IntegerKey, IntegerValue>>();
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new Pair<IntegerKey, IntegerValue>(new IntegerKey(random.nextInt(50)),
+                new IntegerValue(i)));
+        }
+        Pair<IntegerKey, IntegerValue> prev = null;
+        int count = 0;
+        for (Pair<IntegerKey, IntegerValue> entry : new ExternalSorter<IntegerKey, IntegerValue>(
+            IntegerKey.PROTOTYPE, IntegerValue.PROTOTYPE, 64).sort(entries)) {
+            if (prev != null) {
+                int c = prev.getFirst().compareTo(entry.getFirst());
+                assertTrue(c <= 0);
+                if (c == 0)
+                    assertTrue(prev.getSecond().intValue() < entry.getSecond().intValue());
+            }
+            prev = entry;
+            count++;
+        }
+        assertEquals(1000, count);
+    }
+
+}
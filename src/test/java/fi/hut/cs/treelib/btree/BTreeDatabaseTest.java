@@ -1,14 +1,17 @@
 package fi.hut.cs.treelib.btree;
 
 import fi.hut.cs.treelib.AbstractDatabaseTest;
+import fi.hut.cs.treelib.Cursor;
 import fi.hut.cs.treelib.Page;
 import fi.hut.cs.treelib.Transaction;
 import fi.hut.cs.treelib.common.IntegerKey;
 import fi.hut.cs.treelib.common.StringValue;
 import fi.hut.cs.treelib.gui.TreeTester;
+import fi.hut.cs.treelib.internal.KeyRangeImpl;
 import fi.hut.cs.treelib.storage.MemoryPageStorage;
 import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageStorage;
+import fi.tuska.util.Pair;
 
 public class BTreeDatabaseTest extends
     AbstractDatabaseTest<IntegerKey, BTreePage<IntegerKey, StringValue>> {
@@ -78,6 +81,34 @@ public class BTreeDatabaseTest extends
         tx.commit();
     }
 
+    public void testCursor() {
+        BTreeDatabase<IntegerKey, StringValue> db = createDatabase();
+        Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
+        for (int i = 0; i < 200; i += 2) {
+            insert(tx, String.valueOf(i));
+        }
+        tx.commit();
+        PageBuffer buffer = db.getPageBuffer();
+        int fixes = buffer.getTotalPageFixes();
+
+        tx = db.beginTransaction();
+        Cursor<IntegerKey, StringValue> cursor = db.getDatabaseTree().openCursor(
+            new KeyRangeImpl<IntegerKey>(new IntegerKey(51), new IntegerKey(151)), tx);
+        for (int i = 52; i < 151; i += 2) {
+            Pair<IntegerKey, StringValue> entry = cursor.next();
+            assertNotNull(entry);
+            assertEquals(i, entry.getFirst().intValue());
+            assertEquals(String.valueOf(i), entry.getSecond().getValue());
+            // Only the current leaf page is kept fixed
+            assertEquals(fixes + 1, buffer.getTotalPageFixes());
+        }
+        assertNull(cursor.next());
+        cursor.close();
+        assertNull(cursor.next());
+        assertEquals(fixes, buffer.getTotalPageFixes());
+        tx.commit();
+    }
+
     public void testFloorEntry() {
         BTreeDatabase<IntegerKey, StringValue> db = createDatabase();
         execute(db, TreeTester.FILLED_TREE_2);
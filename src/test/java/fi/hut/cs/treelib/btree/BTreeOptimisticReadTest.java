@@ -0,0 +1,206 @@
+package fi.hut.cs.treelib.btree;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.Transaction;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.common.IntegerKey;
+import fi.hut.cs.treelib.common.IntegerValue;
+import fi.hut.cs.treelib.common.NonThrashingSMOPolicy;
+import fi.hut.cs.treelib.concurrency.DefaultLatchManager;
+import fi.hut.cs.treelib.concurrency.LatchManager;
+import fi.hut.cs.treelib.concurrency.StripedLatchManager;
+import fi.hut.cs.treelib.storage.MemoryPageStorage;
+import fi.tuska.util.Converter;
+
+/**
+ * Runs B-tree lookups concurrently with a writer that splits the pages and
+ * deletes entries, and checks that the lookups always find the stable keys.
+ */
+public class BTreeOptimisticReadTest extends TreeLibTest {
+
+    private static final Logger log = Logger.getLogger(BTreeOptimisticReadTest.class);
+
+    private static final int PAGE_SIZE = 400;
+    private static final int BUFFER_SIZE = 2000;
+    private static final int READERS = 4;
+    /** Even keys 0, 2, ... are never modified. */
+    private static final int STABLE_KEYS = 5000;
+    private static final int WRITE_ROUNDS = 4;
+
+    public void testOptimisticReads() throws InterruptedException {
+        runReadersAndWriter(new StripedLatchManager());
+    }
+
+    public void testLatchedReads() throws InterruptedException {
+        // No optimistic reads, so the lookups read-latch the pages
+        runReadersAndWriter(new DefaultLatchManager());
+    }
+
+    /**
+     * A lookup may hold a fix on a page while the writer deletes the entries
+     * of the page. The page must not be merged away (deleted) under it.
+     */
+    public void testUnderflowWhileReaderHoldsFix() {
+        BTreeDatabase<IntegerKey, IntegerValue> db = new BTreeDatabase<IntegerKey, IntegerValue>(
+            BUFFER_SIZE, new NonThrashingSMOPolicy(0.2, 0.2), new StripedLatchManager(),
+            IntegerKey.PROTOTYPE, IntegerValue.PROTOTYPE, new MemoryPageStorage(PAGE_SIZE));
+        db.getDatabaseTree().setCheckFixes(false);
+        BTree<IntegerKey, IntegerValue> tree = db.getDatabaseTree();
+
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        for (int i = 0; i < 1000; i++) {
+            tx.insert(new IntegerKey(i), new IntegerValue(i));
+        }
+        tx.commit();
+        tree.enablePageCount();
+        long pages = tree.getPageCount();
+        assertTrue(tree.getHeight() > 1);
+
+        // The reader fixes the leaf page that contains the key, as a lookup
+        // does
+        Transaction<IntegerKey, IntegerValue> readTX = db.beginTransaction();
+        PageID leafID = tree.getOperations().readLeaf(new IntegerKey(500),
+            new Converter<BTreePage<IntegerKey, IntegerValue>, PageID>() {
+                @Override
+                public PageID convert(BTreePage<IntegerKey, IntegerValue> leaf) {
+                    return leaf.getPageID();
+                }
+            }, readTX);
+        BTreePage<IntegerKey, IntegerValue> leaf = db.getPageBuffer().fixPage(leafID,
+            tree.getPageFactory(), false, readTX);
+
+        // Deletes all but a few of the keys, underflowing the leaf page and
+        // its neighbours
+        tx = db.beginTransaction();
+        for (int i = 0; i < 1000; i++) {
+            if (i % 100 != 0)
+                assertTrue(tx.delete(new IntegerKey(i)));
+        }
+        tx.commit();
+
+        // No pages were deleted
+        assertEquals(pages, tree.getPageCount());
+        assertEquals(leafID, leaf.getPageID());
+        db.getPageBuffer().unfix(leaf, readTX);
+
+        db.checkConsistency();
+        for (int i = 0; i < 1000; i++) {
+            IntegerValue value = readTX.get(new IntegerKey(i));
+            assertEquals(i % 100 == 0 ? new IntegerValue(i) : null, value);
+        }
+        readTX.commit();
+        // New pages are created normally after the underflow
+        tx = db.beginTransaction();
+        for (int i = 0; i < 1000; i++) {
+            if (i % 100 != 0)
+                assertTrue(tx.insert(new IntegerKey(i), new IntegerValue(i)));
+        }
+        tx.commit();
+        db.checkConsistency();
+        tx = db.beginTransaction();
+        assertEquals(1000, tx.getAll().size());
+        tx.commit();
+    }
+
+    private void runReadersAndWriter(LatchManager latchManager) throws InterruptedException {
+        final BTreeDatabase<IntegerKey, IntegerValue> db = new BTreeDatabase<IntegerKey, IntegerValue>(
+            BUFFER_SIZE, new NonThrashingSMOPolicy(0.2, 0.2), latchManager,
+            IntegerKey.PROTOTYPE, IntegerValue.PROTOTYPE, new MemoryPageStorage(PAGE_SIZE));
+        // The page fix counts are not checked, because of the concurrent
+        // lookups
+        db.getDatabaseTree().setCheckFixes(false);
+        assertTrue(db.getDatabaseTree().isLatchUpdates());
+
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        for (int i = 0; i < STABLE_KEYS; i++) {
+            tx.insert(new IntegerKey(i * 2), new IntegerValue(i * 2));
+        }
+        tx.commit();
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicInteger errors = new AtomicInteger(0);
+        final AtomicLong lookups = new AtomicLong(0);
+        Thread[] readers = new Thread[READERS];
+        for (int t = 0; t < READERS; t++) {
+            final long seed = t;
+            final Transaction<IntegerKey, IntegerValue> readTX = db.beginTransaction();
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (writing.get()) {
+                            int key = random.nextInt(STABLE_KEYS) * 2;
+                            IntegerValue value = readTX.get(new IntegerKey(key));
+                            if (value == null || value.intValue() != key) {
+                                log.error("Wrong value for " + key + ": " + value);
+                                errors.incrementAndGet();
+                            }
+                            // Odd keys come and go
+                            value = readTX.get(new IntegerKey(key + 1));
+                            if (value != null && value.intValue() != key + 1) {
+                                log.error("Wrong value for " + (key + 1) + ": " + value);
+                                errors.incrementAndGet();
+                            }
+                            if (!readTX.contains(new IntegerKey(key))) {
+                                log.error("Key " + key + " not found");
+                                errors.incrementAndGet();
+                            }
+                            lookups.addAndGet(3);
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("Error in lookup: " + e, e);
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        // The writer fills the gaps between the stable keys (splitting the
+        // pages), and removes the inserted keys (underflowing the pages)
+        Random random = new Random(STABLE_KEYS);
+        try {
+            for (int round = 0; round < WRITE_ROUNDS; round++) {
+                tx = db.beginTransaction();
+                for (int i = 0; i < STABLE_KEYS; i++) {
+                    int key = random.nextInt(STABLE_KEYS) * 2 + 1;
+                    tx.insert(new IntegerKey(key), new IntegerValue(key));
+                }
+                for (int i = 0; i < STABLE_KEYS; i++) {
+                    tx.delete(new IntegerKey(i * 2 + 1));
+                }
+                tx.commit();
+            }
+        } finally {
+            writing.set(false);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+        log.info(String.format("%s: %d lookups by %d threads in %d ms (%d lookups/s)",
+            latchManager.getClass().getSimpleName(), lookups.get(), READERS, elapsed, lookups
+                .get()
+                * 1000 / elapsed));
+
+        assertEquals(0, errors.get());
+        // Only the root page is left fixed
+        assertEquals(1, db.getPageBuffer().getTotalPageFixes());
+        db.checkConsistency();
+        tx = db.beginTransaction();
+        assertEquals(STABLE_KEYS, tx.getAll().size());
+        tx.commit();
+    }
+
+}
@@ -0,0 +1,104 @@
+package fi.hut.cs.treelib.btree;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.Configuration;
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.common.IntegerKey;
+import fi.hut.cs.treelib.common.NonThrashingSMOPolicy;
+import fi.hut.cs.treelib.common.StringValue;
+import fi.hut.cs.treelib.common.VersionedKey;
+import fi.hut.cs.treelib.internal.KeyRangeImpl;
+import fi.hut.cs.treelib.storage.MemoryPageStorage;
+
+/**
+ * Checks the child pointer lookups of full index pages, and measures the
+ * lookup cost (the routing cost of one level of a root-to-leaf descent)
+ * against the page size, for both page entry representations.
+ */
+public class BTreePageLookupTest extends TreeLibTest {
+
+    private static final Logger log = Logger.getLogger(BTreePageLookupTest.class);
+
+    private static final int[] PAGE_SIZES = { 4096, 8192, 16384, 32768, 65536 };
+    private static final int LOOKUPS = 20000;
+    /** Distance between the router keys. */
+    private static final int KEY_STEP = 10;
+
+    private final Configuration config = Configuration.instance();
+    private boolean oldInPageSetting;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        oldInPageSetting = config.isInPageBTreeEntries();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        config.setInPageBTreeEntries(oldInPageSetting);
+        super.tearDown();
+    }
+
+    public void testIntegerKeyLookups() {
+        for (int pageSize : PAGE_SIZES) {
+            for (boolean inPage : new boolean[] { true, false }) {
+                config.setInPageBTreeEntries(inPage);
+                runLookups(IntegerKey.PROTOTYPE, pageSize, inPage);
+            }
+        }
+    }
+
+    public void testVersionedKeyLookups() {
+        VersionedKey<IntegerKey> proto = new VersionedKey<IntegerKey>(IntegerKey.PROTOTYPE, 0);
+        for (int pageSize : PAGE_SIZES) {
+            for (boolean inPage : new boolean[] { true, false }) {
+                config.setInPageBTreeEntries(inPage);
+                runLookups(proto, pageSize, inPage);
+            }
+        }
+    }
+
+    private <K extends Key<K>> void runLookups(K keyProto, int pageSize, boolean inPage) {
+        BTree<K, StringValue> tree = new BTreeDatabase<K, StringValue>(4,
+            new NonThrashingSMOPolicy(0.2, 0.2), keyProto, StringValue.PROTOTYPE,
+            new MemoryPageStorage(pageSize)).getDatabaseTree();
+        BTreePage<K, StringValue> page = new BTreePage<K, StringValue>(tree, new PageID(1),
+            pageSize);
+        page.formatNewPage(ByteBuffer.wrap(new byte[pageSize]));
+        page.format(2);
+
+        // Fill the index page with routers [i * step, (i + 1) * step)
+        int entries = page.getPageEntryCapacity();
+        for (int i = 0; i < entries; i++) {
+            K min = i == 0 ? keyProto.getMinKey() : keyProto.fromInt(i * KEY_STEP);
+            K max = i == entries - 1 ? keyProto.getMaxKey() : keyProto.fromInt((i + 1)
+                * KEY_STEP);
+            page.putContents(new KeyRangeImpl<K>(min, max), new PageID(i + 10));
+        }
+        assertEquals(entries, page.getEntryCount());
+
+        int range = entries * KEY_STEP;
+        long elapsed = 0;
+        // The first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            Random random = new Random(pageSize);
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                int key = random.nextInt(range);
+                PageID child = page.findChildPointer(keyProto.fromInt(key));
+                assertEquals(key / KEY_STEP + 10, child.intValue());
+            }
+            elapsed = System.nanoTime() - start;
+        }
+        log.info(String.format("%s, page size %d, %d routers (%s): %d ns/lookup", keyProto
+            .getClass().getSimpleName(), pageSize, entries, inPage ? "in-page" : "TreeMap",
+            elapsed / LOOKUPS));
+    }
+
+}
@@ -1,8 +1,16 @@
 package fi.hut.cs.treelib.btree;
 
 import java.nio.ByteBuffer;
-
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import fi.hut.cs.treelib.Configuration;
+import fi.hut.cs.treelib.KeyRange;
 import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.PageValue;
 import fi.hut.cs.treelib.Transaction;
 import fi.hut.cs.treelib.TreeLibTest;
 import fi.hut.cs.treelib.common.DummyTransaction;
@@ -11,6 +19,7 @@ import fi.hut.cs.treelib.common.NonThrashingSMOPolicy;
 import fi.hut.cs.treelib.common.PagePath;
 import fi.hut.cs.treelib.common.SMOPolicy;
 import fi.hut.cs.treelib.common.StringValue;
+import fi.hut.cs.treelib.internal.KeyRangeImpl;
 import fi.hut.cs.treelib.storage.MemoryPageStorage;
 import fi.hut.cs.treelib.storage.PageStorage;
 import fi.hut.cs.treelib.util.ByteUtils;
@@ -117,6 +126,124 @@ public class BTreePageTest extends TreeLibTest {
         assertEquals("V6", page.getEntry(new IntegerKey(6)).getValue());
     }
 
+    public void testInPageEntries() {
+        checkEntries(true);
+    }
+
+    public void testTreeMapEntries() {
+        checkEntries(false);
+    }
+
+    /**
+     * Fills pages using one entry representation, and reads them back using
+     * the other one.
+     */
+    private void checkEntries(boolean inPage) {
+        Configuration config = Configuration.instance();
+        boolean oldSetting = config.isInPageBTreeEntries();
+        try {
+            config.setInPageBTreeEntries(inPage);
+            BTreePage<IntegerKey, StringValue> page = new BTreePage<IntegerKey, StringValue>(
+                tree, new PageID(11), PAGE_SIZE);
+            page.formatNewPage(data);
+            page.format(1);
+
+            List<Integer> keys = new ArrayList<Integer>();
+            for (int i = 1; i <= 30; i++) {
+                keys.add(i * 2);
+            }
+            Collections.shuffle(keys, new Random(1));
+            for (int key : keys) {
+                page.putContents(getRange(key), new StringValue("V" + key));
+            }
+            // Remove every third key, and overwrite the value of one key
+            for (int i = 3; i <= 30; i += 3) {
+                assertEquals("V" + (i * 2), page.removeContents(getRange(i * 2), null)
+                    .getValue());
+            }
+            page.putContents(getRange(8), new StringValue("X8"));
+            data.rewind();
+            page.savePageData();
+
+            config.setInPageBTreeEntries(!inPage);
+            BTreePage<IntegerKey, StringValue> page2 = new BTreePage<IntegerKey, StringValue>(
+                tree, new PageID(11), PAGE_SIZE);
+            page2.loadPageData(data);
+            assertEquals(20, page2.getEntryCount());
+            for (int i = 1; i <= 60; i++) {
+                StringValue value = (StringValue) page2.getEntry(new IntegerKey(i));
+                if (i % 2 == 1 || i % 6 == 0) {
+                    assertNull(value);
+                } else {
+                    assertEquals((i == 8 ? "X" : "V") + i, value.getValue());
+                }
+            }
+            // 6 has been removed
+            assertEquals(4, page2.floorEntry(new IntegerKey(7)).getFirst().intValue());
+            assertNull(page2.floorEntry(new IntegerKey(1)));
+            int last = 0;
+            for (Map.Entry<KeyRange<IntegerKey>, PageValue<?>> entry : page2.getContents()) {
+                assertGT(entry.getKey().getMin().intValue(), last);
+                last = entry.getKey().getMin().intValue();
+            }
+        } finally {
+            config.setInPageBTreeEntries(oldSetting);
+        }
+    }
+
+    public void testInPageIndexEntries() {
+        checkIndexEntries(true);
+    }
+
+    public void testTreeMapIndexEntries() {
+        checkIndexEntries(false);
+    }
+
+    private void checkIndexEntries(boolean inPage) {
+        Configuration config = Configuration.instance();
+        boolean oldSetting = config.isInPageBTreeEntries();
+        try {
+            config.setInPageBTreeEntries(inPage);
+            BTreePage<IntegerKey, StringValue> page = new BTreePage<IntegerKey, StringValue>(
+                tree, new PageID(12), PAGE_SIZE);
+            page.formatNewPage(data);
+            page.format(2);
+            IntegerKey min = IntegerKey.PROTOTYPE.getMinKey();
+            IntegerKey max = IntegerKey.PROTOTYPE.getMaxKey();
+            page.putContents(new KeyRangeImpl<IntegerKey>(new IntegerKey(20), max),
+                new PageID(3));
+            page.putContents(new KeyRangeImpl<IntegerKey>(min, new IntegerKey(10)),
+                new PageID(1));
+            page.putContents(new KeyRangeImpl<IntegerKey>(new IntegerKey(10),
+                new IntegerKey(20)), new PageID(2));
+
+            assertEquals(1, page.findChildPointer(new IntegerKey(-5)).intValue());
+            assertEquals(2, page.findChildPointer(new IntegerKey(10)).intValue());
+            assertEquals(2, page.findChildPointer(new IntegerKey(15)).intValue());
+            assertEquals(3, page.findChildPointer(new IntegerKey(25)).intValue());
+            assertTrue(page.containsChild(new PageID(2)));
+            assertFalse(page.containsChild(new PageID(4)));
+
+            data.rewind();
+            page.savePageData();
+            config.setInPageBTreeEntries(!inPage);
+            BTreePage<IntegerKey, StringValue> page2 = new BTreePage<IntegerKey, StringValue>(
+                tree, new PageID(12), PAGE_SIZE);
+            page2.loadPageData(data);
+            assertEquals(3, page2.getEntryCount());
+            assertEquals(1, page2.findChildPointer(new IntegerKey(9)).intValue());
+            assertEquals(3, page2.findChildPointer(new IntegerKey(20)).intValue());
+            assertEquals(new KeyRangeImpl<IntegerKey>(new IntegerKey(10), new IntegerKey(20)),
+                page2.getContents().higherEntry(getRange(5)).getKey());
+        } finally {
+            config.setInPageBTreeEntries(oldSetting);
+        }
+    }
+
+    private KeyRange<IntegerKey> getRange(int key) {
+        return KeyRangeImpl.getKeyRange(new IntegerKey(key));
+    }
+
     protected BTree<IntegerKey, StringValue> createTree() {
         return new BTreeDatabase<IntegerKey, StringValue>(32, smoPolicy, IntegerKey.PROTOTYPE,
             StringValue.PROTOTYPE, pageStorage).getDatabaseTree();
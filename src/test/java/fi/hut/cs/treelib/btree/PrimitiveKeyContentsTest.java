@@ -0,0 +1,164 @@
+package fi.hut.cs.treelib.btree;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.Configuration;
+import fi.hut.cs.treelib.Key;
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.Transaction;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.common.IntegerKey;
+import fi.hut.cs.treelib.common.IntegerValue;
+import fi.hut.cs.treelib.common.LongKey;
+import fi.hut.cs.treelib.common.NonThrashingSMOPolicy;
+import fi.hut.cs.treelib.internal.KeyRangeImpl;
+import fi.hut.cs.treelib.storage.MemoryPageStorage;
+import fi.tuska.util.Pair;
+
+/**
+ * Checks the primitive key searches of IntegerKey and LongKey B-tree pages,
+ * and compares the heap allocation of an insert/get/range workload between
+ * the primitive in-page contents and the TreeMap contents.
+ */
+public class PrimitiveKeyContentsTest extends TreeLibTest {
+
+    private static final Logger log = Logger.getLogger(PrimitiveKeyContentsTest.class);
+
+    private static final int PAGE_SIZE = 4096;
+    /** Small buffer, so that pages are evicted and reloaded. */
+    private static final int BUFFER_SIZE = 16;
+    private static final int KEYS = 20000;
+    private static final int RANGES = 200;
+
+    private final Configuration config = Configuration.instance();
+    private boolean oldInPageSetting;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        oldInPageSetting = config.isInPageBTreeEntries();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        config.setInPageBTreeEntries(oldInPageSetting);
+        super.tearDown();
+    }
+
+    public void testContentsType() {
+        config.setInPageBTreeEntries(true);
+        assertTrue(createPage(IntegerKey.PROTOTYPE).getContents() instanceof IntKeyContents);
+        assertTrue(createPage(LongKey.PROTOTYPE).getContents() instanceof LongKeyContents);
+        config.setInPageBTreeEntries(false);
+        assertTrue(createPage(IntegerKey.PROTOTYPE).getContents() instanceof TreeMapContents<?>);
+    }
+
+    public void testIntegerKeys() {
+        compareWorkloads(IntegerKey.PROTOTYPE);
+    }
+
+    public void testLongKeys() {
+        compareWorkloads(LongKey.PROTOTYPE);
+    }
+
+    private <K extends Key<K>> void compareWorkloads(K keyProto) {
+        config.setInPageBTreeEntries(true);
+        long[] inPageAlloc = runWorkload(keyProto, true);
+        config.setInPageBTreeEntries(false);
+        long[] treeMapAlloc = runWorkload(keyProto, false);
+        if (inPageAlloc != null) {
+            // Searching the pages must not deserialize the page contents
+            assertTrue(inPageAlloc[0] + " >= " + treeMapAlloc[0],
+                inPageAlloc[0] < treeMapAlloc[0]);
+            // Range scans only create the reported entries
+            assertTrue(inPageAlloc[1] + " >= " + treeMapAlloc[1],
+                inPageAlloc[1] < treeMapAlloc[1]);
+        }
+    }
+
+    private <K extends Key<K>> BTreePage<K, IntegerValue> createPage(K keyProto) {
+        return new BTreePage<K, IntegerValue>(createDatabase(keyProto).getDatabaseTree(),
+            new PageID(1), PAGE_SIZE);
+    }
+
+    private <K extends Key<K>> BTreeDatabase<K, IntegerValue> createDatabase(K keyProto) {
+        return new BTreeDatabase<K, IntegerValue>(BUFFER_SIZE, new NonThrashingSMOPolicy(0.2,
+            0.2), keyProto, IntegerValue.PROTOTYPE, new MemoryPageStorage(PAGE_SIZE));
+    }
+
+    /**
+     * @return the bytes allocated per get and per range query; or null, if
+     * the allocations are not tracked
+     */
+    private <K extends Key<K>> long[] runWorkload(K keyProto, boolean inPage) {
+        BTreeDatabase<K, IntegerValue> db = createDatabase(keyProto);
+        // Keys are spread around zero, so that negative keys are stored as
+        // well
+        int[] keys = new int[KEYS];
+        Random random = new Random(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = (i - KEYS / 2) * 3;
+        }
+        for (int i = KEYS - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = keys[i];
+            keys[i] = keys[j];
+            keys[j] = t;
+        }
+
+        long alloc = allocatedBytes();
+        Transaction<K, IntegerValue> tx = db.beginTransaction();
+        for (int key : keys) {
+            assertTrue(tx.insert(keyProto.fromInt(key), new IntegerValue(key)));
+        }
+        tx.commit();
+        long insertAlloc = allocatedBytes() - alloc;
+
+        alloc = allocatedBytes();
+        tx = db.beginTransaction();
+        for (int key : keys) {
+            assertEquals(key, tx.get(keyProto.fromInt(key)).intValue());
+            assertNull(tx.get(keyProto.fromInt(key + 1)));
+        }
+        long getAlloc = allocatedBytes() - alloc;
+
+        alloc = allocatedBytes();
+        for (int i = 0; i < RANGES; i++) {
+            int min = keys[i];
+            List<Pair<K, IntegerValue>> range = tx.getRange(new KeyRangeImpl<K>(keyProto
+                .fromInt(min), keyProto.fromInt(min + 300)));
+            // Keys min, min + 3, ..., min + 297
+            assertEquals(Math.min(100, ((KEYS / 2 - 1) * 3 - min) / 3 + 1), range.size());
+        }
+        long rangeAlloc = allocatedBytes() - alloc;
+        tx.commit();
+        db.checkConsistency();
+
+        if (allocatedBytes() < 0)
+            return null;
+        log.info(String.format("%s (%s): %d B/insert, %d B/get, %d B/range query", keyProto
+            .getClass().getSimpleName(), inPage ? "in-page" : "TreeMap", insertAlloc / KEYS,
+            getAlloc / (KEYS * 2), rangeAlloc / RANGES));
+        return new long[] { getAlloc / (KEYS * 2), rangeAlloc / RANGES };
+    }
+
+    /**
+     * @return the bytes allocated by the current thread, or -1 if the JVM
+     * does not track the thread allocations
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+}
@@ -8,7 +8,7 @@ import fi.tuska.util.Holder;
 
 public class DefaultLatchManagerTest extends TreeLibTest {
 
-    private LatchManager mgr;
+    protected LatchManager mgr;
 
     private static final PageID P1 = new PageID(1);
     private static final PageID P2 = new PageID(2);
@@ -21,7 +21,11 @@ public class DefaultLatchManagerTest extends TreeLibTest {
     @Override
     protected void setUp() throws Exception {
         super.setUp();
-        mgr = new DefaultLatchManager();
+        mgr = createLatchManager();
+    }
+
+    protected LatchManager createLatchManager() {
+        return new DefaultLatchManager();
     }
 
     public void testLatches() {
@@ -0,0 +1,220 @@
+package fi.hut.cs.treelib.concurrency;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.Owner;
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.common.OwnerImpl;
+import fi.tuska.util.Holder;
+
+/**
+ * Runs the latch manager tests on the striped latch manager, and compares
+ * the throughput of the striped and the default latch managers under a
+ * contended tree traversal workload.
+ */
+public class StripedLatchManagerTest extends DefaultLatchManagerTest {
+
+    private static final Logger log = Logger.getLogger(StripedLatchManagerTest.class);
+
+    private static final int THREADS = 8;
+    private static final int TRAVERSALS_PER_THREAD = 50000;
+    /** Page 1 is the root, pages 2-20 are index pages, the rest are leaves. */
+    private static final int INDEX_PAGES = 20;
+    private static final int PAGES = 1000;
+    /** One traversal in this many write-latches the leaf. */
+    private static final int WRITE_INTERVAL = 10;
+
+    @Override
+    protected LatchManager createLatchManager() {
+        return new StripedLatchManager(4);
+    }
+
+    public void testUpgrade() {
+        Owner o1 = new OwnerImpl("O1");
+        Owner o2 = new OwnerImpl("O2");
+        PageID p = new PageID(1);
+
+        // The only reader can upgrade its read latch
+        mgr.readLatch(p, o1);
+        mgr.writeLatch(p, o1);
+        // Re-requesting the write latch is ignored
+        mgr.writeLatch(p, o1);
+        mgr.unlatch(p, o1);
+
+        // Another owner cannot upgrade the read latch of O1
+        final Holder<Boolean> notification = new Holder<Boolean>(false);
+        mgr.readLatch(p, o1);
+        spawnWrite(p, o2, notification);
+        pause(0.3);
+        assertFalse(notification.getValue());
+        mgr.unlatch(p, o1);
+        waitFor(notification);
+        mgr.unlatch(p, o2);
+    }
+
+    public void testCountedReadLatches() {
+        Owner o1 = new OwnerImpl("O1");
+        Owner o2 = new OwnerImpl("O2");
+        PageID p = new PageID(1);
+        mgr.readLatch(p, o1);
+        mgr.readLatch(p, o1);
+        mgr.unlatch(p, o1);
+
+        // O1 still holds one read latch
+        final Holder<Boolean> notification = new Holder<Boolean>(false);
+        spawnWrite(p, o2, notification);
+        pause(0.3);
+        assertFalse(notification.getValue());
+        mgr.unlatch(p, o1);
+        waitFor(notification);
+        mgr.unlatch(p, o2);
+    }
+
+    public void testManyTargets() {
+        // More latched targets than there are initial slots in the stripes
+        for (int i = 1; i <= 500; i++) {
+            mgr.writeLatch(new PageID(i), TEST_OWNER);
+        }
+        for (int i = 1; i <= 500; i++) {
+            mgr.unlatch(new PageID(i), TEST_OWNER);
+        }
+        // The slots are rebound to new targets
+        for (int i = 501; i <= 1000; i++) {
+            mgr.readLatch(new PageID(i), TEST_OWNER);
+            mgr.unlatch(new PageID(i), TEST_OWNER);
+        }
+    }
+
+    public void testReadStamps() {
+        Owner o1 = new OwnerImpl("O1");
+        PageID p = new PageID(1);
+
+        // Binding a target to a slot invalidates the stamps of the stripe
+        long stamp = mgr.readStamp(p);
+        assertTrue(stamp != 0);
+        mgr.readLatch(p, o1);
+        mgr.unlatch(p, o1);
+        assertFalse(mgr.validate(p, stamp));
+
+        // Read latches do not invalidate the stamps
+        stamp = mgr.readStamp(p);
+        mgr.readLatch(p, o1);
+        mgr.unlatch(p, o1);
+        assertTrue(mgr.validate(p, stamp));
+
+        mgr.writeLatch(p, o1);
+        // No stamps for write-latched targets
+        assertEquals(0, mgr.readStamp(p));
+        assertFalse(mgr.validate(p, stamp));
+        mgr.unlatch(p, o1);
+        assertFalse(mgr.validate(p, stamp));
+
+        stamp = mgr.readStamp(p);
+        assertTrue(stamp != 0);
+        assertTrue(mgr.validate(p, stamp));
+        // Rebinding the slots to other targets invalidates the stamp
+        for (int i = 2; i <= 500; i++) {
+            mgr.writeLatch(new PageID(i), o1);
+            mgr.unlatch(new PageID(i), o1);
+        }
+        mgr.writeLatch(p, o1);
+        mgr.unlatch(p, o1);
+        assertFalse(mgr.validate(p, stamp));
+    }
+
+    public void testContention() throws InterruptedException {
+        long defaultTime = runTraversals(new DefaultLatchManager(), "DefaultLatchManager");
+        long stripedTime = runTraversals(new StripedLatchManager(), "StripedLatchManager");
+        log.info(String.format("Striped/default traversal time: %.2f", (double) stripedTime
+            / defaultTime));
+    }
+
+    private void waitFor(Holder<Boolean> notification) {
+        while (!notification.getValue()) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Latch-couples from the root to a random leaf in several threads, and
+     * checks that the writers of a leaf exclude each other and the readers.
+     *
+     * @return the elapsed time, in ms
+     */
+    private long runTraversals(final LatchManager manager, String name)
+        throws InterruptedException {
+        final int[] writers = new int[PAGES + 1];
+        final int[] writes = new int[PAGES + 1];
+        final AtomicInteger errors = new AtomicInteger(0);
+        final AtomicInteger totalWrites = new AtomicInteger(0);
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            final Owner owner = new OwnerImpl("T" + t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    PageID root = new PageID(1);
+                    try {
+                        for (int i = 0; i < TRAVERSALS_PER_THREAD; i++) {
+                            PageID index = new PageID(random.nextInt(INDEX_PAGES - 1) + 2);
+                            int leafNum = random.nextInt(PAGES - INDEX_PAGES) + INDEX_PAGES + 1;
+                            PageID leaf = new PageID(leafNum);
+                            boolean write = random.nextInt(WRITE_INTERVAL) == 0;
+
+                            manager.readLatch(root, owner);
+                            manager.readLatch(index, owner);
+                            manager.unlatch(root, owner);
+                            if (write)
+                                manager.writeLatch(leaf, owner);
+                            else
+                                manager.readLatch(leaf, owner);
+                            manager.unlatch(index, owner);
+
+                            if (write) {
+                                if (writers[leafNum]++ != 0)
+                                    errors.incrementAndGet();
+                                writes[leafNum]++;
+                                writers[leafNum]--;
+                                totalWrites.incrementAndGet();
+                            } else if (writers[leafNum] != 0) {
+                                errors.incrementAndGet();
+                            }
+                            manager.unlatch(leaf, owner);
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("Error when latching pages: " + e, e);
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+        long latches = (long) THREADS * TRAVERSALS_PER_THREAD * 3;
+        log.info(String.format("%s, %d threads: %d latches in %d ms (%d latches/s)", name,
+            THREADS, latches, elapsed, latches * 1000 / elapsed));
+
+        assertEquals(0, errors.get());
+        // Lost updates would show that the write latches overlapped
+        int sum = 0;
+        for (int w : writes) {
+            sum += w;
+        }
+        assertEquals(totalWrites.get(), sum);
+        return elapsed;
+    }
+
+}
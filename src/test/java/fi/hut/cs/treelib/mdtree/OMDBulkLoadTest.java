@@ -0,0 +1,188 @@
+package fi.hut.cs.treelib.mdtree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import fi.hut.cs.treelib.BulkLoadable;
+import fi.hut.cs.treelib.Configuration;
+import fi.hut.cs.treelib.MBR;
+import fi.hut.cs.treelib.MDDatabase;
+import fi.hut.cs.treelib.MDTransaction;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.common.FloatKey;
+import fi.hut.cs.treelib.common.IntegerKey;
+import fi.hut.cs.treelib.common.IntegerValue;
+import fi.hut.cs.treelib.common.MDSMOPolicy;
+import fi.hut.cs.treelib.common.SMOPolicy;
+import fi.hut.cs.treelib.storage.MemoryPageStorage;
+import fi.hut.cs.treelib.util.ExternalSorter;
+import fi.tuska.util.Converter;
+import fi.tuska.util.Pair;
+
+public class OMDBulkLoadTest extends TreeLibTest {
+
+    private static final int PAGE_SIZE = 1024;
+    private static final int KEYS = 3000;
+    private static final MBR<FloatKey> KEY_PROTO = new MBR<FloatKey>(2, FloatKey.PROTOTYPE,
+        false);
+
+    private final Configuration config = Configuration.instance();
+    private final SMOPolicy smoPolicy = new MDSMOPolicy(0.25, 0.375);
+    private int oldRunSize;
+    private int oldThreads;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        oldRunSize = config.getBulkLoadSortRunSize();
+        oldThreads = config.getBulkLoadSortThreads();
+        config.setBulkLoadSortThreads(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        config.setBulkLoadSortRunSize(oldRunSize);
+        config.setBulkLoadSortThreads(oldThreads);
+        super.tearDown();
+    }
+
+    private List<Pair<MBR<FloatKey>, IntegerValue>> createEntries(int count) {
+        List<Pair<MBR<FloatKey>, IntegerValue>> entries = new ArrayList<Pair<MBR<FloatKey>, IntegerValue>>();
+        Random random = new Random(count);
+        for (int i = 0; i < count; i++) {
+            float x = random.nextInt(1000);
+            float y = random.nextInt(1000);
+            MBR<FloatKey> mbr = new MBR<FloatKey>(new FloatKey(x), new FloatKey(x
+                + random.nextInt(20)), new FloatKey(y), new FloatKey(y + random.nextInt(20)));
+            entries.add(new Pair<MBR<FloatKey>, IntegerValue>(mbr, new IntegerValue(i)));
+        }
+        return entries;
+    }
+
+    private <D extends MDDatabase<FloatKey, IntegerValue, ?> & BulkLoadable<MBR<FloatKey>, IntegerValue>> void checkBulkLoad(
+        D db) {
+        List<Pair<MBR<FloatKey>, IntegerValue>> entries = createEntries(KEYS);
+        MDTransaction<FloatKey, IntegerValue> tx = db.beginTransaction();
+        db.bulkLoad(entries, tx);
+        tx.commit();
+        db.checkConsistency();
+
+        tx = db.beginTransaction();
+        assertEquals(KEYS, tx.getAll().size());
+        for (Pair<MBR<FloatKey>, IntegerValue> entry : entries) {
+            assertTrue(entry + " not found", tx.getExact(entry.getFirst()).contains(
+                entry.getSecond()));
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            float x = random.nextInt(1000);
+            float y = random.nextInt(1000);
+            MBR<FloatKey> query = new MBR<FloatKey>(new FloatKey(x), new FloatKey(x + 100),
+                new FloatKey(y), new FloatKey(y + 100));
+            int expected = 0;
+            for (Pair<MBR<FloatKey>, IntegerValue> entry : entries) {
+                if (query.overlaps(entry.getFirst()))
+                    expected++;
+            }
+            assertEquals(expected, tx.getOverlapping(query).size());
+        }
+        tx.commit();
+    }
+
+    private void checkSearchKeyOrder(OMDDatabase<FloatKey, IntegerValue, ?, ?> db) {
+        checkSearchKeyOrder(db, db.getDatabaseTree().getSearchKeyCreator());
+    }
+
+    private <L extends Comparable<L>> void checkSearchKeyOrder(
+        OMDDatabase<FloatKey, IntegerValue, ?, ?> db, Converter<MBR<FloatKey>, L> converter) {
+        L prev = null;
+        for (Pair<MBR<FloatKey>, IntegerValue> entry : db.beginTransaction().getAll()) {
+            L cur = converter.convert(entry.getFirst());
+            if (prev != null)
+                assertTrue(prev + " > " + cur, prev.compareTo(cur) <= 0);
+            prev = cur;
+        }
+    }
+
+    private HTreeDatabase<FloatKey, IntegerValue> createHTreeDatabase() {
+        return new HTreeDatabase<FloatKey, IntegerValue>(32, smoPolicy, KEY_PROTO,
+            IntegerValue.PROTOTYPE, new MemoryPageStorage(PAGE_SIZE));
+    }
+
+    private JTreeDatabase<FloatKey, IntegerValue> createJTreeDatabase() {
+        return new JTreeDatabase<FloatKey, IntegerValue>(32, smoPolicy, KEY_PROTO,
+            IntegerValue.PROTOTYPE, new MemoryPageStorage(PAGE_SIZE));
+    }
+
+    public void testHTreeInMemory() {
+        config.setBulkLoadSortRunSize(KEYS * 2);
+        HTreeDatabase<FloatKey, IntegerValue> db = createHTreeDatabase();
+        checkBulkLoad(db);
+        checkSearchKeyOrder(db);
+    }
+
+    public void testHTreeExternal() {
+        config.setBulkLoadSortRunSize(300);
+        HTreeDatabase<FloatKey, IntegerValue> db = createHTreeDatabase();
+        checkBulkLoad(db);
+        checkSearchKeyOrder(db);
+    }
+
+    public void testJTreeExternal() {
+        config.setBulkLoadSortRunSize(300);
+        JTreeDatabase<FloatKey, IntegerValue> db = createJTreeDatabase();
+        checkBulkLoad(db);
+        checkSearchKeyOrder(db);
+    }
+
+    public void testJTreeWithoutRunLimit() {
+        // Zero run size sorts the whole input in memory
+        config.setBulkLoadSortRunSize(0);
+        checkBulkLoad(createJTreeDatabase());
+    }
+
+    public void testPackedJTree() {
+        checkBulkLoad(new PackedJTreeDatabase<FloatKey, IntegerValue>(32, PAGE_SIZE, smoPolicy,
+            KEY_PROTO, IntegerValue.PROTOTYPE, new MemoryPageStorage(PAGE_SIZE)));
+    }
+
+    public void testParallelSortKeySort() {
+        List<Pair<IntegerKey, IntegerValue>> entries = new ArrayList<Pair<IntegerKey, IntegerValue>>();
+        Random random = new Random(1);
+        for (int i = 0; i < 50000; i++) {
+            entries.add(new Pair<IntegerKey, IntegerValue>(new IntegerKey(random.nextInt(1000)),
+                new IntegerValue(i)));
+        }
+        // Sort by the last digit, then by the key
+        Converter<IntegerKey, Integer> lastDigit = new Converter<IntegerKey, Integer>() {
+            @Override
+            public Integer convert(IntegerKey key) {
+                return key.intValue() % 10;
+            }
+        };
+        for (int runSize : new int[] { 100000, 7000 }) {
+            ExternalSorter<IntegerKey, IntegerValue> sorter = new ExternalSorter<IntegerKey, IntegerValue>(
+                IntegerKey.PROTOTYPE, IntegerValue.PROTOTYPE, runSize, lastDigit);
+            sorter.setThreads(4);
+            Pair<IntegerKey, IntegerValue> prev = null;
+            int count = 0;
+            for (Pair<IntegerKey, IntegerValue> entry : sorter.sort(entries)) {
+                if (prev != null) {
+                    int c = lastDigit.convert(prev.getFirst()).compareTo(
+                        lastDigit.convert(entry.getFirst()));
+                    if (c == 0)
+                        c = prev.getFirst().compareTo(entry.getFirst());
+                    assertTrue(c <= 0);
+                    // Stable sort
+                    if (c == 0)
+                        assertTrue(prev.getSecond().intValue() < entry.getSecond().intValue());
+                }
+                prev = entry;
+                count++;
+            }
+            assertEquals(entries.size(), count);
+        }
+    }
+
+}
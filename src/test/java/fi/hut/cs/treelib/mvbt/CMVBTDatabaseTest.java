@@ -1,12 +1,28 @@
 package fi.hut.cs.treelib.mvbt;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
 import fi.hut.cs.treelib.AbstractMVDatabaseTest;
 import fi.hut.cs.treelib.Configuration;
+import fi.hut.cs.treelib.KeyRange;
 import fi.hut.cs.treelib.Transaction;
 import fi.hut.cs.treelib.common.IntegerKey;
 import fi.hut.cs.treelib.common.StringValue;
+import fi.hut.cs.treelib.common.TreeShortcuts;
+import fi.hut.cs.treelib.internal.KeyRangeImpl;
+import fi.hut.cs.treelib.stats.StatisticsImpl;
+import fi.hut.cs.treelib.stats.Statistics.Action;
+import fi.hut.cs.treelib.stats.Statistics.Operation;
+import fi.hut.cs.treelib.storage.BackgroundPageWriter;
+import fi.hut.cs.treelib.storage.LRUKPolicy;
 import fi.hut.cs.treelib.storage.MemoryPageStorage;
+import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageStorage;
+import fi.tuska.util.Pair;
 
 public class CMVBTDatabaseTest extends
     AbstractMVDatabaseTest<IntegerKey, MVBTPage<IntegerKey, StringValue>> {
@@ -85,4 +101,277 @@ public class CMVBTDatabaseTest extends
         }
     }
 
+    public void testBatchedMaintenance() {
+        showTestName();
+        final int transactions = 40;
+        Configuration c = Configuration.instance();
+        int mf = c.getMaintenanceFrequency();
+        try {
+            CMVBTDatabase<IntegerKey, StringValue> single = createDatabase();
+            CMVBTDatabase<IntegerKey, StringValue> batched = createDatabase();
+            // No automatic maintenance
+            single.setAutoMaintenance(100000, 1);
+            batched.setMaintenanceBatchSize(16);
+
+            // The same inserts, updates and deletes to both databases
+            Random random = new Random(transactions);
+            for (int i = 0; i < transactions; i++) {
+                Transaction<IntegerKey, StringValue> tx1 = single.beginTransaction();
+                Transaction<IntegerKey, StringValue> tx2 = batched.beginTransaction();
+                for (int j = 0; j < 10; j++) {
+                    IntegerKey key = new IntegerKey(random.nextInt(100));
+                    if (random.nextInt(4) == 0) {
+                        tx1.delete(key);
+                        tx2.delete(key);
+                    } else {
+                        StringValue value = new StringValue(i + "-" + j);
+                        tx1.insert(key, value);
+                        tx2.insert(key, value);
+                    }
+                }
+                tx1.commit();
+                tx2.commit();
+            }
+
+            List<List<Pair<IntegerKey, StringValue>>> snapshots = getSnapshots(batched,
+                transactions);
+            long singleFixes = runMaintenance(single);
+            long batchedFixes = runMaintenance(batched);
+            log.info(String.format("VBT page fixes when moving %d versions: %d (single), "
+                + "%d (batched)", transactions, singleFixes, batchedFixes));
+
+            // All versions have the same contents as before the maintenance
+            assertEquals(snapshots, getSnapshots(batched, transactions));
+            assertEquals(getSnapshots(single, transactions), snapshots);
+            assertTrue(batched.getDatabaseTree().isStable(transactions));
+            assertEquals(0, TreeShortcuts.countEntries(batched.getVBT()));
+            batched.checkConsistency();
+            assertGT(singleFixes, batchedFixes * 4);
+        } finally {
+            // Reset configuration
+            c.setMaintenanceFrequency(mf);
+        }
+    }
+
+    public void testTransientRangeQuery() {
+        showTestName();
+        final int transactions = 30;
+        Configuration c = Configuration.instance();
+        int mf = c.getMaintenanceFrequency();
+        try {
+            CMVBTDatabase<IntegerKey, StringValue> db = createDatabase();
+            // No automatic maintenance
+            db.setAutoMaintenance(100000, 1);
+
+            List<TreeMap<IntegerKey, StringValue>> models = new ArrayList<TreeMap<IntegerKey, StringValue>>();
+            TreeMap<IntegerKey, StringValue> model = new TreeMap<IntegerKey, StringValue>();
+            Random random = new Random(transactions);
+            for (int i = 0; i < transactions; i++) {
+                Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
+                for (int j = 0; j < 10; j++) {
+                    IntegerKey key = new IntegerKey(random.nextInt(200));
+                    if (random.nextInt(4) == 0) {
+                        tx.delete(key);
+                        model.remove(key);
+                    } else {
+                        StringValue value = new StringValue(i + "-" + j);
+                        tx.insert(key, value);
+                        model.put(key, value);
+                    }
+                }
+                tx.commit();
+                models.add(new TreeMap<IntegerKey, StringValue>(model));
+            }
+            // Move the first versions to the TMVBT, so that the range
+            // queries of the later versions merge the VBT and the TMVBT
+            for (int i = 0; i < transactions / 3; i++) {
+                db.getDatabaseTree().runMaintenanceTransaction();
+            }
+            assertTrue(db.getDatabaseTree().isStable(transactions / 3));
+            assertFalse(db.getDatabaseTree().isStable(transactions / 3 + 1));
+
+            IntegerKey min = new IntegerKey(50);
+            IntegerKey max = new IntegerKey(150);
+            KeyRange<IntegerKey> range = new KeyRangeImpl<IntegerKey>(min, max);
+            for (int v = 1; v <= transactions; v++) {
+                Transaction<IntegerKey, StringValue> tx = db.beginReadTransaction(v);
+                assertEquals("Range at version " + v, toList(models.get(v - 1).subMap(min,
+                    max)), tx.getRange(range));
+                tx.commit();
+            }
+
+            // The updating transaction sees its own updates
+            Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
+            model = new TreeMap<IntegerKey, StringValue>(models.get(transactions - 1));
+            for (int k = 60; k < 140; k += 7) {
+                IntegerKey key = new IntegerKey(k);
+                if (model.containsKey(key)) {
+                    tx.delete(key);
+                    model.remove(key);
+                } else {
+                    tx.insert(key, new StringValue("own-" + k));
+                    model.put(key, new StringValue("own-" + k));
+                }
+            }
+
+            StatisticsImpl stats = new StatisticsImpl();
+            stats.startStatistics();
+            db.setStatisticsLogger(stats);
+            List<Pair<IntegerKey, StringValue>> result = tx.getRange(range);
+            assertEquals(toList(model.subMap(min, max)), result);
+            tx.commit();
+
+            // The cursors descend each structure once and then scan the leaf
+            // pages, instead of searching for each key separately
+            long fixes = Math.round(stats.getStatistics().getOperationAverage(
+                Operation.OP_BUFFER_FIX));
+            log.info(String.format("Page fixes for a range query of %d keys: %d",
+                result.size(), fixes));
+            assertGT(result.size(), fixes);
+        } finally {
+            // Reset configuration
+            c.setMaintenanceFrequency(mf);
+        }
+    }
+
+    public void testVBTBufferConfiguration() {
+        showTestName();
+        CMVBTDatabase<IntegerKey, StringValue> db = createDatabase();
+        PageBuffer vbtBuffer = db.getVBT().getPageBuffer();
+        assertTrue(vbtBuffer != db.getPageBuffer());
+
+        db.setDirectBufferFrames(true);
+        db.setReplacementPolicy(new LRUKPolicy());
+        LRUKPolicy vbtPolicy = new LRUKPolicy();
+        db.setVBTReplacementPolicy(vbtPolicy);
+        BackgroundPageWriter vbtWriter = new BackgroundPageWriter();
+        db.setVBTPageWriter(vbtWriter);
+
+        assertTrue(db.getPageBuffer().isDirectFrames());
+        assertTrue(vbtBuffer.isDirectFrames());
+        assertTrue(vbtBuffer.getReplacementPolicy() == vbtPolicy);
+        assertTrue(db.getPageBuffer().getReplacementPolicy() != vbtPolicy);
+        assertTrue(vbtBuffer.getPageWriter() == vbtWriter);
+        assertTrue(vbtWriter.isRunning());
+        assertNull(db.getPageWriter());
+
+        for (int i = 0; i < 200; i++) {
+            Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
+            insert(tx, String.valueOf(i));
+            tx.commit();
+        }
+        db.checkConsistency();
+        Transaction<IntegerKey, StringValue> tx = db.beginReadTransaction(db
+            .getCommittedVersion());
+        assertEquals(200, tx.getAll().size());
+        tx.commit();
+        db.close();
+        assertFalse(vbtWriter.isRunning());
+    }
+
+    public void testTransientMappingSnapshots() {
+        showTestName();
+        Configuration c = Configuration.instance();
+        int mf = c.getMaintenanceFrequency();
+        try {
+            CMVBTDatabase<IntegerKey, StringValue> db = createDatabase();
+            // No automatic maintenance
+            db.setAutoMaintenance(100000, 1);
+            CMVBTree<IntegerKey, StringValue> cmvbt = db.getDatabaseTree();
+            List<Integer> startVersions = new ArrayList<Integer>();
+            for (int i = 0; i < 5; i++) {
+                Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
+                startVersions.add(tx.getTransactionID());
+                insert(tx, String.valueOf(i));
+                tx.commit();
+            }
+
+            CMVBTree<IntegerKey, StringValue>.TransientMapping m3 = cmvbt
+                .getTransientMappingForReadTX(3);
+            assertTrue(m3 == cmvbt.getTransientMappingForReadTX(3));
+            assertEquals(3, m3.size());
+            assertEquals(3, m3.getCommitVersion(startVersions.get(2)).intValue());
+            assertNull(m3.getCommitVersion(startVersions.get(3)));
+            assertEquals(startVersions.get(0), m3.getFirstStart());
+            assertEquals(startVersions.get(2), m3.getLastStart());
+
+            // The updating transaction sees its own updates before the others
+            Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
+            CMVBTree<IntegerKey, StringValue>.TransientMapping own = cmvbt
+                .getTransientMappingForUpdatingTX(5, tx.getTransactionID());
+            assertEquals(6, own.size());
+            assertEquals(Integer.MAX_VALUE, own.getCommitVersion(tx.getTransactionID())
+                .intValue());
+            assertEquals(Integer.valueOf(tx.getTransactionID()), own.getLastStart());
+            insert(tx, "10");
+            tx.commit();
+
+            // New commits do not change the existing mappings
+            assertEquals(3, m3.size());
+            assertNull(m3.getCommitVersion(startVersions.get(3)));
+            assertEquals(6, cmvbt.getTransientMappingForReadTX(6).size());
+            // The snapshot is extended, not rebuilt
+            assertTrue(m3 == cmvbt.getTransientMappingForReadTX(3));
+
+            // Grow the shared arrays past their initial capacity
+            for (int i = 0; i < 40; i++) {
+                Transaction<IntegerKey, StringValue> gtx = db.beginTransaction();
+                insert(gtx, String.valueOf(100 + i));
+                gtx.commit();
+            }
+            assertTrue(m3 == cmvbt.getTransientMappingForReadTX(3));
+            assertEquals(3, m3.size());
+            assertEquals(startVersions.get(2), m3.getLastStart());
+            assertEquals(46, cmvbt.getTransientMappingForReadTX(46).size());
+
+            // Maintenance changes the CTS table, so the mappings are rebuilt
+            cmvbt.runMaintenanceTransaction();
+            CMVBTree<IntegerKey, StringValue>.TransientMapping m3b = cmvbt
+                .getTransientMappingForReadTX(3);
+            assertTrue(m3 != m3b);
+            assertEquals(2, m3b.size());
+            assertNull(m3b.getCommitVersion(startVersions.get(0)));
+            assertEquals(startVersions.get(1), m3b.getFirstStart());
+            assertEquals(0, cmvbt.getTransientMappingForReadTX(1).size());
+        } finally {
+            // Reset configuration
+            c.setMaintenanceFrequency(mf);
+        }
+    }
+
+    private List<Pair<IntegerKey, StringValue>> toList(Map<IntegerKey, StringValue> map) {
+        List<Pair<IntegerKey, StringValue>> list = new ArrayList<Pair<IntegerKey, StringValue>>();
+        for (Map.Entry<IntegerKey, StringValue> entry : map.entrySet()) {
+            list.add(new Pair<IntegerKey, StringValue>(entry.getKey(), entry.getValue()));
+        }
+        return list;
+    }
+
+    private List<List<Pair<IntegerKey, StringValue>>> getSnapshots(
+        CMVBTDatabase<IntegerKey, StringValue> db, int versions) {
+        List<List<Pair<IntegerKey, StringValue>>> snapshots = new ArrayList<List<Pair<IntegerKey, StringValue>>>();
+        for (int v = 1; v <= versions; v++) {
+            Transaction<IntegerKey, StringValue> tx = db.beginReadTransaction(v);
+            snapshots.add(tx.getAll());
+            tx.commit();
+        }
+        return snapshots;
+    }
+
+    /**
+     * Moves all transient commits to the TMVBT.
+     * 
+     * @return the amount of page fixes in the VBT page buffer
+     */
+    private long runMaintenance(CMVBTDatabase<IntegerKey, StringValue> db) {
+        StatisticsImpl stats = new StatisticsImpl();
+        stats.startStatistics();
+        db.getVBT().getPageBuffer().setStatisticsLogger(stats);
+        stats.newAction(Action.ACTION_SPECIAL);
+        while (db.getDatabaseTree().needMaintenance()) {
+            db.getDatabaseTree().runMaintenanceTransaction();
+        }
+        return Math.round(stats.getStatistics().getOperationAverage(Operation.OP_BUFFER_FIX));
+    }
+
 }
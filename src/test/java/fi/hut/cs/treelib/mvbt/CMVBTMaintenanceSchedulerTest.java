@@ -0,0 +1,179 @@
+package fi.hut.cs.treelib.mvbt;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.Configuration;
+import fi.hut.cs.treelib.Transaction;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.common.IntegerKey;
+import fi.hut.cs.treelib.common.IntegerValue;
+import fi.hut.cs.treelib.common.NonThrashingSMOPolicy;
+import fi.hut.cs.treelib.common.TreeShortcuts;
+import fi.hut.cs.treelib.stats.StatisticsImpl;
+import fi.hut.cs.treelib.stats.Statistics.Value;
+import fi.hut.cs.treelib.storage.MemoryPageStorage;
+
+/**
+ * Runs the CMVBT maintenance transactions in the background scheduler
+ * thread, while the transactions are committed and read.
+ */
+public class CMVBTMaintenanceSchedulerTest extends TreeLibTest {
+
+    private static final Logger log = Logger.getLogger(CMVBTMaintenanceSchedulerTest.class);
+
+    private static final int PAGE_SIZE = 350;
+    private static final int TRANSACTIONS = 200;
+    private static final int KEYS_PER_TX = 20;
+    private static final int READERS = 2;
+
+    private int maintenanceFrequency;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        maintenanceFrequency = Configuration.instance().getMaintenanceFrequency();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // setAutoMaintenance() changes the global configuration
+        Configuration.instance().setMaintenanceFrequency(maintenanceFrequency);
+        super.tearDown();
+    }
+
+    private CMVBTDatabase<IntegerKey, IntegerValue> createDatabase() {
+        NonThrashingSMOPolicy policy = new NonThrashingSMOPolicy(0.2, 0.2);
+        CMVBTDatabase<IntegerKey, IntegerValue> db = new CMVBTDatabase<IntegerKey, IntegerValue>(
+            200, 40, policy, policy, IntegerKey.PROTOTYPE, IntegerValue.PROTOTYPE,
+            new MemoryPageStorage(PAGE_SIZE), new MemoryPageStorage(PAGE_SIZE));
+        db.setAutoMaintenance(5, 100);
+        return db;
+    }
+
+    private void insertKeys(CMVBTDatabase<IntegerKey, IntegerValue> db, int tx) {
+        Transaction<IntegerKey, IntegerValue> t = db.beginTransaction();
+        for (int i = 0; i < KEYS_PER_TX; i++) {
+            int key = tx * KEYS_PER_TX + i;
+            assertTrue(t.insert(new IntegerKey(key), new IntegerValue(key)));
+        }
+        t.commit();
+    }
+
+    private void waitForMaintenance(CMVBTDatabase<IntegerKey, IntegerValue> db) {
+        for (int i = 0; i < 500 && db.getDatabaseTree().needMaintenance(); i++) {
+            pause(0.02);
+        }
+        assertFalse(db.getDatabaseTree().needMaintenance());
+    }
+
+    public void testBackgroundMaintenance() throws InterruptedException {
+        final CMVBTDatabase<IntegerKey, IntegerValue> db = createDatabase();
+        CMVBTMaintenanceScheduler scheduler = new CMVBTMaintenanceScheduler(0, 10);
+        db.setMaintenanceScheduler(scheduler);
+        assertTrue(scheduler.isRunning());
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicInteger errors = new AtomicInteger(0);
+        Thread[] readers = new Thread[READERS];
+        for (int t = 0; t < READERS; t++) {
+            final long seed = t;
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (writing.get()) {
+                            int version = db.getCommittedVersion();
+                            if (version == 0)
+                                continue;
+                            // Each committed transaction has inserted its keys
+                            int key = random.nextInt(version * KEYS_PER_TX);
+                            Transaction<IntegerKey, IntegerValue> tx = db
+                                .beginReadTransaction(version);
+                            IntegerValue value = tx.get(new IntegerKey(key));
+                            tx.commit();
+                            if (value == null || value.intValue() != key) {
+                                log.error("Wrong value for " + key + " @ " + version + ": "
+                                    + value);
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("Error in lookup: " + e, e);
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            readers[t].start();
+        }
+
+        try {
+            for (int i = 0; i < TRANSACTIONS; i++) {
+                insertKeys(db, i);
+            }
+        } finally {
+            writing.set(false);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(0, errors.get());
+
+        waitForMaintenance(db);
+        db.checkConsistency();
+
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        assertEquals(TRANSACTIONS * KEYS_PER_TX, tx.getAll().size());
+        tx.commit();
+
+        db.close();
+        assertFalse(scheduler.isRunning());
+    }
+
+    public void testBackPressure() {
+        CMVBTDatabase<IntegerKey, IntegerValue> db = createDatabase();
+        // The statistics logger is not thread-safe, so it is only used with
+        // a single user thread
+        StatisticsImpl stats = new StatisticsImpl();
+        stats.startStatistics();
+        db.setStatisticsLogger(stats);
+        final int budget = 4;
+        // Long interval, so that the scheduler only runs when it is woken up
+        CMVBTMaintenanceScheduler scheduler = new CMVBTMaintenanceScheduler(budget, 10000);
+        db.setMaintenanceScheduler(scheduler);
+
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            insertKeys(db, i);
+            CMVBTree<IntegerKey, IntegerValue> cmvbt = db.getDatabaseTree();
+            // Keeps the scheduler from running maintenance transactions
+            cmvbt.getTreeLock().readLock().lock();
+            try {
+                // The VBT may only be over the budget when it has been
+                // drained
+                assertTrue(!cmvbt.needMaintenance() || db.countVBTPages() <= budget);
+                // The incremental page count matches the VBT
+                assertEquals(TreeShortcuts.countPages(db.getVBT(), false), db.countVBTPages());
+            } finally {
+                cmvbt.getTreeLock().readLock().unlock();
+            }
+        }
+        assertGT(stats.getValueCount(Value.VAL_MAINTENANCE_LAG), 0);
+        assertGT(stats.getValueCount(Value.VAL_MAINTENANCE_QUEUE_DEPTH), 0);
+
+        // Closing flushes the rest of the transient commits
+        db.close();
+        assertFalse(scheduler.isRunning());
+        db.reopen();
+        assertTrue(scheduler.isRunning());
+        assertFalse(db.getDatabaseTree().needMaintenance());
+        Transaction<IntegerKey, IntegerValue> tx = db.beginTransaction();
+        assertEquals(TRANSACTIONS * KEYS_PER_TX, tx.getAll().size());
+        tx.commit();
+        db.close();
+    }
+
+}
@@ -1,12 +1,30 @@
 package fi.hut.cs.treelib.mvbt;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
 import fi.hut.cs.treelib.AbstractMVDatabaseTest;
+import fi.hut.cs.treelib.Cursor;
+import fi.hut.cs.treelib.PageID;
 import fi.hut.cs.treelib.Transaction;
 import fi.hut.cs.treelib.common.IntegerKey;
 import fi.hut.cs.treelib.common.StringValue;
+import fi.hut.cs.treelib.internal.KeyRangeImpl;
+import fi.hut.cs.treelib.stats.NoStatistics;
+import fi.hut.cs.treelib.stats.Statistics;
+import fi.hut.cs.treelib.stats.StatisticsImpl;
+import fi.hut.cs.treelib.stats.Statistics.Action;
+import fi.hut.cs.treelib.stats.Statistics.Operation;
 import fi.hut.cs.treelib.storage.MemoryPageStorage;
 import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageStorage;
+import fi.tuska.util.Callback;
+import fi.tuska.util.Counter;
+import fi.tuska.util.Pair;
 
 public class MVBTDatabaseTest extends
     AbstractMVDatabaseTest<IntegerKey, MVBTPage<IntegerKey, StringValue>> {
@@ -56,6 +74,137 @@ public class MVBTDatabaseTest extends
         return db;
     }
 
+    public void testOrderedCursor() {
+        showTestName();
+        final int versions = 20;
+        MVBTDatabase<IntegerKey, StringValue> db = createDatabase();
+        MVBTree<IntegerKey, StringValue> tree = db.getDatabaseTree();
+        PageBuffer buffer = db.getPageBuffer();
+
+        // Each update creates a new version in the MVBT
+        Map<Integer, TreeMap<IntegerKey, StringValue>> models = new TreeMap<Integer, TreeMap<IntegerKey, StringValue>>();
+        TreeMap<IntegerKey, StringValue> model = new TreeMap<IntegerKey, StringValue>();
+        Random random = new Random(versions);
+        for (int v = 0; v < versions; v++) {
+            Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
+            for (int i = 0; i < 15; i++) {
+                IntegerKey key = new IntegerKey(random.nextInt(300));
+                if (model.containsKey(key)) {
+                    assertTrue(tx.delete(key));
+                    model.remove(key);
+                } else {
+                    StringValue value = new StringValue(v + "-" + i);
+                    assertTrue(tx.insert(key, value));
+                    model.put(key, value);
+                }
+            }
+            tx.commit();
+            models.put(db.getCommittedVersion(), new TreeMap<IntegerKey, StringValue>(model));
+        }
+
+        IntegerKey min = new IntegerKey(40);
+        IntegerKey max = new IntegerKey(260);
+        int fixes = buffer.getTotalPageFixes();
+        for (int v : models.keySet()) {
+            Transaction<IntegerKey, StringValue> tx = db.beginReadTransaction(v);
+            Cursor<IntegerKey, StringValue> cursor = tree.openCursor(
+                new KeyRangeImpl<IntegerKey>(min, max), tx);
+            List<Pair<IntegerKey, StringValue>> result = new ArrayList<Pair<IntegerKey, StringValue>>();
+            Pair<IntegerKey, StringValue> entry;
+            while ((entry = cursor.next()) != null) {
+                result.add(entry);
+                // Only the current path and the prefetched sibling are fixed
+                assertTrue(buffer.getTotalPageFixes() <= fixes + tree.getMaxHeight() + 1);
+            }
+            cursor.close();
+            assertEquals(fixes, buffer.getTotalPageFixes());
+
+            List<Pair<IntegerKey, StringValue>> expected = new ArrayList<Pair<IntegerKey, StringValue>>();
+            for (Map.Entry<IntegerKey, StringValue> e : models.get(v).subMap(min, max)
+                .entrySet()) {
+                expected.add(new Pair<IntegerKey, StringValue>(e.getKey(), e.getValue()));
+            }
+            assertEquals("Range at version " + v, expected, result);
+            // The range query of the tree returns the same entries
+            assertEquals(expected, tx.getRange(new KeyRangeImpl<IntegerKey>(min, max)));
+            tx.commit();
+        }
+
+        // Stopping the search early releases the pages
+        Transaction<IntegerKey, StringValue> tx = db.beginReadTransaction(db
+            .getCommittedVersion());
+        final Counter counter = new Counter();
+        assertFalse(tx.getRange(new KeyRangeImpl<IntegerKey>(min, max),
+            new Callback<Pair<IntegerKey, StringValue>>() {
+                @Override
+                public boolean callback(Pair<IntegerKey, StringValue> entry) {
+                    counter.advance();
+                    return counter.getCount() < 5;
+                }
+            }));
+        assertEquals(5, counter.getCount());
+        assertEquals(fixes, buffer.getTotalPageFixes());
+        tx.commit();
+    }
+
+    public void testRootCache() {
+        showTestName();
+        MVBTDatabase<IntegerKey, StringValue> db = createDatabase();
+        MVBTree<IntegerKey, StringValue> tree = db.getDatabaseTree();
+        Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
+        for (int i = 0; i < 300; i++) {
+            insert(tx, String.valueOf(i));
+        }
+        tx.commit();
+        int versions = db.getCommittedVersion();
+
+        // Root pages searched from the root*
+        db.setRootCacheSize(0);
+        List<PageID> expected = new ArrayList<PageID>();
+        for (int v = 0; v < versions; v++) {
+            expected.add(tree.getRootPageID(v));
+        }
+        assertGT(new HashSet<PageID>(expected).size(), 2);
+
+        db.setRootCacheSize(4);
+        int[] popular = new int[] { 10, 100, 200, 250 };
+        for (int v : popular) {
+            assertEquals(expected.get(v), tree.getRootPageID(v));
+        }
+        // The popular versions are found from the cache without root*
+        // searches
+        StatisticsImpl stats = new StatisticsImpl();
+        stats.startStatistics();
+        tree.setStatisticsLogger(stats);
+        stats.newAction(Action.ACTION_SPECIAL);
+        for (int i = 0; i < 3; i++) {
+            for (int v : popular) {
+                assertEquals(expected.get(v), tree.getRootPageID(v));
+            }
+        }
+        Statistics result = stats.getStatistics();
+        assertEquals(0, Math.round(result.getOperationAverage(Operation.OP_ROOT_CACHE_MISS)));
+        assertEquals(0, Math.round(result.getOperationAverage(Operation.OP_BUFFER_FIX)));
+        assertEquals(12, Math.round(result.getOperationAverage(Operation.OP_ROOT_CACHE_HIT)));
+        tree.setStatisticsLogger(NoStatistics.instance());
+
+        // The cache follows the new roots. The latest root* interval is
+        // cached before the new roots are attached.
+        assertEquals(expected.get(versions - 1), tree.getRootPageID(versions - 1));
+        tx = db.beginTransaction();
+        for (int i = 300; i < 600; i++) {
+            insert(tx, String.valueOf(i));
+        }
+        tx.commit();
+        for (int v = versions; v < db.getCommittedVersion(); v++) {
+            expected.add(tree.getRootPageID(v));
+        }
+        db.setRootCacheSize(0);
+        for (int v = 0; v < db.getCommittedVersion(); v++) {
+            assertEquals(expected.get(v), tree.getRootPageID(v));
+        }
+    }
+
     public void testKeyRangesAfterMerge() {
         MVBTDatabase<IntegerKey, StringValue> db = getFilledDB2();
         Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
@@ -0,0 +1,53 @@
+package fi.hut.cs.treelib.mvbt;
+
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.TreeLibTest;
+
+public class RootCacheTest extends TreeLibTest {
+
+    public void testIntervals() {
+        RootCache cache = new RootCache(10);
+        assertNull(cache.find(5));
+        cache.put(1, 5, new PageID(3));
+        cache.put(5, Integer.MAX_VALUE, new PageID(7));
+
+        assertNull(cache.find(0));
+        assertEquals(new PageID(3), cache.find(1).getRoot());
+        assertEquals(new PageID(3), cache.find(4).getRoot());
+        assertEquals(new PageID(7), cache.find(5).getRoot());
+        assertEquals(new PageID(7), cache.find(100).getRoot());
+
+        // A new root at version 8 ends the open interval
+        cache.rootChanged(8);
+        assertEquals(new PageID(7), cache.find(7).getRoot());
+        assertNull(cache.find(8));
+        assertEquals(new PageID(3), cache.find(4).getRoot());
+
+        // Replacing the root of version 5 removes the interval
+        cache.rootChanged(5);
+        assertNull(cache.find(5));
+        assertNull(cache.find(7));
+        assertEquals(new PageID(3), cache.find(4).getRoot());
+        assertEquals(1, cache.size());
+    }
+
+    public void testEviction() {
+        RootCache cache = new RootCache(2);
+        cache.put(1, 2, new PageID(1));
+        cache.put(2, 3, new PageID(2));
+        // Use the first interval, so that the second one is evicted
+        assertNotNull(cache.find(1));
+        cache.put(3, 4, new PageID(3));
+        assertEquals(2, cache.size());
+        assertNotNull(cache.find(1));
+        assertNull(cache.find(2));
+        assertNotNull(cache.find(3));
+
+        cache.setCapacity(0);
+        assertFalse(cache.isEnabled());
+        assertEquals(0, cache.size());
+        cache.put(1, 2, new PageID(1));
+        assertNull(cache.find(1));
+    }
+
+}
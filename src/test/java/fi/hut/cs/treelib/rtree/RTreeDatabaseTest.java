@@ -1,13 +1,23 @@
 package fi.hut.cs.treelib.rtree;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import fi.hut.cs.treelib.AbstractMDDatabaseTest;
 import fi.hut.cs.treelib.Configuration;
 import fi.hut.cs.treelib.MBR;
 import fi.hut.cs.treelib.MDTransaction;
+import fi.hut.cs.treelib.Page;
+import fi.hut.cs.treelib.PageValue;
 import fi.hut.cs.treelib.common.FloatKey;
 import fi.hut.cs.treelib.common.StringValue;
 import fi.hut.cs.treelib.storage.MemoryPageStorage;
 import fi.hut.cs.treelib.storage.PageStorage;
+import fi.hut.cs.treelib.util.MBRPredicate;
+import fi.tuska.util.Callback;
+import fi.tuska.util.Counter;
+import fi.tuska.util.Pair;
 
 public class RTreeDatabaseTest extends AbstractMDDatabaseTest<RTreePage<FloatKey, StringValue>> {
 
@@ -54,4 +64,95 @@ public class RTreeDatabaseTest extends AbstractMDDatabaseTest<RTreePage<FloatKey
         t.commit();
     }
 
+    /**
+     * Compares the packed overlap scan of the leaf pages with the
+     * entry-by-entry scan, at different query selectivities.
+     */
+    public void testOverlapQueryThroughput() {
+        final int entries = 10000;
+        final int queries = 300;
+        final float area = 1000;
+        RTreeDatabase<FloatKey, StringValue> db = new RTreeDatabase<FloatKey, StringValue>(
+            2000, MD_SMO_POLICY, KEY_PROTO, StringValue.PROTOTYPE, new MemoryPageStorage(
+                PAGE_SIZE));
+        Random random = new Random(17);
+        MDTransaction<FloatKey, StringValue> t = db.beginTransaction();
+        for (int i = 0; i < entries; i++) {
+            float x = random.nextFloat() * area;
+            float y = random.nextFloat() * area;
+            t.insert(getMBR(x, x + random.nextFloat() * 5, y, y + random.nextFloat() * 5),
+                new StringValue(String.valueOf(i)));
+        }
+        t.commit();
+        RTree<FloatKey, StringValue> tree = db.getDatabaseTree();
+
+        // Selectivities of 0.1 %, 1 % and 10 %
+        for (float side : new float[] { 32, 100, 316 }) {
+            List<MBR<FloatKey>> queryMBRs = new ArrayList<MBR<FloatKey>>();
+            for (int i = 0; i < queries; i++) {
+                float x = random.nextFloat() * (area - side);
+                float y = random.nextFloat() * (area - side);
+                queryMBRs.add(getMBR(x, x + side, y, y + side));
+            }
+            // Warm up both scans, and check that they agree
+            long matches = 0;
+            for (MBR<FloatKey> query : queryMBRs) {
+                int packed = countOverlapping(tree, query);
+                assertEquals(scanOverlapping(tree, query), packed);
+                matches += packed;
+            }
+
+            long start = System.nanoTime();
+            for (MBR<FloatKey> query : queryMBRs) {
+                countOverlapping(tree, query);
+            }
+            long packedTime = Math.max(System.nanoTime() - start, 1);
+            start = System.nanoTime();
+            for (MBR<FloatKey> query : queryMBRs) {
+                scanOverlapping(tree, query);
+            }
+            long scanTime = Math.max(System.nanoTime() - start, 1);
+            log.info(String.format("Selectivity %.2f %%: packed %d queries/s, "
+                + "entry scan %d queries/s", matches * 100.0 / queries / entries, queries
+                * 1000000000L / packedTime, queries * 1000000000L / scanTime));
+        }
+    }
+
+    private int countOverlapping(RTree<FloatKey, StringValue> tree, MBR<FloatKey> query) {
+        final Counter count = new Counter();
+        tree.getOverlapping(query, new Callback<Pair<MBR<FloatKey>, StringValue>>() {
+            @Override
+            public boolean callback(Pair<MBR<FloatKey>, StringValue> entry) {
+                count.advance();
+                return true;
+            }
+        }, TEST_OWNER);
+        return (int) count.getCount();
+    }
+
+    /**
+     * Finds the overlapping entries by checking the leaf entries one by one.
+     */
+    private int scanOverlapping(RTree<FloatKey, StringValue> tree, final MBR<FloatKey> query) {
+        final Counter count = new Counter();
+        RTreePage<FloatKey, StringValue> root = tree.getRoot(TEST_OWNER);
+        root.traverseMDPages(new MBRPredicate<FloatKey>(query, false, 1),
+            new Callback<Page<MBR<FloatKey>, StringValue>>() {
+                @Override
+                public boolean callback(Page<MBR<FloatKey>, StringValue> page) {
+                    RTreePage<FloatKey, StringValue> rPage = (RTreePage<FloatKey, StringValue>) page;
+                    return rPage.processMBREntries(new Callback<Pair<MBR<FloatKey>, PageValue<?>>>() {
+                        @Override
+                        public boolean callback(Pair<MBR<FloatKey>, PageValue<?>> entry) {
+                            if (query.overlaps(entry.getFirst()))
+                                count.advance();
+                            return true;
+                        }
+                    });
+                }
+            }, TEST_OWNER);
+        tree.getPageBuffer().unfix(root, TEST_OWNER);
+        return (int) count.getCount();
+    }
+
 }
@@ -0,0 +1,110 @@
+package fi.hut.cs.treelib.storage;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.concurrency.NoopLatchManager;
+
+public class BackgroundPageWriterTest extends TreeLibTest {
+
+    private static final int PAGE_SIZE = 100;
+    private static final int BUFFER_SIZE = 20;
+
+    private final PageFactory<TestPage> factory = new TestPageFactory(PAGE_SIZE);
+
+    private void dirtyPages(PageBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            TestPage page = buffer.fixPage(new PageID(i), factory, true, TEST_OWNER);
+            page.data = i;
+            page.setDirty(true);
+            buffer.unfix(page, TEST_OWNER);
+        }
+    }
+
+    public void testCleanPages() {
+        PageStorage st = new MemoryPageStorage(PAGE_SIZE);
+        PageBuffer buffer = new PageBuffer(st, BUFFER_SIZE, NoopLatchManager.instance());
+        buffer.initialize();
+        dirtyPages(buffer, 1, BUFFER_SIZE + 1);
+        assertEquals(BUFFER_SIZE, buffer.getDirtyPageCount());
+
+        // Fixed pages must not be written
+        TestPage fixed = buffer.fixPage(new PageID(1), factory, false, TEST_OWNER);
+
+        assertEquals(5, buffer.cleanPages(0.25, 5));
+        assertEquals(BUFFER_SIZE - 5, buffer.getDirtyPageCount());
+        // Written in page ID order, skipping the fixed page
+        assertTrue(fixed.isDirty());
+        for (int i = 2; i <= 6; i++) {
+            assertTrue(st.containsPage(new PageID(i)));
+        }
+        assertFalse(st.containsPage(new PageID(7)));
+
+        // Half of the pages should be clean
+        buffer.cleanPages(0.5, BUFFER_SIZE);
+        assertEquals(BUFFER_SIZE / 2, buffer.getDirtyPageCount());
+        // Already clean enough
+        assertEquals(0, buffer.cleanPages(0.5, BUFFER_SIZE));
+        buffer.unfix(fixed, TEST_OWNER);
+    }
+
+    public void testFlushListenersSkipWriter() {
+        PageStorage st = new MemoryPageStorage(PAGE_SIZE);
+        PageBuffer buffer = new PageBuffer(st, BUFFER_SIZE, NoopLatchManager.instance());
+        buffer.initialize();
+        final AtomicInteger prepared = new AtomicInteger();
+        buffer.registerPageFlushListener(new PageFlushListener() {
+            @Override
+            public void prepareForFlush(StoredPage page) {
+                prepared.incrementAndGet();
+            }
+        });
+        dirtyPages(buffer, 1, BUFFER_SIZE + 1);
+
+        // The listeners must not be run by the writer thread
+        assertEquals(0, buffer.cleanPages(1, BUFFER_SIZE));
+        assertEquals(0, prepared.get());
+        assertEquals(BUFFER_SIZE, buffer.getDirtyPageCount());
+
+        buffer.flush(false);
+        assertEquals(BUFFER_SIZE, prepared.get());
+        assertEquals(0, buffer.getDirtyPageCount());
+    }
+
+    public void testBackgroundWriter() throws IOException {
+        PageStorage st = new MemoryPageStorage(PAGE_SIZE);
+        PageBuffer buffer = new PageBuffer(st, BUFFER_SIZE, NoopLatchManager.instance());
+        buffer.initialize();
+        BackgroundPageWriter writer = new BackgroundPageWriter(0.75, 10, 4);
+        buffer.setPageWriter(writer);
+        assertTrue(writer.isRunning());
+
+        dirtyPages(buffer, 1, BUFFER_SIZE + 1);
+        for (int i = 0; i < 100 && buffer.getDirtyPageCount() > BUFFER_SIZE / 4; i++) {
+            pause(0.02);
+        }
+        assertTrue(buffer.getDirtyPageCount() <= BUFFER_SIZE / 4);
+
+        // Evict everything while the writer is running
+        dirtyPages(buffer, BUFFER_SIZE + 1, BUFFER_SIZE * 4);
+
+        // Closing the buffer must stop the writer and write all pages
+        buffer.close();
+        assertFalse(writer.isRunning());
+        assertEquals(0, buffer.getDirtyPageCount());
+
+        buffer.clearStructures();
+        buffer.initialize();
+        assertTrue(writer.isRunning());
+        for (int i = 1; i < BUFFER_SIZE * 4; i++) {
+            TestPage page = buffer.fixPage(new PageID(i), factory, false, TEST_OWNER);
+            assertEquals(i, page.data);
+            buffer.unfix(page, TEST_OWNER);
+        }
+        buffer.setPageWriter(null);
+        assertFalse(writer.isRunning());
+    }
+
+}
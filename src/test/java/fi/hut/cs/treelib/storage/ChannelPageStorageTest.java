@@ -0,0 +1,140 @@
+package fi.hut.cs.treelib.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.concurrency.NoopLatchManager;
+
+public class ChannelPageStorageTest extends TreeLibTest {
+
+    private static final int PAGE_SIZE = 100;
+
+    private File dbFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dbFile = File.createTempFile("treelib-channel", ".db");
+        dbFile.deleteOnExit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dbFile.delete();
+        super.tearDown();
+    }
+
+    public void testSaveAndLoad() throws IOException {
+        checkSaveAndLoad(false);
+    }
+
+    public void testSaveAndLoadDirect() throws IOException {
+        checkSaveAndLoad(true);
+    }
+
+    private ByteBuffer allocate(boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(PAGE_SIZE) : ByteBuffer.allocate(PAGE_SIZE);
+    }
+
+    private void checkSaveAndLoad(boolean direct) throws IOException {
+        ChannelPageStorage storage = new ChannelPageStorage(PAGE_SIZE, dbFile);
+        storage.initialize();
+        assertEquals(-1, storage.getMaxPageID().intValue());
+
+        ByteBuffer buf = allocate(direct);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            buf.put((byte) i);
+        }
+        // Position must not matter
+        storage.savePage(new PageID(3), buf);
+        assertEquals(3, storage.getMaxPageID().intValue());
+        assertTrue(storage.containsPage(new PageID(2)));
+        assertFalse(storage.containsPage(new PageID(4)));
+
+        ByteBuffer read = allocate(direct);
+        storage.loadPage(new PageID(3), read);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            assertEquals((byte) i, read.get(i));
+        }
+
+        // Pages past the end of file are cleared
+        storage.loadPage(new PageID(10), read);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            assertEquals(0, read.get(i));
+        }
+
+        storage.close();
+        storage.initialize();
+        assertEquals(3, storage.getMaxPageID().intValue());
+        assertTrue(storage.clear());
+        assertEquals(-1, storage.getMaxPageID().intValue());
+        storage.close();
+    }
+
+    public void testPageBuffer() {
+        ChannelPageStorage storage = new ChannelPageStorage(PAGE_SIZE, dbFile);
+        PageFactory<TestPage> factory = new TestPageFactory(PAGE_SIZE);
+        PageBuffer buffer = new PageBuffer(storage, 5, NoopLatchManager.instance());
+        buffer.initialize();
+
+        for (int i = 1; i < 20; i++) {
+            TestPage page = buffer.fixPage(new PageID(i), factory, true, TEST_OWNER);
+            page.data = 0x00abcd00 + i;
+            page.setDirty(true);
+            buffer.unfix(page, TEST_OWNER);
+        }
+        for (int i = 1; i < 20; i++) {
+            TestPage page = buffer.fixPage(new PageID(i), factory, false, TEST_OWNER);
+            assertEquals(0x00abcd00 + i, page.data);
+            buffer.unfix(page, TEST_OWNER);
+        }
+    }
+
+    public void testConcurrentLoads() throws Exception {
+        final ChannelPageStorage storage = new ChannelPageStorage(PAGE_SIZE, dbFile);
+        storage.initialize();
+        final int pages = 50;
+        for (int p = 0; p < pages; p++) {
+            ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+            while (buf.hasRemaining()) {
+                buf.put((byte) p);
+            }
+            storage.savePage(new PageID(p), buf);
+        }
+
+        final AtomicInteger errors = new AtomicInteger(0);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer buf = ByteBuffer.allocateDirect(PAGE_SIZE);
+                    try {
+                        for (int i = 0; i < 1000; i++) {
+                            int p = (i + offset * 7) % pages;
+                            storage.loadPage(new PageID(p), buf);
+                            for (int b = 0; b < PAGE_SIZE; b++) {
+                                if (buf.get(b) != (byte) p)
+                                    errors.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+        storage.close();
+    }
+
+}
@@ -0,0 +1,115 @@
+package fi.hut.cs.treelib.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.concurrency.NoopLatchManager;
+
+public class MappedPageStorageTest extends TreeLibTest {
+
+    private static final int PAGE_SIZE = 100;
+    /** Small segments so that the mapping grows often. */
+    private static final int SEGMENT_SIZE = 4 * PAGE_SIZE;
+
+    private File dbFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dbFile = File.createTempFile("treelib-mapped", ".db");
+        dbFile.deleteOnExit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dbFile.delete();
+        super.tearDown();
+    }
+
+    public void testSaveAndLoad() throws IOException {
+        MappedPageStorage storage = new MappedPageStorage(PAGE_SIZE, dbFile, SEGMENT_SIZE);
+        storage.initialize();
+        assertEquals(-1, storage.getMaxPageID().intValue());
+
+        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            buf.put((byte) i);
+        }
+        // Page in the third segment
+        storage.savePage(new PageID(9), buf);
+        assertEquals(9, storage.getMaxPageID().intValue());
+        assertTrue(storage.containsPage(new PageID(8)));
+        assertFalse(storage.containsPage(new PageID(10)));
+
+        ByteBuffer read = ByteBuffer.allocate(PAGE_SIZE);
+        storage.loadPage(new PageID(9), read);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            assertEquals((byte) i, read.get(i));
+        }
+
+        // The view shows the same data
+        ByteBuffer view = storage.getPageView(new PageID(9));
+        assertEquals(PAGE_SIZE, view.capacity());
+        assertEquals(0, view.position());
+        assertEquals(5, view.get(5));
+
+        // Writes through the view go to the storage
+        view.put(0, (byte) 42);
+        storage.loadPage(new PageID(9), read);
+        assertEquals(42, read.get(0));
+
+        // Pages past the end of storage are cleared
+        storage.loadPage(new PageID(20), read);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            assertEquals(0, read.get(i));
+        }
+
+        // The file is truncated to the used size on close
+        storage.close();
+        assertEquals(10 * PAGE_SIZE, dbFile.length());
+        storage.initialize();
+        assertEquals(9, storage.getMaxPageID().intValue());
+        storage.loadPage(new PageID(9), read);
+        assertEquals(42, read.get(0));
+        assertEquals(1, read.get(1));
+
+        assertTrue(storage.clear());
+        assertEquals(-1, storage.getMaxPageID().intValue());
+        storage.close();
+        assertEquals(0, dbFile.length());
+    }
+
+    public void testPageBuffer() throws IOException {
+        MappedPageStorage storage = new MappedPageStorage(PAGE_SIZE, dbFile, SEGMENT_SIZE);
+        PageFactory<TestPage> factory = new TestPageFactory(PAGE_SIZE);
+        PageBuffer buffer = new PageBuffer(storage, 5, NoopLatchManager.instance());
+        buffer.initialize();
+
+        for (int i = 1; i < 30; i++) {
+            TestPage page = buffer.fixPage(new PageID(i), factory, true, TEST_OWNER);
+            page.data = 0x00abcd00 + i;
+            page.setDirty(true);
+            buffer.unfix(page, TEST_OWNER);
+        }
+        for (int i = 1; i < 30; i++) {
+            TestPage page = buffer.fixPage(new PageID(i), factory, false, TEST_OWNER);
+            assertEquals(0x00abcd00 + i, page.data);
+            buffer.unfix(page, TEST_OWNER);
+        }
+        buffer.close();
+
+        // Reopen the storage and check that the pages were saved
+        buffer = new PageBuffer(storage, 5, NoopLatchManager.instance());
+        buffer.initialize();
+        for (int i = 1; i < 30; i++) {
+            TestPage page = buffer.fixPage(new PageID(i), factory, false, TEST_OWNER);
+            assertEquals(0x00abcd00 + i, page.data);
+            buffer.unfix(page, TEST_OWNER);
+        }
+        buffer.close();
+    }
+
+}
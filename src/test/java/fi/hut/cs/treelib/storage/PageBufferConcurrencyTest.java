@@ -0,0 +1,110 @@
+package fi.hut.cs.treelib.storage;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.concurrency.NoopLatchManager;
+
+public class PageBufferConcurrencyTest extends TreeLibTest {
+
+    private static final Logger log = Logger.getLogger(PageBufferConcurrencyTest.class);
+
+    private static final int PAGE_SIZE = 100;
+    private static final int THREADS = 8;
+    private static final int FIXES_PER_THREAD = 20000;
+
+    /**
+     * Fixes and unfixes pages from several threads at the same time, and
+     * checks that each thread always sees the correct page contents.
+     */
+    public void testConcurrentFixUnfix() throws InterruptedException {
+        // Buffer smaller than the page set, so pages are evicted and
+        // reloaded while other threads are fixing them
+        runFixUnfix(20, 60, new ClockPolicy());
+    }
+
+    public void testConcurrentFixUnfixPolicies() throws InterruptedException {
+        runFixUnfix(20, 60, new LRUKPolicy());
+        runFixUnfix(20, 60, new TwoQueuePolicy());
+    }
+
+    public void testConcurrentFixUnfixResident() throws InterruptedException {
+        // All pages fit in the buffer
+        runFixUnfix(60, 50, new ClockPolicy());
+    }
+
+    private void runFixUnfix(int bufferSize, final int pageCount, ReplacementPolicy policy)
+        throws InterruptedException {
+        PageStorage st = new MemoryPageStorage(PAGE_SIZE);
+        final PageBuffer buffer = new PageBuffer(st, bufferSize, NoopLatchManager.instance());
+        buffer.initialize();
+        buffer.setReplacementPolicy(policy);
+        final PageFactory<TestPage> fac = new TestPageFactory(PAGE_SIZE);
+
+        // Initialize the pages
+        for (int i = 1; i <= pageCount; i++) {
+            TestPage page = buffer.fixPage(new PageID(i), fac, true, TEST_OWNER);
+            page.data = i;
+            page.setDirty(true);
+            buffer.unfix(page, TEST_OWNER);
+        }
+
+        final AtomicInteger errors = new AtomicInteger(0);
+        final AtomicLong fixes = new AtomicLong(0);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        for (int i = 0; i < FIXES_PER_THREAD; i++) {
+                            PageID pageID = new PageID(random.nextInt(pageCount) + 1);
+                            TestPage page = buffer.fixPage(pageID, fac, false, TEST_OWNER);
+                            if (page == null || page.data != pageID.intValue()) {
+                                errors.incrementAndGet();
+                            }
+                            buffer.unfix(pageID, TEST_OWNER);
+                            fixes.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("Error when fixing pages: " + e, e);
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+        log.info(String.format("%d threads: %d fixes in %d ms (%d fixes/s)", THREADS, fixes
+            .get(), elapsed, fixes.get() * 1000 / elapsed));
+
+        assertEquals(0, errors.get());
+        assertEquals(THREADS * FIXES_PER_THREAD, fixes.get());
+        assertEquals(0, buffer.getTotalPageFixes());
+        assertTrue(buffer.getPagesInBuffer() <= bufferSize);
+
+        // Check that the page contents survived all the evictions
+        buffer.flush(true);
+        assertEquals(0, buffer.getPagesInBuffer());
+        for (int i = 1; i <= pageCount; i++) {
+            TestPage page = buffer.fixPage(new PageID(i), fac, false, TEST_OWNER);
+            assertEquals(i, page.data);
+            buffer.unfix(page, TEST_OWNER);
+        }
+    }
+
+}
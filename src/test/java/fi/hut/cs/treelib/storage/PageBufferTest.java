@@ -1,5 +1,8 @@
 package fi.hut.cs.treelib.storage;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.apache.log4j.Logger;
 
 import fi.hut.cs.treelib.PageID;
@@ -58,4 +61,49 @@ public class PageBufferTest extends TreeLibTest {
         buffer.fixPage(new PageID(3), fac, true, TEST_OWNER);
     }
 
+    public void testDirectFramesMemoryStorage() throws IOException {
+        checkDirectFrames(new MemoryPageStorage(PAGE_SIZE));
+    }
+
+    public void testDirectFramesFileStorage() throws IOException {
+        File dbFile = File.createTempFile("treelib-buffer", ".db");
+        dbFile.deleteOnExit();
+        try {
+            checkDirectFrames(new FilePageStorage(PAGE_SIZE, dbFile));
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+    private void checkDirectFrames(PageStorage st) throws IOException {
+        PageBuffer buffer = new PageBuffer(st, BUFFER_SIZE, NoopLatchManager.instance());
+        buffer.setDirectFrames(true);
+        assertTrue(buffer.isDirectFrames());
+        buffer.initialize();
+        final PageFactory<TestPage> fac = new TestPageFactory(PAGE_SIZE);
+
+        // More pages than buffer frames, so that the pages are written and
+        // read back through the direct frames
+        for (int i = 1; i < 20; i++) {
+            TestPage page = buffer.fixPage(new PageID(i), fac, true, TEST_OWNER);
+            page.data = 0x00beef00 + i;
+            page.setDirty(true);
+            buffer.unfix(page, TEST_OWNER);
+        }
+        for (int i = 1; i < 20; i++) {
+            TestPage page = buffer.fixPage(new PageID(i), fac, false, TEST_OWNER);
+            assertEquals(0x00beef00 + i, page.data);
+            buffer.unfix(page, TEST_OWNER);
+        }
+
+        // Frame memory cannot be changed when there are pages in the buffer
+        try {
+            buffer.setDirectFrames(false);
+            fail("Frame memory changed with pages in buffer");
+        } catch (IllegalStateException e) {
+            // OK
+        }
+        buffer.close();
+    }
+
 }
@@ -0,0 +1,140 @@
+package fi.hut.cs.treelib.storage;
+
+import fi.hut.cs.treelib.PageID;
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.hut.cs.treelib.concurrency.NoopLatchManager;
+
+public class ReplacementPolicyTest extends TreeLibTest {
+
+    private static final int PAGE_SIZE = 100;
+    private static final int BUFFER_SIZE = 8;
+
+    private final PageFactory<TestPage> factory = new TestPageFactory(PAGE_SIZE);
+
+    private PageBuffer createBuffer(ReplacementPolicy policy) {
+        PageStorage st = new MemoryPageStorage(PAGE_SIZE);
+        PageBuffer buffer = new PageBuffer(st, BUFFER_SIZE, NoopLatchManager.instance());
+        buffer.initialize();
+        buffer.setReplacementPolicy(policy);
+        return buffer;
+    }
+
+    private void touch(PageBuffer buffer, int pageID) {
+        TestPage page = buffer.fixPage(new PageID(pageID), factory, true, TEST_OWNER);
+        if (page.data == 0) {
+            page.data = pageID;
+            page.setDirty(true);
+        }
+        assertEquals(pageID, page.data);
+        buffer.unfix(page, TEST_OWNER);
+    }
+
+    /**
+     * Pages must be retained correctly regardless of which pages the policy
+     * chooses to evict.
+     */
+    public void testPageContents() {
+        ReplacementPolicy[] policies = new ReplacementPolicy[] { new ClockPolicy(),
+            new LRUKPolicy(), new LRUKPolicy(3), new TwoQueuePolicy() };
+        for (ReplacementPolicy policy : policies) {
+            PageBuffer buffer = createBuffer(policy);
+            for (int round = 0; round < 3; round++) {
+                for (int i = 1; i < 40; i++) {
+                    touch(buffer, i);
+                    touch(buffer, 1 + (i % 5));
+                }
+            }
+            assertEquals(0, buffer.getTotalPageFixes());
+            assertTrue(buffer.getPagesInBuffer() <= BUFFER_SIZE);
+        }
+    }
+
+    public void testBufferFull() {
+        ReplacementPolicy[] policies = new ReplacementPolicy[] { new ClockPolicy(),
+            new LRUKPolicy(), new TwoQueuePolicy() };
+        for (ReplacementPolicy policy : policies) {
+            PageBuffer buffer = createBuffer(policy);
+            for (int i = 1; i <= BUFFER_SIZE; i++) {
+                buffer.fixPage(new PageID(i), factory, true, TEST_OWNER);
+            }
+            try {
+                buffer.fixPage(new PageID(BUFFER_SIZE + 1), factory, true, TEST_OWNER);
+                fail("Buffer full but no exception thrown with " + policy);
+            } catch (IndexOutOfBoundsException e) {
+                // OK, buffer is full
+            }
+        }
+    }
+
+    public void testLRU2ScanResistance() {
+        assertScanResistant(new LRUKPolicy());
+    }
+
+    public void testLRU2Order() {
+        PageBuffer buffer = createBuffer(new LRUKPolicy());
+        for (int i = 1; i <= BUFFER_SIZE; i++) {
+            touch(buffer, i);
+        }
+        // Page 1 is referenced twice; the others are evicted first, oldest
+        // first, even though page 1 is queued first
+        touch(buffer, 1);
+        for (int i = 1; i < BUFFER_SIZE; i++) {
+            touch(buffer, 100 + i);
+            assertFalse(buffer.containsPage(new PageID(i + 1)));
+            assertTrue(buffer.containsPage(new PageID(1)));
+        }
+    }
+
+    public void testLRU2HitOrder() {
+        PageBuffer buffer = createBuffer(new LRUKPolicy());
+        for (int i = 1; i <= BUFFER_SIZE; i++) {
+            touch(buffer, i);
+        }
+        // All the pages are hit twice after they have been loaded, the last
+        // loaded page first; the hit times decide the victim
+        for (int i = BUFFER_SIZE; i >= 1; i--) {
+            touch(buffer, i);
+            touch(buffer, i);
+        }
+        touch(buffer, 100);
+        assertFalse(buffer.containsPage(new PageID(BUFFER_SIZE)));
+        for (int i = 1; i < BUFFER_SIZE; i++) {
+            assertTrue(buffer.containsPage(new PageID(i)));
+        }
+    }
+
+    public void testTwoQueueScanResistance() {
+        PageBuffer buffer = createBuffer(new TwoQueuePolicy());
+        // Load the hot pages, let them fall to the ghost queue, and load them
+        // again so that they are promoted to Am
+        touch(buffer, 1);
+        touch(buffer, 2);
+        for (int i = 100; i < 100 + BUFFER_SIZE; i++) {
+            touch(buffer, i);
+        }
+        touch(buffer, 1);
+        touch(buffer, 2);
+        assertScanDoesNotEvict(buffer);
+    }
+
+    private void assertScanResistant(ReplacementPolicy policy) {
+        PageBuffer buffer = createBuffer(policy);
+        // Reference the hot pages twice
+        for (int i = 0; i < 2; i++) {
+            touch(buffer, 1);
+            touch(buffer, 2);
+        }
+        assertScanDoesNotEvict(buffer);
+    }
+
+    private void assertScanDoesNotEvict(PageBuffer buffer) {
+        // A long scan of pages that are referenced only once
+        for (int i = 1000; i < 1000 + BUFFER_SIZE * 4; i++) {
+            touch(buffer, i);
+            assertTrue("Hot page evicted by scan at " + i + " with "
+                + buffer.getReplacementPolicy(), buffer.containsPage(new PageID(1)));
+            assertTrue(buffer.containsPage(new PageID(2)));
+        }
+    }
+
+}
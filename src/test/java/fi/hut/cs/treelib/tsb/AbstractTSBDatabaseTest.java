@@ -1,5 +1,11 @@
 package fi.hut.cs.treelib.tsb;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import fi.hut.cs.treelib.AbstractMVDatabaseTest;
 import fi.hut.cs.treelib.Key;
 import fi.hut.cs.treelib.PageID;
@@ -10,6 +16,7 @@ import fi.hut.cs.treelib.common.DummyTransaction;
 import fi.hut.cs.treelib.common.IntegerKey;
 import fi.hut.cs.treelib.common.IntegerValue;
 import fi.hut.cs.treelib.common.StringValue;
+import fi.hut.cs.treelib.storage.BackgroundPageWriter;
 import fi.hut.cs.treelib.storage.MemoryPageStorage;
 import fi.hut.cs.treelib.storage.PageBuffer;
 import fi.hut.cs.treelib.storage.PageStorage;
@@ -146,6 +153,101 @@ public abstract class AbstractTSBDatabaseTest extends
         assertEquals(2, ptt.get(k(tx.getTransactionID()), pttTX).intValue());
     }
 
+    public void testPTTGroupCommit() throws InterruptedException {
+        if (batchPTTUpdate) {
+            // PTT is updated during maintenance
+            return;
+        }
+        final int txCount = 8;
+        TSBDatabase<IntegerKey, StringValue> db = createDatabase();
+        db.setPTTGroupCommitSize(txCount);
+        db.setPTTGroupCommitWait(200);
+        TSBTree<IntegerKey, StringValue> tree = db.getDatabaseTree();
+        BTree<IntegerKey, IntegerValue> ptt = tree.getPTT();
+        long batches = tree.getPTTGroupCommitBatchCount();
+
+        List<Transaction<IntegerKey, StringValue>> txs = new ArrayList<Transaction<IntegerKey, StringValue>>();
+        for (int i = 0; i < txCount; i++) {
+            Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
+            tx.insert(k(i + 1), v(i));
+            txs.add(tx);
+        }
+
+        // Commit the transactions concurrently
+        final AtomicInteger missing = new AtomicInteger();
+        final TSBTree<IntegerKey, StringValue> fTree = tree;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final Transaction<IntegerKey, StringValue> tx : txs) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    DummyTransaction<IntegerKey, IntegerValue> pttTX = new DummyTransaction<IntegerKey, IntegerValue>(
+                        "ptt-" + tx.getTransactionID());
+                    tx.commit();
+                    // The PTT entry must be persisted when the commit returns
+                    synchronized (fTree) {
+                        IntegerValue v = fTree.getPTT().get(k(tx.getTransactionID()), pttTX);
+                        if (v == null || v.intValue() != tx.getCommitVersion())
+                            missing.incrementAndGet();
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, missing.get());
+
+        DummyTransaction<IntegerKey, IntegerValue> pttTX = new DummyTransaction<IntegerKey, IntegerValue>(
+            "ptt-test");
+        Set<Integer> versions = new HashSet<Integer>();
+        for (Transaction<IntegerKey, StringValue> tx : txs) {
+            IntegerValue v = ptt.get(k(tx.getTransactionID()), pttTX);
+            assertNotNull(v);
+            assertEquals(tx.getCommitVersion(), v.intValue());
+            versions.add(v.intValue());
+        }
+        assertEquals(txCount, versions.size());
+        // The concurrent commits were written in batches
+        assertGT(txCount, (int) (tree.getPTTGroupCommitBatchCount() - batches));
+    }
+
+    public void testBackgroundPageWriter() {
+        TSBDatabase<IntegerKey, StringValue> db = createDatabase();
+        BackgroundPageWriter writer = new BackgroundPageWriter(1, 1, 8);
+        db.setPageWriter(writer);
+        assertTrue(writer.isRunning());
+
+        // Commit while the writer runs, so that the pages with temporary
+        // entries are dirty and unfixed in the buffer
+        for (int round = 0; round < 20; round++) {
+            Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
+            for (int i = 1; i <= 30; i++) {
+                int key = round * 30 + i;
+                insert(tx, String.valueOf(key));
+                if (i % 3 == 0)
+                    delete(tx, String.valueOf(key - 1));
+            }
+            tx.commit();
+            db.requestMaintenance();
+            pause(0.002);
+        }
+
+        Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
+        for (int key = 1; key <= 20 * 30; key++) {
+            if (key % 3 == 2)
+                assertNull(tx.get(k(key)));
+            else
+                assertEquals(v(String.valueOf(key)), tx.get(k(key)));
+        }
+        tx.commit();
+        db.checkConsistency();
+        db.setPageWriter(null);
+        assertFalse(writer.isRunning());
+    }
+
     public void testTXOwnLeafEntryManipulation() {
         TSBDatabase<IntegerKey, StringValue> db = createDatabase();
         Transaction<IntegerKey, StringValue> tx = db.beginTransaction();
@@ -0,0 +1,150 @@
+package fi.hut.cs.treelib.tsb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.hut.cs.treelib.TreeLibTest;
+import fi.tuska.util.Callback;
+import fi.tuska.util.Pair;
+
+public class PTTGroupCommitTest extends TreeLibTest {
+
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 50;
+    private static final int BATCH_SIZE = 16;
+
+    private final Set<Integer> written = new HashSet<Integer>();
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private final AtomicInteger oversized = new AtomicInteger();
+
+    private PTTGroupCommit createGroupCommit() {
+        PTTGroupCommit commit = new PTTGroupCommit(
+            new Callback<List<Pair<Integer, Integer>>>() {
+                @Override
+                public boolean callback(List<Pair<Integer, Integer>> batch) {
+                    if (batch.size() > BATCH_SIZE)
+                        oversized.incrementAndGet();
+                    // Simulate the cost of the PTT write
+                    pause(0.002);
+                    synchronized (written) {
+                        for (Pair<Integer, Integer> entry : batch) {
+                            if (!written.add(entry.getFirst()))
+                                duplicates.incrementAndGet();
+                        }
+                    }
+                    return true;
+                }
+            });
+        commit.setMaxBatchSize(BATCH_SIZE);
+        return commit;
+    }
+
+    public void testSingleCommit() {
+        PTTGroupCommit commit = createGroupCommit();
+        commit.commit(1, 1);
+        assertTrue(written.contains(1));
+        assertEquals(1, commit.getBatchCount());
+        commit.commit(2, 2);
+        assertTrue(written.contains(2));
+        assertEquals(2, commit.getBatchCount());
+    }
+
+    public void testFailedBatch() throws InterruptedException {
+        final AtomicInteger failAttempts = new AtomicInteger(1);
+        final PTTGroupCommit commit = new PTTGroupCommit(
+            new Callback<List<Pair<Integer, Integer>>>() {
+                @Override
+                public boolean callback(List<Pair<Integer, Integer>> batch) {
+                    if (failAttempts.getAndDecrement() > 0)
+                        throw new IllegalStateException("PTT write failed");
+                    synchronized (written) {
+                        for (Pair<Integer, Integer> entry : batch) {
+                            written.add(entry.getFirst());
+                        }
+                    }
+                    return true;
+                }
+            });
+        // All the commits go to the same batch
+        commit.setMaxBatchSize(THREADS);
+        commit.setMaxWait(10000);
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger succeeded = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 1; t <= THREADS; t++) {
+            final int id = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        commit.commit(id, id);
+                        succeeded.incrementAndGet();
+                    } catch (IllegalStateException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Every committer of the failed batch sees the failure
+        assertEquals(THREADS, failed.get());
+        assertEquals(0, succeeded.get());
+        assertEquals(0, commit.getPersistedCount());
+        assertEquals(0, commit.getBatchCount());
+        assertTrue(written.isEmpty());
+
+        // The next batch is written normally
+        commit.setMaxWait(0);
+        commit.commit(THREADS + 1, THREADS + 1);
+        assertTrue(written.contains(THREADS + 1));
+        assertEquals(1, commit.getPersistedCount());
+        assertEquals(1, commit.getBatchCount());
+    }
+
+    public void testConcurrentCommits() throws InterruptedException {
+        final PTTGroupCommit commit = createGroupCommit();
+        commit.setMaxWait(1);
+        final AtomicInteger notPersisted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int base = t * COMMITS_PER_THREAD;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= COMMITS_PER_THREAD; i++) {
+                        int id = base + i;
+                        commit.commit(id, id);
+                        // The entry must be written when the commit returns
+                        synchronized (written) {
+                            if (!written.contains(id))
+                                notPersisted.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int commits = THREADS * COMMITS_PER_THREAD;
+        assertEquals(0, notPersisted.get());
+        assertEquals(0, duplicates.get());
+        assertEquals(0, oversized.get());
+        assertEquals(commits, written.size());
+        // Concurrent commits are written together
+        log.info("Wrote " + commits + " commits in " + commit.getBatchCount() + " batches");
+        assertGT(commits, (int) commit.getBatchCount());
+    }
+
+}